@@ -0,0 +1,419 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the completed messages of past builds, for consumers that were added later.
+ * <p>
+ * Jobs are iterated one at a time and their builds from the oldest, each build loaded only when it is
+ * reached, so build histories are never held in memory. Every build gets the normal completed message,
+ * including all data providers, with {@link Util#KEY_BACKFILL} set. The backfill slows down to the
+ * configured rate, pauses while the executors are nearly all busy, a message queue has a large backlog or
+ * the system is loaded, for example by disk I/O, and saves its progress regularly so that it resumes where
+ * it stopped, also after a restart. Jobs are visited in the order of {@link Jenkins#allItems(Class)}, which
+ * sorts the items of each folder by name, so the progress is only the job and build in progress.
+ */
+public final class Backfill {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Backfill.class);
+    private static final String CHECKPOINT_FILE = "mq-notifier-backfill.xml";
+    private static final int CHECKPOINT_INTERVAL = 100;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long PAUSE = 5000;
+    private static final long LOAD_CHECK_INTERVAL = 1000;
+    private static final double BUSY_EXECUTOR_LIMIT = 0.9;
+    private static final int BACKLOG_LIMIT = 5000;
+    /* Load average per processor above which the backfill pauses, on Linux it counts processes waiting for disk. */
+    private static final double LOAD_LIMIT = 2.0;
+    /* Free space on the disk of the message queues below which the backfill pauses. */
+    private static final long DISK_FREE_LIMIT = 1024L * 1024 * 1024;
+
+    private static final Backfill INSTANCE = new Backfill();
+
+    private Thread thread;
+    private volatile boolean stopRequested;
+    private volatile Checkpoint progress;
+    private volatile String state = "Not started";
+    private long lastLoadCheck;
+
+    /**
+     * Singleton.
+     */
+    private Backfill() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    public static Backfill getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the backfill, resuming from the saved progress unless restarted.
+     *
+     * @param restart true to forget the saved progress and start from the first job.
+     * @return false if the backfill is already running.
+     */
+    public synchronized boolean start(boolean restart) {
+        if (isRunning()) {
+            return false;
+        }
+        stopRequested = false;
+        final boolean fromScratch = restart;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                execute(fromScratch);
+            }
+        }, "MQ Notifier backfill");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops the backfill after the current build, its progress is saved.
+     */
+    public synchronized void stop() {
+        stopRequested = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns true if the backfill is running.
+     *
+     * @return true if running.
+     */
+    public synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Gets a description of the backfill state.
+     *
+     * @return the state.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * Gets the number of messages published by the backfill since it was started from scratch.
+     *
+     * @return the number of messages.
+     */
+    public long getPublished() {
+        Checkpoint checkpoint = progress;
+        return checkpoint != null ? checkpoint.published : 0;
+    }
+
+    /**
+     * Gets the number of jobs that have been backfilled completely.
+     *
+     * @return the number of jobs.
+     */
+    public int getCompletedJobs() {
+        Checkpoint checkpoint = progress;
+        return checkpoint != null ? checkpoint.jobs : 0;
+    }
+
+    /**
+     * Runs the backfill on the backfill thread.
+     *
+     * @param restart true to start from the first job.
+     */
+    private void execute(boolean restart) {
+        XmlFile file = new XmlFile(new File(Jenkins.get().getRootDir(), CHECKPOINT_FILE));
+        Checkpoint checkpoint = restart ? new Checkpoint() : load(file);
+        progress = checkpoint;
+        try {
+            int sinceSave = 0;
+            long next = System.nanoTime();
+            for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+                String name = job.getFullName();
+                if (checkpoint.isPassed(name)) {
+                    continue;
+                }
+                state = "Backfilling " + name;
+                Run<?, ?> run = job.getNearestBuild(checkpoint.lastBuildOf(name) + 1);
+                if (!name.equals(checkpoint.job)) {
+                    checkpoint.job = name;
+                    checkpoint.number = 0;
+                }
+                while (run != null) {
+                    if (stopRequested) {
+                        throw new InterruptedException();
+                    }
+                    MQNotifierConfig config = MQNotifierConfig.getInstance();
+                    if (!run.isBuilding() && config != null && config.getEventFilter().accepts(run)) {
+                        next = throttle(next);
+                        JSONObject json = RunListenerImpl.createCompletedMessage(run, config);
+                        json.put(Util.KEY_BACKFILL, true);
+                        MessagePublisher.publish(config, json);
+                        checkpoint.published++;
+                    }
+                    checkpoint.number = run.getNumber();
+                    if (++sinceSave >= CHECKPOINT_INTERVAL) {
+                        save(file, checkpoint);
+                        sinceSave = 0;
+                    }
+                    run = run.getNextBuild();
+                }
+                checkpoint.jobs++;
+                // a job without builds counts, so that a long run of them is not visited again
+                if (++sinceSave >= CHECKPOINT_INTERVAL) {
+                    save(file, checkpoint);
+                    sinceSave = 0;
+                }
+            }
+            checkpoint.finished = true;
+            state = "Finished, " + checkpoint.published + " messages published";
+        } catch (InterruptedException e) {
+            state = "Stopped in " + checkpoint.job + " after build " + checkpoint.number;
+        } catch (RuntimeException e) {
+            LOGGER.error("Backfill failed", e);
+            state = "Failed in " + checkpoint.job + " after build " + checkpoint.number + ": " + e;
+        } finally {
+            save(file, checkpoint);
+        }
+        LOGGER.info("MQ Notifier backfill: {}", state);
+    }
+
+    /**
+     * Waits until the next build may be backfilled.
+     * The times are in nanoseconds, so that rates above one build per millisecond are still limited.
+     *
+     * @param next the earliest {@link System#nanoTime()} for the next build.
+     * @return the earliest {@link System#nanoTime()} for the build after it.
+     * @throws InterruptedException if the backfill is stopped.
+     */
+    private long throttle(long next) throws InterruptedException {
+        if (stopRequested) {
+            throw new InterruptedException();
+        }
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        long rate = config != null ? config.getBackfillRate() : 0;
+        if (System.currentTimeMillis() - lastLoadCheck >= LOAD_CHECK_INTERVAL) {
+            while (isOverloaded()) {
+                Thread.sleep(PAUSE);
+            }
+            lastLoadCheck = System.currentTimeMillis();
+        }
+        long now = System.nanoTime();
+        if (rate > 0 && next - now > 0) {
+            TimeUnit.NANOSECONDS.sleep(next - now);
+            now = next;
+        }
+        return nextSlot(next, now, rate);
+    }
+
+    /**
+     * Gets the earliest time for the build after the one backfilled now. Time not used while the backfill
+     * was paused is made up for at most one second, so that it does not burst after a pause.
+     *
+     * @param next the earliest time for the build backfilled now, in nanoseconds.
+     * @param now  the time the build is backfilled, in nanoseconds, not before next.
+     * @param rate the number of builds per second, 0 or less for no limit.
+     * @return the earliest time for the build after it, in nanoseconds.
+     */
+    static long nextSlot(long next, long now, long rate) {
+        if (rate <= 0) {
+            return now;
+        }
+        return Math.max(next, now - NANOS_PER_SECOND) + Math.max(1, NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * Returns true while the executors are nearly all busy, the message queue has a large backlog, the system
+     * is loaded or the disk of the message queues is nearly full.
+     *
+     * @return true if the backfill should pause.
+     */
+    private boolean isOverloaded() {
+        if (MQConnection.getLargestQueueSize() > BACKLOG_LIMIT) {
+            state = "Paused, the message queue has a backlog";
+            return true;
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (isLoaded(os.getSystemLoadAverage(), os.getAvailableProcessors())) {
+            state = "Paused, the system load is high";
+            return true;
+        }
+        long usable = Jenkins.get().getRootDir().getUsableSpace();
+        if (usable > 0 && usable < DISK_FREE_LIMIT) {
+            state = "Paused, the disk of the message queues is nearly full";
+            return true;
+        }
+        int busy = 0;
+        int total = 0;
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (computer.isOnline()) {
+                busy += computer.countBusy();
+                total += computer.countExecutors();
+            }
+        }
+        if (total > 0 && busy >= total * BUSY_EXECUTOR_LIMIT) {
+            state = "Paused, the executors are busy";
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the system load is too high to backfill. On Linux the load average also counts the
+     * processes waiting for the disk, so a saturated disk pauses the backfill as well.
+     *
+     * @param loadAverage the load average of the last minute, negative if not available.
+     * @param processors  the number of processors.
+     * @return true if the backfill should pause.
+     */
+    static boolean isLoaded(double loadAverage, int processors) {
+        return loadAverage >= 0 && loadAverage > Math.max(1, processors) * LOAD_LIMIT;
+    }
+
+    /**
+     * Loads the saved progress.
+     *
+     * @param file the checkpoint file.
+     * @return the progress, new if there is none or the last backfill finished.
+     */
+    private static Checkpoint load(XmlFile file) {
+        if (file.exists()) {
+            try {
+                Checkpoint checkpoint = (Checkpoint)file.read();
+                if (checkpoint != null && !checkpoint.finished) {
+                    return checkpoint;
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot read the backfill progress, starting from scratch", e);
+            } catch (ClassCastException e) {
+                LOGGER.warn("Cannot read the backfill progress, starting from scratch", e);
+            }
+        }
+        return new Checkpoint();
+    }
+
+    /**
+     * Saves the progress.
+     *
+     * @param file       the checkpoint file.
+     * @param checkpoint the progress.
+     */
+    private static void save(XmlFile file, Checkpoint checkpoint) {
+        try {
+            file.write(checkpoint);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot save the backfill progress", e);
+        }
+    }
+
+    /**
+     * Compares the full names of two jobs in the order they are visited, the items of each folder sorted by
+     * name and the items in a folder right after the folder.
+     *
+     * @param a a full name.
+     * @param b another full name.
+     * @return negative, zero or positive as a is visited before, as or after b.
+     */
+    static int compareFullNames(String a, String b) {
+        String[] as = a.split("/");
+        String[] bs = b.split("/");
+        for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+            int c = as[i].compareTo(bs[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return as.length - bs.length;
+    }
+
+    /**
+     * The saved progress of a backfill.
+     */
+    static final class Checkpoint {
+        /* The job in progress and its last visited build, 0 before its first build. */
+        private String job;
+        private int number;
+        /* The number of jobs that have been backfilled completely. */
+        private int jobs;
+        private long published;
+        private boolean finished;
+
+        /**
+         * Constructor for a backfill from scratch.
+         */
+        Checkpoint() {
+        }
+
+        /**
+         * Constructor for a backfill in progress.
+         *
+         * @param job    the job in progress.
+         * @param number its last visited build.
+         */
+        Checkpoint(String job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+
+        /**
+         * Returns true if a job was backfilled completely, as it is visited before the job in progress.
+         *
+         * @param name the full name of the job.
+         * @return true if the job should be skipped.
+         */
+        boolean isPassed(String name) {
+            return job != null && compareFullNames(name, job) < 0;
+        }
+
+        /**
+         * Gets the last visited build of a job.
+         *
+         * @param name the full name of the job.
+         * @return the build number, 0 if no build of the job was visited.
+         */
+        int lastBuildOf(String name) {
+            return name.equals(job) ? number : 0;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+
+/**
+ * CLI command to start, stop and follow a {@link Backfill}.
+ */
+@Extension
+public class BackfillCommand extends CLICommand {
+
+    /* What to do: start, restart, stop or status. */
+    @Argument(metaVar = "ACTION", usage = "start, restart, stop or status", required = true)
+    private String action;
+
+    @Override
+    public String getShortDescription() {
+        return "Publishes the completed messages of past builds to MQ.";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Backfill backfill = Backfill.getInstance();
+        if ("start".equals(action) || "restart".equals(action)) {
+            if (!backfill.start("restart".equals(action))) {
+                stderr.println("A backfill is already running");
+                return 1;
+            }
+        } else if ("stop".equals(action)) {
+            backfill.stop();
+        } else if (!"status".equals(action)) {
+            stderr.println("Unknown action " + action + ", use start, restart, stop or status");
+            return 2;
+        }
+        stdout.println(backfill.getState() + ", " + backfill.getPublished() + " messages published, "
+                + backfill.getCompletedJobs() + " jobs completed");
+        return 0;
+    }
+}
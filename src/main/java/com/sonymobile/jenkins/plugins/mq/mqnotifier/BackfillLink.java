@@ -0,0 +1,103 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Page to start, stop and follow a {@link Backfill}.
+ */
+@Extension
+public class BackfillLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "MQ Notifier Backfill";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Publish the completed messages of past builds to MQ.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "mq-notifier-backfill";
+    }
+
+    /**
+     * Gets the backfill.
+     *
+     * @return the backfill.
+     */
+    public Backfill getBackfill() {
+        return Backfill.getInstance();
+    }
+
+    /**
+     * Starts the backfill, resuming from where it stopped.
+     *
+     * @return redirect to the backfill page.
+     */
+    @RequirePOST
+    public HttpResponse doStart() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Backfill.getInstance().start(false);
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Starts the backfill from the first job.
+     *
+     * @return redirect to the backfill page.
+     */
+    @RequirePOST
+    public HttpResponse doRestart() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Backfill.getInstance().start(true);
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Stops the backfill.
+     *
+     * @return redirect to the backfill page.
+     */
+    @RequirePOST
+    public HttpResponse doStop() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Backfill.getInstance().stop();
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes how many queued messages the dispatcher publishes per publisher confirm, and how long it lingers for
+ * a batch to fill up.
+ * <p>
+ * When the queue is idle every message is sent on its own and at once. While messages are waiting the batch
+ * grows, doubling after every confirmed batch, as long as the confirm round trip stays below the latency
+ * target and the throughput target is not met, up to the maximum batch size. The batch is halved when the
+ * round trip exceeds the target, when a batch fails and when the backlog is gone. Lingering is limited to
+ * what is left of the latency target after the measured round trip.
+ */
+final class BatchController {
+    private static final double SMOOTHING = 0.2;
+
+    private int maxSize = 1;
+    private long latencyTarget;
+    private long throughputTarget;
+    private int size = 1;
+    /* Moving average of the confirm round trip in nanoseconds, 0 before the first batch. */
+    private double roundTrip;
+
+    /**
+     * Applies the configured limits.
+     *
+     * @param max        the maximum batch size, batching is off if 1 or less.
+     * @param latency    the target confirm round trip per batch in milliseconds.
+     * @param throughput the target messages per second, the batch does not grow beyond it. No target if 0 or less.
+     */
+    void configure(int max, long latency, long throughput) {
+        this.maxSize = Math.max(1, max);
+        this.latencyTarget = TimeUnit.MILLISECONDS.toNanos(Math.max(0, latency));
+        this.throughputTarget = throughput;
+        this.size = Math.min(size, maxSize);
+    }
+
+    /**
+     * Gets the number of messages to publish in the next batch.
+     *
+     * @return the batch size.
+     */
+    int getBatchSize() {
+        return size;
+    }
+
+    /**
+     * Gets how long to wait for the batch to fill up before it is sent.
+     *
+     * @param backlog the number of messages in the queue.
+     * @return the linger time in milliseconds, 0 to send at once.
+     */
+    long getLinger(int backlog) {
+        if (size <= 1 || backlog >= size) {
+            return 0;
+        }
+        double left = latencyTarget - roundTrip;
+        return left > 0 ? TimeUnit.NANOSECONDS.toMillis((long)left) / 2 : 0;
+    }
+
+    /**
+     * Records a confirmed batch.
+     *
+     * @param count   the number of messages in the batch.
+     * @param nanos   the time from the first publish to the confirm.
+     * @param backlog the number of messages in the queue when the batch was read, including the batch.
+     */
+    void confirmed(int count, long nanos, int backlog) {
+        roundTrip = roundTrip == 0 ? nanos : roundTrip + SMOOTHING * (nanos - roundTrip);
+        if (roundTrip > latencyTarget || backlog <= count) {
+            shrink();
+        } else if (throughputTarget <= 0
+                || count * (double)TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos) < throughputTarget) {
+            size = Math.min(maxSize, size * 2);
+        }
+    }
+
+    /**
+     * Records a batch that was not confirmed.
+     */
+    void failed() {
+        shrink();
+    }
+
+    /**
+     * Halves the batch size.
+     */
+    private void shrink() {
+        size = Math.max(1, size / 2);
+    }
+}
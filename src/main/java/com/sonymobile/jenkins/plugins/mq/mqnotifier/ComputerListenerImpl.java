@@ -0,0 +1,377 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes state events of nodes: {@code NODE_ONLINE}, {@code NODE_OFFLINE} and {@code NODE_IDLE} when
+ * all executors of a node are idle again after builds.
+ * <p>
+ * Notifications only mark a node as changed. The changed nodes are collected for the debounce time and
+ * their state is then read once, so a node that goes offline and online again within that time produces
+ * no event, and one that changes several times only its last state, with the number of changes. When more
+ * nodes changed in one debounce time than the configured limit, as when a cloud replaces its agents, a
+ * single {@code NODES_CHANGED} summary with the node names by state is published instead.
+ * <p>
+ * The last published state of a node is forgotten when the node is deleted, so agents that a cloud
+ * provisions and deletes do not pile up.
+ */
+@Extension
+public class ComputerListenerImpl extends ComputerListener {
+
+    private static final String MASTER = "master";
+
+    /* Changed nodes waiting for the debounce time, by name. Guarded by the class. */
+    private static final Map<String, Change> PENDING = new LinkedHashMap<String, Change>();
+    /* The last published state of every known node, by name. Guarded by the class. */
+    private static final Map<String, String> PUBLISHED = new HashMap<String, String>();
+    private static boolean scheduled;
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        changed(c, false);
+    }
+
+    @Override
+    public void onOffline(Computer c, OfflineCause cause) {
+        changed(c, false);
+    }
+
+    @Override
+    public void onTemporarilyOnline(Computer c) {
+        changed(c, false);
+    }
+
+    @Override
+    public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+        changed(c, false);
+    }
+
+    /**
+     * Marks a node as changed.
+     *
+     * @param computer the computer of the node.
+     * @param idle     true if the executors of the node became idle.
+     */
+    static void changed(Computer computer, boolean idle) {
+        final MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config == null || !config.isNotifierEnabled() || !config.isNodeEvents()
+                || !config.getEventFilter().accepts(computer)) {
+            return;
+        }
+        if (mark(nameOf(computer), idle)) {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, config.getNodeEventDebounce(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Adds a notification to the changes of a node within the debounce time.
+     *
+     * @param name the node name.
+     * @param idle true if the executors of the node became idle.
+     * @return true if the flush at the end of the debounce time has to be scheduled.
+     */
+    static synchronized boolean mark(String name, boolean idle) {
+        Change change = PENDING.get(name);
+        if (change == null) {
+            change = new Change();
+            PENDING.put(name, change);
+        }
+        if (!idle) {
+            change.transitions++;
+        }
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * Takes the changed nodes of the debounce time that ended.
+     *
+     * @return the changes by node name.
+     */
+    static synchronized Map<String, Change> drain() {
+        Map<String, Change> changes = new LinkedHashMap<String, Change>(PENDING);
+        PENDING.clear();
+        scheduled = false;
+        return changes;
+    }
+
+    /**
+     * Records the state of a changed node, unless it was already published.
+     * The state of a removed node is forgotten.
+     *
+     * @param name    the node name.
+     * @param state   the state, null if there is nothing to publish.
+     * @param removed true if the node no longer exists.
+     * @return true if the state is to be published.
+     */
+    static synchronized boolean record(String name, String state, boolean removed) {
+        String last = removed ? PUBLISHED.remove(name) : PUBLISHED.get(name);
+        if (state == null || (state.equals(last) && !Util.VALUE_NODE_IDLE.equals(state))) {
+            return false;
+        }
+        if (!removed) {
+            PUBLISHED.put(name, state);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the last published state of a deleted node. A node with pending changes is forgotten by the flush,
+     * which still publishes that it is offline.
+     *
+     * @param name the node name.
+     */
+    static synchronized void deleted(String name) {
+        if (!PENDING.containsKey(name)) {
+            PUBLISHED.remove(name);
+        }
+    }
+
+    /**
+     * Reads the state of the changed nodes and publishes the ones that differ from what was last published.
+     */
+    static void flush() {
+        Map<String, Change> changes = drain();
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (config == null || jenkins == null || changes.isEmpty()) {
+            return;
+        }
+        List<JSONObject> events = new ArrayList<JSONObject>();
+        List<Computer> computers = new ArrayList<Computer>();
+        for (Map.Entry<String, Change> entry : changes.entrySet()) {
+            String name = entry.getKey();
+            Computer computer = jenkins.getComputer(name.equals(MASTER) ? "" : name);
+            String state = stateOf(computer, entry.getValue());
+            if (!record(name, state, computer == null)) {
+                continue;
+            }
+            JSONObject json = new JSONObject();
+            json.put(Util.KEY_STATE, state);
+            json.put(Util.KEY_MASTER_FQDN, Util.getHostName());
+            json.put(Util.KEY_NODE_NAME, name);
+            json.put(Util.KEY_NODE_TRANSITIONS, entry.getValue().transitions);
+            events.add(json);
+            computers.add(computer);
+        }
+        if (events.size() > Math.max(1, config.getNodeEventLimit())) {
+            MessagePublisher.publish(config, summarize(events));
+            return;
+        }
+        RouteTable routes = MessagePublisher.getRoutes(config);
+        for (int i = 0; i < events.size(); i++) {
+            final Computer computer = computers.get(i);
+            JSONObject json = events.get(i);
+            if (computer != null) {
+                describe(computer, json);
+                ProviderRunner.run(config, routes, json, ProviderRunner.COMPUTER, new ProviderRunner.Hook() {
+                    @Override
+                    public void provide(MQDataProvider provider, JSONObject fragment) {
+                        provider.provideComputerData(computer, fragment);
+                    }
+                });
+            }
+            MessagePublisher.publish(config, json);
+        }
+    }
+
+    /**
+     * Gets the state to publish for a changed node.
+     *
+     * @param computer the computer, null if the node was removed.
+     * @param change   the change.
+     * @return the state, or null if there is nothing to publish.
+     */
+    private static String stateOf(Computer computer, Change change) {
+        if (computer == null || computer.isOffline()) {
+            return Util.VALUE_NODE_OFFLINE;
+        }
+        if (change.transitions == 0) {
+            // the node only became idle, unless builds started again since
+            return computer.isIdle() ? Util.VALUE_NODE_IDLE : null;
+        }
+        return Util.VALUE_NODE_ONLINE;
+    }
+
+    /**
+     * Adds the details of a node to its event.
+     *
+     * @param computer the computer of the node.
+     * @param json     the event.
+     */
+    private static void describe(Computer computer, JSONObject json) {
+        Node node = computer.getNode();
+        if (node != null) {
+            StringBuilder labels = new StringBuilder();
+            for (LabelAtom label : node.getAssignedLabels()) {
+                if (labels.length() > 0) {
+                    labels.append(' ');
+                }
+                labels.append(label.getName());
+            }
+            json.put(Util.KEY_NODE_LABELS, labels.toString());
+        }
+        json.put(Util.KEY_NODE_EXECUTORS, computer.countExecutors());
+        if (computer.isOffline()) {
+            json.put(Util.KEY_NODE_TEMPORARILY_OFFLINE, computer.isTemporarilyOffline());
+            OfflineCause cause = computer.getOfflineCause();
+            if (cause != null) {
+                json.put(Util.KEY_NODE_OFFLINE_CAUSE, cause.toString());
+            }
+        }
+    }
+
+    /**
+     * Replaces the events of many nodes with one summary.
+     *
+     * @param events the node events.
+     * @return the summary.
+     */
+    static JSONObject summarize(List<JSONObject> events) {
+        JSONObject nodes = new JSONObject();
+        for (JSONObject event : events) {
+            String state = event.getString(Util.KEY_STATE);
+            JSONArray names = nodes.optJSONArray(state);
+            if (names == null) {
+                names = new JSONArray();
+            }
+            names.add(event.getString(Util.KEY_NODE_NAME));
+            nodes.put(state, names);
+        }
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, Util.VALUE_NODES_CHANGED);
+        json.put(Util.KEY_MASTER_FQDN, Util.getHostName());
+        json.put(Util.KEY_NODES, nodes);
+        return json;
+    }
+
+    /**
+     * Gets the name of a node in its events.
+     *
+     * @param computer the computer of the node.
+     * @return the node name, "master" for the master.
+     */
+    private static String nameOf(Computer computer) {
+        String name = computer.getName();
+        return name == null || name.isEmpty() ? MASTER : name;
+    }
+
+    /**
+     * The notifications of one node within the debounce time.
+     */
+    static final class Change {
+        /* Number of online and offline notifications, 0 if the node only became idle. */
+        private int transitions;
+
+        /**
+         * Gets the number of online and offline notifications.
+         *
+         * @return the number of notifications, 0 if the node only became idle.
+         */
+        int getTransitions() {
+            return transitions;
+        }
+    }
+
+    /**
+     * Forgets the last published state of deleted nodes.
+     */
+    @Extension
+    public static class NodeDeletion extends NodeListener {
+        @Override
+        protected void onDeleted(Node node) {
+            String name = node.getNodeName();
+            deleted(name == null || name.isEmpty() ? MASTER : name);
+        }
+    }
+
+    /**
+     * Marks nodes whose executors all became idle as changed. Executors have no listener, so the busy nodes
+     * are checked periodically; a check only counts the busy executors of every node.
+     */
+    @Extension
+    public static class IdleSweep extends PeriodicWork {
+        private static final long PERIOD = 5000;
+
+        /* Names of the nodes that were busy at the last check. */
+        private final Set<String> busy = new HashSet<String>();
+
+        @Override
+        public long getRecurrencePeriod() {
+            return PERIOD;
+        }
+
+        @Override
+        protected void doRun() {
+            MQNotifierConfig config = MQNotifierConfig.getInstance();
+            if (config == null || !config.isNotifierEnabled() || !config.isNodeEvents()) {
+                busy.clear();
+                return;
+            }
+            Set<String> stillBusy = new HashSet<String>();
+            for (Computer computer : Jenkins.get().getComputers()) {
+                String name = nameOf(computer);
+                if (computer.isOnline() && computer.countBusy() > 0) {
+                    stillBusy.add(name);
+                } else if (busy.contains(name)) {
+                    changed(computer, true);
+                }
+            }
+            busy.clear();
+            busy.addAll(stillBusy);
+        }
+    }
+}
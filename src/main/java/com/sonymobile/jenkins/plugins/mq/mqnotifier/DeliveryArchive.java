@@ -0,0 +1,517 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import jenkins.model.Jenkins;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the delivered messages for a retention window, so that they can be replayed.
+ * <p>
+ * The stored records of the delivered messages are appended to segment files, each entry with a sequence
+ * number, the time it was delivered and the partition key, usually the job. Segments are deleted as a whole
+ * once their last message is older than the retention window, or when the archive exceeds its maximum size.
+ * The index is sparse and held in memory: for every segment the range of sequence numbers and delivery times,
+ * the position of every {@link #INDEX_INTERVAL}th entry and the set of jobs, so that a replay seeks to the first
+ * segment and position that can match and then reads sequentially. The index is rebuilt from the entry headers
+ * when the archive is opened.
+ */
+final class DeliveryArchive {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeliveryArchive.class);
+
+    /** Every this many entries of a segment are indexed. */
+    static final int INDEX_INTERVAL = 64;
+
+    private static final String ARCHIVE_DIRECTORY = "mq-notifier-archive";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String SEGMENT_FORMAT = "%020d" + SEGMENT_SUFFIX;
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    /* Sequence number, delivery time, job length and record length. */
+    private static final int ENTRY_HEADER_LENGTH = 24;
+
+    private static volatile DeliveryArchive instance;
+
+    private final File directory;
+    private final long segmentSize;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private DataOutputStream out;
+    private long nextSequence = 1;
+    private long lastTime;
+    private boolean opened;
+
+    /**
+     * Constructor.
+     *
+     * @param directory   the directory of the segment files.
+     * @param segmentSize the size in bytes at which a new segment is started.
+     */
+    DeliveryArchive(File directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Gets the archive in the Jenkins root directory.
+     *
+     * @return the archive.
+     */
+    static DeliveryArchive getInstance() {
+        if (instance == null) {
+            synchronized (DeliveryArchive.class) {
+                if (instance == null) {
+                    instance = new DeliveryArchive(new File(Jenkins.get().getRootDir(), ARCHIVE_DIRECTORY),
+                            SEGMENT_SIZE);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Appends delivered messages and deletes the segments that fell out of the retention window.
+     *
+     * @param records   the delivered records, as stored in the message queue.
+     * @param jobs      the partition keys of the records, null elements for none.
+     * @param now       the time of delivery.
+     * @param retention the retention window in milliseconds.
+     * @param maxSize   the maximum size of the archive in bytes, no limit if 0 or less.
+     * @throws IOException if the archive cannot be written.
+     */
+    synchronized void append(List<byte[]> records, List<String> jobs, long now, long retention, long maxSize)
+            throws IOException {
+        open();
+        // delivery times are kept in order, so that they can be searched like the sequence numbers
+        long time = Math.max(now, lastTime);
+        for (int i = 0; i < records.size(); i++) {
+            Segment segment = current();
+            String job = jobs.get(i);
+            byte[] jobBytes = job != null ? job.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            byte[] data = records.get(i);
+            segment.indexed(nextSequence, time, job);
+            out.writeLong(nextSequence);
+            out.writeLong(time);
+            out.writeInt(jobBytes.length);
+            out.write(jobBytes);
+            out.writeInt(data.length);
+            out.write(data);
+            segment.size += ENTRY_HEADER_LENGTH + jobBytes.length + data.length;
+            nextSequence++;
+        }
+        out.flush();
+        lastTime = time;
+        expire(now, retention, maxSize);
+    }
+
+    /**
+     * Reads the messages that match a query, in order.
+     *
+     * @param query   the query.
+     * @param visitor gets the matching messages.
+     * @throws IOException          if the archive cannot be read.
+     * @throws InterruptedException if the visitor is interrupted.
+     */
+    void read(Query query, Visitor visitor) throws IOException, InterruptedException {
+        List<File> files = new ArrayList<File>();
+        List<long[]> ranges = new ArrayList<long[]>();
+        synchronized (this) {
+            open();
+            if (out != null) {
+                out.flush();
+            }
+            for (Segment segment : segments) {
+                if (segment.matches(query)) {
+                    files.add(segment.file);
+                    ranges.add(new long[] {segment.seek(query), segment.size});
+                }
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            if (!read(files.get(i), ranges.get(i)[0], ranges.get(i)[1], query, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the matching messages of one segment, up to the size it had when the read started.
+     *
+     * @param file    the segment file.
+     * @param start   the position to start reading from.
+     * @param limit   the size of the segment.
+     * @param query   the query.
+     * @param visitor gets the matching messages.
+     * @return false if the visitor stopped the read or the end of the query was reached.
+     * @throws IOException          if the segment cannot be read.
+     * @throws InterruptedException if the visitor is interrupted.
+     */
+    private boolean read(File file, long start, long limit, Query query, Visitor visitor)
+            throws IOException, InterruptedException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // deleted by the retention since the read started
+            LOGGER.debug("Archive segment {} is gone", file, e);
+            return true;
+        }
+        try {
+            long position = start;
+            channel.position(position);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (position < limit) {
+                long sequence = in.readLong();
+                long time = in.readLong();
+                byte[] jobBytes = new byte[in.readInt()];
+                in.readFully(jobBytes);
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                position += ENTRY_HEADER_LENGTH + jobBytes.length + data.length;
+                if (sequence > query.toSequence || time > query.toTime) {
+                    return false;
+                }
+                String job = jobBytes.length > 0 ? new String(jobBytes, StandardCharsets.UTF_8) : null;
+                if (sequence >= query.fromSequence && time >= query.fromTime
+                        && (query.job == null || query.job.equals(job))) {
+                    if (!visitor.visit(sequence, time, data)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Gets the sequence numbers of the oldest and the newest archived message.
+     *
+     * @return the range, or null if the archive is empty.
+     */
+    synchronized long[] getSequenceRange() {
+        try {
+            open();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open the message archive", e);
+        }
+        if (segments.isEmpty() || segments.get(segments.size() - 1).count == 0) {
+            return null;
+        }
+        return new long[] {segments.get(0).firstSequence, nextSequence - 1};
+    }
+
+    /**
+     * Closes the segment being written, on shutdown.
+     */
+    synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close the message archive", e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Opens the archive on first use, rebuilding the index from the segment files.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    Segment segment = scan(file);
+                    if (segment.count > 0) {
+                        segments.add(segment);
+                        nextSequence = segment.lastSequence + 1;
+                        lastTime = segment.lastTime;
+                    } else if (!file.delete()) {
+                        LOGGER.warn("Cannot delete the empty archive segment {}", file);
+                    }
+                }
+            }
+        }
+        opened = true;
+    }
+
+    /**
+     * Rebuilds the index of a segment file from its entry headers. An entry cut short by a crash is truncated.
+     *
+     * @param file the segment file.
+     * @return the segment.
+     * @throws IOException if the file cannot be read.
+     */
+    private static Segment scan(File file) throws IOException {
+        Segment segment = new Segment(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(raf.getChannel())));
+            try {
+                while (segment.size < length) {
+                    long sequence = in.readLong();
+                    long time = in.readLong();
+                    byte[] jobBytes = new byte[in.readInt()];
+                    in.readFully(jobBytes);
+                    int dataLength = in.readInt();
+                    long entryLength = ENTRY_HEADER_LENGTH + jobBytes.length + dataLength;
+                    if (dataLength < 0 || segment.size + entryLength > length) {
+                        throw new EOFException();
+                    }
+                    if (in.skip(dataLength) != dataLength) {
+                        throw new EOFException();
+                    }
+                    segment.indexed(sequence, time,
+                            jobBytes.length > 0 ? new String(jobBytes, StandardCharsets.UTF_8) : null);
+                    segment.size += entryLength;
+                }
+            } catch (EOFException e) {
+                LOGGER.warn("Truncating the incomplete last message of archive segment {}", file);
+                raf.setLength(segment.size);
+            }
+        } finally {
+            raf.close();
+        }
+        return segment;
+    }
+
+    /**
+     * Gets the segment to append to, starting a new one when the current one is full.
+     *
+     * @return the segment.
+     * @throws IOException if a segment file cannot be opened.
+     */
+    private Segment current() throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.size < segmentSize && out != null) {
+            return last;
+        }
+        close();
+        if (last == null || last.size >= segmentSize) {
+            last = new Segment(new File(directory, String.format(SEGMENT_FORMAT, nextSequence)));
+            segments.add(last);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(last.file, true)));
+        return last;
+    }
+
+    /**
+     * Deletes the oldest segments while they are out of the retention window or the archive is too large.
+     * The segment being written is kept.
+     *
+     * @param now       the current time.
+     * @param retention the retention window in milliseconds.
+     * @param maxSize   the maximum size in bytes, no limit if 0 or less.
+     */
+    private void expire(long now, long retention, long maxSize) {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (now - oldest.lastTime <= retention && (maxSize <= 0 || total <= maxSize)) {
+                break;
+            }
+            if (!oldest.file.delete()) {
+                LOGGER.warn("Cannot delete the archive segment {}", oldest.file);
+            }
+            segments.remove(0);
+            total -= oldest.size;
+        }
+    }
+
+    /**
+     * The messages to read from the archive. All bounds are inclusive.
+     */
+    static final class Query {
+        private long fromSequence;
+        private long toSequence = Long.MAX_VALUE;
+        private long fromTime;
+        private long toTime = Long.MAX_VALUE;
+        private String job;
+
+        /**
+         * Limits the query to a range of sequence numbers.
+         *
+         * @param from the first sequence number.
+         * @param to   the last sequence number.
+         * @return this query.
+         */
+        Query sequences(long from, long to) {
+            this.fromSequence = from;
+            this.toSequence = to;
+            return this;
+        }
+
+        /**
+         * Limits the query to a range of delivery times.
+         *
+         * @param from the earliest time in milliseconds.
+         * @param to   the latest time in milliseconds.
+         * @return this query.
+         */
+        Query times(long from, long to) {
+            this.fromTime = from;
+            this.toTime = to;
+            return this;
+        }
+
+        /**
+         * Limits the query to the messages of a job.
+         *
+         * @param name the full name of the job, null for all jobs.
+         * @return this query.
+         */
+        Query job(String name) {
+            this.job = name;
+            return this;
+        }
+    }
+
+    /**
+     * Gets the messages read from the archive.
+     */
+    interface Visitor {
+        /**
+         * Gets a message.
+         *
+         * @param sequence the sequence number.
+         * @param time     the time the message was delivered.
+         * @param data     the record, as stored in the message queue.
+         * @return false to stop reading.
+         * @throws InterruptedException if the read is stopped.
+         */
+        boolean visit(long sequence, long time, byte[] data) throws InterruptedException;
+    }
+
+    /**
+     * The sparse index of one segment file.
+     */
+    private static final class Segment {
+        private final File file;
+        private final Set<String> jobs = new HashSet<String>();
+        /* Sequence number, delivery time and position of every INDEX_INTERVAL-th entry. */
+        private final List<long[]> points = new ArrayList<long[]>();
+        private long firstSequence;
+        private long lastSequence;
+        private long firstTime;
+        private long lastTime;
+        private long size;
+        private int count;
+
+        /**
+         * Constructor.
+         *
+         * @param file the segment file.
+         */
+        private Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Adds the entry that starts at the current end of the segment to the index.
+         *
+         * @param sequence the sequence number.
+         * @param time     the delivery time.
+         * @param job      the job, may be null.
+         */
+        private void indexed(long sequence, long time, String job) {
+            if (count == 0) {
+                firstSequence = sequence;
+                firstTime = time;
+            }
+            if (count % INDEX_INTERVAL == 0) {
+                points.add(new long[] {sequence, time, size});
+            }
+            if (job != null) {
+                jobs.add(job);
+            }
+            lastSequence = sequence;
+            lastTime = time;
+            count++;
+        }
+
+        /**
+         * Returns true if the segment may hold messages of the query.
+         *
+         * @param query the query.
+         * @return false if the segment can be skipped.
+         */
+        private boolean matches(Query query) {
+            return count > 0 && lastSequence >= query.fromSequence && firstSequence <= query.toSequence
+                    && lastTime >= query.fromTime && firstTime <= query.toTime
+                    && (query.job == null || jobs.contains(query.job));
+        }
+
+        /**
+         * Finds the position to start reading a query from: the last indexed entry before its start.
+         *
+         * @param query the query.
+         * @return the position.
+         */
+        private long seek(Query query) {
+            long position = 0;
+            for (long[] point : points) {
+                if (point[0] > query.fromSequence || point[1] > query.fromTime) {
+                    break;
+                }
+                position = point[2];
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects latency histograms of the stages every message goes through until the transport confirms it.
+ * <p>
+ * The stages are: from the capture of the event to the message queue, which is the data provider enrichment
+ * and encoding; from the message queue to the send, which is the wait in the on-disk queue, for reconnects and
+ * for the rate limits; and from the send to the confirmation by the broker. The capture time is only known for
+ * messages with latency headers. The times are wall clock times, as they are stored in the message queue over
+ * restarts, so a stage is never counted as less than 0.
+ */
+public final class DeliveryLatency {
+
+    /** Upper bounds in milliseconds of the latency histogram buckets, the last bucket is unbounded. */
+    //CS IGNORE MagicNumber FOR NEXT 3 LINES. REASON: Bucket bounds.
+    static final long[] BUCKETS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000, 900000, 3600000,
+    };
+
+    private static final DeliveryLatency INSTANCE = new DeliveryLatency();
+
+    private final StageStats enrich = new StageStats("Capture to message queue");
+    private final StageStats queued = new StageStats("Message queue to send");
+    private final StageStats confirm = new StageStats("Send to confirm");
+    private final StageStats total = new StageStats("Capture to confirm");
+
+    /**
+     * Constructor, the tests use their own instances.
+     */
+    DeliveryLatency() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    public static DeliveryLatency getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the latencies of messages that the transport confirmed. Replayed messages are not counted.
+     *
+     * @param records     the messages.
+     * @param sentAt      the time the messages were sent.
+     * @param confirmedAt the time the transport confirmed them.
+     */
+    void confirmed(List<JournalRecord> records, long sentAt, long confirmedAt) {
+        for (JournalRecord record : records) {
+            if (record.getHeaders().containsKey(Util.HEADER_REPLAY_SEQUENCE)) {
+                continue;
+            }
+            queued.record(sentAt - record.getTimestamp());
+            confirm.record(confirmedAt - sentAt);
+            Object captured = record.getHeaders().get(Util.HEADER_CAPTURED_AT);
+            if (captured instanceof Number) {
+                enrich.record(record.getTimestamp() - ((Number)captured).longValue());
+                total.record(confirmedAt - ((Number)captured).longValue());
+            }
+        }
+    }
+
+    /**
+     * Gets the statistics of all stages.
+     *
+     * @return the statistics, in the order of the stages, followed by the total.
+     */
+    public List<StageStats> getStages() {
+        List<StageStats> list = new ArrayList<StageStats>();
+        list.add(enrich);
+        list.add(queued);
+        list.add(confirm);
+        list.add(total);
+        return list;
+    }
+
+    /**
+     * Gets the histogram bucket of a latency.
+     *
+     * @param millis the latency in milliseconds.
+     * @return the bucket index.
+     */
+    static int bucket(long millis) {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (millis <= BUCKETS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS.length;
+    }
+
+    /**
+     * The statistics of one stage.
+     */
+    public static final class StageStats {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+
+        /**
+         * Constructor.
+         *
+         * @param name the stage name.
+         */
+        private StageStats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records the latency of one message.
+         *
+         * @param millis the latency in milliseconds, counted as 0 if negative.
+         */
+        private void record(long millis) {
+            long latency = Math.max(0, millis);
+            count.incrementAndGet();
+            totalMillis.addAndGet(latency);
+            histogram.incrementAndGet(bucket(latency));
+        }
+
+        /**
+         * Gets the stage name.
+         *
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the number of messages.
+         *
+         * @return the count.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Gets the mean latency.
+         *
+         * @return the mean latency in milliseconds.
+         */
+        public double getMeanMillis() {
+            long messages = count.get();
+            return messages > 0 ? totalMillis.get() / (double)messages : 0;
+        }
+
+        /**
+         * Gets a latency percentile, with the resolution of the histogram buckets.
+         *
+         * @param percentile the share, between 0 and 1.
+         * @return the bucket upper bound in milliseconds, {@link Long#MAX_VALUE} for the unbounded bucket,
+         *         -1 if there are no messages.
+         */
+        public long getPercentile(double percentile) {
+            long messages = 0;
+            long[] counts = new long[histogram.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.get(i);
+                messages += counts[i];
+            }
+            if (messages == 0) {
+                return -1;
+            }
+            long rank = (long)Math.ceil(percentile * messages);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BUCKETS[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.transports.MessageTransport;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * An additional MQ server that receives every event, besides the one configured globally.
+ * Each destination has its own connection and message queue, so one that is slow or down does not hold
+ * back the others.
+ */
+public class Destination extends AbstractDescribableImpl<Destination> {
+
+    /* Name of the destination, unique, it names the message queue file. */
+    private final String name;
+
+    /* The MQ server URI. */
+    private final String serverUri;
+    private String userName;
+    private Secret userPassword;
+
+    /* The virtual host on the server. */
+    private String virtualHost;
+
+    /* The exchange to publish to, the global exchange is used if empty. */
+    private String exchangeName;
+
+    /* Id of the transport that delivers the messages, AMQP if empty. */
+    private String transport;
+
+    /**
+     * Creates a destination.
+     *
+     * @param name      the unique name of the destination
+     * @param serverUri the MQ server URI
+     */
+    @DataBoundConstructor
+    public Destination(String name, String serverUri) {
+        this.name = StringUtils.trimToEmpty(name);
+        this.serverUri = StringUtils.strip(StringUtils.stripToNull(serverUri), "/");
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the server URI.
+     *
+     * @return the URI.
+     */
+    public String getServerUri() {
+        return serverUri;
+    }
+
+    /**
+     * Gets the user name.
+     *
+     * @return the user name.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Sets the user name.
+     *
+     * @param userName the user name.
+     */
+    @DataBoundSetter
+    public void setUserName(String userName) {
+        this.userName = StringUtils.trimToNull(userName);
+    }
+
+    /**
+     * Gets the user password.
+     *
+     * @return the password.
+     */
+    public Secret getUserPassword() {
+        return userPassword;
+    }
+
+    /**
+     * Sets the user password.
+     *
+     * @param userPassword the password.
+     */
+    @DataBoundSetter
+    public void setUserPassword(Secret userPassword) {
+        this.userPassword = userPassword;
+    }
+
+    /**
+     * Gets the virtual host.
+     *
+     * @return the virtual host.
+     */
+    public String getVirtualHost() {
+        return virtualHost;
+    }
+
+    /**
+     * Sets the virtual host.
+     *
+     * @param virtualHost the virtual host.
+     */
+    @DataBoundSetter
+    public void setVirtualHost(String virtualHost) {
+        this.virtualHost = StringUtils.trimToNull(virtualHost);
+    }
+
+    /**
+     * Gets the exchange name.
+     *
+     * @return the exchange, or null if the global exchange is used.
+     */
+    public String getExchangeName() {
+        return exchangeName;
+    }
+
+    /**
+     * Sets the exchange name.
+     *
+     * @param exchangeName the exchange, or empty to use the global exchange.
+     */
+    @DataBoundSetter
+    public void setExchangeName(String exchangeName) {
+        this.exchangeName = StringUtils.trimToNull(exchangeName);
+    }
+
+    /**
+     * Gets the transport id.
+     *
+     * @return the transport id, or null for AMQP.
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the transport id.
+     *
+     * @param transport the transport id, or empty for AMQP.
+     */
+    @DataBoundSetter
+    public void setTransport(String transport) {
+        this.transport = StringUtils.trimToNull(transport);
+    }
+
+    /**
+     * Descriptor for {@link Destination}.
+     */
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<Destination> {
+        @Override
+        public String getDisplayName() {
+            return "Destination";
+        }
+
+        /**
+         * Checks that the destination has a name.
+         *
+         * @param value the name.
+         * @return the validation result.
+         */
+        public FormValidation doCheckName(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error("A destination needs a unique name");
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Fills the transport drop down.
+         *
+         * @return the available transports.
+         */
+        public ListBoxModel doFillTransportItems() {
+            return MQNotifierConfig.transportItems();
+        }
+    }
+}
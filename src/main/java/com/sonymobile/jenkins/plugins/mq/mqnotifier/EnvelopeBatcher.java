@@ -0,0 +1,366 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the events of batched routes into envelope messages.
+ * <p>
+ * Events are kept in memory until the batch is full, its size reaches the maximum message size
+ * or the oldest event has waited for the linger time of the route, and are then queued as one message.
+ * Each event keeps its own timestamp, correlation id and headers inside the envelope. The envelope gets the
+ * capture time of its oldest event, so that the delivery latency of batched events is still measured.
+ * <p>
+ * Envelopes are written to the message queue outside of the batcher lock, so that publishing threads do not
+ * wait for the disk, but in the order they were flushed.
+ */
+final class EnvelopeBatcher {
+
+    private static final EnvelopeBatcher INSTANCE = new EnvelopeBatcher();
+
+    /* Pending batches, guarded by this. */
+    private final Map<RouteTable.CompiledRoute, Batch> batches = new HashMap<RouteTable.CompiledRoute, Batch>();
+    /* Flushed batches in the order they were flushed, guarded by this. */
+    private final Deque<Batch> flushed = new ArrayDeque<Batch>();
+    /* Held while flushed batches are written to the message queue, keeps them in order. */
+    private final Object queueLock = new Object();
+
+    /**
+     * Singleton.
+     */
+    private EnvelopeBatcher() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    static EnvelopeBatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds an event to the pending batch of a route.
+     * Events that alone exceed the maximum message size are not batched.
+     *
+     * @param exchange the exchange to publish to.
+     * @param route    the batched route.
+     * @param props    the properties of the event.
+     * @param event    the projected event.
+     * @param maxSize  the maximum message size, 0 or less for no limit.
+     * @return true if the event was added, false if it should be published on its own.
+     */
+    boolean add(String exchange, RouteTable.CompiledRoute route, AMQP.BasicProperties props,
+                JSONObject event, int maxSize) {
+        JSONObject entry = entry(props, event);
+        // encoded once here, the envelope is joined from the encoded entries
+        byte[] encoded = encodeEntry(route, entry);
+        int size = encoded.length + 1;
+        if (maxSize > 0 && size > maxSize) {
+            return false;
+        }
+        synchronized (this) {
+            Batch batch = batches.get(route);
+            if (batch != null && maxSize > 0 && batch.bytes + size > maxSize) {
+                flush(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(exchange, route, props);
+                batches.put(route, batch);
+                final Batch scheduled = batch;
+                batch.linger = Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (EnvelopeBatcher.this) {
+                            flush(scheduled);
+                        }
+                        queueFlushed();
+                    }
+                }, route.getBatchLinger(), TimeUnit.MILLISECONDS);
+            }
+            batch.add(entry, encoded, props);
+            if (batch.entries.size() >= route.getBatchSize()) {
+                flush(batch);
+            }
+        }
+        queueFlushed();
+        return true;
+    }
+
+    /**
+     * Queues all pending batches, e.g. when the routes are reconfigured or on shutdown.
+     */
+    void flushAll() {
+        synchronized (this) {
+            for (Batch batch : new ArrayList<Batch>(batches.values())) {
+                flush(batch);
+            }
+        }
+        queueFlushed();
+    }
+
+    /**
+     * Gets the number of events waiting in batches.
+     *
+     * @return the number of pending events.
+     */
+    synchronized int getPendingCount() {
+        int count = 0;
+        for (Batch batch : batches.values()) {
+            count += batch.entries.size();
+        }
+        return count;
+    }
+
+    /**
+     * Takes a batch from the pending batches, unless it has already been taken.
+     * The caller queues it with {@link #queueFlushed()} after releasing the lock.
+     *
+     * @param batch the batch.
+     */
+    private void flush(Batch batch) {
+        if (batches.get(batch.route) != batch) {
+            return;
+        }
+        batches.remove(batch.route);
+        if (batch.linger != null) {
+            batch.linger.cancel(false);
+        }
+        flushed.add(batch);
+    }
+
+    /**
+     * Puts the flushed batches in the message queue, in the order they were flushed.
+     */
+    private void queueFlushed() {
+        synchronized (queueLock) {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    batch = flushed.poll();
+                }
+                if (batch == null) {
+                    return;
+                }
+                MQConnection.getInstance().addMessageToQueue(batch.exchange, batch.route.getRoutingKey(),
+                        batch.toProperties(), batch.encode());
+            }
+        }
+    }
+
+    /**
+     * Creates the envelope entry of an event, with the metadata from its properties.
+     *
+     * @param props the properties of the event.
+     * @param event the projected event.
+     * @return the entry.
+     */
+    static JSONObject entry(AMQP.BasicProperties props, JSONObject event) {
+        JSONObject meta = new JSONObject();
+        Date timestamp = props.getTimestamp();
+        meta.put(Util.KEY_TIMESTAMP, timestamp != null ? timestamp.getTime() : System.currentTimeMillis());
+        if (props.getCorrelationId() != null) {
+            meta.put(Util.KEY_CORRELATION_ID, props.getCorrelationId());
+        }
+        if (props.getHeaders() != null && !props.getHeaders().isEmpty()) {
+            meta.put(Util.KEY_BATCH_HEADERS, JSONObject.fromObject(props.getHeaders()));
+        }
+        JSONObject entry = new JSONObject();
+        entry.put(Util.KEY_BATCH_META, meta);
+        entry.put(Util.KEY_BATCH_EVENT, event);
+        return entry;
+    }
+
+    /**
+     * Encodes an entry as the route encodes it in the envelope.
+     * It adds its length and one byte for the separator or array head to the envelope.
+     *
+     * @param route the route.
+     * @param entry the entry.
+     * @return the encoded entry.
+     */
+    static byte[] encodeEntry(RouteTable.CompiledRoute route, JSONObject entry) {
+        if (route.isNdjson()) {
+            return entry.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return route.getCodec().encode(entry);
+    }
+
+    /**
+     * The pending events of one route.
+     */
+    static final class Batch {
+        private final String exchange;
+        private final RouteTable.CompiledRoute route;
+        private final AMQP.BasicProperties props;
+        private final List<JSONObject> entries = new ArrayList<JSONObject>();
+        private final List<byte[]> encoded = new ArrayList<byte[]>();
+        private int bytes;
+        /* When the last of the events expires, 0 if some event does not expire. */
+        private long expires;
+        /* Capture time of the oldest event, null if no event has one. */
+        private Long captured;
+        private ScheduledFuture<?> linger;
+
+        /**
+         * Constructor.
+         *
+         * @param exchange the exchange to publish to.
+         * @param route    the route.
+         * @param props    the properties of the first event, the envelope inherits app id and delivery mode.
+         */
+        Batch(String exchange, RouteTable.CompiledRoute route, AMQP.BasicProperties props) {
+            this.exchange = exchange;
+            this.route = route;
+            this.props = props;
+        }
+
+        /**
+         * Adds an entry.
+         *
+         * @param entry the entry.
+         * @param data  the encoded entry, from {@link #encodeEntry(RouteTable.CompiledRoute, JSONObject)}.
+         * @param event the properties of the event.
+         */
+        void add(JSONObject entry, byte[] data, AMQP.BasicProperties event) {
+            add(entry, data, event, System.currentTimeMillis());
+        }
+
+        /**
+         * Adds an entry.
+         *
+         * @param entry the entry.
+         * @param data  the encoded entry.
+         * @param event the properties of the event.
+         * @param now   the current time.
+         */
+        void add(JSONObject entry, byte[] data, AMQP.BasicProperties event, long now) {
+            addExpiration(event.getExpiration(), now);
+            if (event.getHeaders() != null && event.getHeaders().get(Util.HEADER_CAPTURED_AT) instanceof Number) {
+                long eventCaptured = ((Number)event.getHeaders().get(Util.HEADER_CAPTURED_AT)).longValue();
+                captured = captured == null ? eventCaptured : Math.min(captured, eventCaptured);
+            }
+            entries.add(entry);
+            encoded.add(data);
+            bytes += data.length + 1;
+        }
+
+        /**
+         * Extends the expiration of the envelope to that of an event that is added.
+         *
+         * @param expiration the expiration property of the event, may be null.
+         * @param now        the time the event is added.
+         */
+        private void addExpiration(String expiration, long now) {
+            long eventTtl = 0;
+            if (expiration != null) {
+                try {
+                    eventTtl = Long.parseLong(expiration);
+                } catch (NumberFormatException e) {
+                    eventTtl = 0;
+                }
+            }
+            long eventExpires = eventTtl > 0 ? now + eventTtl : 0;
+            if (entries.isEmpty()) {
+                expires = eventExpires;
+            } else if (expires > 0) {
+                expires = eventExpires > 0 ? Math.max(expires, eventExpires) : 0;
+            }
+        }
+
+        /**
+         * Encodes the envelope.
+         *
+         * @return the message body.
+         */
+        byte[] encode() {
+            if (route.isNdjson()) {
+                ByteArrayOutputStream lines = new ByteArrayOutputStream(bytes);
+                for (byte[] line : encoded) {
+                    lines.write(line, 0, line.length);
+                    lines.write('\n');
+                }
+                return lines.toByteArray();
+            }
+            byte[] joined = route.getCodec().encodeEnvelope(Util.KEY_BATCH_COUNT, Util.KEY_BATCH_EVENTS, encoded);
+            if (joined != null) {
+                return joined;
+            }
+            JSONObject envelope = new JSONObject();
+            envelope.put(Util.KEY_BATCH_COUNT, entries.size());
+            envelope.put(Util.KEY_BATCH_EVENTS, JSONArray.fromObject(entries));
+            return route.getCodec().encode(envelope);
+        }
+
+        /**
+         * Builds the properties of the envelope.
+         *
+         * @return the properties.
+         */
+        AMQP.BasicProperties toProperties() {
+            return toProperties(System.currentTimeMillis());
+        }
+
+        /**
+         * Builds the properties of the envelope.
+         * Its time-to-live is what is left of the latest expiration, the time the events waited is not granted again.
+         *
+         * @param now the current time.
+         * @return the properties.
+         */
+        AMQP.BasicProperties toProperties(long now) {
+            long ttl = expires > 0 ? Math.max(1, expires - now) : 0;
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put(Util.HEADER_BATCH_COUNT, entries.size());
+            if (captured != null) {
+                headers.put(Util.HEADER_CAPTURED_AT, captured);
+            }
+            return props.builder()
+                    .contentType(route.isNdjson() ? Util.CONTENT_TYPE_NDJSON : route.getCodec().getContentType())
+                    .correlationId(null)
+                    .timestamp(new Date(now))
+                    .expiration(ttl > 0 ? String.valueOf(ttl) : null)
+                    .headers(headers)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import hudson.Functions;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import jenkins.model.JenkinsLocationConfiguration;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the parts of every event that rarely change: the data provider list, the root url,
+ * the host name and the absolute url of every job.
+ * <p>
+ * The provider list is refreshed when the extension list changes, and the urls when the
+ * Jenkins location is reconfigured.
+ */
+class EventContext {
+
+    /* Above this many jobs the url cache is cleared rather than grown. */
+    static final int MAX_JOB_URLS = 10000;
+
+    private static final EventContext INSTANCE = new EventContext();
+
+    private volatile List<MQDataProvider> providers;
+    /* The extension list that is listened to, a new Jenkins instance has a new one. */
+    private volatile ExtensionList<MQDataProvider> listened;
+    /* The root url, empty if not configured, null if not looked up. */
+    private volatile String rootUrl;
+    private volatile String hostName;
+    /* Absolute job urls keyed by their relative url. */
+    private final ConcurrentHashMap<String, String> jobUrls = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Constructor, the singleton is used except in tests.
+     */
+    EventContext() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    static EventContext getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the data providers.
+     *
+     * @return the providers.
+     */
+    List<MQDataProvider> getProviders() {
+        List<MQDataProvider> list = providers;
+        if (list == null) {
+            list = Collections.unmodifiableList(new ArrayList<MQDataProvider>(lookupProviders()));
+            providers = list;
+        }
+        return list;
+    }
+
+    /**
+     * Looks up the data providers, and the first time listens for changes of their extension list.
+     *
+     * @return the providers.
+     */
+    List<MQDataProvider> lookupProviders() {
+        ExtensionList<MQDataProvider> extensions = ExtensionList.lookup(MQDataProvider.class);
+        if (listened != extensions) {
+            synchronized (this) {
+                if (listened != extensions) {
+                    extensions.addListener(new ExtensionListListener() {
+                        @Override
+                        public void onChange() {
+                            invalidateProviders();
+                        }
+                    });
+                    listened = extensions;
+                }
+            }
+        }
+        return extensions;
+    }
+
+    /**
+     * Forgets the data providers, they are looked up again on the next event.
+     */
+    void invalidateProviders() {
+        providers = null;
+    }
+
+    /**
+     * Gets the absolute url of an item or build.
+     *
+     * @param jobUrl the relative url of the job.
+     * @param suffix the part after the job url, e.g. the build number, may be empty.
+     * @return the url.
+     */
+    String getUrl(String jobUrl, String suffix) {
+        String url = jobUrls.get(jobUrl);
+        if (url == null) {
+            String root = getRootUrl();
+            url = root.isEmpty() ? jobUrl : Functions.joinPath(root, jobUrl);
+            if (jobUrls.size() >= MAX_JOB_URLS) {
+                jobUrls.clear();
+            }
+            jobUrls.put(jobUrl, url);
+        }
+        return suffix.isEmpty() ? url : url + suffix;
+    }
+
+    /**
+     * Gets the root url.
+     *
+     * @return the root url, empty if not configured.
+     */
+    private String getRootUrl() {
+        String root = rootUrl;
+        if (root == null) {
+            root = lookupRootUrl();
+            rootUrl = root;
+        }
+        return root;
+    }
+
+    /**
+     * Looks up the root url.
+     *
+     * @return the root url, empty if not configured.
+     */
+    String lookupRootUrl() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins != null && jenkins.getRootUrl() != null ? jenkins.getRootUrl() : "";
+    }
+
+    /**
+     * Gets the number of cached job urls.
+     *
+     * @return the number of job urls.
+     */
+    int getJobUrlCount() {
+        return jobUrls.size();
+    }
+
+    /**
+     * Gets the host name of the Jenkins master.
+     *
+     * @return the host name, or {@link Util#VALUE_UNRESOLVED_HOST} if it cannot be resolved.
+     */
+    String getHostName() {
+        String name = hostName;
+        if (name == null) {
+            try {
+                name = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                return Util.VALUE_UNRESOLVED_HOST;
+            }
+            hostName = name;
+        }
+        return name;
+    }
+
+    /**
+     * Forgets the urls, they are looked up again on the next event.
+     */
+    void invalidateUrls() {
+        rootUrl = null;
+        jobUrls.clear();
+    }
+
+    /**
+     * Invalidates the urls when the Jenkins location is reconfigured.
+     */
+    @Extension
+    public static class LocationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof JenkinsLocationConfiguration) {
+                getInstance().invalidateUrls();
+            }
+        }
+    }
+}
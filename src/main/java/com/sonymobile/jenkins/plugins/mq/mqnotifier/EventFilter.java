@@ -0,0 +1,528 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled, immutable form of the configured include and exclude rules for events.
+ * <p>
+ * Each line of the rules holds one or more terms {@code field:glob}, separated by whitespace, and matches an
+ * event if all its terms do. The fields are {@code folder}, {@code job}, {@code result}, {@code label} and
+ * {@code cause}; in globs {@code *} matches any text and {@code ?} any character. An event is published if
+ * there are no include rules or one of them matches, and none of the exclude rules matches. The listeners
+ * check the filter before building a message, and a value is only looked up when a term needs it.
+ */
+public final class EventFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventFilter.class);
+
+    /** A filter that lets all events through. */
+    public static final EventFilter ALL = new EventFilter(Collections.<Rule>emptyList(),
+            Collections.<Rule>emptyList());
+
+    /**
+     * The event fields that rules can test.
+     */
+    enum Field {
+        /** Full name of the folder of the job, empty for top level jobs. */
+        FOLDER,
+        /** Full name of the job. */
+        JOB,
+        /** Result of the build, not known for queue events and running builds. */
+        RESULT,
+        /** Label expression of the job or queue item, the node a build ran on, or the name and labels of a node. */
+        LABEL,
+        /** Simple class names of the causes. */
+        CAUSE
+    }
+
+    private final List<Rule> includes;
+    private final List<Rule> excludes;
+
+    /**
+     * Constructor.
+     *
+     * @param includes the include rules.
+     * @param excludes the exclude rules.
+     */
+    private EventFilter(List<Rule> includes, List<Rule> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * Compiles the configured rules. Invalid lines are logged and ignored.
+     *
+     * @param includes the include rules, one per line, may be null.
+     * @param excludes the exclude rules, one per line, may be null.
+     * @return the compiled filter.
+     */
+    public static EventFilter compile(String includes, String excludes) {
+        List<Rule> in = parse(includes);
+        List<Rule> out = parse(excludes);
+        if (in.isEmpty() && out.isEmpty()) {
+            return ALL;
+        }
+        return new EventFilter(in, out);
+    }
+
+    /**
+     * Checks rules for errors.
+     *
+     * @param rules the rules, one per line, may be null.
+     * @return the error of the first invalid line, or null if all lines are valid.
+     */
+    public static String validate(String rules) {
+        for (String line : lines(rules)) {
+            try {
+                Rule.parse(line);
+            } catch (IllegalArgumentException e) {
+                return e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if events of a build are published.
+     *
+     * @param run the build.
+     * @return true if the events pass the filter.
+     */
+    public boolean accepts(Run run) {
+        if (this == ALL) {
+            return true;
+        }
+        return accepts(new RunSubject(run));
+    }
+
+    /**
+     * Returns true if events of a queue item are published.
+     *
+     * @param item the queue item.
+     * @return true if the events pass the filter.
+     */
+    public boolean accepts(Queue.Item item) {
+        if (this == ALL) {
+            return true;
+        }
+        return accepts(new ItemSubject(item));
+    }
+
+    /**
+     * Returns true if the state events of a node are published. Node events have no job, result or cause.
+     *
+     * @param computer the computer of the node.
+     * @return true if the events pass the filter.
+     */
+    public boolean accepts(Computer computer) {
+        if (this == ALL) {
+            return true;
+        }
+        return accepts(new ComputerSubject(computer));
+    }
+
+    /**
+     * Applies the rules.
+     *
+     * @param subject the event source.
+     * @return true if the event passes the filter.
+     */
+    private boolean accepts(Subject subject) {
+        if (!includes.isEmpty() && !anyMatches(includes, subject)) {
+            return false;
+        }
+        return !anyMatches(excludes, subject);
+    }
+
+    /**
+     * Returns true if a rule matches.
+     *
+     * @param rules   the rules.
+     * @param subject the event source.
+     * @return true if any rule matches.
+     */
+    private static boolean anyMatches(List<Rule> rules, Subject subject) {
+        for (Rule rule : rules) {
+            if (rule.matches(subject)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses rules, skipping invalid lines.
+     *
+     * @param rules the rules, one per line, may be null.
+     * @return the rules.
+     */
+    private static List<Rule> parse(String rules) {
+        List<Rule> parsed = new ArrayList<Rule>();
+        for (String line : lines(rules)) {
+            try {
+                parsed.add(Rule.parse(line));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Ignoring event filter rule: {}", e.getMessage());
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Splits rules into non-empty lines.
+     *
+     * @param rules the rules, may be null.
+     * @return the trimmed lines.
+     */
+    private static List<String> lines(String rules) {
+        List<String> lines = new ArrayList<String>();
+        if (rules != null) {
+            for (String line : rules.split("\\r?\\n")) {
+                if (StringUtils.isNotBlank(line)) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Compiles a glob to a pattern.
+     *
+     * @param glob the glob.
+     * @return the pattern.
+     */
+    static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * One line of rules, all its terms must match.
+     */
+    private static final class Rule {
+        private final Field[] fields;
+        private final Pattern[] patterns;
+
+        /**
+         * Constructor.
+         *
+         * @param fields   the fields of the terms.
+         * @param patterns the patterns of the terms.
+         */
+        private Rule(Field[] fields, Pattern[] patterns) {
+            this.fields = fields;
+            this.patterns = patterns;
+        }
+
+        /**
+         * Parses a line.
+         *
+         * @param line the line.
+         * @return the rule.
+         * @throws IllegalArgumentException if the line is invalid.
+         */
+        private static Rule parse(String line) {
+            String[] terms = line.split("\\s+");
+            Field[] fields = new Field[terms.length];
+            Pattern[] patterns = new Pattern[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                int colon = terms[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Expected field:glob in '" + line + "'");
+                }
+                try {
+                    fields[i] = Field.valueOf(terms[i].substring(0, colon).toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown field '" + terms[i].substring(0, colon)
+                            + "' in '" + line + "', use folder, job, result, label or cause");
+                }
+                patterns[i] = toPattern(terms[i].substring(colon + 1));
+            }
+            return new Rule(fields, patterns);
+        }
+
+        /**
+         * Returns true if all terms match.
+         *
+         * @param subject the event source.
+         * @return true if the rule matches.
+         */
+        private boolean matches(Subject subject) {
+            for (int i = 0; i < fields.length; i++) {
+                if (!subject.matches(fields[i], patterns[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The source of an event, values are looked up when a term tests them.
+     */
+    private abstract static class Subject {
+
+        /**
+         * Gets the full name of the job.
+         *
+         * @return the full name.
+         */
+        abstract String getJob();
+
+        /**
+         * Gets the result.
+         *
+         * @return the result, or null if not known.
+         */
+        abstract Result getResult();
+
+        /**
+         * Gets the labels.
+         *
+         * @return the label expressions and node names.
+         */
+        abstract List<String> getLabels();
+
+        /**
+         * Gets the causes.
+         *
+         * @return the causes, may be null.
+         */
+        abstract List<Cause> getCauses();
+
+        /**
+         * Tests one field.
+         *
+         * @param field   the field.
+         * @param pattern the pattern.
+         * @return true if the field has a value that matches.
+         */
+        boolean matches(Field field, Pattern pattern) {
+            switch (field) {
+                case FOLDER:
+                    String job = getJob();
+                    int slash = job.lastIndexOf('/');
+                    return pattern.matcher(slash < 0 ? "" : job.substring(0, slash)).matches();
+                case JOB:
+                    return pattern.matcher(getJob()).matches();
+                case RESULT:
+                    Result result = getResult();
+                    return result != null && pattern.matcher(result.toString()).matches();
+                case LABEL:
+                    for (String label : getLabels()) {
+                        if (pattern.matcher(label).matches()) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case CAUSE:
+                    List<Cause> causes = getCauses();
+                    if (causes != null) {
+                        for (Cause cause : causes) {
+                            if (pattern.matcher(cause.getClass().getSimpleName()).matches()) {
+                                return true;
+                            }
+                        }
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A build as event source.
+     */
+    private static final class RunSubject extends Subject {
+        private final Run run;
+
+        /**
+         * Constructor.
+         *
+         * @param run the build.
+         */
+        private RunSubject(Run run) {
+            this.run = run;
+        }
+
+        @Override
+        String getJob() {
+            return run.getParent().getFullName();
+        }
+
+        @Override
+        Result getResult() {
+            return run.isBuilding() ? null : run.getResult();
+        }
+
+        @Override
+        List<String> getLabels() {
+            List<String> labels = new ArrayList<String>();
+            if (run.getParent() instanceof AbstractProject) {
+                addLabel(labels, ((AbstractProject)run.getParent()).getAssignedLabel());
+            }
+            if (run instanceof AbstractBuild) {
+                String node = ((AbstractBuild)run).getBuiltOnStr();
+                if (node != null) {
+                    labels.add(node);
+                }
+            }
+            return labels;
+        }
+
+        @Override
+        List<Cause> getCauses() {
+            return run.getCauses();
+        }
+    }
+
+    /**
+     * A queue item as event source.
+     */
+    private static final class ItemSubject extends Subject {
+        private final Queue.Item item;
+
+        /**
+         * Constructor.
+         *
+         * @param item the queue item.
+         */
+        private ItemSubject(Queue.Item item) {
+            this.item = item;
+        }
+
+        @Override
+        String getJob() {
+            return Util.getFullName(item.task);
+        }
+
+        @Override
+        Result getResult() {
+            return null;
+        }
+
+        @Override
+        List<String> getLabels() {
+            List<String> labels = new ArrayList<String>();
+            addLabel(labels, item.getAssignedLabel());
+            return labels;
+        }
+
+        @Override
+        List<Cause> getCauses() {
+            return item.getCauses();
+        }
+    }
+
+    /**
+     * A node as event source.
+     */
+    private static final class ComputerSubject extends Subject {
+        private final Computer computer;
+
+        /**
+         * Constructor.
+         *
+         * @param computer the computer of the node.
+         */
+        private ComputerSubject(Computer computer) {
+            this.computer = computer;
+        }
+
+        @Override
+        String getJob() {
+            return "";
+        }
+
+        @Override
+        Result getResult() {
+            return null;
+        }
+
+        @Override
+        List<String> getLabels() {
+            List<String> labels = new ArrayList<String>();
+            labels.add(computer.getName());
+            Node node = computer.getNode();
+            if (node != null) {
+                for (Label label : node.getAssignedLabels()) {
+                    labels.add(label.getName());
+                }
+            }
+            return labels;
+        }
+
+        @Override
+        List<Cause> getCauses() {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the expression of a label, if any.
+     *
+     * @param labels the labels to add to.
+     * @param label  the label, may be null.
+     */
+    private static void addLabel(List<String> labels, Label label) {
+        if (label != null) {
+            labels.add(label.getExpression());
+        }
+    }
+}
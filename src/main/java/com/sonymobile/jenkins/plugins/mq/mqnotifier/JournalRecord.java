@@ -0,0 +1,462 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A message as it is stored in the on-disk message queue.
+ * <p>
+ * Besides the body the record keeps the routing and the message properties that were given when the
+ * message was queued, so that they survive restarts. Records end with a CRC-32 of their content so that
+ * damaged records are detected. Records written by older versions of the plugin contain only the body,
+ * and are still readable.
+ * <p>
+ * The time a record expires is stored right after the preamble, so that expired records can be skipped
+ * by reading a few bytes, without decoding them.
+ */
+public final class JournalRecord {
+
+    private static final byte MAGIC_0 = 'M';
+    private static final byte MAGIC_1 = 'Q';
+    private static final byte VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 4;
+    private static final int PREAMBLE_LENGTH = 3;
+    /** The number of bytes at the start of a record that {@link #expiresAt(byte[])} needs. */
+    static final int EXPIRES_END = PREAMBLE_LENGTH + Long.SIZE / Byte.SIZE;
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_LONG = 'L';
+
+    private final String exchange;
+    private final String routingKey;
+    private final String contentType;
+    private final String correlationId;
+    private final String partitionKey;
+    private final long timestamp;
+    private final long expires;
+    private final Map<String, Object> headers;
+    private final byte[] body;
+
+    /**
+     * Constructor.
+     *
+     * @param exchange      the exchange, null for the configured exchange
+     * @param routingKey    the routing key, null for the configured routing key
+     * @param contentType   the content type, null for {@link Util#CONTENT_TYPE}
+     * @param correlationId the correlation id, may be null
+     * @param timestamp     the time the message was created, in milliseconds
+     * @param headers       the message headers, may be null
+     * @param body          the message body
+     */
+    public JournalRecord(String exchange, String routingKey, String contentType, String correlationId,
+                         long timestamp, Map<String, Object> headers, byte[] body) {
+        this(exchange, routingKey, contentType, correlationId, null, timestamp, 0, headers, body);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param exchange      the exchange, null for the configured exchange
+     * @param routingKey    the routing key, null for the configured routing key
+     * @param contentType   the content type, null for {@link Util#CONTENT_TYPE}
+     * @param correlationId the correlation id, may be null
+     * @param timestamp     the time the message was created, in milliseconds
+     * @param expires       the time the message expires, in milliseconds, 0 if it does not expire
+     * @param headers       the message headers, may be null
+     * @param body          the message body
+     */
+    public JournalRecord(String exchange, String routingKey, String contentType, String correlationId,
+                         long timestamp, long expires, Map<String, Object> headers, byte[] body) {
+        this(exchange, routingKey, contentType, correlationId, null, timestamp, expires, headers, body);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param exchange      the exchange, null for the configured exchange
+     * @param routingKey    the routing key, null for the configured routing key
+     * @param contentType   the content type, null for {@link Util#CONTENT_TYPE}
+     * @param correlationId the correlation id, may be null
+     * @param partitionKey  the partition key, usually the full name of the job, may be null
+     * @param timestamp     the time the message was created, in milliseconds
+     * @param expires       the time the message expires, in milliseconds, 0 if it does not expire
+     * @param headers       the message headers, may be null
+     * @param body          the message body
+     */
+    public JournalRecord(String exchange, String routingKey, String contentType, String correlationId,
+                         String partitionKey, long timestamp, long expires, Map<String, Object> headers,
+                         byte[] body) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.contentType = contentType;
+        this.correlationId = correlationId;
+        this.partitionKey = partitionKey;
+        this.timestamp = timestamp;
+        this.expires = expires;
+        if (headers == null || headers.isEmpty()) {
+            this.headers = Collections.emptyMap();
+        } else {
+            this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(headers));
+        }
+        this.body = body;
+    }
+
+    /**
+     * Creates a record from the arguments given to {@link MQConnection#addMessageToQueue}.
+     * The expiration property is the time-to-live of the message from its creation.
+     *
+     * @param exchange   the exchange
+     * @param routingKey the routing key
+     * @param props      the message properties, may be null
+     * @param body       the message body
+     * @return the record.
+     */
+    public static JournalRecord of(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        return of(exchange, routingKey, props, body, null);
+    }
+
+    /**
+     * Creates a record from the arguments given to {@link MQConnection#addMessageToQueue}.
+     * The expiration property is the time-to-live of the message from its creation.
+     *
+     * @param exchange     the exchange
+     * @param routingKey   the routing key
+     * @param props        the message properties, may be null
+     * @param body         the message body
+     * @param partitionKey the partition key, may be null
+     * @return the record.
+     */
+    public static JournalRecord of(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+                                   String partitionKey) {
+        String contentType = null;
+        String correlationId = null;
+        long timestamp = System.currentTimeMillis();
+        long expires = 0;
+        Map<String, Object> headers = null;
+        if (props != null) {
+            contentType = props.getContentType();
+            correlationId = props.getCorrelationId();
+            if (props.getTimestamp() != null) {
+                timestamp = props.getTimestamp().getTime();
+            }
+            headers = props.getHeaders();
+            if (props.getExpiration() != null) {
+                try {
+                    expires = timestamp + Long.parseLong(props.getExpiration());
+                } catch (NumberFormatException e) {
+                    // not a time-to-live this plugin sets, the message does not expire
+                    expires = 0;
+                }
+            }
+        }
+        return new JournalRecord(exchange, routingKey, contentType, correlationId, partitionKey, timestamp, expires,
+                headers, body);
+    }
+
+    /**
+     * Gets the exchange.
+     *
+     * @return the exchange, or null if the configured exchange should be used.
+     */
+    public String getExchange() {
+        return exchange;
+    }
+
+    /**
+     * Gets the routing key.
+     *
+     * @return the routing key, or null if the configured routing key should be used.
+     */
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * Gets the content type.
+     *
+     * @return the content type, never null.
+     */
+    public String getContentType() {
+        return contentType != null ? contentType : Util.CONTENT_TYPE;
+    }
+
+    /**
+     * Gets the correlation id.
+     *
+     * @return the correlation id, or null if none.
+     */
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Gets the partition key.
+     *
+     * @return the partition key, usually the full name of the job, or null if none.
+     */
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * Gets the creation time.
+     *
+     * @return the time the message was created, in milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the expiry time.
+     *
+     * @return the time the message expires, in milliseconds, or 0 if it does not expire.
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Gets the headers.
+     *
+     * @return the headers, never null.
+     */
+    public Map<String, Object> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Gets the body.
+     *
+     * @return the body.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Builds the AMQP properties for this record.
+     * A message that expires gets the rest of its time-to-live as expiration, so that the broker drops it
+     * when consumers fall behind as well.
+     *
+     * @param appId        the application id
+     * @param deliveryMode the delivery mode
+     * @return the properties.
+     */
+    public AMQP.BasicProperties toProperties(String appId, int deliveryMode) {
+        AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
+        bob.appId(appId);
+        bob.deliveryMode(deliveryMode);
+        bob.contentType(getContentType());
+        bob.correlationId(correlationId);
+        bob.timestamp(new Date(timestamp));
+        if (expires > 0) {
+            bob.expiration(String.valueOf(Math.max(1, expires - System.currentTimeMillis())));
+        }
+        if (!headers.isEmpty()) {
+            bob.headers(headers);
+        }
+        return bob.build();
+    }
+
+    /**
+     * Serializes this record.
+     *
+     * @return the serialized record.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + Byte.MAX_VALUE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(MAGIC_0);
+            out.writeByte(MAGIC_1);
+            out.writeByte(VERSION);
+            out.writeLong(expires);
+            writeNullable(out, exchange);
+            writeNullable(out, routingKey);
+            writeNullable(out, contentType);
+            writeNullable(out, correlationId);
+            writeNullable(out, partitionKey);
+            out.writeLong(timestamp);
+            out.writeInt(headers.size());
+            for (Map.Entry<String, Object> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                Object value = header.getValue();
+                if (value instanceof Number) {
+                    out.writeByte(TYPE_LONG);
+                    out.writeLong(((Number)value).longValue());
+                } else {
+                    out.writeByte(TYPE_STRING);
+                    out.writeUTF(String.valueOf(value));
+                }
+            }
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int)crc.getValue());
+            out.flush();
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a record.
+     *
+     * @param data the serialized record, or a bare message body written by an older version.
+     * @return the record.
+     * @throws IOException if the record is malformed.
+     */
+    public static JournalRecord decode(byte[] data) throws IOException {
+        if (!isRecord(data)) {
+            return new JournalRecord(null, null, null, null, System.currentTimeMillis(), null, data);
+        }
+        if (!hasValidChecksum(data)) {
+            throw new IOException("Journal record checksum mismatch");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(PREAMBLE_LENGTH);
+        long expires = in.readLong();
+        String exchange = readNullable(in);
+        String routingKey = readNullable(in);
+        String contentType = readNullable(in);
+        String correlationId = readNullable(in);
+        String partitionKey = readNullable(in);
+        long timestamp = in.readLong();
+        int count = in.readInt();
+        Map<String, Object> headers = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            if (type == TYPE_LONG) {
+                headers.put(key, in.readLong());
+            } else {
+                headers.put(key, in.readUTF());
+            }
+        }
+        int length = in.readInt();
+        if (length < 0 || length > data.length) {
+            throw new IOException("Journal record body length out of range: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new JournalRecord(exchange, routingKey, contentType, correlationId, partitionKey, timestamp, expires,
+                headers, body);
+    }
+
+    /**
+     * Gets the time a stored record expires, without decoding it.
+     *
+     * @param data the stored record, or at least its first {@link #EXPIRES_END} bytes.
+     * @return the time the record expires, in milliseconds, or 0 if it does not expire.
+     */
+    public static long expiresAt(byte[] data) {
+        if (!isRecord(data) || data.length < EXPIRES_END) {
+            return 0;
+        }
+        return ByteBuffer.wrap(data, PREAMBLE_LENGTH, EXPIRES_END - PREAMBLE_LENGTH).getLong();
+    }
+
+    /**
+     * Returns true if the data is a checksummed record whose checksum matches its content.
+     *
+     * @param data the stored data.
+     * @return false for damaged records and bare bodies.
+     */
+    public static boolean hasValidChecksum(byte[] data) {
+        if (!isRecord(data) || data.length < PREAMBLE_LENGTH + CHECKSUM_LENGTH) {
+            return false;
+        }
+        int end = data.length - CHECKSUM_LENGTH;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, end);
+        return (int)crc.getValue() == ByteBuffer.wrap(data, end, CHECKSUM_LENGTH).getInt();
+    }
+
+    /**
+     * Returns true if the data starts with the record preamble.
+     *
+     * @param data the stored data.
+     * @return false for bare bodies written by older versions.
+     */
+    private static boolean isRecord(byte[] data) {
+        return data.length >= PREAMBLE_LENGTH && isPreamble(data[0], data[1], data[2]);
+    }
+
+    /**
+     * Returns true if three bytes are the record preamble.
+     *
+     * @param first  the first byte.
+     * @param second the second byte.
+     * @param third  the third byte.
+     * @return true if a record may start with the bytes.
+     */
+    static boolean isPreamble(byte first, byte second, byte third) {
+        return first == MAGIC_0 && second == MAGIC_1 && third == VERSION;
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out   the output.
+     * @param value the value.
+     * @throws IOException on write errors.
+     */
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string that may be null.
+     *
+     * @param in the input.
+     * @return the value.
+     * @throws IOException on read errors.
+     */
+    private static String readNullable(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+}
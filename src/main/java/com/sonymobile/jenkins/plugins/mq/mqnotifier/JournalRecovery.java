@@ -0,0 +1,519 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.squareup.tape.QueueFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Opens the on-disk message queue, recovering it if it is damaged.
+ * <p>
+ * When the queue file cannot be opened, its raw content is scanned from the start. If the file header is
+ * intact the queue is walked as tape stores it, a ring of length prefixed elements, and every record with a
+ * valid checksum is kept. When an element length is damaged, or the header is, the rest of the file is
+ * searched for records whose checksum is valid instead. Elements without a checksum are only kept when no
+ * record preamble is found anywhere in the file, as it then predates the record format. The salvaged records
+ * are copied one by one to a fresh queue file, only their positions are kept in memory. The damaged file is
+ * moved aside for inspection and the number of lost records is logged.
+ * <p>
+ * Tape only checks the header and the first and last elements when it opens a queue file, so the element
+ * lengths are checked as well before the queue is used. A damaged length would otherwise only show up when
+ * the dispatcher reaches the element.
+ * <p>
+ * The file is read with positional reads rather than mapped, a mapping would keep the file open until it is
+ * garbage collected and the damaged file could not be moved aside on Windows.
+ */
+final class JournalRecovery {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JournalRecovery.class);
+
+    /* Layout of a tape 1.x queue file. */
+    private static final int HEADER_LENGTH = 16;
+    private static final int ELEMENT_HEADER_LENGTH = 4;
+    private static final int COUNT_OFFSET = 4;
+    private static final int FIRST_OFFSET = 8;
+    private static final int LAST_OFFSET = 12;
+
+    /* The length of the preamble that starts every record. */
+    private static final int PREAMBLE_LENGTH = 3;
+
+    /**
+     * Utility classes should not have a public or default constructor.
+     */
+    private JournalRecovery() {
+    }
+
+    /**
+     * Opens a queue file, recovering it if it is damaged.
+     *
+     * @param file the queue file.
+     * @return the queue.
+     * @throws IOException if the file can neither be opened nor recovered.
+     */
+    static QueueFile open(File file) throws IOException {
+        try {
+            QueueFile queue = new QueueFile(file);
+            if (hasValidElements(file)) {
+                return queue;
+            }
+            queue.close();
+            LOGGER.warn("Message queue {} has a damaged element, recovering it", file);
+        } catch (IOException e) {
+            LOGGER.warn("Message queue {} is damaged, recovering it", file, e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Message queue {} is damaged, recovering it", file, e);
+        }
+        return recover(file);
+    }
+
+    /**
+     * Salvages the readable records of a damaged queue file into a fresh one and moves the damaged file aside.
+     *
+     * @param file the damaged queue file.
+     * @return the recovered queue.
+     * @throws IOException if the file cannot be recovered.
+     */
+    static QueueFile recover(File file) throws IOException {
+        File fresh = new File(file.getPath() + ".recovering");
+        Files.deleteIfExists(fresh.toPath());
+        Scan scan;
+        Content data = new Content(file);
+        try {
+            scan = scan(data);
+            QueueFile queue = new QueueFile(fresh);
+            try {
+                for (Element record : scan.records) {
+                    queue.add(scan.read(data, record));
+                }
+            } finally {
+                queue.close();
+            }
+        } finally {
+            data.close();
+        }
+        File aside = new File(file.getPath() + ".damaged-" + System.currentTimeMillis());
+        Files.move(file.toPath(), aside.toPath());
+        Files.move(fresh.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (scan.counted) {
+            LOGGER.warn("Recovered {} messages, {} messages were lost. The damaged queue is kept as {}",
+                    scan.records.size(), scan.lost, aside);
+        } else {
+            LOGGER.warn("Recovered {} messages, the number of lost messages is unknown. "
+                    + "The damaged queue is kept as {}", scan.records.size(), aside);
+        }
+        return new QueueFile(file);
+    }
+
+    /**
+     * Checks that the elements of a queue file with an intact header fit in the ring and end at the last
+     * element of the header. Only the element lengths are read.
+     *
+     * @param file the queue file.
+     * @return true if the elements can be read.
+     * @throws IOException if the file cannot be read.
+     */
+    static boolean hasValidElements(File file) throws IOException {
+        Content data = new Content(file);
+        try {
+            if (data.length() < HEADER_LENGTH) {
+                return false;
+            }
+            int ringLength = data.getInt(0);
+            int count = data.getInt(COUNT_OFFSET);
+            int last = data.getInt(LAST_OFFSET);
+            if (ringLength > data.length()) {
+                return false;
+            }
+            int maxLength = ringLength - HEADER_LENGTH - ELEMENT_HEADER_LENGTH;
+            long used = 0;
+            int position = data.getInt(FIRST_OFFSET);
+            for (int i = 0; i < count; i++) {
+                if (position < HEADER_LENGTH || position >= ringLength) {
+                    return false;
+                }
+                int length = ringGetInt(data, ringLength, position);
+                used += ELEMENT_HEADER_LENGTH + (long)length;
+                if (length < 0 || length > maxLength || used > ringLength - HEADER_LENGTH
+                        || i == count - 1 && position != last) {
+                    return false;
+                }
+                position = wrap(position + ELEMENT_HEADER_LENGTH + length, ringLength);
+            }
+            return true;
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Scans the raw content of a queue file for readable records.
+     *
+     * @param data the file content.
+     * @return the result.
+     * @throws IOException if the file cannot be read.
+     */
+    static Scan scan(Content data) throws IOException {
+        Scan scan = new Scan();
+        int fileLength = data.length();
+        scan.ringLength = fileLength;
+        scan.legacy = !hasPreamble(data);
+        if (fileLength >= HEADER_LENGTH) {
+            int ringLength = data.getInt(0);
+            int count = data.getInt(COUNT_OFFSET);
+            int first = data.getInt(FIRST_OFFSET);
+            int last = data.getInt(LAST_OFFSET);
+            if (ringLength >= HEADER_LENGTH && ringLength <= fileLength && count >= 0
+                    && (count == 0 || isInRing(first, ringLength) && isInRing(last, ringLength))) {
+                scan.ringLength = ringLength;
+                walk(data, count, first, last, scan);
+                scan.counted = true;
+                return scan;
+            }
+        }
+        List<Element> found = new ArrayList<Element>();
+        search(data, HEADER_LENGTH, fileLength - HEADER_LENGTH - 1, scan, found);
+        // the ring may have wrapped, so the records are only ordered by their creation time
+        Collections.sort(found, new Comparator<Element>() {
+            @Override
+            public int compare(Element a, Element b) {
+                return Long.compare(a.timestamp, b.timestamp);
+            }
+        });
+        scan.records.addAll(found);
+        return scan;
+    }
+
+    /**
+     * Walks the element ring from the first element, as described by an intact header. From the first damaged
+     * element, the rest of the ring up to the last element is searched instead.
+     *
+     * @param data  the file content.
+     * @param count the number of elements, from the header.
+     * @param first the position of the first element, from the header.
+     * @param last  the position of the last element, from the header.
+     * @param scan  the result.
+     * @throws IOException if the file cannot be read.
+     */
+    private static void walk(Content data, int count, int first, int last, Scan scan) throws IOException {
+        int ringLength = scan.ringLength;
+        int maxLength = ringLength - HEADER_LENGTH - ELEMENT_HEADER_LENGTH;
+        int position = first;
+        for (int i = 0; i < count; i++) {
+            int length = ringGetInt(data, ringLength, position);
+            if (length >= 0 && length <= maxLength) {
+                int start = wrap(position + ELEMENT_HEADER_LENGTH, ringLength);
+                byte[] element = new byte[length];
+                ringRead(data, ringLength, start, element);
+                if (scan.legacy || JournalRecord.hasValidChecksum(element)) {
+                    scan.records.add(new Element(start, length, 0));
+                    position = wrap(position + ELEMENT_HEADER_LENGTH + length, ringLength);
+                    continue;
+                }
+            }
+            // the length may be the damaged part, so the following elements are searched for up to the last one
+            int distance = (last - position + ringLength - HEADER_LENGTH) % (ringLength - HEADER_LENGTH);
+            search(data, wrap(position + 1, ringLength), distance - 1, scan, scan.records);
+            break;
+        }
+        scan.lost = Math.max(0, count - scan.records.size());
+    }
+
+    /**
+     * Searches the ring for records with a valid checksum, when the element lengths cannot be trusted.
+     *
+     * @param data     the file content.
+     * @param from     the first position where an element may start.
+     * @param distance how far past the first position an element may start.
+     * @param scan     the scan, for the ring length.
+     * @param found    the list to add the found records to, in ring order.
+     * @throws IOException if the file cannot be read.
+     */
+    private static void search(Content data, int from, int distance, Scan scan, List<Element> found)
+            throws IOException {
+        int ringLength = scan.ringLength;
+        int maxLength = ringLength - HEADER_LENGTH - ELEMENT_HEADER_LENGTH;
+        byte[] preamble = new byte[PREAMBLE_LENGTH];
+        int offset = 0;
+        while (offset <= distance) {
+            int position = wrap(from + offset, ringLength);
+            int length = ringGetInt(data, ringLength, position);
+            int start = wrap(position + ELEMENT_HEADER_LENGTH, ringLength);
+            if (length >= PREAMBLE_LENGTH && length <= maxLength) {
+                ringRead(data, ringLength, start, preamble);
+                if (JournalRecord.isPreamble(preamble[0], preamble[1], preamble[2])) {
+                    byte[] element = new byte[length];
+                    ringRead(data, ringLength, start, element);
+                    if (JournalRecord.hasValidChecksum(element)) {
+                        try {
+                            long timestamp = JournalRecord.decode(element).getTimestamp();
+                            found.add(new Element(start, length, timestamp));
+                            offset += ELEMENT_HEADER_LENGTH + length;
+                            continue;
+                        } catch (IOException e) {
+                            LOGGER.debug("Checksummed record at {} cannot be decoded", position, e);
+                        }
+                    }
+                }
+            }
+            offset++;
+        }
+    }
+
+    /**
+     * Checks whether the record preamble occurs anywhere after the file header. A file without it was
+     * written before records were introduced and holds bare message bodies.
+     *
+     * @param data the file content.
+     * @return true if the file holds records.
+     * @throws IOException if the file cannot be read.
+     */
+    private static boolean hasPreamble(Content data) throws IOException {
+        for (int position = HEADER_LENGTH; position + PREAMBLE_LENGTH <= data.length(); position++) {
+            if (JournalRecord.isPreamble(data.get(position), data.get(position + 1), data.get(position + 2))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a position from the header is within the element area of the ring.
+     *
+     * @param position   the position.
+     * @param ringLength the length of the ring.
+     * @return true if an element may start there.
+     */
+    private static boolean isInRing(int position, int ringLength) {
+        return position >= HEADER_LENGTH && position < ringLength;
+    }
+
+    /**
+     * Reads an element length from the element ring.
+     *
+     * @param data       the file content.
+     * @param ringLength the length of the ring.
+     * @param position   the position to read from.
+     * @return the length.
+     * @throws IOException if the file cannot be read.
+     */
+    private static int ringGetInt(Content data, int ringLength, int position) throws IOException {
+        byte[] header = new byte[ELEMENT_HEADER_LENGTH];
+        ringRead(data, ringLength, position, header);
+        return ByteBuffer.wrap(header).getInt();
+    }
+
+    /**
+     * Reads from the element ring, continuing after the header when the end of the ring is reached.
+     *
+     * @param data       the file content.
+     * @param ringLength the length of the ring.
+     * @param position   the position to read from.
+     * @param dst        the buffer to fill.
+     * @throws IOException if the file cannot be read.
+     */
+    private static void ringRead(Content data, int ringLength, int position, byte[] dst) throws IOException {
+        int before = Math.min(dst.length, ringLength - position);
+        data.read(position, dst, 0, before);
+        if (before < dst.length) {
+            data.read(HEADER_LENGTH, dst, before, dst.length - before);
+        }
+    }
+
+    /**
+     * Wraps a position past the end of the ring to the start of the element area.
+     *
+     * @param position   the position.
+     * @param ringLength the length of the ring.
+     * @return the wrapped position.
+     */
+    private static int wrap(int position, int ringLength) {
+        return position < ringLength ? position : HEADER_LENGTH + position - ringLength;
+    }
+
+    /**
+     * The content of a queue file, read with positional reads through a small block cache.
+     */
+    static final class Content implements Closeable {
+        private static final int BLOCK_LENGTH = 64 * 1024;
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int length;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_LENGTH);
+        private long blockStart = -1;
+
+        /**
+         * Opens a queue file for reading.
+         *
+         * @param file the queue file.
+         * @throws IOException if the file cannot be opened.
+         */
+        Content(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            length = (int)Math.min(channel.size(), Integer.MAX_VALUE);
+        }
+
+        /**
+         * Returns the length of the content.
+         *
+         * @return the length.
+         */
+        int length() {
+            return length;
+        }
+
+        /**
+         * Reads one byte.
+         *
+         * @param position the position.
+         * @return the byte.
+         * @throws IOException if the file cannot be read.
+         */
+        byte get(int position) throws IOException {
+            if (blockStart < 0 || position < blockStart || position >= blockStart + block.limit()) {
+                block.clear();
+                block.limit(Math.min(BLOCK_LENGTH, length - position));
+                readFully(position, block);
+                blockStart = position;
+            }
+            return block.get((int)(position - blockStart));
+        }
+
+        /**
+         * Reads a big endian int.
+         *
+         * @param position the position.
+         * @return the int.
+         * @throws IOException if the file cannot be read.
+         */
+        int getInt(int position) throws IOException {
+            byte[] value = new byte[ELEMENT_HEADER_LENGTH];
+            read(position, value, 0, value.length);
+            return ByteBuffer.wrap(value).getInt();
+        }
+
+        /**
+         * Reads bytes into an array.
+         *
+         * @param position the position.
+         * @param dst      the array.
+         * @param offset   the offset in the array.
+         * @param count    the number of bytes to read.
+         * @throws IOException if the file cannot be read.
+         */
+        void read(int position, byte[] dst, int offset, int count) throws IOException {
+            readFully(position, ByteBuffer.wrap(dst, offset, count));
+        }
+
+        /**
+         * Fills a buffer from a position.
+         *
+         * @param position the position.
+         * @param dst      the buffer.
+         * @throws IOException if the file ends before the buffer is filled.
+         */
+        private void readFully(long position, ByteBuffer dst) throws IOException {
+            long at = position;
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, at);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of queue file at " + at);
+                }
+                at += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    /**
+     * The result of a scan.
+     */
+    static final class Scan {
+        /** The readable records, in queue order. */
+        final List<Element> records = new ArrayList<Element>();
+        /** The length of the ring the records are read from. */
+        int ringLength;
+        /** The number of lost records. */
+        int lost;
+        /** False if the number of records was unknown, and so the number of lost records. */
+        boolean counted;
+        /** True if the file predates the record format, and its elements are bare bodies. */
+        boolean legacy;
+
+        /**
+         * Reads a readable record from the scanned content.
+         *
+         * @param data   the file content.
+         * @param record the record.
+         * @return the stored record.
+         * @throws IOException if the file cannot be read.
+         */
+        byte[] read(Content data, Element record) throws IOException {
+            byte[] element = new byte[record.length];
+            ringRead(data, ringLength, record.position, element);
+            return element;
+        }
+    }
+
+    /**
+     * The position of a readable record in the file, with its creation time if it was found by the search.
+     */
+    static final class Element {
+        private final int position;
+        private final int length;
+        private final long timestamp;
+
+        /**
+         * Constructor.
+         *
+         * @param position  the position of the record data.
+         * @param length    the length of the record.
+         * @param timestamp the creation time of the record, 0 if not needed.
+         */
+        private Element(int position, int length, long timestamp) {
+            this.position = position;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+    }
+}
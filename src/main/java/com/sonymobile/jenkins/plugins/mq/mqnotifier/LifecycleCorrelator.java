@@ -0,0 +1,252 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.CauseProvider;
+import hudson.model.Cause;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.Run;
+import net.sf.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins the queue events of a build into its completed event.
+ * <p>
+ * A compact record per queue item, with the time it entered the queue, the time it spent there, the label it
+ * was built on and its causes, is kept from the queue listener until the build completes, keyed by the queue
+ * id that the build remembers. Records are kept in queue order, so the oldest are dropped first when there are
+ * more than the configured maximum, and records older than the expiry are dropped, which covers items that
+ * never become builds without being reported as cancelled.
+ */
+final class LifecycleCorrelator {
+
+    private static final LifecycleCorrelator INSTANCE = new LifecycleCorrelator();
+
+    /* Records by queue id, in insertion order. */
+    private final Map<Long, Record> records = new LinkedHashMap<Long, Record>();
+
+    /**
+     * Constructor, the tests use their own instances.
+     */
+    LifecycleCorrelator() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    static LifecycleCorrelator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records an item that entered the queue.
+     *
+     * @param wi     the waiting item.
+     * @param config the configuration.
+     */
+    void entered(Queue.WaitingItem wi, MQNotifierConfig config) {
+        entered(wi.getId(), wi.getInQueueSince(), causes(wi), System.currentTimeMillis(),
+                config.getLifecycleMaxEntries(), config.getLifecycleExpiry());
+    }
+
+    /**
+     * Records an item that left the queue. Cancelled items are forgotten, they never complete.
+     *
+     * @param li     the left item.
+     * @param config the configuration.
+     */
+    void left(Queue.LeftItem li, MQNotifierConfig config) {
+        if (li.isCancelled()) {
+            forget(li.getId());
+            return;
+        }
+        Label label = li.getAssignedLabel();
+        long now = System.currentTimeMillis();
+        left(li.getId(), li.getInQueueSince(), now - li.getInQueueSince(),
+                label != null ? label.getDisplayName() : Util.VALUE_DEQUEUE_NO_LABEL, causes(li), now,
+                config.getLifecycleMaxEntries(), config.getLifecycleExpiry());
+    }
+
+    /**
+     * Removes the record of a build, so that it can be joined into its completed event.
+     *
+     * @param run the build.
+     * @return the record, or null if there is none.
+     */
+    Record take(Run run) {
+        return take(run.getQueueId());
+    }
+
+    /**
+     * Records an item that entered the queue.
+     *
+     * @param id         the queue id.
+     * @param enqueued   the time the item entered the queue.
+     * @param causes     the causes.
+     * @param now        the current time.
+     * @param maxEntries the maximum number of records.
+     * @param expiry     the time in milliseconds records are kept.
+     */
+    synchronized void entered(long id, long enqueued, String[] causes, long now, int maxEntries, long expiry) {
+        records.put(id, new Record(enqueued, causes));
+        trim(now, maxEntries, expiry);
+    }
+
+    /**
+     * Records an item that left the queue to be built. Items that entered before the record was started are
+     * recorded here.
+     *
+     * @param id         the queue id.
+     * @param enqueued   the time the item entered the queue.
+     * @param timeSpent  the time in milliseconds the item spent in the queue.
+     * @param label      the label the item was built on.
+     * @param causes     the causes.
+     * @param now        the current time.
+     * @param maxEntries the maximum number of records.
+     * @param expiry     the time in milliseconds records are kept.
+     */
+    synchronized void left(long id, long enqueued, long timeSpent, String label, String[] causes, long now,
+                           int maxEntries, long expiry) {
+        Record record = records.get(id);
+        if (record == null) {
+            record = new Record(enqueued, causes);
+            records.put(id, record);
+        }
+        record.timeSpent = timeSpent;
+        record.label = label;
+        trim(now, maxEntries, expiry);
+    }
+
+    /**
+     * Forgets an item.
+     *
+     * @param id the queue id.
+     */
+    synchronized void forget(long id) {
+        records.remove(id);
+    }
+
+    /**
+     * Removes the record of an item.
+     *
+     * @param id the queue id.
+     * @return the record, or null if there is none.
+     */
+    synchronized Record take(long id) {
+        return records.remove(id);
+    }
+
+    /**
+     * Gets the number of records.
+     *
+     * @return the number of records.
+     */
+    synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Drops the oldest records while there are too many or they are expired.
+     *
+     * @param now        the current time.
+     * @param maxEntries the maximum number of records, no limit if 0 or less.
+     * @param expiry     the time in milliseconds records are kept, forever if 0 or less.
+     */
+    private void trim(long now, int maxEntries, long expiry) {
+        Iterator<Record> it = records.values().iterator();
+        while (it.hasNext()) {
+            Record oldest = it.next();
+            boolean full = maxEntries > 0 && records.size() > maxEntries;
+            boolean expired = expiry > 0 && now - oldest.enqueued > expiry;
+            if (!full && !expired) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * Gets the short descriptions of the causes of a queue item.
+     *
+     * @param item the queue item.
+     * @return the causes.
+     */
+    private static String[] causes(Queue.Item item) {
+        List<Cause> causes = item.getCauses();
+        if (causes == null) {
+            return new String[0];
+        }
+        String[] descriptions = new String[causes.size()];
+        for (int i = 0; i < descriptions.length; i++) {
+            descriptions[i] = causes.get(i).getShortDescription();
+        }
+        return descriptions;
+    }
+
+    /**
+     * What is kept of a queue item until its build completes.
+     */
+    static final class Record {
+        private final long enqueued;
+        private final String[] causes;
+        /* Set when the item leaves the queue. */
+        private long timeSpent = -1;
+        private String label;
+
+        /**
+         * Constructor.
+         *
+         * @param enqueued the time the item entered the queue.
+         * @param causes   the causes.
+         */
+        private Record(long enqueued, String[] causes) {
+            this.enqueued = enqueued;
+            this.causes = causes;
+        }
+
+        /**
+         * Adds the queue data to the completed event of the build.
+         * The causes are only added if no data provider has added them.
+         *
+         * @param json the completed event.
+         */
+        void merge(JSONObject json) {
+            json.put(Util.KEY_QUEUED_TIME, enqueued);
+            if (timeSpent >= 0) {
+                json.put(Util.KEY_DEQUEUE_TIME_SPENT, timeSpent);
+                json.put(Util.KEY_DEQUEUE_ALLOCATED_LABEL, label);
+            }
+            if (!json.containsKey(CauseProvider.KEY_CAUSES)) {
+                json.put(CauseProvider.KEY_CAUSES, causes);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Starts and ends the streaming of console logs to MQ.
+ */
+@Extension
+public class LogListenerImpl extends RunListener<Run> {
+
+    /**
+     * Constructor for LogListenerImpl.
+     */
+    public LogListenerImpl() {
+        super(Run.class);
+    }
+
+    @Override
+    public void onStarted(Run r, TaskListener listener) {
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config != null && config.isNotifierEnabled() && config.isLogStreaming()
+                && config.getEventFilter().accepts(r)) {
+            LogStreamer.getInstance().start(r, config);
+        }
+    }
+
+    @Override
+    public void onFinalized(Run r) {
+        // the log is complete only once the build is finalized
+        LogStreamer.getInstance().finish(r);
+    }
+}
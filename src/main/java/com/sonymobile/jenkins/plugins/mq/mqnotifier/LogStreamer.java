@@ -0,0 +1,379 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import hudson.model.Run;
+import jenkins.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the console logs of running builds to MQ.
+ * <p>
+ * A single periodic task tails the log file of every active build with positional reads into a buffer of
+ * the configured chunk size, so memory per build is constant. A chunk is published when the buffer is
+ * full, when the flush interval has passed since its first byte was read, or when the build has finished.
+ * Reads are limited by a global bandwidth cap shared by all builds, so that a chatty build cannot flood the
+ * message queue ahead of the build events. The body of each message is the raw log bytes, the correlation
+ * id is the build id and the file offset of the chunk and its sequence number are sent as headers.
+ */
+final class LogStreamer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogStreamer.class);
+    private static final long TICK = 500;
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final String LOG_CONTENT_TYPE = "text/plain";
+
+    private static final LogStreamer INSTANCE = new LogStreamer();
+
+    private final Map<String, Tail> tails = new ConcurrentHashMap<String, Tail>();
+    private ScheduledFuture<?> task;
+    private volatile boolean stopped;
+
+    /* Bandwidth tokens in bytes, only touched by the periodic task. */
+    private long tokens;
+    private long lastRefill;
+    /* Index of the tail served first, rotated every tick for fairness. */
+    private int rotation;
+
+    /**
+     * Singleton.
+     */
+    private LogStreamer() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    static LogStreamer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts streaming the log of a build.
+     *
+     * @param run    the build.
+     * @param config the configuration.
+     */
+    void start(Run run, MQNotifierConfig config) {
+        String id = run.getExternalizableId();
+        if (stopped || tails.containsKey(id)) {
+            return;
+        }
+        tails.put(id, new Tail(id, run.getParent().getFullName(), run.getLogFile(), config.getLogChunkSize()));
+        ensureScheduled();
+    }
+
+    /**
+     * Marks the log of a build as complete, its remainder is streamed followed by a final message.
+     *
+     * @param run the build.
+     */
+    void finish(Run run) {
+        Tail tail = tails.get(run.getExternalizableId());
+        if (tail != null) {
+            tail.finish();
+        }
+    }
+
+    /**
+     * Stops streaming, on shutdown. The logs are not streamed to the end.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        closeAll();
+    }
+
+    /**
+     * Gets the number of builds whose logs are being streamed.
+     *
+     * @return the number of builds.
+     */
+    int getActiveCount() {
+        return tails.size();
+    }
+
+    /**
+     * Schedules the periodic task if it is not running.
+     */
+    private synchronized void ensureScheduled() {
+        if (task == null || task.isDone()) {
+            lastRefill = System.currentTimeMillis();
+            task = Timer.get().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        tick();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Log streaming failed", e);
+                    }
+                }
+            }, TICK, TICK, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reads from every active log within the bandwidth cap and publishes the chunks that are ready.
+     */
+    private void tick() {
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config == null || !config.isNotifierEnabled() || !config.isLogStreaming()) {
+            closeAll();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        tokens = refill(tokens, config.getLogBandwidth(), now - lastRefill);
+        lastRefill = now;
+
+        List<Tail> active = new ArrayList<Tail>(tails.values());
+        if (active.isEmpty()) {
+            return;
+        }
+        rotation = (rotation + 1) % active.size();
+        for (int i = 0; i < active.size(); i++) {
+            Tail tail = active.get((rotation + i) % active.size());
+            try {
+                tokens -= tail.poll(config, now, tokens);
+                if (tail.isDone()) {
+                    tails.remove(tail.id);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot stream log of {}", tail.id, e);
+                tail.close();
+                tails.remove(tail.id);
+            }
+        }
+    }
+
+    /**
+     * Refills the bandwidth tokens for the time passed since the last refill, up to one second of bandwidth.
+     *
+     * @param tokens    the tokens left, {@link Long#MAX_VALUE} if the bandwidth was not limited.
+     * @param bandwidth the bandwidth in bytes per second, no limit if 0 or less.
+     * @param elapsed   the time in milliseconds since the last refill.
+     * @return the tokens.
+     */
+    static long refill(long tokens, long bandwidth, long elapsed) {
+        if (bandwidth <= 0) {
+            return Long.MAX_VALUE;
+        }
+        // the tokens left when the limit was off or lowered do not count
+        long left = Math.min(bandwidth, tokens);
+        if (elapsed >= MILLIS_PER_SECOND) {
+            return bandwidth;
+        }
+        return Math.min(bandwidth, left + bandwidth * Math.max(0, elapsed) / MILLIS_PER_SECOND);
+    }
+
+    /**
+     * Stops streaming all logs.
+     */
+    private void closeAll() {
+        for (Tail tail : tails.values()) {
+            tail.close();
+        }
+        tails.clear();
+    }
+
+    /**
+     * The streaming state of one build log.
+     */
+    static class Tail {
+        private final String id;
+        private final String job;
+        private final File file;
+        private final ByteBuffer buffer;
+        private FileChannel channel;
+        /* File offset of the first byte in the buffer. */
+        private long offset;
+        private long sequence;
+        private long chunkStarted;
+        private volatile boolean finished;
+        private boolean done;
+
+        /**
+         * Constructor.
+         *
+         * @param id        the build id.
+         * @param job       the full name of the job, the partition key of the messages.
+         * @param file      the log file.
+         * @param chunkSize the maximum chunk size.
+         */
+        Tail(String id, String job, File file, int chunkSize) {
+            this.id = id;
+            this.job = job;
+            this.file = file;
+            this.buffer = ByteBuffer.allocate(chunkSize);
+        }
+
+        /**
+         * Marks the log as complete, its remainder is streamed followed by a final message.
+         */
+        void finish() {
+            finished = true;
+        }
+
+        /**
+         * Returns true when the log is completely streamed and the log file is closed.
+         *
+         * @return true if done.
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Reads what is available and publishes a chunk if one is ready. A log file that does not exist when
+         * the build has finished, because it was never created or was deleted, only gets the final message.
+         *
+         * @param config the configuration.
+         * @param now    the current time.
+         * @param tokens the number of bytes that may be read.
+         * @return the number of bytes read.
+         * @throws IOException if the log cannot be read.
+         */
+        long poll(MQNotifierConfig config, long now, long tokens) throws IOException {
+            if (channel == null) {
+                // read before the file is looked for, a build that had finished then will not create it
+                boolean last = finished;
+                try {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    if (last) {
+                        LOGGER.debug("Log of {} not found, it is not streamed", id);
+                        publish(config, true);
+                        done = true;
+                    }
+                    return 0;
+                }
+            }
+            long read = 0;
+            boolean eof = false;
+            while (buffer.hasRemaining() && read < tokens) {
+                int limit = buffer.limit();
+                if (buffer.remaining() > tokens - read) {
+                    buffer.limit(buffer.position() + (int)(tokens - read));
+                }
+                int count = channel.read(buffer, offset + buffer.position());
+                buffer.limit(limit);
+                if (count <= 0) {
+                    eof = true;
+                    break;
+                }
+                if (chunkStarted == 0) {
+                    chunkStarted = now;
+                }
+                read += count;
+            }
+            boolean drained = finished && eof;
+            if (buffer.position() > 0 && (!buffer.hasRemaining() || drained
+                    || now - chunkStarted >= config.getLogFlushInterval())) {
+                publish(config, false);
+            }
+            if (drained && buffer.position() == 0) {
+                publish(config, true);
+                close();
+                done = true;
+            }
+            return read;
+        }
+
+        /**
+         * Publishes the buffered chunk, or the empty final message.
+         *
+         * @param config the configuration.
+         * @param last   true for the final message.
+         */
+        private void publish(MQNotifierConfig config, boolean last) {
+            buffer.flip();
+            byte[] body = new byte[buffer.remaining()];
+            buffer.get(body);
+            buffer.clear();
+            publish(config, body, offset, sequence++, last);
+            offset += body.length;
+            chunkStarted = 0;
+        }
+
+        /**
+         * Publishes a chunk of the log.
+         *
+         * @param config   the configuration.
+         * @param body     the log bytes, empty for the final message.
+         * @param position the file offset of the chunk.
+         * @param number   the sequence number of the chunk.
+         * @param last     true for the final message.
+         */
+        void publish(MQNotifierConfig config, byte[] body, long position, long number, boolean last) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put(Util.HEADER_EVENT, Util.VALUE_LOG);
+            headers.put(Util.HEADER_LOG_OFFSET, position);
+            headers.put(Util.HEADER_LOG_SEQUENCE, number);
+            headers.put(Util.HEADER_LOG_FINAL, String.valueOf(last));
+            AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
+            bob.contentType(LOG_CONTENT_TYPE);
+            bob.correlationId(id);
+            bob.timestamp(new Date());
+            bob.expiration(config.getMessageTtlTable().getExpiration(Util.VALUE_LOG));
+            bob.headers(headers);
+            String routingKey = config.getLogRoutingKey() != null ? config.getLogRoutingKey() : config.getRoutingKey();
+            MQConnection.getInstance().addMessageToQueue(config.getExchangeName(), routingKey, bob.build(), body,
+                    job);
+        }
+
+        /**
+         * Closes the log file.
+         */
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Cannot close log of {}", id, e);
+                }
+                channel = null;
+            }
+        }
+    }
+}
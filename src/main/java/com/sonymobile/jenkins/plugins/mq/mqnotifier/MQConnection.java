@@ -25,11 +25,12 @@ package com.sonymobile.jenkins.plugins.mq.mqnotifier;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AlreadyClosedException;
-import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.BlockedListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.transports.MessageTransport;
 import com.squareup.tape.QueueFile;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
@@ -37,46 +38,123 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Creates an MQ connection.
+ * <p>
+ * The connection configured globally is the default instance. Each additional {@link Destination} has its
+ * own instance with its own connection, message queue files and dispatchers, and every message put in the
+ * queue of the default instance is encoded once and appended as is to the queues of all destinations.
+ * Each destination spreads its messages over the configured number of partitions by partition key, each
+ * partition with its own queue file, dispatcher thread and sender of the {@link MessageTransport} of the
+ * destination, which for AMQP is a channel on the shared connection. A new number of partitions is only
+ * used once all queues of the destination are empty, so that the messages of a key are never in two queues,
+ * and it is kept in a file next to the queues for the messages that are left in them at a restart.
  *
  * @author Örjan Percy &lt;orjan.percy@sonymobile.com&gt;
  */
 public final class MQConnection implements ShutdownListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(MQConnection.class);
     private static final int HEARTBEAT_INTERVAL = 30;
-    private static final int CONNECTION_WAIT = 10000;
+    private static final long IDLE_WAIT = 1000;
+    private static final long SHUTDOWN_GRACE = 1000;
 
     private String userName;
     private Secret userPassword;
     private String serverUri;
     private String virtualHost;
+    /* The exchange of all messages to this destination, the exchange of each message is used if null. */
+    private String exchangeName;
+    /* Id of the transport that delivers the messages, AMQP if null. */
+    private volatile String transportId;
     private Connection connection = null;
-    private Channel channel = null;
 
-    private static Thread messageQueueThread;
+    /* Name of the destination, null for the default instance. */
+    private final String name;
+    /* Name of the message queue file of the first partition in the Jenkins root. */
+    private final String journalName;
+    /* Directory of the message queue files, the Jenkins root if null. */
+    private final File root;
+    /* Transport that delivers the messages regardless of the selected one, for tests. */
+    private final MessageTransport fixedTransport;
+    private final ConnectionFactory factory = new ConnectionFactory();
 
-    private static QueueFile queueFile;
+    /* The partitions, only ever grows so that messages left in a partition are still sent. */
+    private volatile List<Partition> partitions = Collections.emptyList();
+    /* The number of partitions that messages are spread over, 0 until the first message. */
+    private volatile int partitionCount;
+    /* The configured number of partitions while the queues are drained for it, 0 if none. */
+    private volatile int pendingCount;
+    /* Held to put a message in a partition, and exclusively to change the number of partitions. */
+    private final ReadWriteLock partitionLock = new ReentrantReadWriteLock();
+
+    /* Set on shutdown, the dispatcher then only runs until the journal is empty or the deadline passes. */
+    private volatile boolean stopping;
+    private volatile long stopDeadline;
+    /* Set when the journal is closed, later messages are dropped. */
+    private volatile boolean closed;
+    /* Set while the broker has blocked the connection, dispatch is paused. */
+    private volatile boolean blocked;
+    /* The rate limits for the current routes, shared by the dispatchers of all partitions. */
+    private PublishLimiter limiter;
+
+    /* The additional destinations, replaced as a whole when they are reconfigured. */
+    private static volatile List<MQConnection> destinations = Collections.emptyList();
+
+    /* The configuration, looked up by the first dispatcher unless given. */
+    private volatile MQNotifierConfig config;
 
-    private static MQNotifierConfig config;
     /**
-     * Lazy-loaded singleton using the initialization-on-demand holder pattern.
+     * Constructor.
+     *
+     * @param name        the name of the destination, null for the default instance.
+     * @param journalName the name of the message queue file.
+     */
+    private MQConnection(String name, String journalName) {
+        this(name, journalName, null, null, null);
+    }
+
+    /**
+     * Constructor for tests.
+     *
+     * @param name        the name of the destination, null for the default instance.
+     * @param journalName the name of the message queue file.
+     * @param root        the directory of the message queue files, the Jenkins root if null.
+     * @param config      the configuration, looked up when needed if null.
+     * @param transport   the transport that delivers the messages, the selected one if null.
      */
-    private MQConnection() { }
+    MQConnection(String name, String journalName, File root, MQNotifierConfig config, MessageTransport transport) {
+        this.name = name;
+        this.journalName = journalName;
+        this.root = root;
+        this.config = config;
+        this.fixedTransport = transport;
+    }
 
     /**
+     * Lazy-loaded singleton using the initialization-on-demand holder pattern.
      * Is only executed on {@link #getInstance()} invocation.
      */
     private static class LazyRabbit {
-        private static final MQConnection INSTANCE = new MQConnection();
-        private static final ConnectionFactory CF = new ConnectionFactory();
+        private static final MQConnection INSTANCE = new MQConnection(null, "build.db");
     }
 
     /**
@@ -88,6 +166,62 @@ public final class MQConnection implements ShutdownListener {
         return LazyRabbit.INSTANCE;
     }
 
+    /**
+     * Configures the additional destinations.
+     * Destinations that are kept keep their queue, removed destinations are shut down and their queue file
+     * is left for when they are added again.
+     *
+     * @param configured the destinations, may be null.
+     */
+    public static synchronized void configureDestinations(List<Destination> configured) {
+        Map<String, MQConnection> previous = new HashMap<String, MQConnection>();
+        for (MQConnection destination : destinations) {
+            previous.put(destination.name, destination);
+        }
+        List<MQConnection> updated = new ArrayList<MQConnection>();
+        Set<String> names = new HashSet<String>();
+        if (configured != null) {
+            for (Destination destination : configured) {
+                if (destination.getName().isEmpty() || !names.add(destination.getName())) {
+                    LOGGER.warn("Ignoring destination without a unique name: {}", destination.getName());
+                    continue;
+                }
+                MQConnection connection = previous.remove(destination.getName());
+                if (connection == null) {
+                    connection = new MQConnection(destination.getName(), journalNameOf(destination.getName()));
+                }
+                connection.initialize(destination.getUserName(), destination.getUserPassword(),
+                        destination.getServerUri(), destination.getVirtualHost());
+                connection.exchangeName = destination.getExchangeName();
+                connection.setTransport(destination.getTransport());
+                updated.add(connection);
+            }
+        }
+        destinations = Collections.unmodifiableList(updated);
+        for (MQConnection removed : previous.values()) {
+            removed.shutdown(0);
+        }
+    }
+
+    /**
+     * Replaces the additional destinations, for tests.
+     *
+     * @param connections the destinations.
+     */
+    static synchronized void setDestinations(List<MQConnection> connections) {
+        destinations = Collections.unmodifiableList(new ArrayList<MQConnection>(connections));
+    }
+
+    /**
+     * Gets the name of the message queue file of a destination.
+     *
+     * @param destination the name of the destination.
+     * @return the file name.
+     */
+    private static String journalNameOf(String destination) {
+        return "mq-notifier-" + destination.replaceAll("[^A-Za-z0-9_.-]", "_") + ".db";
+    }
+
     /**
      * Stores data for a RabbitMQ message.
      */
@@ -150,7 +284,8 @@ public final class MQConnection implements ShutdownListener {
     }
 
     /**
-     * Puts a message in the message queue.
+     * Puts a message in the message queue of the first partition.
+     * A message for the default instance is also put in the queues of all additional destinations.
      *
      * @param exchange the exchange to publish the message to
      * @param routingKey the routing key
@@ -158,83 +293,376 @@ public final class MQConnection implements ShutdownListener {
      * @param body the message body
      */
     public void addMessageToQueue(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
-        if (queueFile == null) {
-            Jenkins jenkins = Jenkins.get();
-            String filePath = new String(jenkins.getRootDir().toString() + "/build.db");
+        addMessageToQueue(exchange, routingKey, props, body, null);
+    }
 
-            File file = new File(filePath);
+    /**
+     * Puts a message in the message queue of the partition of its key.
+     * Messages with the same key are sent in order, messages with different keys may be sent in parallel.
+     * A message for the default instance is also put in the queues of all additional destinations.
+     *
+     * @param exchange the exchange to publish the message to
+     * @param routingKey the routing key
+     * @param props other properties for the message - routing headers etc
+     * @param body the message body
+     * @param partitionKey the partition key, usually the full name of the job, or null for the first partition
+     */
+    public void addMessageToQueue(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+                                  String partitionKey) {
+        byte[] data = JournalRecord.of(exchange, routingKey, props, body, partitionKey).encode();
+        enqueue(data, partitionKey);
+        if (name == null) {
+            for (MQConnection destination : destinations) {
+                destination.enqueue(data, partitionKey);
+            }
+        }
+    }
 
-            try {
-                queueFile = new QueueFile(file);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Puts a replayed message in the message queue of the partition of its key, in this destination only.
+     *
+     * @param record the message
+     */
+    void requeue(JournalRecord record) {
+        enqueue(record.encode(), record.getPartitionKey());
+    }
+
+    /**
+     * Appends an encoded message to the message queue of its partition in this destination.
+     *
+     * @param data         the encoded message
+     * @param partitionKey the partition key, may be null
+     */
+    private void enqueue(byte[] data, String partitionKey) {
+        if (closed) {
+            LOGGER.warn("Message dropped, the MQ Notifier is stopped.");
+            return;
+        }
+        int configured = getConfiguredCount();
+        if (configured != partitionCount && configured != pendingCount) {
+            resize(configured);
+        }
+        partitionLock.readLock().lock();
+        try {
+            int index = 0;
+            if (partitionKey != null) {
+                index = (partitionKey.hashCode() & Integer.MAX_VALUE) % partitionCount;
             }
+            partitions.get(index).enqueue(data);
+        } finally {
+            partitionLock.readLock().unlock();
         }
+    }
 
-        if (messageQueueThread == null || !messageQueueThread.isAlive()) {
-            messageQueueThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    sendMessages();
-                }
-            });
-            messageQueueThread.start();
-            LOGGER.info("messageQueueThread recreated since it was null or not alive.");
+    /**
+     * Gets the configured number of partitions.
+     *
+     * @return the number of partitions, at least 1.
+     */
+    private int getConfiguredCount() {
+        MQNotifierConfig current = config;
+        if (current == null) {
+            current = MQNotifierConfig.getInstance();
         }
+        return current != null ? Math.max(1, current.getPublishPartitions()) : 1;
+    }
 
-        int count = 0;
-        while (true) {
-            try {
-                queueFile.add(body);
-                break;
-            } catch (IOException e) {
-                LOGGER.error("add message to queue error");
-                LOGGER.error(e.getMessage());
-                count += 1;
+    /**
+     * Changes the number of partitions that messages are spread over, once all queues are empty.
+     * The first time, the queues are opened and messages left in them are spread as before the restart.
+     * Until the queues are empty the configured number is kept as pending, and checked again only when
+     * a dispatcher has emptied its queue.
+     *
+     * @param configured the configured number of partitions.
+     */
+    private void resize(int configured) {
+        partitionLock.writeLock().lock();
+        try {
+            int count = partitionCount;
+            if (count == 0) {
+                addPartitions(1);
+                count = configured;
+                if (getQueueSize() > 0) {
+                    count = loadPartitionCount(partitions.size());
+                }
+            } else if (count != configured && getQueueSize() == 0) {
+                LOGGER.info("Spreading the messages over {} partitions instead of {}", configured, count);
+                count = configured;
+            }
+            if (count != partitionCount) {
+                addPartitions(count);
+                partitionCount = count;
+                savePartitionCount(count);
             }
-            if (count == 5) {
-                LOGGER.error("fail to add item to queue after 5 times to try");
-                break;
+            if (count != configured && pendingCount != configured) {
+                LOGGER.info("Spreading the messages over {} partitions once the queues are empty", configured);
             }
+            pendingCount = count != configured ? configured : 0;
+        } finally {
+            partitionLock.writeLock().unlock();
         }
     }
 
     /**
-     * Sends messages from the message queue.
+     * Called by a dispatcher that has emptied its queue, applies a pending number of partitions if all
+     * queues are empty.
      */
-    private void sendMessages() {
-        if (config == null) {
-            config = MQNotifierConfig.getInstance();
+    private void drained() {
+        if (pendingCount != 0) {
+            resize(getConfiguredCount());
         }
-        AMQP.BasicProperties.Builder bob = null;
-        if (config != null && config.isNotifierEnabled()) {
-            bob = new AMQP.BasicProperties.Builder();
-            int dm = 1;
-            if (config.getPersistentDelivery()) {
-                dm = 2;
+    }
+
+    /**
+     * Gets the file that keeps the number of partitions, next to the message queue files.
+     *
+     * @return the file.
+     */
+    private File getPartitionCountFile() {
+        return new File(getRootDir(), StringUtils.removeEnd(journalName, ".db") + ".partitions");
+    }
+
+    /**
+     * Reads the number of partitions that the messages in the queues were spread over.
+     *
+     * @param found the number of queue files, used if the number was not kept.
+     * @return the number of partitions.
+     */
+    private int loadPartitionCount(int found) {
+        File file = getPartitionCountFile();
+        try {
+            if (file.exists()) {
+                return Math.max(1, Integer.parseInt(
+                        new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim()));
             }
-            bob.appId(config.getAppId());
-            bob.deliveryMode(dm);
-            bob.contentType(Util.CONTENT_TYPE);
-            bob.timestamp(Calendar.getInstance().getTime());
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read the number of partitions from {}", file, e);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Cannot read the number of partitions from {}", file, e);
         }
-        while (true) {
-            try {
-                byte[] data = queueFile.peek();
-                boolean is_ok = false;
-                if (data != null) {
-                    LOGGER.info("send message");
-                    is_ok =getInstance().send(config.getExchangeName(), config.getRoutingKey(),
-                            bob.build() , data);
-                }
-                if (is_ok) {
-                    LOGGER.info("remove message");
-                    queueFile.remove();
+        return found;
+    }
+
+    /**
+     * Keeps the number of partitions that messages are spread over, for the messages left at a restart.
+     *
+     * @param count the number of partitions.
+     */
+    private void savePartitionCount(int count) {
+        File file = getPartitionCountFile();
+        try {
+            Files.write(file.toPath(), String.valueOf(count).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot keep the number of partitions in {}", file, e);
+        }
+    }
+
+    /**
+     * Adds partitions up to a count. The first time, partitions beyond the count that have messages left
+     * from an earlier configuration are added as well and start sending them.
+     *
+     * @param count the number of partitions.
+     * @return the partitions.
+     */
+    private synchronized List<Partition> addPartitions(int count) {
+        List<Partition> all = new ArrayList<Partition>(partitions);
+        boolean first = all.isEmpty();
+        while (all.size() < count) {
+            all.add(new Partition(all.size()));
+        }
+        if (first) {
+            File dir = getRootDir();
+            while (new File(dir, journalNameOf(all.size())).exists()) {
+                all.add(new Partition(all.size()));
+            }
+            for (Partition partition : all) {
+                if (new File(dir, partition.journalName).exists()) {
+                    partition.start();
                 }
-            } catch (IOException ie) {
-                LOGGER.info("get message from account an error: ", ie);
             }
         }
+        partitions = Collections.unmodifiableList(all);
+        return partitions;
+    }
+
+    /**
+     * Gets the directory of the message queue files.
+     *
+     * @return the directory.
+     */
+    private File getRootDir() {
+        if (root != null) {
+            return root;
+        }
+        return Jenkins.get().getRootDir();
+    }
+
+    /**
+     * Gets the name of the message queue file of a partition.
+     *
+     * @param index the partition number.
+     * @return the file name.
+     */
+    private String journalNameOf(int index) {
+        if (index == 0) {
+            return journalName;
+        }
+        return StringUtils.removeEnd(journalName, ".db") + "." + index + ".db";
+    }
+
+    /**
+     * Gets the rate limiter, created again when the routes have been reconfigured.
+     *
+     * @return the rate limiter.
+     */
+    private synchronized PublishLimiter limiter() {
+        RouteTable table = config.getRouteTable();
+        if (limiter == null || !limiter.isFor(table)) {
+            limiter = new PublishLimiter(config, table);
+        }
+        return limiter;
+    }
+
+    /**
+     * Gets the number of messages waiting in the queue.
+     *
+     * @return the number of messages in all partitions.
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.getQueueSize();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of messages waiting in the fullest queue of the default instance and all destinations.
+     *
+     * @return the number of messages.
+     */
+    public static int getLargestQueueSize() {
+        int size = getInstance().getQueueSize();
+        for (MQConnection destination : destinations) {
+            size = Math.max(size, destination.getQueueSize());
+        }
+        return size;
+    }
+
+    /**
+     * Stops sending messages.
+     * Messages in the queue are sent until it is empty or the timeout has passed, then the senders, the
+     * connection and the queue file are closed. What is left in the queue is sent after the next start.
+     * Stopping the default instance stops all destinations, which drain their queues in parallel.
+     *
+     * @param timeout the time in milliseconds to wait for the queues to drain.
+     */
+    public void shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<MQConnection> all = new ArrayList<MQConnection>();
+        all.add(this);
+        if (name == null) {
+            all.addAll(destinations);
+        }
+        for (MQConnection destination : all) {
+            destination.stopDeadline = deadline;
+            destination.stopping = true;
+            for (Partition partition : destination.partitions) {
+                partition.wake();
+            }
+        }
+        for (MQConnection destination : all) {
+            destination.close();
+        }
+    }
+
+    /**
+     * Waits for the dispatchers to stop, then closes the senders, the queue files and the connection.
+     * Messages put in the queue from now on are dropped, so that a closed queue file is not opened again.
+     */
+    private void close() {
+        closed = true;
+        for (Partition partition : partitions) {
+            partition.close();
+        }
+        try {
+            if (connection != null && connection.isOpen()) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close the MQ connection", e);
+        } catch (AlreadyClosedException e) {
+            LOGGER.debug("MQ connection already closed", e);
+        } finally {
+            connection = null;
+        }
+    }
+
+    /**
+     * Gets the exchange to publish a queued message to.
+     *
+     * @param record the queued message
+     * @return the exchange of the destination, the exchange of the message, or the configured exchange for
+     * messages queued without one
+     */
+    private String exchangeOf(JournalRecord record) {
+        if (exchangeName != null) {
+            return exchangeName;
+        }
+        if (record.getExchange() != null) {
+            return record.getExchange();
+        }
+        return config.getExchangeName();
+    }
+
+    /**
+     * Gets the routing key to publish a queued message with.
+     *
+     * @param record the queued message
+     * @return the routing key of the message, or the configured routing key for messages queued without one
+     */
+    private String routingKeyOf(JournalRecord record) {
+        if (record.getRoutingKey() != null) {
+            return record.getRoutingKey();
+        }
+        return config.getRoutingKey();
+    }
+
+    /**
+     * Builds the properties to publish a queued message with.
+     *
+     * With latency headers, the times the message was queued and sent are added to its headers.
+     *
+     * @param record the queued message
+     * @param sentAt the time the message is sent
+     * @return the properties
+     */
+    private AMQP.BasicProperties propertiesOf(JournalRecord record, long sentAt) {
+        int dm = 1;
+        if (config.getPersistentDelivery()) {
+            dm = 2;
+        }
+        AMQP.BasicProperties props = record.toProperties(config.getAppId(), dm);
+        if (config.isLatencyHeaders()) {
+            Map<String, Object> headers = new HashMap<String, Object>(record.getHeaders());
+            headers.put(Util.HEADER_JOURNALED_AT, record.getTimestamp());
+            headers.put(Util.HEADER_SENT_AT, sentAt);
+            props = props.builder().headers(headers).build();
+        }
+        return props;
+    }
+
+    /**
+     * Selects the transport that delivers the messages of this destination.
+     * The dispatchers switch to it with their next batch.
+     *
+     * @param id the id of the transport, or null for AMQP.
+     */
+    public void setTransport(String id) {
+        transportId = id;
+        for (Partition partition : partitions) {
+            partition.wake();
+        }
     }
 
     /**
@@ -243,15 +671,15 @@ public final class MQConnection implements ShutdownListener {
      * @return the connection factory
      */
     private ConnectionFactory getConnectionFactory() {
-        if (LazyRabbit.CF != null) {
+        if (factory != null) {
             try {
                 // Try to recover the topology along with the connection.
-                LazyRabbit.CF.setAutomaticRecoveryEnabled(true);
+                factory.setAutomaticRecoveryEnabled(true);
                 // set requested heartbeat interval, in seconds
-                LazyRabbit.CF.setRequestedHeartbeat(HEARTBEAT_INTERVAL);
-                LazyRabbit.CF.setUri(serverUri);
+                factory.setRequestedHeartbeat(HEARTBEAT_INTERVAL);
+                factory.setUri(serverUri);
                 if (StringUtils.isNotEmpty(virtualHost)) {
-                    LazyRabbit.CF.setVirtualHost(virtualHost);
+                    factory.setVirtualHost(virtualHost);
                 }
             } catch (KeyManagementException e) {
                 LOGGER.error("KeyManagementException: ", e);
@@ -261,13 +689,13 @@ public final class MQConnection implements ShutdownListener {
                 LOGGER.error("URISyntaxException: ", e);
             }
             if (StringUtils.isNotEmpty(userName)) {
-                LazyRabbit.CF.setUsername(userName);
+                factory.setUsername(userName);
                 if (StringUtils.isNotEmpty(Secret.toString(userPassword))) {
-                    LazyRabbit.CF.setPassword(Secret.toString(userPassword));
+                    factory.setPassword(Secret.toString(userPassword));
                 }
             }
         }
-        return LazyRabbit.CF;
+        return factory;
     }
 
     /**
@@ -275,11 +703,27 @@ public final class MQConnection implements ShutdownListener {
      *
      * @return the connection.
      */
-    public Connection getConnection() {
+    public synchronized Connection getConnection() {
         if (connection == null) {
             try {
                 connection = getConnectionFactory().newConnection();
                 connection.addShutdownListener(this);
+                connection.addBlockedListener(new BlockedListener() {
+                    @Override
+                    public void handleBlocked(String reason) {
+                        LOGGER.warn("The broker blocked the MQ connection, sending is paused: {}", reason);
+                        blocked = true;
+                    }
+
+                    @Override
+                    public void handleUnblocked() {
+                        LOGGER.info("The broker unblocked the MQ connection");
+                        blocked = false;
+                        for (Partition partition : partitions) {
+                            partition.wake();
+                        }
+                    }
+                });
             } catch (IOException e) {
                 LOGGER.warn("Connection refused", e);
             }
@@ -301,61 +745,560 @@ public final class MQConnection implements ShutdownListener {
         serverUri = uri;
         virtualHost = vh;
         connection = null;
-        channel = null;
+        for (Partition partition : partitions) {
+            partition.reset();
+        }
+        blocked = false;
     }
 
     /**
-     * Sends a message.
-     * Keeps trying to get a connection indefinitely.
-     *
-     * @param exchange the exchange to publish the message to
-     * @param routingKey the routing key
-     * @param props other properties for the message - routing headers etc
-     * @param body the message body
+     * One message queue of a destination with its own dispatcher and sender.
+     * Messages with the same partition key always go to the same partition, so they are sent in order.
      */
-    private boolean send(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
-        if (exchange == null) {
-            LOGGER.error("Invalid configuration, exchange must not be null.");
-            return false;
+    private final class Partition implements MessageTransport.Context {
+        private final int index;
+        /* Name of the message queue file in the Jenkins root. */
+        private final String journalName;
+        private Thread messageQueueThread;
+        private QueueFile queueFile;
+        /* The sender of the selected transport, only replaced by the dispatcher. */
+        private volatile MessageTransport.Sender sender;
+        private MessageTransport transport;
+        /* Wakes up the dispatcher when messages are added or on shutdown. */
+        private final Object lock = new Object();
+        /* Wakes up a paused dispatcher on unblock, reconfiguration or shutdown, but not for new messages. */
+        private final Object pauseLock = new Object();
+        /* Counts the wake ups of paused dispatchers, guarded by pauseLock. */
+        private long wakeups;
+        /* Sizes the batches of the dispatcher. */
+        private final BatchController batches = new BatchController();
+
+        /**
+         * Constructor.
+         *
+         * @param index the partition number.
+         */
+        private Partition(int index) {
+            this.index = index;
+            this.journalName = journalNameOf(index);
         }
 
-        while (true) {
-            try {
-                if (channel == null || !channel.isOpen()) {
-                    connection = getConnection();
-                    if (connection != null) {
-                        channel = connection.createChannel();
-                        if (!getConnection().getAddress().isLoopbackAddress()) {
-                            channel.exchangeDeclarePassive(exchange);
+        /**
+         * Opens the queue file and starts the dispatcher, unless they are open and running.
+         *
+         * @return false if the queue file is not available or already closed.
+         */
+        private synchronized boolean start() {
+            if (closed) {
+                return false;
+            }
+            if (queueFile == null) {
+                String filePath = new String(getRootDir().toString() + "/" + journalName);
+
+                File file = new File(filePath);
+
+                try {
+                    queueFile = JournalRecovery.open(file);
+                } catch (IOException e) {
+                    LOGGER.error("Cannot open or recover the message queue " + filePath, e);
+                }
+                if (queueFile == null) {
+                    // opening is tried again with the next message
+                    return false;
+                }
+            }
+
+            if (!stopping && (messageQueueThread == null || !messageQueueThread.isAlive())) {
+                messageQueueThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendMessages();
+                    }
+                }, threadName());
+                messageQueueThread.setDaemon(true);
+                messageQueueThread.start();
+                LOGGER.info("messageQueueThread recreated since it was null or not alive.");
+            }
+            return true;
+        }
+
+        /**
+         * Gets the name of the dispatcher thread.
+         *
+         * @return the thread name.
+         */
+        private String threadName() {
+            String threadName = "MQ Notifier dispatcher";
+            if (name != null) {
+                threadName += " for " + name;
+            }
+            if (index > 0) {
+                threadName += " #" + index;
+            }
+            return threadName;
+        }
+
+        /**
+         * Appends an encoded message to the message queue of this partition.
+         * The queue file cannot be closed while the message is added.
+         *
+         * @param data the encoded message
+         */
+        private void enqueue(byte[] data) {
+            synchronized (this) {
+                if (!start()) {
+                    if (closed) {
+                        LOGGER.warn("Message dropped, the MQ Notifier is stopped.");
+                    } else {
+                        LOGGER.error("Message dropped, the message queue is not available.");
+                    }
+                    return;
+                }
+
+                int count = 0;
+                while (true) {
+                    try {
+                        queueFile.add(data);
+                        break;
+                    } catch (IOException e) {
+                        LOGGER.error("add message to queue error");
+                        LOGGER.error(e.getMessage());
+                        count += 1;
+                    }
+                    if (count == 5) {
+                        LOGGER.error("fail to add item to queue after 5 times to try");
+                        break;
+                    }
+                }
+            }
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        /**
+         * Sends messages from the message queue.
+         * Messages are published in batches sized by the {@link BatchController}, and removed from the queue only
+         * when the transport has accepted the whole batch, so after a restart delivery continues with the first
+         * unconfirmed message. Expired messages are removed without being sent, those at the head of the queue
+         * in bulk, so that after an outage only the messages that are still useful are sent.
+         */
+        private void sendMessages() {
+            if (config == null) {
+                config = MQNotifierConfig.getInstance();
+            }
+            while (!stopping || (!queueFile.isEmpty() && System.currentTimeMillis() < stopDeadline)) {
+                try {
+                    if (blocked) {
+                        pause(IDLE_WAIT);
+                        continue;
+                    }
+                    int backlog = queueFile.size();
+                    if (backlog == 0) {
+                        drained();
+                        waitForMessages();
+                        continue;
+                    }
+                    batches.configure(config.getPublishBatchMax(), config.getPublishLatencyTarget(),
+                            config.getPublishThroughputTarget());
+                    long linger = batches.getLinger(backlog);
+                    if (linger > 0 && !stopping) {
+                        linger(linger, batches.getBatchSize());
+                        backlog = queueFile.size();
+                    }
+                    if (dropExpired() > 0) {
+                        continue;
+                    }
+                    List<JournalRecord> records = new ArrayList<JournalRecord>();
+                    List<byte[]> stored = new ArrayList<byte[]>();
+                    long wait = 0;
+                    // the sent and the expired messages, all removed from the queue when the batch is sent
+                    int consumed = 0;
+                    long now = System.currentTimeMillis();
+                    for (byte[] data : readBatch(batches.getBatchSize())) {
+                        JournalRecord record;
+                        try {
+                            record = JournalRecord.decode(data);
+                        } catch (IOException e) {
+                            if (consumed == 0) {
+                                LOGGER.error("Dropping a damaged message from the queue", e);
+                                queueFile.remove();
+                            }
+                            // a damaged message later in the batch is dropped when it comes first
+                            break;
+                        }
+                        if (record.getExpires() > 0 && record.getExpires() <= now) {
+                            consumed++;
+                            continue;
+                        }
+                        wait = limiter().acquire(routingKeyOf(record), record.getBody().length);
+                        if (wait > 0) {
+                            break;
                         }
+                        records.add(record);
+                        stored.add(data);
+                        consumed++;
+                    }
+                    if (records.isEmpty()) {
+                        remove(consumed);
+                        if (wait > 0) {
+                            pause(wait);
+                        }
+                        continue;
+                    }
+                    LOGGER.debug("send {} messages", records.size());
+                    long started = System.nanoTime();
+                    long sentAt = System.currentTimeMillis();
+                    if (send(records, sentAt)) {
+                        batches.confirmed(records.size(), System.nanoTime() - started, backlog);
+                        DeliveryLatency.getInstance().confirmed(records, sentAt, System.currentTimeMillis());
+                        LOGGER.debug("remove {} messages", consumed);
+                        remove(consumed);
+                        archive(records, stored);
+                    } else {
+                        batches.failed();
+                        // the messages stay first in the queue, new messages do not make them any more sendable
+                        pause(IDLE_WAIT);
                     }
+                } catch (IOException ie) {
+                    LOGGER.info("get message from account an error: ", ie);
                 }
+            }
+            LOGGER.info("MQ Notifier dispatcher stopped");
+        }
+
+        /**
+         * Keeps the delivered messages of the default instance for replay, when a retention window is configured.
+         * Replayed messages are not kept again.
+         *
+         * @param records the delivered messages
+         * @param stored  the messages as stored in the queue
+         */
+        private void archive(List<JournalRecord> records, List<byte[]> stored) {
+            long retention = config.getRetentionWindow();
+            if (retention <= 0 || name != null) {
+                return;
+            }
+            List<byte[]> kept = new ArrayList<byte[]>(records.size());
+            List<String> jobs = new ArrayList<String>(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                if (!records.get(i).getHeaders().containsKey(Util.HEADER_REPLAY_SEQUENCE)) {
+                    kept.add(stored.get(i));
+                    jobs.add(records.get(i).getPartitionKey());
+                }
+            }
+            if (kept.isEmpty()) {
+                return;
+            }
+            try {
+                DeliveryArchive.getInstance().append(kept, jobs, System.currentTimeMillis(), retention,
+                        config.getRetentionMaxSize());
             } catch (IOException e) {
-                LOGGER.error("Cannot create channel", e);
-                channel = null; // reset
-            } catch (ShutdownSignalException e) {
-                LOGGER.error("Cannot create channel", e);
-                channel = null; // reset
-                return false;
+                LOGGER.warn("Cannot archive delivered messages", e);
+            }
+        }
+
+        /**
+         * Removes the expired messages at the head of the queue. Only the start of each message is read.
+         *
+         * @return the number of removed messages.
+         * @throws IOException if the queue cannot be read.
+         */
+        private int dropExpired() throws IOException {
+            final long now = System.currentTimeMillis();
+            final int[] expired = new int[1];
+            try {
+                queueFile.forEach(new QueueFile.ElementReader() {
+                    @Override
+                    public void read(InputStream in, int length) throws IOException {
+                        byte[] start = new byte[Math.min(length, JournalRecord.EXPIRES_END)];
+                        readFully(in, start);
+                        long expires = JournalRecord.expiresAt(start);
+                        if (expires == 0 || expires > now) {
+                            throw EndOfRead.INSTANCE;
+                        }
+                        expired[0]++;
+                    }
+                });
+            } catch (EndOfRead e) {
+                LOGGER.trace("{} expired messages found", expired[0]);
+            }
+            if (expired[0] > 0) {
+                LOGGER.info("Dropping {} expired messages from the queue", expired[0]);
+                remove(expired[0]);
+            }
+            return expired[0];
+        }
+
+        /**
+         * Removes messages from the head of the queue.
+         *
+         * @param count the number of messages.
+         * @throws IOException if the queue cannot be written.
+         */
+        private void remove(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                queueFile.remove();
             }
-            if (channel != null) {
+        }
+
+        /**
+         * Reads messages from the head of the queue without removing them.
+         *
+         * @param count the maximum number of messages.
+         * @return the messages, oldest first.
+         * @throws IOException if the queue cannot be read.
+         */
+        private List<byte[]> readBatch(final int count) throws IOException {
+            final List<byte[]> batch = new ArrayList<byte[]>(count);
+            if (count <= 1) {
+                byte[] data = queueFile.peek();
+                if (data != null) {
+                    batch.add(data);
+                }
+                return batch;
+            }
+            try {
+                queueFile.forEach(new QueueFile.ElementReader() {
+                    @Override
+                    public void read(InputStream in, int length) throws IOException {
+                        byte[] data = new byte[length];
+                        readFully(in, data);
+                        batch.add(data);
+                        if (batch.size() >= count) {
+                            // forEach cannot stop otherwise, do not read the rest of the queue
+                            throw EndOfRead.INSTANCE;
+                        }
+                    }
+                });
+            } catch (EndOfRead e) {
+                LOGGER.trace("Batch of {} read", count);
+            }
+            return batch;
+        }
+
+        /**
+         * Waits until the queue holds a full batch or the linger time has passed.
+         *
+         * @param millis    the linger time in milliseconds.
+         * @param batchSize the batch size.
+         */
+        private void linger(long millis, int batchSize) {
+            long end = System.currentTimeMillis() + millis;
+            synchronized (lock) {
+                long left = millis;
+                while (left > 0 && !stopping && queueFile.size() < batchSize) {
+                    try {
+                        lock.wait(left);
+                    } catch (InterruptedException e) {
+                        LOGGER.debug("Dispatcher interrupted", e);
+                        return;
+                    }
+                    left = end - System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Waits a while for new messages or shutdown.
+         */
+        private void waitForMessages() {
+            synchronized (lock) {
                 try {
-                    channel.basicPublish(exchange, routingKey, props, body);
-                } catch (IOException e) {
-                    LOGGER.error("Cannot publish message", e);
-                    return false;
-                } catch (AlreadyClosedException e) {
-                    LOGGER.error("Connection is already closed", e);
-                    return false;
+                    if (!stopping) {
+                        lock.wait(IDLE_WAIT);
+                    }
+                } catch (InterruptedException e) {
+                    LOGGER.debug("Dispatcher interrupted", e);
+                }
+            }
+        }
+
+        /**
+         * Waits for the rate limits or the broker to allow the next message, or before retrying a failed batch,
+         * also during shutdown. The wait ends early when the broker unblocks the connection, the transport is
+         * changed or on shutdown, but not when messages are added.
+         *
+         * @param millis the time to wait in milliseconds.
+         */
+        private void pause(long millis) {
+            long end = System.currentTimeMillis() + millis;
+            if (stopping) {
+                end = Math.min(end, stopDeadline);
+            }
+            synchronized (pauseLock) {
+                long seen = wakeups;
+                long left = end - System.currentTimeMillis();
+                while (left > 0 && wakeups == seen) {
+                    try {
+                        pauseLock.wait(left);
+                    } catch (InterruptedException e) {
+                        LOGGER.debug("Dispatcher interrupted", e);
+                        return;
+                    }
+                    left = end - System.currentTimeMillis();
                 }
-                return true;
-            } else {
+            }
+        }
+
+        /**
+         * Sends a batch of queued messages and waits for the transport to accept all of them.
+         *
+         * @param records the queued messages
+         * @param sentAt  the time the messages are sent
+         * @return true if the transport accepted all messages
+         */
+        private boolean send(List<JournalRecord> records, long sentAt) {
+            List<MessageTransport.Message> messages = new ArrayList<MessageTransport.Message>(records.size());
+            for (JournalRecord record : records) {
+                messages.add(new MessageTransport.Message(exchangeOf(record), routingKeyOf(record),
+                        propertiesOf(record, sentAt), record.getBody()));
+            }
+            return sender().send(messages);
+        }
+
+        /**
+         * Gets the sender of the selected transport, replacing the sender of the previous one.
+         *
+         * @return the sender.
+         */
+        private MessageTransport.Sender sender() {
+            MessageTransport selected = fixedTransport;
+            if (selected == null) {
+                selected = MessageTransport.forId(transportId);
+            }
+            if (sender == null || transport != selected) {
+                if (sender != null) {
+                    sender.close();
+                }
+                transport = selected;
+                sender = selected.createSender(this);
+            }
+            return sender;
+        }
+
+        /**
+         * Drops the channel of a lost or reconfigured connection.
+         */
+        private void reset() {
+            MessageTransport.Sender current = sender;
+            if (current != null) {
+                current.reset();
+            }
+        }
+
+        @Override
+        public String getDestinationName() {
+            return name;
+        }
+
+        @Override
+        public int getPartition() {
+            return index;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return MQConnection.this.getConnection();
+        }
+
+        @Override
+        public long getDeadline() {
+            return stopping ? stopDeadline : Long.MAX_VALUE;
+        }
+
+        /**
+         * Wakes up the dispatcher.
+         */
+        private void wake() {
+            synchronized (pauseLock) {
+                wakeups++;
+                pauseLock.notifyAll();
+            }
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        /**
+         * Gets the number of messages waiting in the queue.
+         *
+         * @return the number of messages, 0 if the queue is not open.
+         */
+        private int getQueueSize() {
+            QueueFile queue = queueFile;
+            return queue != null ? queue.size() : 0;
+        }
+
+        /**
+         * Waits for the dispatcher to stop, then closes the sender and the queue file.
+         * A dispatcher that does not stop keeps both, it may still be using them.
+         */
+        private void close() {
+            Thread thread = messageQueueThread;
+            if (thread != null) {
                 try {
-                    Thread.sleep(CONNECTION_WAIT);
-                } catch (InterruptedException ie) {
-                    LOGGER.error("Thread.sleep() was interrupted", ie);
+                    // the grace lets the message in flight be confirmed
+                    thread.join(Math.max(1, stopDeadline - System.currentTimeMillis()) + SHUTDOWN_GRACE);
+                    if (thread.isAlive()) {
+                        thread.interrupt();
+                        thread.join(SHUTDOWN_GRACE);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (thread.isAlive()) {
+                    LOGGER.warn("{} did not stop, its message queue is left open", thread.getName());
+                    return;
                 }
             }
+            if (sender != null) {
+                sender.close();
+                sender = null;
+                transport = null;
+            }
+            synchronized (this) {
+                if (queueFile != null) {
+                    try {
+                        LOGGER.info("{} messages left in {} for the next start", queueFile.size(), journalName);
+                        queueFile.close();
+                    } catch (IOException e) {
+                        LOGGER.warn("Cannot close the message queue", e);
+                    }
+                    queueFile = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the start of a message from the queue.
+     *
+     * @param in   the message.
+     * @param data the buffer to fill.
+     * @throws IOException if the message is shorter than the buffer.
+     */
+    private static void readFully(InputStream in, byte[] data) throws IOException {
+        int read = 0;
+        while (read < data.length) {
+            int n = in.read(data, read, data.length - read);
+            if (n < 0) {
+                throw new EOFException("Message ends early");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Ends reading the queue before its end.
+     */
+    private static final class EndOfRead extends IOException {
+        private static final long serialVersionUID = 1L;
+        private static final EndOfRead INSTANCE = new EndOfRead();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
         }
     }
 
@@ -368,16 +1311,16 @@ public final class MQConnection implements ShutdownListener {
                     if (connection != null && connection.isOpen()) {
                         connection.close();
                     }
-                    if (channel != null && channel.isOpen()) {
-                        channel.close();
-                    }
                 } catch (IOException e) {
                     LOGGER.error("IOException: ", e);
                 } catch (AlreadyClosedException e) {
                     LOGGER.error("AlreadyClosedException: ", e);
                 } finally {
-                    channel = null;
+                    for (Partition partition : partitions) {
+                        partition.reset();
+                    }
                     connection = null;
+                    blocked = false;
                 }
             }
         } else {
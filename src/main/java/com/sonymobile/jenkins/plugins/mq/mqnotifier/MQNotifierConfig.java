@@ -25,11 +25,13 @@ package com.sonymobile.jenkins.plugins.mq.mqnotifier;
 
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.PossibleAuthenticationFailureException;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.transports.MessageTransport;
 import hudson.Extension;
 import hudson.Plugin;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
@@ -44,6 +46,9 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Adds the MQ notifier plugin configuration to the system config page.
@@ -57,6 +62,29 @@ public final class MQNotifierConfig extends Plugin implements Describable<MQNoti
     private static final String SERVER_URI = "serverUri";
     private static final String USERNAME = "userName";
     private static final String PASSWORD = "userPassword";
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final int DEFAULT_LOG_CHUNK_SIZE = 64 * 1024;
+    private static final long DEFAULT_LOG_FLUSH_INTERVAL = 2000;
+    private static final long DEFAULT_LOG_BANDWIDTH = 1024 * 1024;
+    private static final long DEFAULT_STAGE_EVENT_DEBOUNCE = 500;
+    private static final int DEFAULT_STAGE_EVENT_LIMIT = 200;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+    private static final long DEFAULT_BACKFILL_RATE = 20;
+    private static final long DEFAULT_PUBLISH_BURST = 1000;
+    private static final int DEFAULT_PUBLISH_BATCH_MAX = 100;
+    private static final long DEFAULT_PUBLISH_LATENCY_TARGET = 100;
+    private static final int DEFAULT_PUBLISH_PARTITIONS = 1;
+    private static final long DEFAULT_ROLLUP_INTERVAL = 60000;
+    private static final int DEFAULT_ROLLUP_MAX_KEYS = 1000;
+    private static final long DEFAULT_TRANSPORT_FILE_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_NODE_EVENT_DEBOUNCE = 5000;
+    private static final int DEFAULT_NODE_EVENT_LIMIT = 50;
+    private static final long DEFAULT_QUEUE_SNAPSHOT_INTERVAL = 10000;
+    private static final int DEFAULT_QUEUE_SNAPSHOT_FULL_EVERY = 6;
+    private static final int DEFAULT_LIFECYCLE_MAX_ENTRIES = 10000;
+    private static final long DEFAULT_LIFECYCLE_EXPIRY = 24 * 60 * 60 * 1000;
+    private static final long DEFAULT_RETENTION_MAX_SIZE = 1024 * 1024 * 1024;
+    private static final long DEFAULT_REPLAY_RATE = 100;
 
     /* The status whether the plugin is enabled */
     private boolean enableNotifier;
@@ -80,6 +108,107 @@ public final class MQNotifierConfig extends Plugin implements Describable<MQNoti
     private boolean persistentDelivery;
     /* Application id that can be read by the consumer (optional). */
     private String appId;
+    /* Messages larger than this, in bytes, have their pipeline stages sent in separate chunk messages. */
+    private int maxMessageSize;
+    /* Stream the console logs of running builds. */
+    private boolean logStreaming;
+    /* Routing key of console log chunks, the global routing key is used if empty. */
+    private String logRoutingKey;
+    /* Maximum size in bytes of a console log chunk. */
+    private int logChunkSize;
+    /* Maximum time in milliseconds that read log output waits before it is sent. */
+    private long logFlushInterval;
+    /* Maximum number of console log bytes read per second for all builds, 0 or less for no limit. */
+    private long logBandwidth;
+    /* Publish live stage events of pipeline builds. */
+    private boolean stageEvents;
+    /* Time in milliseconds that stage events are held, so that short stages are coalesced. */
+    private long stageEventDebounce;
+    /* Maximum number of stage events per build. */
+    private int stageEventLimit;
+    /* Time in milliseconds each data provider may take per event, providers run serially if 0 or less. */
+    private long providerBudget;
+    /* A data provider is disabled when its p99 latency in milliseconds stays above this, off if 0 or less. */
+    private long providerP99Limit;
+    /* Time in milliseconds that queued messages may take to be delivered when Jenkins shuts down. */
+    private long shutdownTimeout;
+    /* Maximum number of past builds published per second by a backfill, 0 or less for no limit. */
+    private long backfillRate;
+    /* Maximum number of messages sent per second, 0 or less for no limit. */
+    private long publishRate;
+    /* Maximum number of message bytes sent per second, 0 or less for no limit. */
+    private long publishByteRate;
+    /* Time in milliseconds worth of messages that may be sent at once when the rate limits allow it. */
+    private long publishBurst;
+    /* Maximum number of queued messages published per publisher confirm, batching is off if 1 or less. */
+    private int publishBatchMax;
+    /* Confirm round trip in milliseconds per batch that the dispatcher keeps its batches below. */
+    private long publishLatencyTarget;
+    /* Messages per second above which batches stop growing, 0 or less for no target. */
+    private long publishThroughputTarget;
+    /* Number of message queues per destination, each sent by its own thread, messages of a job share one. */
+    private int publishPartitions;
+    /* Id of the transport that delivers the messages, AMQP if empty. */
+    private String transport;
+    /* Directory of the files written by the file transport, a directory in the Jenkins root if empty. */
+    private String transportDirectory;
+    /* Size in bytes of the files written by the file transport. */
+    private long transportFileSize;
+    /* Routes to publish every event on, each with its own routing key and delivered fields. */
+    private List<Route> routes;
+    /* Additional MQ servers that receive every message. */
+    private List<Destination> destinations;
+    /* Rules for the events to publish, one per line, all events if empty. */
+    private String eventIncludes;
+    /* Rules for the events not to publish, one per line. */
+    private String eventExcludes;
+    /* Time-to-live in milliseconds per event type, one EVENT=milliseconds per line. */
+    private String messageTtls;
+    /* Time in milliseconds that delivered messages are kept for replay, none are kept if 0 or less. */
+    private long retentionWindow;
+    /* Maximum size in bytes of the kept messages, the oldest are deleted first, no limit if 0 or less. */
+    private long retentionMaxSize;
+    /* Maximum number of messages per second of a replay, no limit if 0 or less. */
+    private long replayRate;
+    /* Publish state events of nodes. */
+    private boolean nodeEvents;
+    /* Time in milliseconds that node changes are collected, so that flapping nodes are coalesced. */
+    private long nodeEventDebounce;
+    /* Maximum number of node events per debounce time, more changes are published as one summary. */
+    private int nodeEventLimit;
+    /* Publish periodic snapshots of the build queue. */
+    private boolean queueSnapshots;
+    /* Time in milliseconds between queue snapshots. */
+    private long queueSnapshotInterval;
+    /* Every this many queue messages is a complete snapshot, the others are deltas, deltas are off if 1 or less. */
+    private int queueSnapshotFullEvery;
+    /* Publish an event when an item enters and when it leaves the build queue. */
+    private boolean queueEvents;
+    /* Join the queue data of a build into its completed event instead of publishing queue events. */
+    private boolean lifecycleEvents;
+    /* Maximum number of queue items remembered until their builds complete, no limit if 0 or less. */
+    private int lifecycleMaxEntries;
+    /* Time in milliseconds that queue items are remembered, forever if 0 or less. */
+    private long lifecycleExpiry;
+    /* Send the times a message was captured, queued and sent as headers. */
+    private boolean latencyHeaders;
+    /* Publish periodic rollups of the builds and queue times per job and label. */
+    private boolean rollupEvents;
+    /* Time in milliseconds between rollups. */
+    private long rollupInterval;
+    /* Routing key of rollups, the global routing key is used if empty. */
+    private String rollupRoutingKey;
+    /* Maximum number of jobs and of labels per rollup, the others are merged, no limit if 0 or less. */
+    private int rollupMaxKeys;
+
+    /* The routes compiled for fast lookups on every event. */
+    private transient volatile RouteTable routeTable;
+
+    /* The event rules compiled for the listeners. */
+    private transient volatile EventFilter eventFilter;
+
+    /* The time-to-live settings compiled for the publishers. */
+    private transient volatile MessageTtls messageTtlTable;
 
     /**
      * Creates an instance with specified parameters.
@@ -115,6 +244,25 @@ public final class MQNotifierConfig extends Plugin implements Describable<MQNoti
         LOGGER.info("Starting MQNotifier Plugin");
         load();
         MQConnection.getInstance().initialize(userName, userPassword, serverUri, virtualHost);
+        MQConnection.getInstance().setTransport(transport);
+        MQConnection.configureDestinations(destinations);
+        QueueSnapshotter.getInstance().configure(this);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        LOGGER.info("Stopping MQNotifier Plugin");
+        // stop producing, then move what is held in memory to the queue before it is drained
+        LogStreamer.getInstance().stop();
+        QueueSnapshotter.getInstance().stop();
+        StageListenerImpl.flushAll();
+        ComputerListenerImpl.flush();
+        RollupAggregator.getInstance().flush();
+        EnvelopeBatcher.getInstance().flushAll();
+        Replay.getInstance().stop();
+        MQConnection.getInstance().shutdown(shutdownTimeout);
+        DeliveryArchive.getInstance().close();
+        super.stop();
     }
 
     /**
@@ -123,14 +271,45 @@ public final class MQNotifierConfig extends Plugin implements Describable<MQNoti
     public MQNotifierConfig() {
         this.enableNotifier = false;    // default value
         this.persistentDelivery = true; // default value
+        this.maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE; // default value
+        this.logChunkSize = DEFAULT_LOG_CHUNK_SIZE; // default value
+        this.logFlushInterval = DEFAULT_LOG_FLUSH_INTERVAL; // default value
+        this.logBandwidth = DEFAULT_LOG_BANDWIDTH; // default value
+        this.stageEventDebounce = DEFAULT_STAGE_EVENT_DEBOUNCE; // default value
+        this.stageEventLimit = DEFAULT_STAGE_EVENT_LIMIT; // default value
+        this.shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT; // default value
+        this.backfillRate = DEFAULT_BACKFILL_RATE; // default value
+        this.publishBurst = DEFAULT_PUBLISH_BURST; // default value
+        this.publishBatchMax = DEFAULT_PUBLISH_BATCH_MAX; // default value
+        this.publishLatencyTarget = DEFAULT_PUBLISH_LATENCY_TARGET; // default value
+        this.publishPartitions = DEFAULT_PUBLISH_PARTITIONS; // default value
+        this.rollupInterval = DEFAULT_ROLLUP_INTERVAL; // default value
+        this.rollupMaxKeys = DEFAULT_ROLLUP_MAX_KEYS; // default value
+        this.transportFileSize = DEFAULT_TRANSPORT_FILE_SIZE; // default value
+        this.nodeEventDebounce = DEFAULT_NODE_EVENT_DEBOUNCE; // default value
+        this.nodeEventLimit = DEFAULT_NODE_EVENT_LIMIT; // default value
+        this.queueSnapshotInterval = DEFAULT_QUEUE_SNAPSHOT_INTERVAL; // default value
+        this.queueSnapshotFullEvery = DEFAULT_QUEUE_SNAPSHOT_FULL_EVERY; // default value
+        this.lifecycleMaxEntries = DEFAULT_LIFECYCLE_MAX_ENTRIES; // default value
+        this.lifecycleExpiry = DEFAULT_LIFECYCLE_EXPIRY; // default value
+        this.retentionMaxSize = DEFAULT_RETENTION_MAX_SIZE; // default value
+        this.replayRate = DEFAULT_REPLAY_RATE; // default value
     }
 
     @Override
     public void configure(StaplerRequest req, JSONObject formData) throws IOException, ServletException,
             Descriptor.FormException {
         req.bindJSON(this, formData);
+        routes = req.bindJSONToList(Route.class, formData.get("routes"));
+        destinations = req.bindJSONToList(Destination.class, formData.get("destinations"));
+        // batches belong to the old routes
+        EnvelopeBatcher.getInstance().flushAll();
+        compileRoutes();
         save();
         MQConnection.getInstance().initialize(userName, userPassword, serverUri, virtualHost);
+        MQConnection.getInstance().setTransport(transport);
+        MQConnection.configureDestinations(destinations);
+        QueueSnapshotter.getInstance().configure(this);
     }
 
     /**
@@ -275,92 +454,998 @@ public final class MQNotifierConfig extends Plugin implements Describable<MQNoti
      */
     public void setRoutingKey(String routingKey) {
         this.routingKey = routingKey;
+        compileRoutes();
     }
 
     /**
-     * Returns true if persistentDelivery is to be used.
+     * Gets the maximum message size.
      *
-     * @return if persistentDelivery is to be used.
+     * @return the size in bytes above which pipeline stages are chunked, 0 or less to never chunk.
      */
-    public boolean getPersistentDelivery() {
-        return this.persistentDelivery;
+    public int getMaxMessageSize() {
+        return this.maxMessageSize;
     }
 
     /**
-     * Sets persistent delivery mode.
+     * Sets the maximum message size.
      *
-     * @param pd if persistentDelivery is to be used.
+     * @param maxMessageSize the size in bytes above which pipeline stages are chunked, 0 or less to never chunk.
      */
-    public void setPersistentDelivery(boolean pd) {
-        this.persistentDelivery = pd;
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
     }
 
     /**
-     * Returns application id.
+     * Gets whether console logs are streamed.
      *
-     * @return application id.
+     * @return true if the console logs of running builds are streamed.
      */
-    public String getAppId() {
-        return this.appId;
+    public boolean isLogStreaming() {
+        return this.logStreaming;
     }
 
     /**
-     * Sets application id.
+     * Sets whether console logs are streamed.
      *
-     * @param appId Application id to use
+     * @param logStreaming true to stream the console logs of running builds.
      */
-    public void setAppId(String appId) {
-        this.appId = appId;
+    public void setLogStreaming(boolean logStreaming) {
+        this.logStreaming = logStreaming;
     }
 
+    /**
+     * Gets the routing key of console log chunks.
+     *
+     * @return the routing key, or null if the global routing key is used.
+     */
+    public String getLogRoutingKey() {
+        return this.logRoutingKey;
+    }
 
     /**
-     * Returns the descriptor instance.
+     * Sets the routing key of console log chunks.
      *
-     * @return descriptor instance.
+     * @param logRoutingKey the routing key, or empty to use the global routing key.
      */
-    @Override
-    public Descriptor<MQNotifierConfig> getDescriptor() {
-        return Jenkins.get().getDescriptorOrDie(getClass());
+    public void setLogRoutingKey(String logRoutingKey) {
+        this.logRoutingKey = StringUtils.trimToNull(logRoutingKey);
     }
 
     /**
-     * Implementation of the Descriptor interface.
+     * Gets the console log chunk size.
+     *
+     * @return the maximum size in bytes of a console log chunk.
      */
-    @Extension
-    public static final class DescriptorImpl extends Descriptor<MQNotifierConfig> {
-        @Override
-        public String getDisplayName() {
-            return "MQ Notifier Plugin";
+    public int getLogChunkSize() {
+        return this.logChunkSize > 0 ? this.logChunkSize : DEFAULT_LOG_CHUNK_SIZE;
+    }
+
+    /**
+     * Sets the console log chunk size.
+     *
+     * @param logChunkSize the maximum size in bytes of a console log chunk.
+     */
+    public void setLogChunkSize(int logChunkSize) {
+        this.logChunkSize = logChunkSize;
+    }
+
+    /**
+     * Gets the console log flush interval.
+     *
+     * @return the maximum time in milliseconds that read log output waits before it is sent.
+     */
+    public long getLogFlushInterval() {
+        return this.logFlushInterval;
+    }
+
+    /**
+     * Sets the console log flush interval.
+     *
+     * @param logFlushInterval the maximum time in milliseconds that read log output waits before it is sent.
+     */
+    public void setLogFlushInterval(long logFlushInterval) {
+        this.logFlushInterval = logFlushInterval;
+    }
+
+    /**
+     * Gets the console log bandwidth cap.
+     *
+     * @return the maximum number of log bytes read per second for all builds, 0 or less for no limit.
+     */
+    public long getLogBandwidth() {
+        return this.logBandwidth;
+    }
+
+    /**
+     * Sets the console log bandwidth cap.
+     *
+     * @param logBandwidth the maximum number of log bytes read per second for all builds, 0 or less for no limit.
+     */
+    public void setLogBandwidth(long logBandwidth) {
+        this.logBandwidth = logBandwidth;
+    }
+
+    /**
+     * Gets whether stage events are published.
+     *
+     * @return true if live stage events of pipeline builds are published.
+     */
+    public boolean isStageEvents() {
+        return this.stageEvents;
+    }
+
+    /**
+     * Sets whether stage events are published.
+     *
+     * @param stageEvents true to publish live stage events of pipeline builds.
+     */
+    public void setStageEvents(boolean stageEvents) {
+        this.stageEvents = stageEvents;
+    }
+
+    /**
+     * Gets the stage event debounce time.
+     *
+     * @return the time in milliseconds that stage events are held before they are published.
+     */
+    public long getStageEventDebounce() {
+        return this.stageEventDebounce;
+    }
+
+    /**
+     * Sets the stage event debounce time.
+     *
+     * @param stageEventDebounce the time in milliseconds that stage events are held before they are published.
+     */
+    public void setStageEventDebounce(long stageEventDebounce) {
+        this.stageEventDebounce = stageEventDebounce;
+    }
+
+    /**
+     * Gets the stage event limit.
+     *
+     * @return the maximum number of stage events per build.
+     */
+    public int getStageEventLimit() {
+        return this.stageEventLimit;
+    }
+
+    /**
+     * Sets the stage event limit.
+     *
+     * @param stageEventLimit the maximum number of stage events per build.
+     */
+    public void setStageEventLimit(int stageEventLimit) {
+        this.stageEventLimit = stageEventLimit;
+    }
+
+    /**
+     * Gets the data provider time budget.
+     *
+     * @return the time in milliseconds each provider may take per event, 0 or less if providers run serially.
+     */
+    public long getProviderBudget() {
+        return this.providerBudget;
+    }
+
+    /**
+     * Sets the data provider time budget.
+     *
+     * @param providerBudget the time in milliseconds each provider may take per event, 0 or less to run
+     *                       providers serially without a budget.
+     */
+    public void setProviderBudget(long providerBudget) {
+        this.providerBudget = providerBudget;
+    }
+
+    /**
+     * Gets the data provider p99 latency limit.
+     *
+     * @return the limit in milliseconds, 0 or less if providers are never disabled.
+     */
+    public long getProviderP99Limit() {
+        return this.providerP99Limit;
+    }
+
+    /**
+     * Sets the data provider p99 latency limit.
+     *
+     * @param providerP99Limit the limit in milliseconds, 0 or less to never disable providers.
+     */
+    public void setProviderP99Limit(long providerP99Limit) {
+        this.providerP99Limit = providerP99Limit;
+    }
+
+    /**
+     * Gets the shutdown timeout.
+     *
+     * @return the time in milliseconds that queued messages may take to be delivered on shutdown.
+     */
+    public long getShutdownTimeout() {
+        return this.shutdownTimeout;
+    }
+
+    /**
+     * Sets the shutdown timeout.
+     *
+     * @param shutdownTimeout the time in milliseconds that queued messages may take to be delivered on shutdown.
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Gets the backfill rate.
+     *
+     * @return the maximum number of past builds published per second by a backfill, 0 or less for no limit.
+     */
+    public long getBackfillRate() {
+        return this.backfillRate;
+    }
+
+    /**
+     * Sets the backfill rate.
+     *
+     * @param backfillRate the maximum number of past builds published per second, 0 or less for no limit.
+     */
+    public void setBackfillRate(long backfillRate) {
+        this.backfillRate = backfillRate;
+    }
+
+    /**
+     * Gets the publish rate limit.
+     *
+     * @return the maximum number of messages sent per second, 0 or less for no limit.
+     */
+    public long getPublishRate() {
+        return this.publishRate;
+    }
+
+    /**
+     * Sets the publish rate limit.
+     *
+     * @param publishRate the maximum number of messages sent per second, 0 or less for no limit.
+     */
+    public void setPublishRate(long publishRate) {
+        this.publishRate = publishRate;
+    }
+
+    /**
+     * Gets the publish byte rate limit.
+     *
+     * @return the maximum number of message bytes sent per second, 0 or less for no limit.
+     */
+    public long getPublishByteRate() {
+        return this.publishByteRate;
+    }
+
+    /**
+     * Sets the publish byte rate limit.
+     *
+     * @param publishByteRate the maximum number of message bytes sent per second, 0 or less for no limit.
+     */
+    public void setPublishByteRate(long publishByteRate) {
+        this.publishByteRate = publishByteRate;
+    }
+
+    /**
+     * Gets the publish burst.
+     *
+     * @return the time in milliseconds worth of messages that may be sent at once.
+     */
+    public long getPublishBurst() {
+        return this.publishBurst;
+    }
+
+    /**
+     * Sets the publish burst.
+     *
+     * @param publishBurst the time in milliseconds worth of messages that may be sent at once.
+     */
+    public void setPublishBurst(long publishBurst) {
+        this.publishBurst = publishBurst;
+    }
+
+    /**
+     * Gets the maximum publish batch size.
+     *
+     * @return the maximum number of queued messages published per confirm, batching is off if 1 or less.
+     */
+    public int getPublishBatchMax() {
+        return this.publishBatchMax;
+    }
+
+    /**
+     * Sets the maximum publish batch size.
+     *
+     * @param publishBatchMax the maximum number of queued messages published per confirm, 1 or less for none.
+     */
+    public void setPublishBatchMax(int publishBatchMax) {
+        this.publishBatchMax = publishBatchMax;
+    }
+
+    /**
+     * Gets the publish latency target.
+     *
+     * @return the confirm round trip in milliseconds per batch that batches are kept below.
+     */
+    public long getPublishLatencyTarget() {
+        return this.publishLatencyTarget;
+    }
+
+    /**
+     * Sets the publish latency target.
+     *
+     * @param publishLatencyTarget the confirm round trip in milliseconds per batch that batches are kept below.
+     */
+    public void setPublishLatencyTarget(long publishLatencyTarget) {
+        this.publishLatencyTarget = publishLatencyTarget;
+    }
+
+    /**
+     * Gets the publish throughput target.
+     *
+     * @return the messages per second above which batches stop growing, 0 or less for no target.
+     */
+    public long getPublishThroughputTarget() {
+        return this.publishThroughputTarget;
+    }
+
+    /**
+     * Sets the publish throughput target.
+     *
+     * @param publishThroughputTarget the messages per second above which batches stop growing, 0 for no target.
+     */
+    public void setPublishThroughputTarget(long publishThroughputTarget) {
+        this.publishThroughputTarget = publishThroughputTarget;
+    }
+
+    /**
+     * Gets the number of publish partitions.
+     *
+     * @return the number of message queues per destination, each sent by its own thread.
+     */
+    public int getPublishPartitions() {
+        return this.publishPartitions;
+    }
+
+    /**
+     * Sets the number of publish partitions.
+     *
+     * @param publishPartitions the number of message queues per destination, each sent by its own thread.
+     */
+    public void setPublishPartitions(int publishPartitions) {
+        this.publishPartitions = publishPartitions;
+    }
+
+    /**
+     * Gets the include rules for events.
+     *
+     * @return the rules, one per line.
+     */
+    public String getEventIncludes() {
+        return this.eventIncludes;
+    }
+
+    /**
+     * Sets the include rules for events.
+     *
+     * @param eventIncludes the rules, one per line, or empty to include all events.
+     */
+    public void setEventIncludes(String eventIncludes) {
+        this.eventIncludes = StringUtils.trimToNull(eventIncludes);
+        this.eventFilter = null;
+    }
+
+    /**
+     * Gets the exclude rules for events.
+     *
+     * @return the rules, one per line.
+     */
+    public String getEventExcludes() {
+        return this.eventExcludes;
+    }
+
+    /**
+     * Sets the exclude rules for events.
+     *
+     * @param eventExcludes the rules, one per line.
+     */
+    public void setEventExcludes(String eventExcludes) {
+        this.eventExcludes = StringUtils.trimToNull(eventExcludes);
+        this.eventFilter = null;
+    }
+
+    /**
+     * Gets the compiled event rules.
+     *
+     * @return the event filter.
+     */
+    public EventFilter getEventFilter() {
+        EventFilter filter = eventFilter;
+        if (filter == null) {
+            filter = EventFilter.compile(eventIncludes, eventExcludes);
+            eventFilter = filter;
         }
+        return filter;
+    }
 
-        /**
-         * Tests connection to the server URI.
-         *
-         * @param uri the URI.
-         * @param name the user name.
-         * @param pw the user password.
-         * @return FormValidation object that indicates ok or error.
-         * @throws javax.servlet.ServletException Exception for servlet.
-         */
-        public FormValidation doTestConnection(@QueryParameter(SERVER_URI) final String uri,
-                                               @QueryParameter(USERNAME) final String name,
-                                               @QueryParameter(PASSWORD) final Secret pw) throws ServletException {
-            UrlValidator urlValidator = new UrlValidator(getInstance().schemes, UrlValidator.ALLOW_LOCAL_URLS);
-            FormValidation result = FormValidation.ok();
-            if (urlValidator.isValid(uri)) {
-                try {
-                    ConnectionFactory conn = new ConnectionFactory();
-                    conn.setUri(uri);
-                    if (StringUtils.isNotEmpty(name)) {
-                        conn.setUsername(name);
-                        if (StringUtils.isNotEmpty(Secret.toString(pw))) {
-                            conn.setPassword(Secret.toString(pw));
-                        }
-                    }
-                    conn.newConnection();
-                } catch (URISyntaxException e) {
-                    result = FormValidation.error("Invalid Uri");
+    /**
+     * Gets the time-to-live settings per event type.
+     *
+     * @return the settings, one per line.
+     */
+    public String getMessageTtls() {
+        return this.messageTtls;
+    }
+
+    /**
+     * Sets the time-to-live settings per event type.
+     *
+     * @param messageTtls the settings, one EVENT=milliseconds per line.
+     */
+    public void setMessageTtls(String messageTtls) {
+        this.messageTtls = StringUtils.trimToNull(messageTtls);
+        this.messageTtlTable = null;
+    }
+
+    /**
+     * Gets the compiled time-to-live settings.
+     *
+     * @return the settings.
+     */
+    public MessageTtls getMessageTtlTable() {
+        MessageTtls table = messageTtlTable;
+        if (table == null) {
+            table = MessageTtls.compile(messageTtls);
+            messageTtlTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Returns true if node state events are published.
+     *
+     * @return true if node state events are published.
+     */
+    public boolean isNodeEvents() {
+        return this.nodeEvents;
+    }
+
+    /**
+     * Sets whether node state events are published.
+     *
+     * @param nodeEvents true to publish node state events.
+     */
+    public void setNodeEvents(boolean nodeEvents) {
+        this.nodeEvents = nodeEvents;
+    }
+
+    /**
+     * Gets the node event debounce time.
+     *
+     * @return the time in milliseconds that node changes are collected.
+     */
+    public long getNodeEventDebounce() {
+        return this.nodeEventDebounce;
+    }
+
+    /**
+     * Sets the node event debounce time.
+     *
+     * @param nodeEventDebounce the time in milliseconds that node changes are collected.
+     */
+    public void setNodeEventDebounce(long nodeEventDebounce) {
+        this.nodeEventDebounce = nodeEventDebounce;
+    }
+
+    /**
+     * Gets the node event limit.
+     *
+     * @return the maximum number of node events per debounce time.
+     */
+    public int getNodeEventLimit() {
+        return this.nodeEventLimit;
+    }
+
+    /**
+     * Sets the node event limit.
+     *
+     * @param nodeEventLimit the maximum number of node events per debounce time, more are summarized.
+     */
+    public void setNodeEventLimit(int nodeEventLimit) {
+        this.nodeEventLimit = nodeEventLimit;
+    }
+
+    /**
+     * Returns true if queue snapshots are published.
+     *
+     * @return true if queue snapshots are published.
+     */
+    public boolean isQueueSnapshots() {
+        return this.queueSnapshots;
+    }
+
+    /**
+     * Sets whether queue snapshots are published.
+     *
+     * @param queueSnapshots true to publish queue snapshots.
+     */
+    public void setQueueSnapshots(boolean queueSnapshots) {
+        this.queueSnapshots = queueSnapshots;
+    }
+
+    /**
+     * Gets the queue snapshot interval.
+     *
+     * @return the time in milliseconds between queue snapshots.
+     */
+    public long getQueueSnapshotInterval() {
+        return this.queueSnapshotInterval;
+    }
+
+    /**
+     * Sets the queue snapshot interval.
+     *
+     * @param queueSnapshotInterval the time in milliseconds between queue snapshots.
+     */
+    public void setQueueSnapshotInterval(long queueSnapshotInterval) {
+        this.queueSnapshotInterval = queueSnapshotInterval;
+    }
+
+    /**
+     * Gets how often a complete queue snapshot is sent.
+     *
+     * @return every this many queue messages is a complete snapshot, deltas are off if 1 or less.
+     */
+    public int getQueueSnapshotFullEvery() {
+        return this.queueSnapshotFullEvery;
+    }
+
+    /**
+     * Sets how often a complete queue snapshot is sent.
+     *
+     * @param queueSnapshotFullEvery every this many queue messages is a complete snapshot, 1 for no deltas.
+     */
+    public void setQueueSnapshotFullEvery(int queueSnapshotFullEvery) {
+        this.queueSnapshotFullEvery = queueSnapshotFullEvery;
+    }
+
+    /**
+     * Gets the retention window of delivered messages.
+     *
+     * @return the time in milliseconds that delivered messages are kept, none are kept if 0 or less.
+     */
+    public long getRetentionWindow() {
+        return this.retentionWindow;
+    }
+
+    /**
+     * Sets the retention window of delivered messages.
+     *
+     * @param retentionWindow the time in milliseconds that delivered messages are kept, 0 to keep none.
+     */
+    public void setRetentionWindow(long retentionWindow) {
+        this.retentionWindow = retentionWindow;
+    }
+
+    /**
+     * Gets the maximum size of the kept messages.
+     *
+     * @return the maximum size in bytes, no limit if 0 or less.
+     */
+    public long getRetentionMaxSize() {
+        return this.retentionMaxSize;
+    }
+
+    /**
+     * Sets the maximum size of the kept messages.
+     *
+     * @param retentionMaxSize the maximum size in bytes, 0 or less for no limit.
+     */
+    public void setRetentionMaxSize(long retentionMaxSize) {
+        this.retentionMaxSize = retentionMaxSize;
+    }
+
+    /**
+     * Gets the replay rate.
+     *
+     * @return the maximum number of messages per second of a replay, no limit if 0 or less.
+     */
+    public long getReplayRate() {
+        return this.replayRate;
+    }
+
+    /**
+     * Sets the replay rate.
+     *
+     * @param replayRate the maximum number of messages per second of a replay, 0 or less for no limit.
+     */
+    public void setReplayRate(long replayRate) {
+        this.replayRate = replayRate;
+    }
+
+    /**
+     * Returns true if queue events are published.
+     *
+     * @return true if queue events are published.
+     */
+    public boolean isQueueEvents() {
+        return this.queueEvents;
+    }
+
+    /**
+     * Sets whether queue events are published.
+     *
+     * @param queueEvents true to publish queue events.
+     */
+    public void setQueueEvents(boolean queueEvents) {
+        this.queueEvents = queueEvents;
+    }
+
+    /**
+     * Returns true if the queue data of builds is joined into their completed events.
+     *
+     * @return true if lifecycle events are published.
+     */
+    public boolean isLifecycleEvents() {
+        return this.lifecycleEvents;
+    }
+
+    /**
+     * Sets whether the queue data of builds is joined into their completed events.
+     *
+     * @param lifecycleEvents true to publish lifecycle events.
+     */
+    public void setLifecycleEvents(boolean lifecycleEvents) {
+        this.lifecycleEvents = lifecycleEvents;
+    }
+
+    /**
+     * Gets the maximum number of queue items remembered until their builds complete.
+     *
+     * @return the maximum number of items, no limit if 0 or less.
+     */
+    public int getLifecycleMaxEntries() {
+        return this.lifecycleMaxEntries;
+    }
+
+    /**
+     * Sets the maximum number of queue items remembered until their builds complete.
+     *
+     * @param lifecycleMaxEntries the maximum number of items, 0 or less for no limit.
+     */
+    public void setLifecycleMaxEntries(int lifecycleMaxEntries) {
+        this.lifecycleMaxEntries = lifecycleMaxEntries;
+    }
+
+    /**
+     * Gets the time that queue items are remembered.
+     *
+     * @return the time in milliseconds, forever if 0 or less.
+     */
+    public long getLifecycleExpiry() {
+        return this.lifecycleExpiry;
+    }
+
+    /**
+     * Sets the time that queue items are remembered.
+     *
+     * @param lifecycleExpiry the time in milliseconds, 0 or less to keep them until their builds complete.
+     */
+    public void setLifecycleExpiry(long lifecycleExpiry) {
+        this.lifecycleExpiry = lifecycleExpiry;
+    }
+
+    /**
+     * Returns true if the times a message was captured, queued and sent are sent as headers.
+     *
+     * @return true if latency headers are sent.
+     */
+    public boolean isLatencyHeaders() {
+        return this.latencyHeaders;
+    }
+
+    /**
+     * Sets whether the times a message was captured, queued and sent are sent as headers.
+     *
+     * @param latencyHeaders true to send latency headers.
+     */
+    public void setLatencyHeaders(boolean latencyHeaders) {
+        this.latencyHeaders = latencyHeaders;
+    }
+
+    /**
+     * Returns true if rollups are published.
+     *
+     * @return true if rollups are published.
+     */
+    public boolean isRollupEvents() {
+        return this.rollupEvents;
+    }
+
+    /**
+     * Sets whether rollups are published.
+     *
+     * @param rollupEvents true to publish rollups.
+     */
+    public void setRollupEvents(boolean rollupEvents) {
+        this.rollupEvents = rollupEvents;
+    }
+
+    /**
+     * Gets the rollup interval.
+     *
+     * @return the time in milliseconds between rollups.
+     */
+    public long getRollupInterval() {
+        return this.rollupInterval;
+    }
+
+    /**
+     * Sets the rollup interval.
+     *
+     * @param rollupInterval the time in milliseconds between rollups.
+     */
+    public void setRollupInterval(long rollupInterval) {
+        this.rollupInterval = rollupInterval;
+    }
+
+    /**
+     * Gets the rollup routing key.
+     *
+     * @return the routing key, or null if the global routing key is used.
+     */
+    public String getRollupRoutingKey() {
+        return this.rollupRoutingKey;
+    }
+
+    /**
+     * Sets the rollup routing key.
+     *
+     * @param rollupRoutingKey the routing key, or empty to use the global routing key.
+     */
+    public void setRollupRoutingKey(String rollupRoutingKey) {
+        this.rollupRoutingKey = StringUtils.trimToNull(rollupRoutingKey);
+    }
+
+    /**
+     * Gets the maximum number of jobs and labels per rollup.
+     *
+     * @return the maximum number of jobs and of labels, no limit if 0 or less.
+     */
+    public int getRollupMaxKeys() {
+        return this.rollupMaxKeys;
+    }
+
+    /**
+     * Sets the maximum number of jobs and labels per rollup.
+     *
+     * @param rollupMaxKeys the maximum number of jobs and of labels, 0 or less for no limit.
+     */
+    public void setRollupMaxKeys(int rollupMaxKeys) {
+        this.rollupMaxKeys = rollupMaxKeys;
+    }
+
+    /**
+     * Gets the transport id.
+     *
+     * @return the transport id, or null for AMQP.
+     */
+    public String getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Sets the transport id.
+     *
+     * @param transport the transport id, or empty for AMQP.
+     */
+    public void setTransport(String transport) {
+        this.transport = StringUtils.trimToNull(transport);
+    }
+
+    /**
+     * Gets the directory of the file transport.
+     *
+     * @return the directory, or null for a directory in the Jenkins root.
+     */
+    public String getTransportDirectory() {
+        return this.transportDirectory;
+    }
+
+    /**
+     * Sets the directory of the file transport.
+     *
+     * @param transportDirectory the directory, or empty for a directory in the Jenkins root.
+     */
+    public void setTransportDirectory(String transportDirectory) {
+        this.transportDirectory = StringUtils.trimToNull(transportDirectory);
+    }
+
+    /**
+     * Gets the file size of the file transport.
+     *
+     * @return the size in bytes of each file.
+     */
+    public long getTransportFileSize() {
+        return this.transportFileSize;
+    }
+
+    /**
+     * Sets the file size of the file transport.
+     *
+     * @param transportFileSize the size in bytes of each file.
+     */
+    public void setTransportFileSize(long transportFileSize) {
+        this.transportFileSize = transportFileSize;
+    }
+
+    /**
+     * Gets the items of the transport drop downs.
+     *
+     * @return the available transports.
+     */
+    static ListBoxModel transportItems() {
+        ListBoxModel items = new ListBoxModel();
+        for (MessageTransport messageTransport : MessageTransport.all()) {
+            items.add(messageTransport.getDisplayName(), messageTransport.getId());
+        }
+        return items;
+    }
+
+    /**
+     * Gets the configured routes.
+     *
+     * @return the routes, never null.
+     */
+    public List<Route> getRoutes() {
+        if (routes == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(routes);
+    }
+
+    /**
+     * Sets the routes.
+     *
+     * @param routes the routes.
+     */
+    public void setRoutes(List<Route> routes) {
+        this.routes = new ArrayList<Route>(routes);
+        compileRoutes();
+    }
+
+    /**
+     * Gets the additional destinations.
+     *
+     * @return the destinations, never null.
+     */
+    public List<Destination> getDestinations() {
+        if (destinations == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(destinations);
+    }
+
+    /**
+     * Sets the additional destinations.
+     *
+     * @param destinations the destinations.
+     */
+    public void setDestinations(List<Destination> destinations) {
+        this.destinations = new ArrayList<Destination>(destinations);
+        MQConnection.configureDestinations(this.destinations);
+    }
+
+    /**
+     * Gets the compiled routes.
+     *
+     * @return the compiled routes.
+     */
+    public RouteTable getRouteTable() {
+        RouteTable table = routeTable;
+        if (table == null) {
+            table = compileRoutes();
+        }
+        return table;
+    }
+
+    /**
+     * Compiles the configured routes and their field projections.
+     *
+     * @return the compiled routes.
+     */
+    private RouteTable compileRoutes() {
+        RouteTable table = RouteTable.compile(routes, routingKey);
+        routeTable = table;
+        return table;
+    }
+
+    /**
+     * Returns true if persistentDelivery is to be used.
+     *
+     * @return if persistentDelivery is to be used.
+     */
+    public boolean getPersistentDelivery() {
+        return this.persistentDelivery;
+    }
+
+    /**
+     * Sets persistent delivery mode.
+     *
+     * @param pd if persistentDelivery is to be used.
+     */
+    public void setPersistentDelivery(boolean pd) {
+        this.persistentDelivery = pd;
+    }
+
+    /**
+     * Returns application id.
+     *
+     * @return application id.
+     */
+    public String getAppId() {
+        return this.appId;
+    }
+
+    /**
+     * Sets application id.
+     *
+     * @param appId Application id to use
+     */
+    public void setAppId(String appId) {
+        this.appId = appId;
+    }
+
+
+    /**
+     * Returns the descriptor instance.
+     *
+     * @return descriptor instance.
+     */
+    @Override
+    public Descriptor<MQNotifierConfig> getDescriptor() {
+        return Jenkins.get().getDescriptorOrDie(getClass());
+    }
+
+    /**
+     * Implementation of the Descriptor interface.
+     */
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<MQNotifierConfig> {
+        @Override
+        public String getDisplayName() {
+            return "MQ Notifier Plugin";
+        }
+
+        /**
+         * Tests connection to the server URI.
+         *
+         * @param uri the URI.
+         * @param name the user name.
+         * @param pw the user password.
+         * @return FormValidation object that indicates ok or error.
+         * @throws javax.servlet.ServletException Exception for servlet.
+         */
+        public FormValidation doTestConnection(@QueryParameter(SERVER_URI) final String uri,
+                                               @QueryParameter(USERNAME) final String name,
+                                               @QueryParameter(PASSWORD) final Secret pw) throws ServletException {
+            UrlValidator urlValidator = new UrlValidator(getInstance().schemes, UrlValidator.ALLOW_LOCAL_URLS);
+            FormValidation result = FormValidation.ok();
+            if (urlValidator.isValid(uri)) {
+                try {
+                    ConnectionFactory conn = new ConnectionFactory();
+                    conn.setUri(uri);
+                    if (StringUtils.isNotEmpty(name)) {
+                        conn.setUsername(name);
+                        if (StringUtils.isNotEmpty(Secret.toString(pw))) {
+                            conn.setPassword(Secret.toString(pw));
+                        }
+                    }
+                    conn.newConnection();
+                } catch (URISyntaxException e) {
+                    result = FormValidation.error("Invalid Uri");
                 } catch (PossibleAuthenticationFailureException e) {
                     result = FormValidation.error("Authentication Failure");
                 } catch (Exception e) {
@@ -371,6 +1456,48 @@ public final class MQNotifierConfig extends Plugin implements Describable<MQNoti
             }
             return result;
         }
+
+        /**
+         * Fills the transport drop down.
+         *
+         * @return the available transports.
+         */
+        public ListBoxModel doFillTransportItems() {
+            return transportItems();
+        }
+
+        /**
+         * Checks the include rules for events.
+         *
+         * @param value the rules.
+         * @return the validation result.
+         */
+        public FormValidation doCheckEventIncludes(@QueryParameter String value) {
+            String error = EventFilter.validate(value);
+            return error != null ? FormValidation.error(error) : FormValidation.ok();
+        }
+
+        /**
+         * Checks the exclude rules for events.
+         *
+         * @param value the rules.
+         * @return the validation result.
+         */
+        public FormValidation doCheckEventExcludes(@QueryParameter String value) {
+            String error = EventFilter.validate(value);
+            return error != null ? FormValidation.error(error) : FormValidation.ok();
+        }
+
+        /**
+         * Checks the time-to-live settings.
+         *
+         * @param value the settings.
+         * @return the validation result.
+         */
+        public FormValidation doCheckMessageTtls(@QueryParameter String value) {
+            String error = MessageTtls.validate(value);
+            return error != null ? FormValidation.error(error) : FormValidation.ok();
+        }
     }
 
 }
@@ -0,0 +1,153 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.MessageCodec;
+import net.sf.json.JSONObject;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes events on the configured routes.
+ */
+final class MessagePublisher {
+
+    private static final RouteTable DEFAULT_ROUTES = RouteTable.compile(null, null);
+
+    /**
+     * Utility classes should not have a public or default constructor.
+     */
+    private MessagePublisher() {
+    }
+
+    /**
+     * Gets the compiled routes of the configuration.
+     *
+     * @param config the configuration, may be null.
+     * @return the routes.
+     */
+    static RouteTable getRoutes(MQNotifierConfig config) {
+        if (config == null) {
+            return DEFAULT_ROUTES;
+        }
+        return config.getRouteTable();
+    }
+
+    /**
+     * Publish json message on every configured route, projected to the fields of the route and
+     * encoded with the codec of the route. Messages larger than the maximum message size get their
+     * pipeline stages split off into chunk messages. Events on batched routes are handed to the
+     * {@link EnvelopeBatcher} instead, unless they are too large to share a message.
+     *
+     * @param config the configuration, may be null.
+     * @param json   the message in json format
+     */
+    static void publish(MQNotifierConfig config, JSONObject json) {
+        publish(config, json, System.currentTimeMillis());
+    }
+
+    /**
+     * Publish json message on every configured route, see {@link #publish(MQNotifierConfig, JSONObject)}.
+     * With latency headers, the time the event was captured is sent along, so that consumers and the
+     * {@link DeliveryLatency} statistics see the time spent in the data providers.
+     *
+     * @param config   the configuration, may be null.
+     * @param json     the message in json format
+     * @param captured the time the event was captured, before the data providers were run
+     */
+    static void publish(MQNotifierConfig config, JSONObject json, long captured) {
+        if (config != null && config.isNotifierEnabled()) {
+            AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
+            int dm = 1;
+            if (config.getPersistentDelivery()) {
+                dm = 2;
+            }
+            bob.appId(config.getAppId());
+            bob.deliveryMode(dm);
+            bob.timestamp(Calendar.getInstance().getTime());
+            bob.expiration(config.getMessageTtlTable().getExpiration(json.optString(Util.KEY_STATE, null)));
+            if (config.isLatencyHeaders()) {
+                Map<String, Object> headers = new HashMap<String, Object>();
+                headers.put(Util.HEADER_CAPTURED_AT, captured);
+                bob.headers(headers);
+            }
+            int maxSize = config.getMaxMessageSize();
+            // the messages of a job are kept in order in one partition
+            String partitionKey = null;
+            if (json.containsKey(Util.KEY_PROJECT_NAME)) {
+                partitionKey = json.getString(Util.KEY_PROJECT_NAME);
+            }
+            for (RouteTable.CompiledRoute route : config.getRouteTable().getRoutes()) {
+                MessageCodec codec = route.getCodec();
+                AMQP.BasicProperties props = bob.contentType(codec.getContentType()).build();
+                JSONObject projected = route.getProjection().apply(json);
+                if (route.isBatched() && EnvelopeBatcher.getInstance().add(config.getExchangeName(), route,
+                        props.builder().correlationId(Util.getBuildId(json)).build(), projected, maxSize)) {
+                    continue;
+                }
+                byte[] body = codec.encode(projected);
+                if (maxSize > 0 && body.length > maxSize) {
+                    List<JSONObject> parts = PipelineChunker.split(projected, maxSize, codec);
+                    if (parts.size() > 1) {
+                        publishChunked(config, route, props, Util.getBuildId(json), partitionKey, parts);
+                        continue;
+                    }
+                }
+                MQConnection.getInstance().addMessageToQueue(config.getExchangeName(), route.getRoutingKey(),
+                        props, body, partitionKey);
+            }
+        }
+    }
+
+    /**
+     * Publishes a core message followed by its chunk messages, correlated by build id.
+     *
+     * @param config       the configuration.
+     * @param route        the route to publish on.
+     * @param props        the common message properties.
+     * @param buildId      the build id, may be null.
+     * @param partitionKey the partition key, may be null.
+     * @param parts        the core message followed by the chunks.
+     */
+    private static void publishChunked(MQNotifierConfig config, RouteTable.CompiledRoute route,
+                                       AMQP.BasicProperties props, String buildId, String partitionKey,
+                                       List<JSONObject> parts) {
+        int total = parts.size() - 1;
+        for (int i = 0; i < parts.size(); i++) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            if (props.getHeaders() != null) {
+                headers.putAll(props.getHeaders());
+            }
+            headers.put(Util.HEADER_CHUNK_SEQUENCE, i);
+            headers.put(Util.HEADER_CHUNK_TOTAL, total);
+            AMQP.BasicProperties chunkProps = props.builder().correlationId(buildId).headers(headers).build();
+            MQConnection.getInstance().addMessageToQueue(config.getExchangeName(), route.getRoutingKey(),
+                    chunkProps, route.getCodec().encode(parts.get(i)), partitionKey);
+        }
+    }
+}
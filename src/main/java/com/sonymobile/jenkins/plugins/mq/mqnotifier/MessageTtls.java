@@ -0,0 +1,171 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled time-to-live settings per event type.
+ * <p>
+ * Each line of the settings is {@code EVENT=milliseconds}, where the event is the state of the message, such as
+ * {@code QUEUED}, or the event header of messages without state, such as {@code LOG}. The event {@code *} sets
+ * the time-to-live of all other events. Messages of events without a time-to-live never expire.
+ */
+public final class MessageTtls {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageTtls.class);
+
+    /** The event that matches all events without their own setting. */
+    public static final String ANY_EVENT = "*";
+
+    /** No message expires. */
+    public static final MessageTtls NONE = new MessageTtls(Collections.<String, Long>emptyMap());
+
+    private final Map<String, Long> ttls;
+
+    /**
+     * Constructor.
+     *
+     * @param ttls the time-to-live in milliseconds per event.
+     */
+    private MessageTtls(Map<String, Long> ttls) {
+        this.ttls = ttls;
+    }
+
+    /**
+     * Compiles the settings. Invalid lines are logged and ignored.
+     *
+     * @param settings the settings, one per line, may be null.
+     * @return the compiled settings.
+     */
+    public static MessageTtls compile(String settings) {
+        Map<String, Long> ttls = new HashMap<String, Long>();
+        for (String line : lines(settings)) {
+            try {
+                parse(line, ttls);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Ignoring message time-to-live: {}", e.getMessage());
+            }
+        }
+        if (ttls.isEmpty()) {
+            return NONE;
+        }
+        return new MessageTtls(ttls);
+    }
+
+    /**
+     * Checks settings for errors.
+     *
+     * @param settings the settings, one per line, may be null.
+     * @return the error of the first invalid line, or null if all lines are valid.
+     */
+    public static String validate(String settings) {
+        for (String line : lines(settings)) {
+            try {
+                parse(line, new HashMap<String, Long>());
+            } catch (IllegalArgumentException e) {
+                return e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the time-to-live of the messages of an event.
+     *
+     * @param event the event, may be null.
+     * @return the time-to-live in milliseconds, or 0 if the messages do not expire.
+     */
+    public long getTtl(String event) {
+        Long ttl = null;
+        if (event != null) {
+            ttl = ttls.get(event);
+        }
+        if (ttl == null) {
+            ttl = ttls.get(ANY_EVENT);
+        }
+        return ttl != null ? ttl : 0;
+    }
+
+    /**
+     * Gets the time-to-live of the messages of an event as the AMQP expiration property.
+     *
+     * @param event the event, may be null.
+     * @return the expiration, or null if the messages do not expire.
+     */
+    public String getExpiration(String event) {
+        long ttl = getTtl(event);
+        return ttl > 0 ? String.valueOf(ttl) : null;
+    }
+
+    /**
+     * Parses one line.
+     *
+     * @param line the line.
+     * @param ttls the settings to add the line to.
+     */
+    private static void parse(String line, Map<String, Long> ttls) {
+        int separator = line.indexOf('=');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Expected EVENT=milliseconds: " + line);
+        }
+        String event = line.substring(0, separator).trim();
+        String value = line.substring(separator + 1).trim();
+        long ttl;
+        try {
+            ttl = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number of milliseconds: " + line);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("The time-to-live must be positive: " + line);
+        }
+        ttls.put(event, ttl);
+    }
+
+    /**
+     * Splits settings into non-empty lines.
+     *
+     * @param settings the settings, may be null.
+     * @return the trimmed lines.
+     */
+    private static List<String> lines(String settings) {
+        List<String> lines = new ArrayList<String>();
+        if (settings != null) {
+            for (String line : settings.split("\\r?\\n")) {
+                if (StringUtils.isNotBlank(line)) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The set of top level message fields that a route delivers to its consumers.
+ * <p>
+ * Projections are compiled once from the route configuration and are immutable afterwards,
+ * so they can be shared by all listener threads.
+ */
+public final class PayloadProjection {
+
+    /** Projection that keeps every field. */
+    public static final PayloadProjection ALL = new PayloadProjection(null);
+
+    /* The state is the event discriminator, and consumers must learn about missing fields. */
+    private static final String[] ALWAYS_INCLUDED = {Util.KEY_STATE, Util.KEY_MISSING_FIELDS};
+
+    /* null means that every field is included. */
+    private final Set<String> fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields the included fields, or null for all fields.
+     */
+    private PayloadProjection(Set<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Compiles a projection from a field list separated by commas or whitespace.
+     *
+     * @param spec the field list, blank means all fields.
+     * @return the projection.
+     */
+    public static PayloadProjection compile(String spec) {
+        if (StringUtils.isBlank(spec)) {
+            return ALL;
+        }
+        Set<String> set = new LinkedHashSet<String>();
+        Collections.addAll(set, ALWAYS_INCLUDED);
+        for (String field : StringUtils.split(spec, ", \t\r\n")) {
+            set.add(field);
+        }
+        return new PayloadProjection(Collections.unmodifiableSet(set));
+    }
+
+    /**
+     * Returns true if this projection keeps every field.
+     *
+     * @return true if nothing is filtered out.
+     */
+    public boolean isAll() {
+        return fields == null;
+    }
+
+    /**
+     * Returns true if the field is delivered by this projection.
+     *
+     * @param key the field name.
+     * @return true if included.
+     */
+    public boolean includes(String key) {
+        return fields == null || fields.contains(key);
+    }
+
+    /**
+     * Returns true if at least one of the fields is delivered by this projection.
+     *
+     * @param keys the field names.
+     * @return true if any of them is included.
+     */
+    public boolean includesAny(Collection<String> keys) {
+        if (fields == null) {
+            return true;
+        }
+        for (String key : keys) {
+            if (fields.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the included fields.
+     *
+     * @return the fields, or null if every field is included.
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * Applies the projection to a message.
+     *
+     * @param json the complete message.
+     * @return the message itself if nothing is filtered out, otherwise a new projected message.
+     */
+    public JSONObject apply(JSONObject json) {
+        if (fields == null) {
+            return json;
+        }
+        JSONObject projected = new JSONObject();
+        for (String key : fields) {
+            if (json.containsKey(key)) {
+                projected.put(key, json.get(key));
+            }
+        }
+        return projected;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.MessageCodec;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.PipelineProvider;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the pipeline stage list off oversized messages.
+ * <p>
+ * The first part is the core message without the stage list, followed by chunk messages that each carry
+ * as many stages as fit within the maximum message size. A single stage larger than the maximum is sent
+ * alone in its own chunk. Sizes are measured in the encoding of the route, each stage on its own, so with
+ * CBOR, whose repeated strings are only sent once per message, the chunks may come out somewhat smaller.
+ */
+final class PipelineChunker {
+
+    /* Room left in every chunk for the sequence fields and separators. */
+    private static final int CHUNK_OVERHEAD = 64;
+
+    /* Fields copied from the core message to every chunk so that consumers can identify the build. */
+    private static final String[] ENVELOPE_KEYS = {
+        Util.KEY_URL, Util.KEY_PROJECT_NAME, Util.KEY_BUILD_NR, Util.KEY_MASTER_FQDN,
+    };
+
+    /**
+     * Utility classes should not have a public or default constructor.
+     */
+    private PipelineChunker() {
+    }
+
+    /**
+     * Splits a message if it has a stage list.
+     *
+     * @param json    the message, larger than the maximum size.
+     * @param maxSize the maximum message size in bytes.
+     * @param codec   the encoding of the messages.
+     * @return the core message followed by the chunk messages, or only the message itself if it has no stages.
+     */
+    static List<JSONObject> split(JSONObject json, int maxSize, MessageCodec codec) {
+        Object stages = json.get(PipelineProvider.KEY_PIPELINE);
+        if (!(stages instanceof JSONArray) || ((JSONArray)stages).isEmpty()) {
+            return Collections.singletonList(json);
+        }
+
+        JSONObject envelope = new JSONObject();
+        envelope.put(Util.KEY_STATE, Util.VALUE_PIPELINE_CHUNK);
+        for (String key : ENVELOPE_KEYS) {
+            if (json.containsKey(key)) {
+                envelope.put(key, json.get(key));
+            }
+        }
+        int empty = lengthOf(codec, new JSONArray());
+        int budget = maxSize - codec.encode(envelope).length - CHUNK_OVERHEAD;
+
+        List<JSONArray> groups = new ArrayList<JSONArray>();
+        JSONArray group = new JSONArray();
+        int size = empty;
+        for (Object stage : (JSONArray)stages) {
+            JSONArray single = new JSONArray();
+            single.add(stage);
+            // the separator between stages, for JSON
+            int length = lengthOf(codec, single) - empty + 1;
+            if (!group.isEmpty() && size + length > budget) {
+                groups.add(group);
+                group = new JSONArray();
+                size = empty;
+            }
+            group.add(stage);
+            size += length;
+        }
+        groups.add(group);
+
+        int total = groups.size();
+        JSONObject core = new JSONObject();
+        for (Object key : json.keySet()) {
+            if (!PipelineProvider.KEY_PIPELINE.equals(key)) {
+                core.put(key, json.get(key));
+            }
+        }
+        core.put(Util.KEY_PIPELINE_CHUNKS, total);
+
+        List<JSONObject> parts = new ArrayList<JSONObject>(total + 1);
+        parts.add(core);
+        for (int i = 0; i < total; i++) {
+            JSONObject chunk = new JSONObject();
+            chunk.putAll(envelope);
+            chunk.put(Util.KEY_CHUNK_SEQUENCE, i + 1);
+            chunk.put(Util.KEY_CHUNK_TOTAL, total);
+            chunk.put(PipelineProvider.KEY_PIPELINE, groups.get(i));
+            parts.add(chunk);
+        }
+        return parts;
+    }
+
+    /**
+     * Gets the encoded length of a stage list on its own.
+     *
+     * @param codec  the encoding.
+     * @param stages the stages.
+     * @return the number of bytes.
+     */
+    private static int lengthOf(MessageCodec codec, JSONArray stages) {
+        JSONObject json = new JSONObject();
+        json.put(PipelineProvider.KEY_PIPELINE, stages);
+        return codec.encode(json).length;
+    }
+}
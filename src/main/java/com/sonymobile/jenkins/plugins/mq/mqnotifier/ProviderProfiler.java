@@ -0,0 +1,458 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects per provider and hook statistics of the data providers: invocations, latency histogram,
+ * contributed bytes, exceptions and skips.
+ * <p>
+ * When a p99 limit is configured, the latencies of every provider hook are also evaluated in windows
+ * of {@link #WINDOW} invocations, from the exact latencies rather than the histogram buckets, whose bounds
+ * are too coarse to compare with a limit. A provider whose p99 is above the limit in {@link #STRIKES}
+ * consecutive windows is disabled until it is enabled again from the status page.
+ * <p>
+ * The contributed bytes are measured on every {@link #BYTES_SAMPLE}th invocation only, as they are found by
+ * serializing the added fields, and scaled to all invocations.
+ */
+public final class ProviderProfiler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProviderProfiler.class);
+
+    /** Upper bounds in milliseconds of the latency histogram buckets, the last bucket is unbounded. */
+    //CS IGNORE MagicNumber FOR NEXT 1 LINES. REASON: Bucket bounds.
+    static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    /** Number of invocations per guard window. */
+    static final int WINDOW = 100;
+    /** Number of consecutive windows above the limit that disable a provider. */
+    static final int STRIKES = 3;
+    /** One in this many invocations has its contributed bytes measured. */
+    static final int BYTES_SAMPLE = 16;
+    private static final double P99 = 0.99;
+
+    private static final ProviderProfiler INSTANCE = new ProviderProfiler();
+
+    /* Statistics keyed by provider class name and hook. */
+    private final ConcurrentHashMap<String, HookStats> stats = new ConcurrentHashMap<String, HookStats>();
+    /* Class names of disabled providers. */
+    private final Set<String> disabled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Singleton.
+     */
+    private ProviderProfiler() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    public static ProviderProfiler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Calls a provider hook and records its statistics.
+     *
+     * @param provider the provider.
+     * @param hookName the name of the hook.
+     * @param hook     the hook.
+     * @param json     the json object the provider adds information to.
+     * @param p99Limit the guard limit in milliseconds, 0 or less if the guard is off.
+     */
+    void invoke(MQDataProvider provider, String hookName, ProviderRunner.Hook hook, JSONObject json,
+                long p99Limit) {
+        HookStats hookStats = getStats(provider, hookName);
+        boolean sampled = hookStats.invocations.get() % BYTES_SAMPLE == 0;
+        Set<Object> before = null;
+        if (sampled) {
+            before = json.isEmpty() ? Collections.emptySet() : new HashSet<Object>(json.keySet());
+        }
+        long start = System.nanoTime();
+        try {
+            hook.provide(provider, json);
+        } catch (RuntimeException e) {
+            hookStats.errors.incrementAndGet();
+            throw e;
+        } finally {
+            long latency = System.nanoTime() - start;
+            if (hookStats.record(latency, p99Limit) && disabled.add(hookStats.provider)) {
+                LOGGER.warn("Data provider {} is disabled, its p99 latency of {} ms in {} stayed above {} ms",
+                        hookStats.provider, hookStats.windowP99, hookName, p99Limit);
+            }
+        }
+        if (sampled) {
+            long bytes = 0;
+            for (Object key : json.keySet()) {
+                if (!before.contains(key)) {
+                    bytes += String.valueOf(key).length() + JSONUtils.valueToString(json.get(key)).length();
+                }
+            }
+            hookStats.bytes.addAndGet(bytes);
+            hookStats.samples.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a provider hook was skipped for an event.
+     *
+     * @param provider the provider.
+     * @param hookName the name of the hook.
+     * @return the number of earlier skips.
+     */
+    long skipped(MQDataProvider provider, String hookName) {
+        return getStats(provider, hookName).skips.getAndIncrement();
+    }
+
+    /**
+     * Returns true if the provider has been disabled by the guard.
+     *
+     * @param provider the provider.
+     * @return true if disabled.
+     */
+    boolean isDisabled(MQDataProvider provider) {
+        return !disabled.isEmpty() && disabled.contains(provider.getClass().getName());
+    }
+
+    /**
+     * Enables a provider that was disabled by the guard.
+     *
+     * @param providerName the class name of the provider.
+     */
+    void enable(String providerName) {
+        if (disabled.remove(providerName)) {
+            for (HookStats hookStats : stats.values()) {
+                if (hookStats.provider.equals(providerName)) {
+                    hookStats.resetWindow();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the class names of the disabled providers.
+     *
+     * @return the disabled providers, sorted.
+     */
+    public Set<String> getDisabled() {
+        return new TreeSet<String>(disabled);
+    }
+
+    /**
+     * Gets the statistics of all provider hooks that have been called.
+     *
+     * @return the statistics, sorted by provider and hook.
+     */
+    public List<HookStats> getStats() {
+        List<HookStats> list = new ArrayList<HookStats>(stats.values());
+        Collections.sort(list, new Comparator<HookStats>() {
+            @Override
+            public int compare(HookStats a, HookStats b) {
+                return a.key.compareTo(b.key);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Gets the statistics of a provider hook, creating them on first use.
+     *
+     * @param provider the provider.
+     * @param hookName the name of the hook.
+     * @return the statistics.
+     */
+    private HookStats getStats(MQDataProvider provider, String hookName) {
+        String name = provider.getClass().getName();
+        String key = name + "#" + hookName;
+        HookStats hookStats = stats.get(key);
+        if (hookStats == null) {
+            HookStats created = new HookStats(key, name, hookName);
+            hookStats = stats.putIfAbsent(key, created);
+            if (hookStats == null) {
+                hookStats = created;
+            }
+        }
+        return hookStats;
+    }
+
+    /**
+     * Gets the bucket upper bound below which the given share of the counted latencies lie.
+     *
+     * @param counts     the bucket counts.
+     * @param total      the sum of the counts.
+     * @param percentile the share, between 0 and 1.
+     * @return the upper bound in milliseconds, {@link Long#MAX_VALUE} for the unbounded bucket, -1 if empty.
+     */
+    static long percentile(long[] counts, long total, double percentile) {
+        if (total <= 0) {
+            return -1;
+        }
+        long rank = (long)Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i < BUCKETS.length ? BUCKETS[i] : Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the exact latency below which the given share of the samples lie.
+     *
+     * @param samples    the latencies, in any order; they are sorted.
+     * @param count      the number of samples.
+     * @param percentile the share, between 0 and 1.
+     * @return the latency, -1 if there are no samples.
+     */
+    static long exactPercentile(long[] samples, int count, double percentile) {
+        if (count <= 0) {
+            return -1;
+        }
+        Arrays.sort(samples, 0, count);
+        int rank = (int)Math.ceil(percentile * count);
+        return samples[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Scales the bytes of the sampled invocations to all invocations.
+     *
+     * @param sampledBytes the bytes contributed by the sampled invocations.
+     * @param samples      the number of sampled invocations.
+     * @param invocations  the number of invocations.
+     * @return the estimated bytes of all invocations.
+     */
+    static long estimate(long sampledBytes, long samples, long invocations) {
+        if (samples <= 0) {
+            return 0;
+        }
+        return Math.round(sampledBytes * ((double)Math.max(invocations, samples) / samples));
+    }
+
+    /**
+     * Gets the histogram bucket of a latency.
+     *
+     * @param millis the latency in milliseconds.
+     * @return the bucket index.
+     */
+    static int bucket(long millis) {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (millis <= BUCKETS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS.length;
+    }
+
+    /**
+     * The statistics of one hook of one provider.
+     */
+    public static final class HookStats {
+        private final String key;
+        private final String provider;
+        private final String hook;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong skips = new AtomicLong();
+        /* The bytes contributed by the sampled invocations, and their number. */
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+        /* Latencies in milliseconds of the guard window, guarded by itself. */
+        private final long[] window = new long[WINDOW];
+        private int windowCount;
+        private int strikes;
+        /* The p99 latency of the last complete guard window. */
+        private volatile long windowP99;
+
+        /**
+         * Constructor.
+         *
+         * @param key      the map key.
+         * @param provider the provider class name.
+         * @param hook     the hook name.
+         */
+        private HookStats(String key, String provider, String hook) {
+            this.key = key;
+            this.provider = provider;
+            this.hook = hook;
+        }
+
+        /**
+         * Records one invocation.
+         *
+         * @param nanos    the latency in nanoseconds.
+         * @param p99Limit the guard limit in milliseconds, 0 or less if the guard is off.
+         * @return true if the provider should be disabled.
+         */
+        private boolean record(long nanos, long p99Limit) {
+            invocations.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            histogram.incrementAndGet(bucket(millis));
+            if (p99Limit <= 0) {
+                return false;
+            }
+            synchronized (window) {
+                window[windowCount] = millis;
+                if (++windowCount < WINDOW) {
+                    return false;
+                }
+                windowP99 = exactPercentile(window, windowCount, P99);
+                if (windowP99 > p99Limit) {
+                    strikes++;
+                } else {
+                    strikes = 0;
+                }
+                windowCount = 0;
+                return strikes >= STRIKES;
+            }
+        }
+
+        /**
+         * Starts a new guard window.
+         */
+        private void resetWindow() {
+            synchronized (window) {
+                Arrays.fill(window, 0);
+                windowCount = 0;
+                strikes = 0;
+            }
+        }
+
+        /**
+         * Gets the provider class name.
+         *
+         * @return the provider.
+         */
+        public String getProvider() {
+            return provider;
+        }
+
+        /**
+         * Gets the hook name.
+         *
+         * @return the hook.
+         */
+        public String getHook() {
+            return hook;
+        }
+
+        /**
+         * Gets the number of invocations.
+         *
+         * @return the invocations.
+         */
+        public long getInvocations() {
+            return invocations.get();
+        }
+
+        /**
+         * Gets the number of invocations that threw an exception.
+         *
+         * @return the errors.
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * Gets the number of events the hook was skipped for.
+         *
+         * @return the skips.
+         */
+        public long getSkips() {
+            return skips.get();
+        }
+
+        /**
+         * Gets the number of bytes contributed to events, as serialized JSON, estimated from the sampled
+         * invocations.
+         *
+         * @return the bytes.
+         */
+        public long getBytes() {
+            return estimate(bytes.get(), samples.get(), invocations.get());
+        }
+
+        /**
+         * Gets the mean latency.
+         *
+         * @return the mean latency in milliseconds.
+         */
+        public double getMeanMillis() {
+            long count = invocations.get();
+            return count > 0 ? totalNanos.get() / (double)TimeUnit.MILLISECONDS.toNanos(1) / count : 0;
+        }
+
+        /**
+         * Gets a latency percentile, with the resolution of the histogram buckets.
+         *
+         * @param percentile the share, between 0 and 1.
+         * @return the bucket upper bound in milliseconds, {@link Long#MAX_VALUE} for the unbounded bucket,
+         *         -1 if there are no invocations.
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = getHistogram();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return percentile(counts, total, percentile);
+        }
+
+        /**
+         * Gets the latency histogram.
+         *
+         * @return the count per bucket of {@link #BUCKETS}, followed by the count of the unbounded bucket.
+         */
+        public long[] getHistogram() {
+            long[] counts = new long[histogram.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.get(i);
+            }
+            return counts;
+        }
+    }
+}
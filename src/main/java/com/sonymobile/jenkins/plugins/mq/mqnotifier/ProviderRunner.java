@@ -0,0 +1,324 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the data providers of an event.
+ * <p>
+ * With a provider time budget configured, the providers run concurrently on a shared bounded pool, each
+ * writing into its own fragment, and the fragments are merged in provider order afterwards. The budget of a
+ * provider starts when it starts running, so time spent waiting for a pool thread is not taken from it. A provider
+ * that does not finish within its budget, or fails, is skipped for the event: its fields are listed in
+ * {@link Util#KEY_MISSING_FIELDS} and the skip is counted. A provider that keeps running after it was cancelled is
+ * bypassed until it returns, so that it cannot take over the pool. Every call is recorded by the
+ * {@link ProviderProfiler}, and providers it has disabled are not called. Without a budget, the default, the providers
+ * run one after another on the listener thread, writing into the event directly, so that they see the fields of the
+ * providers before them; with a budget they only see their own fragment.
+ */
+final class ProviderRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProviderRunner.class);
+    private static final int POOL_SIZE = 4;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long KEEP_ALIVE = 60;
+
+    private static final ThreadPoolExecutor POOL;
+    static {
+        POOL = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new NamingThreadFactory(new DaemonThreadFactory(), "MQ Notifier provider"));
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /* Providers with threads still running after they were cancelled, with their number. Guarded by itself. */
+    private static final Map<MQDataProvider, Integer> STUCK = new HashMap<MQDataProvider, Integer>();
+
+    /**
+     * Utility classes should not have a public or default constructor.
+     */
+    private ProviderRunner() {
+    }
+
+    /** Name of the hook for items entering the queue. */
+    static final String ENTER_WAITING_QUEUE = "provideEnterWaitingQueueData";
+    /** Name of the hook for items leaving the queue. */
+    static final String LEFT_QUEUE = "provideLeftQueueData";
+    /** Name of the hook for completed builds. */
+    static final String COMPLETED_RUN = "provideCompletedRunData";
+    /** Name of the hook for node state changes. */
+    static final String COMPUTER = "provideComputerData";
+
+    /**
+     * Calls one hook of a provider.
+     */
+    interface Hook {
+        /**
+         * Lets the provider add its data.
+         *
+         * @param provider the provider.
+         * @param json     the json object the provider should add information to.
+         */
+        void provide(MQDataProvider provider, JSONObject json);
+    }
+
+    /**
+     * Runs the wanted providers of an event.
+     *
+     * @param config   the configuration, may be null.
+     * @param routes   the routes, used to skip providers whose fields no route delivers.
+     * @param json     the event.
+     * @param hookName the name of the hook, for the statistics.
+     * @param hook     the hook to call on every provider.
+     */
+    static void run(MQNotifierConfig config, RouteTable routes, JSONObject json, String hookName, Hook hook) {
+        long budget = config != null ? config.getProviderBudget() : 0;
+        long p99Limit = config != null ? config.getProviderP99Limit() : 0;
+        ProviderProfiler profiler = ProviderProfiler.getInstance();
+        List<MQDataProvider> providers = new ArrayList<MQDataProvider>();
+        for (MQDataProvider provider : EventContext.getInstance().getProviders()) {
+            if (routes.wants(provider) && !profiler.isDisabled(provider)) {
+                providers.add(provider);
+            }
+        }
+        run(providers, budget, p99Limit, json, hookName, hook);
+    }
+
+    /**
+     * Runs the given providers of an event.
+     *
+     * @param providers the providers, in order.
+     * @param budget    the time in milliseconds each provider may take, 0 or less to run them one after another.
+     * @param p99Limit  the guard limit of the profiler in milliseconds, 0 or less if the guard is off.
+     * @param json      the event.
+     * @param hookName  the name of the hook, for the statistics.
+     * @param hook      the hook to call on every provider.
+     */
+    static void run(List<MQDataProvider> providers, long budget, final long p99Limit, JSONObject json,
+                    final String hookName, final Hook hook) {
+        final ProviderProfiler profiler = ProviderProfiler.getInstance();
+        if (budget <= 0 || providers.isEmpty()) {
+            for (MQDataProvider provider : providers) {
+                profiler.invoke(provider, hookName, hook, json, p99Limit);
+            }
+            return;
+        }
+
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(budget);
+        // a provider waiting for a pool thread never waits longer than running the providers one by one would
+        long queueDeadline = System.nanoTime() + budgetNanos * providers.size();
+        List<Task> tasks = new ArrayList<Task>(providers.size());
+        for (MQDataProvider provider : providers) {
+            Task task = null;
+            if (!isStuck(provider)) {
+                task = new Task(provider, hookName, hook, p99Limit);
+                try {
+                    task.future = POOL.submit(task);
+                } catch (RejectedExecutionException e) {
+                    task = null;
+                }
+            }
+            tasks.add(task);
+        }
+        JSONArray missing = new JSONArray();
+        for (int i = 0; i < providers.size(); i++) {
+            MQDataProvider provider = providers.get(i);
+            Task task = tasks.get(i);
+            if (task != null && task.await(budgetNanos, queueDeadline)) {
+                json.putAll(task.fragment);
+            } else {
+                skipped(provider, hookName, missing);
+            }
+        }
+        if (!missing.isEmpty()) {
+            json.put(Util.KEY_MISSING_FIELDS, missing);
+        }
+    }
+
+    /**
+     * Returns true if a thread of the provider is still running after it was cancelled. The provider is then
+     * bypassed, so that a provider that ignores interruption cannot take over the pool.
+     *
+     * @param provider the provider.
+     * @return true if the provider should be bypassed.
+     */
+    private static boolean isStuck(MQDataProvider provider) {
+        synchronized (STUCK) {
+            return STUCK.containsKey(provider);
+        }
+    }
+
+    /**
+     * Records that a provider was skipped for an event.
+     *
+     * @param provider the provider.
+     * @param hookName the name of the hook.
+     * @param missing  the missing fields of the event.
+     */
+    private static void skipped(MQDataProvider provider, String hookName, JSONArray missing) {
+        String name = provider.getClass().getName();
+        if (ProviderProfiler.getInstance().skipped(provider, hookName) == 0) {
+            LOGGER.warn("Data provider {} failed or exceeded its time budget and was skipped", name);
+        }
+        Set<String> keys = provider.getProvidedKeys();
+        if (keys != null) {
+            missing.addAll(keys);
+        } else {
+            missing.add(name);
+        }
+    }
+
+    /**
+     * Calls the hook of one provider on a pool thread, writing into its own fragment.
+     * Its budget starts when it starts running, not when it is submitted.
+     */
+    private static final class Task implements Runnable {
+        private final MQDataProvider provider;
+        private final String hookName;
+        private final Hook hook;
+        private final long p99Limit;
+        private final JSONObject fragment = new JSONObject();
+        private final CountDownLatch begun = new CountDownLatch(1);
+        private volatile long started;
+        private Future<?> future;
+        /* Guarded by this. */
+        private boolean running;
+        private boolean abandoned;
+
+        /**
+         * Constructor.
+         *
+         * @param provider the provider.
+         * @param hookName the name of the hook, for the statistics.
+         * @param hook     the hook to call.
+         * @param p99Limit the guard limit of the profiler in milliseconds.
+         */
+        private Task(MQDataProvider provider, String hookName, Hook hook, long p99Limit) {
+            this.provider = provider;
+            this.hookName = hookName;
+            this.hook = hook;
+            this.p99Limit = p99Limit;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (abandoned) {
+                    return;
+                }
+                running = true;
+            }
+            started = System.nanoTime();
+            begun.countDown();
+            try {
+                ProviderProfiler.getInstance().invoke(provider, hookName, hook, fragment, p99Limit);
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (abandoned) {
+                        unstuck(provider);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits for the provider to finish within its budget, cancelling it otherwise.
+         *
+         * @param budget        the budget in nanoseconds, from the start of the provider.
+         * @param queueDeadline the time by which the provider must have started.
+         * @return true if the provider finished in time.
+         */
+        private boolean await(long budget, long queueDeadline) {
+            try {
+                if (begun.await(Math.max(0, queueDeadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    future.get(Math.max(0, started + budget - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    return true;
+                }
+            } catch (TimeoutException e) {
+                LOGGER.debug("Data provider {} exceeded its time budget", provider.getClass().getName());
+            } catch (ExecutionException e) {
+                LOGGER.warn("Data provider {} failed", provider.getClass().getName(), e.getCause());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            abandon();
+            return false;
+        }
+
+        /**
+         * Cancels the provider. If it is running and does not react to the interruption, it is counted as stuck
+         * until it returns.
+         */
+        private void abandon() {
+            future.cancel(true);
+            synchronized (this) {
+                abandoned = true;
+                if (running) {
+                    synchronized (STUCK) {
+                        Integer count = STUCK.get(provider);
+                        STUCK.put(provider, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Counts a cancelled thread of a provider that has returned.
+         *
+         * @param stuck the provider.
+         */
+        private static void unstuck(MQDataProvider stuck) {
+            synchronized (STUCK) {
+                Integer count = STUCK.get(stuck);
+                if (count == null || count <= 1) {
+                    STUCK.remove(stuck);
+                } else {
+                    STUCK.put(stuck, count - 1);
+                }
+            }
+        }
+    }
+}
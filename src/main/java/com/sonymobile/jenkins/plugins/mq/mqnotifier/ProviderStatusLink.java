@@ -0,0 +1,133 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Status page with the statistics of the data providers and the delivery latencies.
+ */
+@Extension
+public class ProviderStatusLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "MQ Notifier Providers";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Invocations, latencies, contributed bytes and errors of the MQ Notifier data providers,"
+                + " and the latencies of the message delivery stages.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "mq-notifier-providers";
+    }
+
+    /**
+     * Gets the statistics of all provider hooks.
+     *
+     * @return the statistics.
+     */
+    public List<ProviderProfiler.HookStats> getStats() {
+        return ProviderProfiler.getInstance().getStats();
+    }
+
+    /**
+     * Gets the providers that were disabled for being too slow.
+     *
+     * @return the class names of the disabled providers.
+     */
+    public Set<String> getDisabled() {
+        return ProviderProfiler.getInstance().getDisabled();
+    }
+
+    /**
+     * Gets the latency statistics of the delivery stages.
+     *
+     * @return the statistics.
+     */
+    public List<DeliveryLatency.StageStats> getStages() {
+        return DeliveryLatency.getInstance().getStages();
+    }
+
+    /**
+     * Formats a percentile for display.
+     *
+     * @param millis the bucket bound from {@link ProviderProfiler.HookStats#getPercentile(double)}.
+     * @return the formatted value.
+     */
+    public String formatPercentile(long millis) {
+        if (millis < 0) {
+            return "-";
+        } else if (millis == Long.MAX_VALUE) {
+            return "> " + ProviderProfiler.BUCKETS[ProviderProfiler.BUCKETS.length - 1] + " ms";
+        }
+        return "<= " + millis + " ms";
+    }
+
+    /**
+     * Formats a delivery latency percentile for display.
+     *
+     * @param millis the bucket bound from {@link DeliveryLatency.StageStats#getPercentile(double)}.
+     * @return the formatted value.
+     */
+    public String formatLatency(long millis) {
+        if (millis < 0) {
+            return "-";
+        } else if (millis == Long.MAX_VALUE) {
+            return "> " + DeliveryLatency.BUCKETS[DeliveryLatency.BUCKETS.length - 1] + " ms";
+        }
+        return "<= " + millis + " ms";
+    }
+
+    /**
+     * Enables a provider that was disabled.
+     *
+     * @param provider the class name of the provider.
+     * @return redirect to the status page.
+     */
+    @RequirePOST
+    public HttpResponse doEnable(@QueryParameter String provider) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        ProviderProfiler.getInstance().enable(provider);
+        return HttpResponses.redirectToDot();
+    }
+}
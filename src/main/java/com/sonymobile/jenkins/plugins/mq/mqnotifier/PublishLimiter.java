@@ -0,0 +1,188 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limits for the dispatcher, so that catching up after an outage does not flood a shared broker.
+ * <p>
+ * There is a global limit and one per route, each in messages and in bytes per second. Every bucket holds
+ * up to the burst time worth of tokens. Queued messages only carry their routing key, so a route limit applies
+ * to all messages with the routing key of the route. The limiter does not sleep: it tells the dispatcher how
+ * long to wait until the first message in the queue may be sent.
+ */
+final class PublishLimiter {
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private final RouteTable table;
+    private final Limit global;
+    private final Map<String, Limit> routes = new HashMap<String, Limit>();
+
+    /**
+     * Constructor.
+     *
+     * @param config the configuration.
+     * @param table  the routes the limiter is created for.
+     */
+    PublishLimiter(MQNotifierConfig config, RouteTable table) {
+        this.table = table;
+        long burst = config.getPublishBurst();
+        this.global = new Limit(config.getPublishRate(), config.getPublishByteRate(), burst);
+        for (RouteTable.CompiledRoute route : table.getRoutes()) {
+            if ((route.getRateLimit() > 0 || route.getByteRateLimit() > 0)
+                    && !routes.containsKey(route.getRoutingKey())) {
+                routes.put(route.getRoutingKey(), new Limit(route.getRateLimit(), route.getByteRateLimit(), burst));
+            }
+        }
+    }
+
+    /**
+     * Returns true if the limiter was created for these routes.
+     *
+     * @param routeTable the current routes.
+     * @return true if the limiter is current.
+     */
+    boolean isFor(RouteTable routeTable) {
+        return table == routeTable;
+    }
+
+    /**
+     * Takes the tokens for a message if all its limits allow it.
+     *
+     * @param routingKey the routing key of the message.
+     * @param bytes      the size of the message body.
+     * @return 0 if the message may be sent now, otherwise the time in milliseconds until it may be.
+     */
+    synchronized long acquire(String routingKey, int bytes) {
+        long now = System.nanoTime();
+        Limit route = routes.get(routingKey);
+        long wait = global.wait(bytes, now);
+        if (route != null) {
+            wait = Math.max(wait, route.wait(bytes, now));
+        }
+        if (wait == 0) {
+            global.take(bytes);
+            if (route != null) {
+                route.take(bytes);
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * A message rate and a byte rate limit.
+     */
+    private static final class Limit {
+        private final Bucket messages;
+        private final Bucket bytes;
+
+        /**
+         * Constructor.
+         *
+         * @param messageRate messages per second, no limit if 0 or less.
+         * @param byteRate    bytes per second, no limit if 0 or less.
+         * @param burst       the burst time in milliseconds.
+         */
+        private Limit(long messageRate, long byteRate, long burst) {
+            this.messages = messageRate > 0 ? new Bucket(messageRate, burst) : null;
+            this.bytes = byteRate > 0 ? new Bucket(byteRate, burst) : null;
+        }
+
+        /**
+         * Gets the time until a message may be sent.
+         *
+         * @param size the message size.
+         * @param now  the current time in nanoseconds.
+         * @return the time in milliseconds, 0 if it may be sent now.
+         */
+        private long wait(int size, long now) {
+            long wait = 0;
+            if (messages != null) {
+                wait = messages.wait(1, now);
+            }
+            if (bytes != null) {
+                wait = Math.max(wait, bytes.wait(size, now));
+            }
+            return wait;
+        }
+
+        /**
+         * Takes the tokens for a message.
+         *
+         * @param size the message size.
+         */
+        private void take(int size) {
+            if (messages != null) {
+                messages.tokens -= 1;
+            }
+            if (bytes != null) {
+                bytes.tokens -= size;
+            }
+        }
+    }
+
+    /**
+     * A token bucket.
+     */
+    private static final class Bucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long refilled;
+
+        /**
+         * Constructor, the bucket starts full.
+         *
+         * @param perSecond the tokens added per second.
+         * @param burst     the burst time in milliseconds, the bucket holds a single token if 0 or less.
+         */
+        private Bucket(long perSecond, long burst) {
+            this.rate = perSecond / (double)TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, perSecond * Math.max(0, burst) / (double)MILLIS_PER_SECOND);
+            this.tokens = capacity;
+            this.refilled = System.nanoTime();
+        }
+
+        /**
+         * Refills the bucket and gets the time until it holds enough tokens.
+         * An amount larger than the bucket only needs a full bucket, the bucket then goes into debt.
+         *
+         * @param amount the tokens needed.
+         * @param now    the current time in nanoseconds.
+         * @return the time in milliseconds, 0 if there are enough tokens.
+         */
+        private long wait(long amount, long now) {
+            tokens = Math.min(capacity, tokens + (now - refilled) * rate);
+            refilled = now;
+            double missing = Math.min(amount, capacity) - tokens;
+            if (missing <= 0) {
+                return 0;
+            }
+            return Math.max(1, (long)Math.ceil(missing / rate / TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+}
@@ -23,7 +23,6 @@
  */
 package com.sonymobile.jenkins.plugins.mq.mqnotifier;
 
-import com.rabbitmq.client.AMQP;
 import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
 import hudson.Extension;
 import hudson.model.Label;
@@ -31,15 +30,13 @@ import hudson.model.Queue;
 import hudson.model.queue.QueueListener;
 import net.sf.json.JSONObject;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Calendar;
 
 /**
  * Receives notifications about when tasks are submitted to the queue and publishes
  * messages on configured MQ server.
  * @author Tomas Westling &lt;tomas.westling@sonymobile.com&gt;
  */
-//@Extension
+@Extension
 public class QueueListenerImpl extends QueueListener {
     private static MQNotifierConfig config;
 
@@ -60,18 +57,49 @@ public class QueueListenerImpl extends QueueListener {
     }
 
     @Override
-    public void onEnterWaiting(Queue.WaitingItem wi) {
+    public void onEnterWaiting(final Queue.WaitingItem wi) {
+        long captured = System.currentTimeMillis();
+        MQNotifierConfig cfg = getConfig();
+        if (!isPublished(cfg, wi)) {
+            return;
+        }
+        if (cfg.isLifecycleEvents()) {
+            LifecycleCorrelator.getInstance().entered(wi, cfg);
+        }
+        // with lifecycle events the item is announced by the completed event of its build
+        if (!cfg.isQueueEvents() || cfg.isLifecycleEvents()) {
+            return;
+        }
         JSONObject json = new JSONObject();
         json.put(Util.KEY_STATE, Util.VALUE_ADDED_TO_QUEUE);
         populateCommon(json, wi);
-        for (MQDataProvider mqDataProvider : MQDataProvider.all()) {
-            mqDataProvider.provideEnterWaitingQueueData(wi, json);
-        }
-        publish(json);
+        RouteTable routes = MessagePublisher.getRoutes(cfg);
+        ProviderRunner.run(cfg, routes, json, ProviderRunner.ENTER_WAITING_QUEUE, new ProviderRunner.Hook() {
+            @Override
+            public void provide(MQDataProvider provider, JSONObject fragment) {
+                provider.provideEnterWaitingQueueData(wi, fragment);
+            }
+        });
+        publish(json, captured);
     }
 
     @Override
-    public void onLeft(Queue.LeftItem li) {
+    public void onLeft(final Queue.LeftItem li) {
+        long captured = System.currentTimeMillis();
+        MQNotifierConfig cfg = getConfig();
+        if (cfg != null && cfg.isNotifierEnabled()) {
+            RollupAggregator.getInstance().left(li, cfg);
+        }
+        if (!isPublished(cfg, li)) {
+            return;
+        }
+        if (cfg.isLifecycleEvents()) {
+            LifecycleCorrelator.getInstance().left(li, cfg);
+        }
+        // only cancelled items have no completed event to join into
+        if (!cfg.isQueueEvents() || cfg.isLifecycleEvents() && !li.isCancelled()) {
+            return;
+        }
         JSONObject json = new JSONObject();
         json.put(Util.KEY_STATE, Util.VALUE_REMOVED_FROM_QUEUE);
         if (li.isCancelled()) {
@@ -82,33 +110,46 @@ public class QueueListenerImpl extends QueueListener {
         }
         populateCommon(json, li);
 
-        for (MQDataProvider mqDataProvider : MQDataProvider.all()) {
-            mqDataProvider.provideLeftQueueData(li, json);
-        }
-        publish(json);
+        RouteTable routes = MessagePublisher.getRoutes(cfg);
+        ProviderRunner.run(cfg, routes, json, ProviderRunner.LEFT_QUEUE, new ProviderRunner.Hook() {
+            @Override
+            public void provide(MQDataProvider provider, JSONObject fragment) {
+                provider.provideLeftQueueData(li, fragment);
+            }
+        });
+        publish(json, captured);
     }
 
     /**
-     * Publish json message on configured MQ server.
+     * Returns true if the notifier is enabled and the event filter lets the events of a queue item through.
      *
-     * @param json the message in json format
+     * @param cfg  the configuration, may be null.
+     * @param item the queue item.
+     * @return true if the events are published.
      */
-    private void publish(JSONObject json) {
+    private static boolean isPublished(MQNotifierConfig cfg, Queue.Item item) {
+        return cfg != null && cfg.isNotifierEnabled() && cfg.getEventFilter().accepts(item);
+    }
+
+    /**
+     * Gets the configuration, cached after the first lookup.
+     *
+     * @return the configuration, or null if not available.
+     */
+    private static MQNotifierConfig getConfig() {
         if (config == null) {
             config = MQNotifierConfig.getInstance();
         }
-        if (config != null && config.isNotifierEnabled()) {
-            AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
-            int dm = 1;
-            if (config.getPersistentDelivery()) {
-                dm = 2;
-            }
-            bob.appId(config.getAppId());
-            bob.deliveryMode(dm);
-            bob.contentType(Util.CONTENT_TYPE);
-            bob.timestamp(Calendar.getInstance().getTime());
-            MQConnection.getInstance().addMessageToQueue(config.getExchangeName(), config.getRoutingKey(),
-                    bob.build(), json.toString().getBytes(StandardCharsets.UTF_8));
-        }
+        return config;
+    }
+
+    /**
+     * Publish json message on configured MQ server.
+     *
+     * @param json     the message in json format
+     * @param captured the time the event was captured
+     */
+    private void publish(JSONObject json, long captured) {
+        MessagePublisher.publish(getConfig(), json, captured);
     }
 }
@@ -0,0 +1,338 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.model.Label;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the state of the whole build queue every interval, so consumers do not have to rebuild it
+ * from the queue events.
+ * <p>
+ * The items are read from the lock-free snapshot that the queue keeps of itself. Each message carries the
+ * counts of the queue, and its items in columns, where labels, reasons and statuses are indexes into a
+ * table of the strings of the message. When deltas are enabled only every n-th message is a complete
+ * {@code QUEUE_SNAPSHOT}; the others are a {@code QUEUE_DELTA} with the items that are new or changed and
+ * the ids of those that left since the previous message. Every message has a sequence number, and a delta
+ * names the one it applies to, so a consumer that missed a message waits for the next snapshot.
+ */
+final class QueueSnapshotter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueSnapshotter.class);
+
+    /** Column of the queue item ids. */
+    static final String COLUMN_ID = "id";
+    /** Column of the full job names. */
+    static final String COLUMN_JOB = "job";
+    /** Column of the times the items entered the queue. */
+    static final String COLUMN_SINCE = "since";
+    /** Column of the label expressions. */
+    static final String COLUMN_LABEL = "label";
+    /** Column of the reasons the items are still waiting. */
+    static final String COLUMN_REASON = "reason";
+    /** Column of the item statuses. */
+    static final String COLUMN_STATUS = "status";
+
+    private static final String WAITING = "waiting";
+    private static final String BLOCKED = "blocked";
+    private static final String BUILDABLE = "buildable";
+    private static final String PENDING = "pending";
+    /* Reason of the items in the quiet period, whose own reason counts down the time left. */
+    private static final String QUIET_PERIOD = "In the quiet period";
+
+    private static final QueueSnapshotter INSTANCE = new QueueSnapshotter();
+
+    /* The items of the previous message, by id. Only used by the periodic task. */
+    private Map<Long, Row> previous = Collections.emptyMap();
+    private long sequence;
+    /* Number of deltas since the last snapshot, the first message is a snapshot. */
+    private int sinceSnapshot = Integer.MAX_VALUE;
+
+    private ScheduledFuture<?> task;
+    private long scheduledInterval;
+
+    /**
+     * Creates an instance, the singleton or one for tests.
+     */
+    QueueSnapshotter() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    static QueueSnapshotter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts, reschedules or stops the periodic task according to the configuration.
+     *
+     * @param config the configuration.
+     */
+    synchronized void configure(MQNotifierConfig config) {
+        boolean enabled = config.isQueueSnapshots() && config.getQueueSnapshotInterval() > 0;
+        long interval = config.getQueueSnapshotInterval();
+        if (task != null && (!enabled || interval != scheduledInterval)) {
+            task.cancel(false);
+            task = null;
+        }
+        if (enabled && task == null) {
+            scheduledInterval = interval;
+            // the next message is a snapshot
+            sinceSnapshot = Integer.MAX_VALUE;
+            task = Timer.get().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        tick();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Publishing the queue snapshot failed", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic task, on shutdown.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Captures the queue and publishes it.
+     */
+    private void tick() {
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (config == null || jenkins == null || !config.isNotifierEnabled()) {
+            return;
+        }
+        JSONObject json = next(capture(jenkins.getQueue()), System.currentTimeMillis(),
+                config.getQueueSnapshotFullEvery());
+        MessagePublisher.publish(config, json);
+    }
+
+    /**
+     * Reads the items of the queue, from the snapshot that the queue keeps so its lock is not taken.
+     *
+     * @param queue the queue.
+     * @return the items by id.
+     */
+    private static Map<Long, Row> capture(Queue queue) {
+        Queue.Item[] items = queue.getItems();
+        Map<Long, Row> rows = new LinkedHashMap<Long, Row>(items.length * 2);
+        for (Queue.Item item : items) {
+            String status = WAITING;
+            if (item instanceof Queue.BlockedItem) {
+                status = BLOCKED;
+            } else if (item instanceof Queue.BuildableItem) {
+                status = ((Queue.BuildableItem)item).isPending() ? PENDING : BUILDABLE;
+            }
+            // with the countdown, every waiting item would be in every delta
+            String reason = status.equals(WAITING) ? QUIET_PERIOD : String.valueOf(item.getWhy());
+            Label label = item.getAssignedLabel();
+            rows.put(item.getId(), new Row(item.getId(), Util.getFullName(item.task), item.getInQueueSince(),
+                    label != null ? label.getExpression() : "", reason, status));
+        }
+        return rows;
+    }
+
+    /**
+     * Creates the next message from the captured items, a snapshot or a delta from the previous message.
+     *
+     * @param current   the items by id.
+     * @param now       the capture time.
+     * @param fullEvery send a snapshot every this many messages, deltas are off if 1 or less.
+     * @return the message.
+     */
+    synchronized JSONObject next(Map<Long, Row> current, long now, int fullEvery) {
+        JSONObject json = new JSONObject();
+        boolean snapshot = fullEvery <= 1 || sinceSnapshot >= fullEvery - 1;
+        json.put(Util.KEY_STATE, snapshot ? Util.VALUE_QUEUE_SNAPSHOT : Util.VALUE_QUEUE_DELTA);
+        json.put(Util.KEY_MASTER_FQDN, Util.getHostName());
+        json.put(Util.KEY_TIMESTAMP, now);
+        if (!snapshot) {
+            json.put(Util.KEY_QUEUE_BASE_SEQUENCE, sequence);
+        }
+        json.put(Util.KEY_QUEUE_SEQUENCE, ++sequence);
+
+        int blocked = 0;
+        int buildable = 0;
+        long oldest = 0;
+        for (Row row : current.values()) {
+            if (row.status.equals(BLOCKED)) {
+                blocked++;
+            } else if (row.status.equals(BUILDABLE) || row.status.equals(PENDING)) {
+                buildable++;
+            }
+            if (oldest == 0 || row.since < oldest) {
+                oldest = row.since;
+            }
+        }
+        json.put(Util.KEY_QUEUE_SIZE, current.size());
+        json.put(Util.KEY_QUEUE_BLOCKED, blocked);
+        json.put(Util.KEY_QUEUE_BUILDABLE, buildable);
+        if (oldest > 0) {
+            json.put(Util.KEY_QUEUE_OLDEST_SINCE, oldest);
+        }
+
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        if (snapshot) {
+            json.put(Util.KEY_QUEUE_ITEMS, columns(current.values(), strings));
+            sinceSnapshot = 0;
+        } else {
+            Map<Long, Row> updated = new LinkedHashMap<Long, Row>();
+            for (Row row : current.values()) {
+                if (!row.equals(previous.get(row.id))) {
+                    updated.put(row.id, row);
+                }
+            }
+            JSONArray removed = new JSONArray();
+            for (Long id : previous.keySet()) {
+                if (!current.containsKey(id)) {
+                    removed.add(id);
+                }
+            }
+            json.put(Util.KEY_QUEUE_UPDATED, columns(updated.values(), strings));
+            json.put(Util.KEY_QUEUE_REMOVED, removed);
+            sinceSnapshot++;
+        }
+        json.put(Util.KEY_QUEUE_STRINGS, JSONArray.fromObject(strings.keySet()));
+        previous = current;
+        return json;
+    }
+
+    /**
+     * Encodes items in columns.
+     *
+     * @param rows    the items.
+     * @param strings the string table of the message, added to.
+     * @return the columns.
+     */
+    private static JSONObject columns(Collection<Row> rows, Map<String, Integer> strings) {
+        JSONArray ids = new JSONArray();
+        JSONArray jobs = new JSONArray();
+        JSONArray since = new JSONArray();
+        JSONArray labels = new JSONArray();
+        JSONArray reasons = new JSONArray();
+        JSONArray statuses = new JSONArray();
+        for (Row row : rows) {
+            ids.add(row.id);
+            jobs.add(row.job);
+            since.add(row.since);
+            labels.add(indexOf(strings, row.label));
+            reasons.add(indexOf(strings, row.reason));
+            statuses.add(indexOf(strings, row.status));
+        }
+        JSONObject json = new JSONObject();
+        json.put(COLUMN_ID, ids);
+        json.put(COLUMN_JOB, jobs);
+        json.put(COLUMN_SINCE, since);
+        json.put(COLUMN_LABEL, labels);
+        json.put(COLUMN_REASON, reasons);
+        json.put(COLUMN_STATUS, statuses);
+        return json;
+    }
+
+    /**
+     * Gets the index of a string in the string table, adding it if needed.
+     *
+     * @param strings the string table.
+     * @param s       the string.
+     * @return the index.
+     */
+    private static int indexOf(Map<String, Integer> strings, String s) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.put(s, index);
+        }
+        return index;
+    }
+
+    /**
+     * One queue item as it is published.
+     */
+    static final class Row {
+        private final long id;
+        private final String job;
+        private final long since;
+        private final String label;
+        private final String reason;
+        private final String status;
+
+        /**
+         * Constructor.
+         *
+         * @param id     the queue item id.
+         * @param job    the full name of the job.
+         * @param since  the time the item entered the queue.
+         * @param label  the label expression, empty if none.
+         * @param reason the reason the item is still waiting.
+         * @param status waiting, blocked, buildable or pending.
+         */
+        Row(long id, String job, long since, String label, String reason, String status) {
+            this.id = id;
+            this.job = job;
+            this.since = since;
+            this.label = label;
+            this.reason = reason;
+            this.status = status;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            Row other = (Row)o;
+            return id == other.id && since == other.since && job.equals(other.job) && label.equals(other.label)
+                    && reason.equals(other.reason) && status.equals(other.status);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(id ^ (id >>> Integer.SIZE));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends archived messages again, for consumers that lost them.
+ * <p>
+ * The messages of a range of sequence numbers and delivery times, optionally of one job, are read in order from
+ * the {@link DeliveryArchive} and put in the message queue again as they were stored, so nothing is rebuilt from
+ * the build history. They can be sent on the routing key of a chosen route instead of their own. Replayed
+ * messages have the {@link Util#HEADER_REPLAY_SEQUENCE} header, so consumers can tell them from new messages,
+ * never expire and are not archived again. The replay keeps to the configured rate and pauses while a message
+ * queue has a large backlog.
+ */
+public final class Replay {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Replay.class);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long PAUSE = 5000;
+    private static final int BACKLOG_LIMIT = 5000;
+
+    private static final Replay INSTANCE = new Replay();
+
+    private Thread thread;
+    private volatile boolean stopRequested;
+    private volatile long replayed;
+    private volatile long lastSequence;
+    private volatile String state = "Not started";
+
+    /**
+     * Singleton.
+     */
+    private Replay() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    public static Replay getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a replay.
+     *
+     * @param fromSequence the first sequence number.
+     * @param toSequence   the last sequence number.
+     * @param fromTime     the earliest delivery time in milliseconds.
+     * @param toTime       the latest delivery time in milliseconds.
+     * @param job          the full name of the job, null for all jobs.
+     * @param route        the name of the route whose routing key is used, null for the original routing keys.
+     * @return false if a replay is already running.
+     */
+    public synchronized boolean start(long fromSequence, long toSequence, long fromTime, long toTime, String job,
+                                      String route) {
+        if (isRunning()) {
+            return false;
+        }
+        stopRequested = false;
+        replayed = 0;
+        lastSequence = 0;
+        final DeliveryArchive.Query query = new DeliveryArchive.Query()
+                .sequences(fromSequence, toSequence).times(fromTime, toTime).job(job);
+        final String routeName = route;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                execute(query, routeName);
+            }
+        }, "MQ Notifier replay");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops the replay after the current message.
+     */
+    public synchronized void stop() {
+        stopRequested = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns true if a replay is running.
+     *
+     * @return true if running.
+     */
+    public synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Gets a description of the replay state.
+     *
+     * @return the state.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * Gets the number of messages replayed since the replay was started.
+     *
+     * @return the number of messages.
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Gets the sequence numbers of the oldest and the newest archived message.
+     *
+     * @return the range as text.
+     */
+    public String getArchivedRange() {
+        long[] range = DeliveryArchive.getInstance().getSequenceRange();
+        if (range == null) {
+            return "No messages are archived";
+        }
+        return "Messages " + range[0] + " to " + range[1] + " are archived";
+    }
+
+    /**
+     * Runs the replay on the replay thread.
+     *
+     * @param query     the messages to replay.
+     * @param routeName the name of the route whose routing key is used, null for the original routing keys.
+     */
+    private void execute(DeliveryArchive.Query query, String routeName) {
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        final String routingKey = routingKeyOf(config, routeName);
+        state = "Replaying";
+        try {
+            DeliveryArchive.getInstance().read(query, new DeliveryArchive.Visitor() {
+                private long next = System.nanoTime();
+
+                @Override
+                public boolean visit(long sequence, long time, byte[] data) throws InterruptedException {
+                    next = throttle(next);
+                    JournalRecord record;
+                    try {
+                        record = JournalRecord.decode(data);
+                    } catch (IOException e) {
+                        LOGGER.warn("Skipping damaged archived message {}", sequence, e);
+                        return true;
+                    }
+                    Map<String, Object> headers = new LinkedHashMap<String, Object>(record.getHeaders());
+                    headers.put(Util.HEADER_REPLAY_SEQUENCE, sequence);
+                    MQConnection.getInstance().requeue(new JournalRecord(record.getExchange(),
+                            routingKey != null ? routingKey : record.getRoutingKey(), record.getContentType(),
+                            record.getCorrelationId(), record.getPartitionKey(), record.getTimestamp(), 0, headers,
+                            record.getBody()));
+                    replayed++;
+                    lastSequence = sequence;
+                    state = "Replaying, at message " + sequence;
+                    return true;
+                }
+            });
+            state = "Finished, " + replayed + " messages replayed";
+        } catch (InterruptedException e) {
+            state = "Stopped after message " + lastSequence;
+        } catch (IOException e) {
+            LOGGER.error("Replay failed", e);
+            state = "Failed after message " + lastSequence + ": " + e;
+        } catch (RuntimeException e) {
+            LOGGER.error("Replay failed", e);
+            state = "Failed after message " + lastSequence + ": " + e;
+        }
+        LOGGER.info("MQ Notifier replay: {}", state);
+    }
+
+    /**
+     * Gets the routing key of a route.
+     *
+     * @param config    the configuration, may be null.
+     * @param routeName the name of the route, may be null.
+     * @return the routing key, or null to keep the original routing keys.
+     */
+    private static String routingKeyOf(MQNotifierConfig config, String routeName) {
+        if (config == null || routeName == null) {
+            return null;
+        }
+        for (RouteTable.CompiledRoute route : config.getRouteTable().getRoutes()) {
+            if (routeName.equals(route.getName())) {
+                return route.getRoutingKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until the next message may be replayed.
+     * The times are in nanoseconds, so that rates above one message per millisecond are still limited.
+     *
+     * @param next the earliest {@link System#nanoTime()} for the next message.
+     * @return the earliest {@link System#nanoTime()} for the message after it.
+     * @throws InterruptedException if the replay is stopped.
+     */
+    private long throttle(long next) throws InterruptedException {
+        if (stopRequested) {
+            throw new InterruptedException();
+        }
+        while (MQConnection.getLargestQueueSize() > BACKLOG_LIMIT) {
+            state = "Paused, the message queue has a backlog";
+            Thread.sleep(PAUSE);
+        }
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        long rate = config != null ? config.getReplayRate() : 0;
+        long now = System.nanoTime();
+        if (rate <= 0) {
+            return now;
+        }
+        if (next - now > 0) {
+            TimeUnit.NANOSECONDS.sleep(next - now);
+            now = next;
+        }
+        return Math.max(next, now - NANOS_PER_SECOND) + Math.max(1, NANOS_PER_SECOND / rate);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Page to start, stop and follow a {@link Replay}.
+ */
+@Extension
+public class ReplayLink extends ManagementLink {
+
+    /** Format of the times on the page. */
+    public static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private static final int BAD_REQUEST = 400;
+
+    @Override
+    public String getIconFileName() {
+        return "redo.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "MQ Notifier Replay";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Send delivered messages to MQ again.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "mq-notifier-replay";
+    }
+
+    /**
+     * Gets the replay.
+     *
+     * @return the replay.
+     */
+    public Replay getReplay() {
+        return Replay.getInstance();
+    }
+
+    /**
+     * Gets the names of the configured routes.
+     *
+     * @return the names.
+     */
+    public List<String> getRouteNames() {
+        List<String> names = new ArrayList<String>();
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config != null && config.getRoutes() != null) {
+            for (Route route : config.getRoutes()) {
+                names.add(route.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Starts a replay. Empty bounds are open.
+     *
+     * @param fromSequence the first sequence number.
+     * @param toSequence   the last sequence number.
+     * @param fromTime     the earliest delivery time, in {@link #TIME_FORMAT}.
+     * @param toTime       the latest delivery time, in {@link #TIME_FORMAT}.
+     * @param job          the full name of the job.
+     * @param route        the name of the route whose routing key is used, empty for the original routing keys.
+     * @return redirect to the replay page.
+     */
+    @RequirePOST
+    public HttpResponse doStart(@QueryParameter(fixEmpty = true) String fromSequence,
+                                @QueryParameter(fixEmpty = true) String toSequence,
+                                @QueryParameter(fixEmpty = true) String fromTime,
+                                @QueryParameter(fixEmpty = true) String toTime,
+                                @QueryParameter(fixEmpty = true) String job,
+                                @QueryParameter(fixEmpty = true) String route) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+        try {
+            Replay.getInstance().start(
+                    fromSequence != null ? Long.parseLong(fromSequence.trim()) : 0,
+                    toSequence != null ? Long.parseLong(toSequence.trim()) : Long.MAX_VALUE,
+                    fromTime != null ? format.parse(fromTime.trim()).getTime() : 0,
+                    toTime != null ? format.parse(toTime.trim()).getTime() : Long.MAX_VALUE,
+                    job != null ? job.trim() : null, route);
+        } catch (NumberFormatException e) {
+            return HttpResponses.error(BAD_REQUEST, "Not a sequence number: " + e.getMessage());
+        } catch (ParseException e) {
+            return HttpResponses.error(BAD_REQUEST, "Times are written as " + TIME_FORMAT);
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Stops the replay.
+     *
+     * @return redirect to the replay page.
+     */
+    @RequirePOST
+    public HttpResponse doStop() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Replay.getInstance().stop();
+        return HttpResponses.redirectToDot();
+    }
+}
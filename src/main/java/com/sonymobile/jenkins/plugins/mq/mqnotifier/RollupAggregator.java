@@ -0,0 +1,393 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import hudson.model.AbstractProject;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates completed builds and queue times per job and per label, and publishes a rollup message every
+ * interval, for dashboards that do not need every build.
+ * <p>
+ * Each job and label has counters per result and log-scale histograms of build durations and queue times in
+ * int arrays, so they can be merged by adding. Only jobs and labels seen in the current interval are kept,
+ * and beyond the configured limit further ones are merged into a single entry named {@code *}, so memory
+ * stays bounded however many jobs there are.
+ */
+final class RollupAggregator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RollupAggregator.class);
+    private static final String OTHER = "*";
+    private static final String CONTENT_TYPE = "application/json";
+    private static final Result[] RESULTS = {
+        Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED,
+    };
+    private static final int FAILURE = 2;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final String[] PERCENTILE_KEYS = {"p50", "p90", "p99"};
+    /* Histogram buckets per doubling of the duration, the upper bound of a bucket is 2^(i/4) milliseconds. */
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    /* Up to about two years. */
+    static final int BUCKETS = 36 * BUCKETS_PER_DOUBLING;
+
+    private static final RollupAggregator INSTANCE = new RollupAggregator();
+
+    /* Counters of the current interval, guarded by this. */
+    private Map<String, Counters> jobs = new HashMap<String, Counters>();
+    private Map<String, Counters> labels = new HashMap<String, Counters>();
+    private long intervalStart = System.currentTimeMillis();
+    private ScheduledFuture<?> task;
+    private long scheduledInterval;
+
+    /**
+     * Singleton.
+     */
+    private RollupAggregator() {
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance.
+     */
+    static RollupAggregator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a completed build.
+     *
+     * @param run    the build.
+     * @param config the configuration.
+     */
+    void completed(Run run, MQNotifierConfig config) {
+        if (!config.isRollupEvents()) {
+            return;
+        }
+        String label = null;
+        if (run.getParent() instanceof AbstractProject) {
+            label = expressionOf(((AbstractProject)run.getParent()).getAssignedLabel());
+        }
+        Result result = run.getResult();
+        long duration = run.getDuration();
+        synchronized (this) {
+            ensureScheduled(config);
+            int limit = config.getRollupMaxKeys();
+            counters(jobs, run.getParent().getFullName(), limit).completed(result, duration);
+            if (label != null) {
+                counters(labels, label, limit).completed(result, duration);
+            }
+        }
+    }
+
+    /**
+     * Records a queue item that left the queue to build.
+     *
+     * @param item   the queue item.
+     * @param config the configuration.
+     */
+    void left(Queue.LeftItem item, MQNotifierConfig config) {
+        if (!config.isRollupEvents() || item.isCancelled()) {
+            return;
+        }
+        String label = expressionOf(item.getAssignedLabel());
+        long queueTime = System.currentTimeMillis() - item.getInQueueSince();
+        synchronized (this) {
+            ensureScheduled(config);
+            int limit = config.getRollupMaxKeys();
+            counters(jobs, Util.getFullName(item.task), limit).queued(queueTime);
+            if (label != null) {
+                counters(labels, label, limit).queued(queueTime);
+            }
+        }
+    }
+
+    /**
+     * Publishes the rollup of the current interval now, e.g. on shutdown.
+     */
+    void flush() {
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config != null) {
+            publish(config);
+        }
+    }
+
+    /**
+     * Gets the counters of a key, or of the overflow entry when the limit is reached.
+     *
+     * @param counters the counters by key.
+     * @param key      the job or label.
+     * @param limit    the maximum number of keys, no limit if 0 or less.
+     * @return the counters.
+     */
+    private static Counters counters(Map<String, Counters> counters, String key, int limit) {
+        Counters found = counters.get(key);
+        if (found == null) {
+            String name = limit > 0 && counters.size() >= limit ? OTHER : key;
+            found = counters.get(name);
+            if (found == null) {
+                found = new Counters();
+                counters.put(name, found);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Schedules the periodic publishing, or schedules it again when the interval was changed.
+     *
+     * @param config the configuration.
+     */
+    private void ensureScheduled(MQNotifierConfig config) {
+        long interval = Math.max(1, config.getRollupInterval());
+        if (task != null && !task.isDone() && scheduledInterval == interval) {
+            return;
+        }
+        if (task != null) {
+            task.cancel(false);
+        }
+        scheduledInterval = interval;
+        task = Timer.get().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MQNotifierConfig current = MQNotifierConfig.getInstance();
+                    if (current != null) {
+                        publish(current);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("Publishing the rollup failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the counters of the interval and publishes them, if there are any.
+     *
+     * @param config the configuration.
+     */
+    private void publish(MQNotifierConfig config) {
+        Map<String, Counters> jobCounters;
+        Map<String, Counters> labelCounters;
+        long start;
+        long end = System.currentTimeMillis();
+        synchronized (this) {
+            jobCounters = jobs;
+            labelCounters = labels;
+            start = intervalStart;
+            jobs = new HashMap<String, Counters>();
+            labels = new HashMap<String, Counters>();
+            intervalStart = end;
+            if (!config.isRollupEvents() && task != null) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+        if (jobCounters.isEmpty() || !config.isNotifierEnabled()) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, Util.VALUE_ROLLUP);
+        json.put(Util.KEY_MASTER_FQDN, Util.getHostName());
+        json.put(Util.KEY_ROLLUP_START, start);
+        json.put(Util.KEY_ROLLUP_END, end);
+        json.put(Util.KEY_ROLLUP_JOBS, toJson(jobCounters));
+        json.put(Util.KEY_ROLLUP_LABELS, toJson(labelCounters));
+
+        AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
+        bob.contentType(CONTENT_TYPE);
+        bob.appId(config.getAppId());
+        bob.deliveryMode(config.getPersistentDelivery() ? 2 : 1);
+        bob.timestamp(new Date(end));
+        bob.expiration(config.getMessageTtlTable().getExpiration(Util.VALUE_ROLLUP));
+        String routingKey = config.getRollupRoutingKey() != null
+                ? config.getRollupRoutingKey() : config.getRoutingKey();
+        MQConnection.getInstance().addMessageToQueue(config.getExchangeName(), routingKey, bob.build(),
+                json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Converts counters to their rollup entries.
+     *
+     * @param counters the counters by key.
+     * @return the rollup entries.
+     */
+    private static JSONArray toJson(Map<String, Counters> counters) {
+        JSONArray array = new JSONArray();
+        for (Map.Entry<String, Counters> entry : counters.entrySet()) {
+            JSONObject json = entry.getValue().toJson();
+            json.put(Util.KEY_ROLLUP_NAME, entry.getKey());
+            array.add(json);
+        }
+        return array;
+    }
+
+    /**
+     * Gets the expression of a label.
+     *
+     * @param label the label, may be null.
+     * @return the expression, or null.
+     */
+    private static String expressionOf(Label label) {
+        return label != null ? label.getExpression() : null;
+    }
+
+    /**
+     * Gets the histogram bucket of a duration.
+     *
+     * @param millis the duration in milliseconds.
+     * @return the bucket index.
+     */
+    static int bucket(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        int index = (int)Math.ceil(BUCKETS_PER_DOUBLING * Math.log(millis) / Math.log(2));
+        return Math.min(BUCKETS - 1, index);
+    }
+
+    /**
+     * Gets a percentile from a histogram, as the upper bound of the bucket that holds it.
+     *
+     * @param counts  the histogram.
+     * @param total   the number of recorded values.
+     * @param quantile the percentile as a fraction.
+     * @return the upper bound in milliseconds.
+     */
+    static long percentile(int[] counts, long total, double quantile) {
+        long rank = (long)Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.round(Math.pow(2, (double)i / BUCKETS_PER_DOUBLING));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The counters of one job or label in one interval.
+     */
+    private static final class Counters {
+        private final int[] results = new int[RESULTS.length + 1];
+        private int completed;
+        private int queued;
+        /* Allocated on first use, a job that only queued has no duration histogram. */
+        private int[] durations;
+        private int[] queueTimes;
+
+        /**
+         * Records a completed build.
+         *
+         * @param result   the result, may be null.
+         * @param duration the duration in milliseconds.
+         */
+        private void completed(Result result, long duration) {
+            completed++;
+            int index = RESULTS.length;
+            for (int i = 0; i < RESULTS.length; i++) {
+                if (RESULTS[i] == result) {
+                    index = i;
+                    break;
+                }
+            }
+            results[index]++;
+            if (durations == null) {
+                durations = new int[BUCKETS];
+            }
+            durations[bucket(duration)]++;
+        }
+
+        /**
+         * Records a queue time.
+         *
+         * @param millis the time in the queue in milliseconds.
+         */
+        private void queued(long millis) {
+            queued++;
+            if (queueTimes == null) {
+                queueTimes = new int[BUCKETS];
+            }
+            queueTimes[bucket(millis)]++;
+        }
+
+        /**
+         * Converts the counters to a rollup entry.
+         *
+         * @return the entry.
+         */
+        private JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            if (completed > 0) {
+                json.put(Util.KEY_ROLLUP_COMPLETED, completed);
+                JSONObject byResult = new JSONObject();
+                for (int i = 0; i < RESULTS.length; i++) {
+                    if (results[i] > 0) {
+                        byResult.put(RESULTS[i].toString(), results[i]);
+                    }
+                }
+                json.put(Util.KEY_ROLLUP_RESULTS, byResult);
+                json.put(Util.KEY_ROLLUP_FAILURE_RATE, (double)results[FAILURE] / completed);
+                json.put(Util.KEY_ROLLUP_DURATION, percentiles(durations, completed));
+            }
+            if (queued > 0) {
+                json.put(Util.KEY_ROLLUP_QUEUED, queued);
+                json.put(Util.KEY_ROLLUP_QUEUE_TIME, percentiles(queueTimes, queued));
+            }
+            return json;
+        }
+
+        /**
+         * Gets the percentiles of a histogram.
+         *
+         * @param counts the histogram.
+         * @param total  the number of recorded values.
+         * @return the percentiles in milliseconds.
+         */
+        private static JSONObject percentiles(int[] counts, int total) {
+            JSONObject json = new JSONObject();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                json.put(PERCENTILE_KEYS[i], percentile(counts, total, PERCENTILES[i]));
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.MessageCodec;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * A named route: every event is published once per configured route, with the route's
+ * routing key, only the fields the route's consumers use and the encoding they understand.
+ */
+public class Route extends AbstractDescribableImpl<Route> {
+
+    /** Envelope format: the route codec encodes an object with an array of events. */
+    public static final String BATCH_FORMAT_ARRAY = "array";
+    /** Envelope format: one JSON event per line. */
+    public static final String BATCH_FORMAT_NDJSON = "ndjson";
+
+    private static final long DEFAULT_BATCH_LINGER = 1000;
+
+    /* Name of the route, only used for display and logging. */
+    private final String name;
+
+    /* The routing key, the global routing key is used if empty. */
+    private final String routingKey;
+
+    /* Fields to deliver, separated by commas or whitespace. All fields are delivered if empty. */
+    private final String fields;
+
+    /* Id of the codec for the message bodies, JSON if empty. */
+    private String codec;
+
+    /* Maximum number of events packed into one batch envelope, batching is off if 1 or less. */
+    private int batchSize;
+
+    /* Maximum time in milliseconds that an event waits for its batch to fill up. */
+    private long batchLinger = DEFAULT_BATCH_LINGER;
+
+    /* The envelope format of batches. */
+    private String batchFormat;
+
+    /* Maximum number of messages per second with the routing key of this route, no limit if 0 or less. */
+    private long rateLimit;
+
+    /* Maximum number of message bytes per second with the routing key of this route, no limit if 0 or less. */
+    private long byteRateLimit;
+
+    /**
+     * Creates a route.
+     *
+     * @param name       the name of the route
+     * @param routingKey the routing key, or empty to use the global routing key
+     * @param fields     the fields to deliver, or empty to deliver all fields
+     */
+    @DataBoundConstructor
+    public Route(String name, String routingKey, String fields) {
+        this.name = StringUtils.trimToEmpty(name);
+        this.routingKey = StringUtils.trimToNull(routingKey);
+        this.fields = StringUtils.trimToNull(fields);
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the routing key.
+     *
+     * @return the routing key, or null if the global routing key is used.
+     */
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * Gets the delivered fields.
+     *
+     * @return the fields, or null if all fields are delivered.
+     */
+    public String getFields() {
+        return fields;
+    }
+
+    /**
+     * Gets the codec id.
+     *
+     * @return the codec id, or null for JSON.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec id.
+     *
+     * @param codec the codec id, or empty for JSON.
+     */
+    @DataBoundSetter
+    public void setCodec(String codec) {
+        this.codec = StringUtils.trimToNull(codec);
+    }
+
+    /**
+     * Gets the batch size.
+     *
+     * @return the maximum number of events per batch envelope, batching is off if 1 or less.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the batch size.
+     *
+     * @param batchSize the maximum number of events per batch envelope, 1 or less to turn batching off.
+     */
+    @DataBoundSetter
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Gets the batch linger time.
+     *
+     * @return the maximum time in milliseconds an event waits for its batch to fill up.
+     */
+    public long getBatchLinger() {
+        return batchLinger;
+    }
+
+    /**
+     * Sets the batch linger time.
+     *
+     * @param batchLinger the maximum time in milliseconds an event waits for its batch to fill up.
+     */
+    @DataBoundSetter
+    public void setBatchLinger(long batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    /**
+     * Gets the batch envelope format.
+     *
+     * @return {@link #BATCH_FORMAT_ARRAY} or {@link #BATCH_FORMAT_NDJSON}.
+     */
+    public String getBatchFormat() {
+        return BATCH_FORMAT_NDJSON.equals(batchFormat) ? BATCH_FORMAT_NDJSON : BATCH_FORMAT_ARRAY;
+    }
+
+    /**
+     * Sets the batch envelope format.
+     *
+     * @param batchFormat {@link #BATCH_FORMAT_ARRAY} or {@link #BATCH_FORMAT_NDJSON}.
+     */
+    @DataBoundSetter
+    public void setBatchFormat(String batchFormat) {
+        this.batchFormat = StringUtils.trimToNull(batchFormat);
+    }
+
+    /**
+     * Gets the message rate limit.
+     *
+     * @return the maximum number of messages per second, no limit if 0 or less.
+     */
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the message rate limit.
+     *
+     * @param rateLimit the maximum number of messages per second, 0 or less for no limit.
+     */
+    @DataBoundSetter
+    public void setRateLimit(long rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Gets the byte rate limit.
+     *
+     * @return the maximum number of message bytes per second, no limit if 0 or less.
+     */
+    public long getByteRateLimit() {
+        return byteRateLimit;
+    }
+
+    /**
+     * Sets the byte rate limit.
+     *
+     * @param byteRateLimit the maximum number of message bytes per second, 0 or less for no limit.
+     */
+    @DataBoundSetter
+    public void setByteRateLimit(long byteRateLimit) {
+        this.byteRateLimit = byteRateLimit;
+    }
+
+    /**
+     * Descriptor for {@link Route}.
+     */
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<Route> {
+        @Override
+        public String getDisplayName() {
+            return "Route";
+        }
+
+        /**
+         * Fills the codec drop down.
+         *
+         * @return the available codecs.
+         */
+        public ListBoxModel doFillCodecItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (MessageCodec messageCodec : MessageCodec.all()) {
+                items.add(messageCodec.getDisplayName(), messageCodec.getId());
+            }
+            return items;
+        }
+
+        /**
+         * Fills the batch format drop down.
+         *
+         * @return the available formats.
+         */
+        public ListBoxModel doFillBatchFormatItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Array, encoded with the route encoding", BATCH_FORMAT_ARRAY);
+            items.add("Newline delimited JSON", BATCH_FORMAT_NDJSON);
+            return items;
+        }
+    }
+}
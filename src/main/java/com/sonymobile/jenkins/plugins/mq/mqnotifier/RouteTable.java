@@ -0,0 +1,257 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.MessageCodec;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The compiled, immutable form of the configured routes.
+ * <p>
+ * Built at configure time so that listeners only do set lookups per event.
+ * Codecs are resolved from the extension list here, so the table must not be compiled before
+ * extensions are loaded.
+ */
+public final class RouteTable {
+
+    private final List<CompiledRoute> routes;
+
+    /* Union of the fields of all routes, null if some route delivers all fields. */
+    private final Set<String> wanted;
+
+    /**
+     * Constructor.
+     *
+     * @param routes the compiled routes.
+     */
+    private RouteTable(List<CompiledRoute> routes) {
+        this.routes = Collections.unmodifiableList(routes);
+        Set<String> union = new HashSet<String>();
+        for (CompiledRoute route : routes) {
+            if (route.getProjection().isAll()) {
+                union = null;
+                break;
+            }
+            union.addAll(route.getProjection().getFields());
+        }
+        this.wanted = union;
+    }
+
+    /**
+     * Compiles the configured routes.
+     * If no routes are configured a single route delivering all fields on the global routing key is used.
+     *
+     * @param configured        the configured routes, may be null.
+     * @param defaultRoutingKey the global routing key.
+     * @return the compiled table.
+     */
+    public static RouteTable compile(List<Route> configured, String defaultRoutingKey) {
+        List<CompiledRoute> compiled = new ArrayList<CompiledRoute>();
+        if (configured != null) {
+            for (Route route : configured) {
+                String key = route.getRoutingKey() != null ? route.getRoutingKey() : defaultRoutingKey;
+                CompiledRoute compiledRoute = new CompiledRoute(route.getName(), key,
+                        PayloadProjection.compile(route.getFields()), MessageCodec.forId(route.getCodec()));
+                compiledRoute.batchSize = route.getBatchSize();
+                compiledRoute.batchLinger = route.getBatchLinger();
+                compiledRoute.ndjson = Route.BATCH_FORMAT_NDJSON.equals(route.getBatchFormat());
+                compiledRoute.rateLimit = route.getRateLimit();
+                compiledRoute.byteRateLimit = route.getByteRateLimit();
+                compiled.add(compiledRoute);
+            }
+        }
+        if (compiled.isEmpty()) {
+            compiled.add(new CompiledRoute("", defaultRoutingKey, PayloadProjection.ALL, MessageCodec.forId(null)));
+        }
+        return new RouteTable(compiled);
+    }
+
+    /**
+     * Gets the compiled routes.
+     *
+     * @return the routes.
+     */
+    public List<CompiledRoute> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Returns true if any route delivers the field.
+     *
+     * @param key the field name.
+     * @return true if the field is wanted.
+     */
+    public boolean wants(String key) {
+        return wanted == null || wanted.contains(key);
+    }
+
+    /**
+     * Returns true if any route delivers a field that the provider contributes.
+     * Providers that do not declare their fields are always wanted.
+     *
+     * @param provider the provider.
+     * @return true if the provider should be invoked.
+     */
+    public boolean wants(MQDataProvider provider) {
+        if (wanted == null) {
+            return true;
+        }
+        Set<String> keys = provider.getProvidedKeys();
+        if (keys == null) {
+            return true;
+        }
+        for (String key : keys) {
+            if (wanted.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A route with its compiled projection.
+     */
+    public static final class CompiledRoute {
+        private final String name;
+        private final String routingKey;
+        private final PayloadProjection projection;
+        private final MessageCodec codec;
+        private int batchSize;
+        private long batchLinger;
+        private boolean ndjson;
+        private long rateLimit;
+        private long byteRateLimit;
+
+        /**
+         * Constructor.
+         *
+         * @param name       the route name.
+         * @param routingKey the resolved routing key.
+         * @param projection the compiled projection.
+         * @param codec      the resolved codec.
+         */
+        CompiledRoute(String name, String routingKey, PayloadProjection projection, MessageCodec codec) {
+            this.name = name;
+            this.routingKey = routingKey;
+            this.projection = projection;
+            this.codec = codec;
+        }
+
+        /**
+         * Gets the route name.
+         *
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the resolved routing key.
+         *
+         * @return the routing key.
+         */
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        /**
+         * Gets the projection.
+         *
+         * @return the projection.
+         */
+        public PayloadProjection getProjection() {
+            return projection;
+        }
+
+        /**
+         * Gets the codec.
+         *
+         * @return the codec.
+         */
+        public MessageCodec getCodec() {
+            return codec;
+        }
+
+        /**
+         * Returns true if events on this route are packed into batch envelopes.
+         *
+         * @return true if batched.
+         */
+        public boolean isBatched() {
+            return batchSize > 1;
+        }
+
+        /**
+         * Gets the maximum number of events per batch envelope.
+         *
+         * @return the batch size.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * Gets the maximum time an event waits for its batch to fill up.
+         *
+         * @return the linger time in milliseconds.
+         */
+        public long getBatchLinger() {
+            return batchLinger;
+        }
+
+        /**
+         * Returns true if batches are sent as newline delimited JSON rather than encoded arrays.
+         *
+         * @return true for NDJSON.
+         */
+        public boolean isNdjson() {
+            return ndjson;
+        }
+
+        /**
+         * Gets the message rate limit.
+         *
+         * @return the maximum number of messages per second, no limit if 0 or less.
+         */
+        public long getRateLimit() {
+            return rateLimit;
+        }
+
+        /**
+         * Gets the byte rate limit.
+         *
+         * @return the maximum number of message bytes per second, no limit if 0 or less.
+         */
+        public long getByteRateLimit() {
+            return byteRateLimit;
+        }
+    }
+}
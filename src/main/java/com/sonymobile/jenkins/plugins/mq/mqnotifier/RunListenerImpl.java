@@ -23,7 +23,6 @@
  */
 package com.sonymobile.jenkins.plugins.mq.mqnotifier;
 
-import com.rabbitmq.client.AMQP;
 import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
@@ -33,7 +32,6 @@ import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 import net.sf.json.JSONObject;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Calendar;
 
 
@@ -73,6 +71,39 @@ public class RunListenerImpl extends RunListener<Run> {
 
     @Override
     public void onCompleted(Run r, TaskListener listener) {
+        long captured = System.currentTimeMillis();
+        if (config == null) {
+            config = MQNotifierConfig.getInstance();
+        }
+        if (config == null || !config.isNotifierEnabled()) {
+            return;
+        }
+        // rollups count every build, the event rules only select the individual events
+        RollupAggregator.getInstance().completed(r, config);
+        LifecycleCorrelator.Record queued = null;
+        if (config.isLifecycleEvents()) {
+            queued = LifecycleCorrelator.getInstance().take(r);
+        }
+        // nothing is built or looked up for events that are not published
+        if (!config.getEventFilter().accepts(r)) {
+            return;
+        }
+        JSONObject json = createCompletedMessage(r, config);
+        if (queued != null) {
+            queued.merge(json);
+        }
+        publish(json, captured);
+    }
+
+    /**
+     * Creates the completed message of a build, with the data of all providers.
+     *
+     * @param r      the completed build.
+     * @param config the configuration, may be null.
+     * @return the message.
+     */
+    static JSONObject createCompletedMessage(final Run r, MQNotifierConfig config) {
+        RouteTable routes = MessagePublisher.getRoutes(config);
         JSONObject json = new JSONObject();
         json.put(Util.KEY_STATE, Util.VALUE_COMPLETED);
         json.put(Util.KEY_URL, Util.getJobUrl(r));
@@ -86,9 +117,12 @@ public class RunListenerImpl extends RunListener<Run> {
             status = res.toString();
         }
         json.put(Util.KEY_STATUS, status);
-        Run last = r.getPreviousBuiltBuild();
-        if (last != null) {
-            json.put(Util.KEY_LAST_BUILT_NR, last.getNumber());
+        // looking up the previous build may load it from disk
+        if (routes.wants(Util.KEY_LAST_BUILT_NR)) {
+            Run last = r.getPreviousBuiltBuild();
+            if (last != null) {
+                json.put(Util.KEY_LAST_BUILT_NR, last.getNumber());
+            }
         }
         // scheduled time
         Calendar scheduled_time = r.getTimestamp();
@@ -100,10 +134,13 @@ public class RunListenerImpl extends RunListener<Run> {
         if (start_time != null) {
             json.put(Util.KEY_START_TIME, start_time);
         }
-        for (MQDataProvider mqDataProvider : MQDataProvider.all()) {
-            mqDataProvider.provideCompletedRunData(r, json);
-        }
-        publish(json);
+        ProviderRunner.run(config, routes, json, ProviderRunner.COMPLETED_RUN, new ProviderRunner.Hook() {
+            @Override
+            public void provide(MQDataProvider provider, JSONObject fragment) {
+                provider.provideCompletedRunData(r, fragment);
+            }
+        });
+        return json;
     }
     
     /* Don't need this message
@@ -127,24 +164,13 @@ public class RunListenerImpl extends RunListener<Run> {
     /**
      * Publish json message on configured MQ server.
      *
-     * @param json the message in json format
+     * @param json     the message in json format
+     * @param captured the time the event was captured
      */
-    private void publish(JSONObject json) {
+    private void publish(JSONObject json, long captured) {
         if (config == null) {
             config = MQNotifierConfig.getInstance();
         }
-        if (config != null && config.isNotifierEnabled()) {
-            AMQP.BasicProperties.Builder bob = new AMQP.BasicProperties.Builder();
-            int dm = 1;
-            if (config.getPersistentDelivery()) {
-                dm = 2;
-            }
-            bob.appId(config.getAppId());
-            bob.deliveryMode(dm);
-            bob.contentType(Util.CONTENT_TYPE);
-            bob.timestamp(Calendar.getInstance().getTime());
-            MQConnection.getInstance().addMessageToQueue(config.getExchangeName(), config.getRoutingKey(),
-                    bob.build(), json.toString().getBytes(StandardCharsets.UTF_8));
-        }
+        MessagePublisher.publish(config, json, captured);
     }
 }
@@ -0,0 +1,336 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.actions.ErrorAction;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes live stage events of pipeline builds from flow graph notifications.
+ * <p>
+ * Stage and parallel branch blocks produce a {@code STAGE_STARTED} event when they start and a
+ * {@code STAGE_COMPLETED} event when they end. Events of a build are held for the debounce time and
+ * published together; a stage that both starts and ends within that time is coalesced into its
+ * completed event, which keeps short parallel branches from flooding the journal. After the per-build
+ * limit further stage events are dropped, the stages are still part of the completed build message.
+ */
+@Extension(optional = true)
+public class StageListenerImpl implements GraphListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StageListenerImpl.class);
+    private static final int FINISHED_MAX = 1000;
+
+    /* Publishes the stage events to the message queue. */
+    private static final Publisher PUBLISHER = new Publisher() {
+        @Override
+        public void publish(List<JSONObject> events) {
+            MQNotifierConfig config = MQNotifierConfig.getInstance();
+            for (JSONObject json : events) {
+                MessagePublisher.publish(config, json);
+            }
+        }
+    };
+
+    /* Stage events per build, keyed by build id. */
+    private static final Map<String, BuildStages> BUILDS = new ConcurrentHashMap<String, BuildStages>();
+    /* Ids of the most recently completed builds, whose late stage nodes are ignored. Guarded by itself. */
+    private static final Map<String, Boolean> FINISHED = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > FINISHED_MAX;
+        }
+    };
+
+    @Override
+    public void onNewHead(FlowNode node) {
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config == null || !config.isNotifierEnabled() || !config.isStageEvents()) {
+            return;
+        }
+        BlockStartNode start;
+        boolean started;
+        if (node instanceof BlockStartNode) {
+            start = (BlockStartNode)node;
+            started = true;
+        } else if (node instanceof BlockEndNode) {
+            start = ((BlockEndNode<?>)node).getStartNode();
+            started = false;
+        } else {
+            return;
+        }
+        LabelAction label = start.getAction(LabelAction.class);
+        if (label == null) {
+            return;
+        }
+        Run run = getRun(node);
+        if (run == null || !config.getEventFilter().accepts(run)) {
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, started ? Util.VALUE_STAGE_STARTED : Util.VALUE_STAGE_COMPLETED);
+        json.put(Util.KEY_URL, Util.getJobUrl(run));
+        json.put(Util.KEY_PROJECT_NAME, run.getParent().getFullName());
+        json.put(Util.KEY_BUILD_NR, run.getNumber());
+        json.put(Util.KEY_MASTER_FQDN, Util.getHostName());
+        json.put(Util.KEY_STAGE_ID, start.getId());
+        json.put(Util.KEY_STAGE_NAME, label.getDisplayName());
+        json.put(Util.KEY_STAGE_PARALLEL, start.getAction(ThreadNameAction.class) != null);
+        long startTime = TimingAction.getStartTime(start);
+        json.put(Util.KEY_START_TIME, startTime);
+        if (!started) {
+            json.put(Util.KEY_STAGE_DURATION, TimingAction.getStartTime(node) - startTime);
+            json.put(Util.KEY_STATUS, node.getAction(ErrorAction.class) != null ? "FAILURE" : "SUCCESS");
+        }
+
+        add(run.getExternalizableId(), start.getId(), json, started, config, PUBLISHER);
+    }
+
+    /**
+     * Adds a stage event to the pending events of its build, unless the build has completed.
+     *
+     * @param id        the build id.
+     * @param stageId   the id of the stage start node.
+     * @param json      the event.
+     * @param started   true for a started event.
+     * @param config    the configuration.
+     * @param publisher publishes the events once they are due.
+     * @return false if the build has completed and the event was dropped.
+     */
+    static boolean add(String id, String stageId, JSONObject json, boolean started, MQNotifierConfig config,
+                       Publisher publisher) {
+        BuildStages stages = BUILDS.get(id);
+        if (stages == null) {
+            if (isFinished(id)) {
+                return false;
+            }
+            BuildStages created = new BuildStages(publisher);
+            stages = BUILDS.putIfAbsent(id, created);
+            if (stages == null) {
+                stages = created;
+            }
+        }
+        stages.add(stageId, json, started, config);
+        if (isFinished(id) && BUILDS.remove(id, stages)) {
+            // the build completed while the event was added
+            stages.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the build has completed and its stage events are published.
+     *
+     * @param id the build id.
+     * @return true if the build has completed.
+     */
+    private static boolean isFinished(String id) {
+        synchronized (FINISHED) {
+            return FINISHED.containsKey(id);
+        }
+    }
+
+    /**
+     * Gets the build of a flow node.
+     *
+     * @param node the node.
+     * @return the build, or null if not known.
+     */
+    private static Run getRun(FlowNode node) {
+        try {
+            Queue.Executable executable = node.getExecution().getOwner().getExecutable();
+            if (executable instanceof Run) {
+                return (Run)executable;
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Cannot get the build of {}", node.getId(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Publishes the pending stage events of a build and forgets it.
+     *
+     * @param run the build.
+     */
+    static void finish(Run run) {
+        finish(run.getExternalizableId());
+    }
+
+    /**
+     * Publishes the pending stage events of a build and forgets it. Returns once events that were already
+     * being published are published too, so that they go out before the completed message.
+     *
+     * @param id the build id.
+     */
+    static void finish(String id) {
+        synchronized (FINISHED) {
+            FINISHED.put(id, Boolean.TRUE);
+        }
+        BuildStages stages = BUILDS.remove(id);
+        if (stages != null) {
+            stages.flush();
+        }
+    }
+
+    /**
+     * Publishes the pending stage events of all builds, on shutdown.
+     */
+    static void flushAll() {
+        for (String id : BUILDS.keySet()) {
+            BuildStages stages = BUILDS.remove(id);
+            if (stages != null) {
+                stages.flush();
+            }
+        }
+    }
+
+    /**
+     * Publishes the pending stage events of a build before its completed message.
+     * The ordinal puts it before {@link RunListenerImpl}, which publishes the completed message.
+     */
+    @Extension(optional = true, ordinal = 1)
+    public static class BuildCompletion extends RunListener<Run> {
+
+        /**
+         * Constructor for BuildCompletion.
+         */
+        public BuildCompletion() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            finish(r);
+        }
+    }
+
+    /**
+     * Publishes stage events.
+     */
+    interface Publisher {
+        /**
+         * Publishes stage events in order.
+         *
+         * @param events the events.
+         */
+        void publish(List<JSONObject> events);
+    }
+
+    /**
+     * The debounced stage events of one build.
+     */
+    private static final class BuildStages {
+        /* Events waiting for the debounce time, keyed by the id of the stage start node. Guarded by this. */
+        private final Map<String, JSONObject> pending = new LinkedHashMap<String, JSONObject>();
+        /* Held while events are taken and published, so that a flush waits for one in progress. */
+        private final Object publishLock = new Object();
+        private final Publisher publisher;
+        private boolean scheduled;
+        private int count;
+        private int dropped;
+
+        /**
+         * Constructor.
+         *
+         * @param publisher publishes the events once they are due.
+         */
+        private BuildStages(Publisher publisher) {
+            this.publisher = publisher;
+        }
+
+        /**
+         * Adds a stage event.
+         *
+         * @param stageId the id of the stage start node.
+         * @param json    the event.
+         * @param started true for a started event.
+         * @param config  the configuration.
+         */
+        private synchronized void add(String stageId, JSONObject json, boolean started, MQNotifierConfig config) {
+            if (!started && pending.containsKey(stageId)) {
+                // the stage ended before its start was published
+                pending.put(stageId, json);
+                return;
+            }
+            if (count >= config.getStageEventLimit()) {
+                if (dropped++ == 0) {
+                    LOGGER.debug("Stage event limit reached for {}", json.get(Util.KEY_PROJECT_NAME));
+                }
+                return;
+            }
+            count++;
+            // started and completed events of a stage are only coalesced while pending
+            pending.put(started ? stageId : stageId + "/end", json);
+            if (!scheduled) {
+                scheduled = true;
+                Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, config.getStageEventDebounce(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Publishes the pending events.
+         */
+        private void flush() {
+            synchronized (publishLock) {
+                List<JSONObject> events;
+                synchronized (this) {
+                    events = new ArrayList<JSONObject>(pending.values());
+                    pending.clear();
+                    scheduled = false;
+                }
+                if (!events.isEmpty()) {
+                    publisher.publish(events);
+                }
+            }
+        }
+    }
+}
@@ -23,21 +23,16 @@
  */
 package com.sonymobile.jenkins.plugins.mq.mqnotifier;
 
-import hudson.Functions;
 import hudson.model.AbstractItem;
 import hudson.model.Queue;
 import hudson.model.Run;
-import jenkins.model.Jenkins;
-
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import net.sf.json.JSONObject;
 
 /**
  * Constants and helper functions.
  * @author Tomas Westling &lt;tomas.westling@sonymobile.com&gt;
  */
 public final class Util {
-    private static String hostName = null;
 
     /**Url Key. */
     public static final String KEY_URL = "url";
@@ -85,6 +80,142 @@ public final class Util {
     public static final String KEY_SCHEDULED_TIME = "scheduled_time";
     /** start time of a build. */
     public static final String KEY_START_TIME = "start_time";
+    /** Number of chunk messages following a message whose pipeline stages were split off. */
+    public static final String KEY_PIPELINE_CHUNKS = "pipeline_chunks";
+    /** Sequence number of a chunk message, starting at 1. */
+    public static final String KEY_CHUNK_SEQUENCE = "chunk_sequence";
+    /** Total number of chunk messages for a build. */
+    public static final String KEY_CHUNK_TOTAL = "chunk_total";
+    /** Pipeline Chunk Value. */
+    public static final String VALUE_PIPELINE_CHUNK = "PIPELINE_CHUNK";
+    /** Header with the sequence number of a chunk message, 0 for the core message. */
+    public static final String HEADER_CHUNK_SEQUENCE = "x-chunk-sequence";
+    /** Header with the total number of chunk messages for a build. */
+    public static final String HEADER_CHUNK_TOTAL = "x-chunk-total";
+    /** Events Key, the list of events in a batch envelope. */
+    public static final String KEY_BATCH_EVENTS = "events";
+    /** Number of events in a batch envelope. */
+    public static final String KEY_BATCH_COUNT = "batch_count";
+    /** Per-event metadata Key in a batch envelope. */
+    public static final String KEY_BATCH_META = "meta";
+    /** Event Key in a batch envelope. */
+    public static final String KEY_BATCH_EVENT = "event";
+    /** Headers of an event in a batch envelope. */
+    public static final String KEY_BATCH_HEADERS = "headers";
+    /** Time an event was created, in milliseconds. */
+    public static final String KEY_TIMESTAMP = "timestamp";
+    /** Correlation id of an event. */
+    public static final String KEY_CORRELATION_ID = "correlation_id";
+    /** Header with the number of events in a batch envelope. */
+    public static final String HEADER_BATCH_COUNT = "x-batch-count";
+    /** Stage Started Value. */
+    public static final String VALUE_STAGE_STARTED = "STAGE_STARTED";
+    /** Stage Completed Value. */
+    public static final String VALUE_STAGE_COMPLETED = "STAGE_COMPLETED";
+    /** Id of the flow node that starts a stage. */
+    public static final String KEY_STAGE_ID = "stage_id";
+    /** Name of a stage or parallel branch. */
+    public static final String KEY_STAGE_NAME = "stage_name";
+    /** True if the stage is a parallel branch. */
+    public static final String KEY_STAGE_PARALLEL = "parallel";
+    /** Duration of a stage in milliseconds. */
+    public static final String KEY_STAGE_DURATION = "stage_duration";
+    /** True in completed messages that were sent by a backfill rather than when the build completed. */
+    public static final String KEY_BACKFILL = "backfill";
+    /** Fields of providers that were skipped for an event. */
+    public static final String KEY_MISSING_FIELDS = "missing_fields";
+    /** Header with the event type of messages that have no JSON state field. */
+    public static final String HEADER_EVENT = "x-event";
+    /** Console log chunk event. */
+    public static final String VALUE_LOG = "LOG";
+    /** Header with the offset in the console log of the first byte of a log chunk. */
+    public static final String HEADER_LOG_OFFSET = "x-log-offset";
+    /** Header with the sequence number of a log chunk, starting at 0. */
+    public static final String HEADER_LOG_SEQUENCE = "x-log-sequence";
+    /** Header that is "true" on the empty message that ends the log of a build. */
+    public static final String HEADER_LOG_FINAL = "x-log-final";
+    /** A node came online. */
+    public static final String VALUE_NODE_ONLINE = "NODE_ONLINE";
+    /** A node went offline, or was removed. */
+    public static final String VALUE_NODE_OFFLINE = "NODE_OFFLINE";
+    /** All executors of a node became idle after builds. */
+    public static final String VALUE_NODE_IDLE = "NODE_IDLE";
+    /** Summary of the nodes that changed state, when too many changed at once for single events. */
+    public static final String VALUE_NODES_CHANGED = "NODES_CHANGED";
+    /** Name of a node. */
+    public static final String KEY_NODE_NAME = "node_name";
+    /** Labels of a node, separated by spaces. */
+    public static final String KEY_NODE_LABELS = "node_labels";
+    /** Number of executors of a node. */
+    public static final String KEY_NODE_EXECUTORS = "node_executors";
+    /** True if a node was taken offline temporarily. */
+    public static final String KEY_NODE_TEMPORARILY_OFFLINE = "temporarily_offline";
+    /** Why a node is offline. */
+    public static final String KEY_NODE_OFFLINE_CAUSE = "offline_cause";
+    /** Number of state changes of a node that were coalesced into one event. */
+    public static final String KEY_NODE_TRANSITIONS = "transitions";
+    /** Names of the changed nodes by their new state, in a summary. */
+    public static final String KEY_NODES = "nodes";
+    /** Complete snapshot of the build queue. */
+    public static final String VALUE_QUEUE_SNAPSHOT = "QUEUE_SNAPSHOT";
+    /** Changes of the build queue since the previous snapshot or delta. */
+    public static final String VALUE_QUEUE_DELTA = "QUEUE_DELTA";
+    /** Sequence number of a queue snapshot or delta. */
+    public static final String KEY_QUEUE_SEQUENCE = "queue_sequence";
+    /** Sequence number of the snapshot or delta that a delta applies to. */
+    public static final String KEY_QUEUE_BASE_SEQUENCE = "queue_base_sequence";
+    /** Number of items in the queue. */
+    public static final String KEY_QUEUE_SIZE = "queue_size";
+    /** Number of blocked items in the queue. */
+    public static final String KEY_QUEUE_BLOCKED = "queue_blocked";
+    /** Number of buildable items in the queue. */
+    public static final String KEY_QUEUE_BUILDABLE = "queue_buildable";
+    /** Time the oldest item entered the queue, in milliseconds. */
+    public static final String KEY_QUEUE_OLDEST_SINCE = "queue_oldest_since";
+    /** Strings that the label, reason and status columns of queue items refer to by index. */
+    public static final String KEY_QUEUE_STRINGS = "queue_strings";
+    /** All queue items of a snapshot, in columns. */
+    public static final String KEY_QUEUE_ITEMS = "queue_items";
+    /** Queue items of a delta that are new or changed, in columns. */
+    public static final String KEY_QUEUE_UPDATED = "queue_updated";
+    /** Ids of the queue items of a delta that left the queue. */
+    public static final String KEY_QUEUE_REMOVED = "queue_removed";
+    /** Header with the archive sequence number of a replayed message. */
+    public static final String HEADER_REPLAY_SEQUENCE = "x-replay-sequence";
+    /** Time in milliseconds when the build entered the queue. */
+    public static final String KEY_QUEUED_TIME = "queued_time";
+    /** Header with the time in milliseconds when the event of a message was captured. */
+    public static final String HEADER_CAPTURED_AT = "x-captured-at";
+    /** Header with the time in milliseconds when a message was put in the message queue. */
+    public static final String HEADER_JOURNALED_AT = "x-journaled-at";
+    /** Header with the time in milliseconds when a message was sent to the broker. */
+    public static final String HEADER_SENT_AT = "x-sent-at";
+    /** Periodic rollup event. */
+    public static final String VALUE_ROLLUP = "ROLLUP";
+    /** Start of the rollup interval in milliseconds. */
+    public static final String KEY_ROLLUP_START = "rollup_start";
+    /** End of the rollup interval in milliseconds. */
+    public static final String KEY_ROLLUP_END = "rollup_end";
+    /** Rollups per job. */
+    public static final String KEY_ROLLUP_JOBS = "jobs";
+    /** Rollups per label. */
+    public static final String KEY_ROLLUP_LABELS = "labels";
+    /** Job or label of a rollup, "*" for the ones beyond the limit. */
+    public static final String KEY_ROLLUP_NAME = "name";
+    /** Number of completed builds in a rollup. */
+    public static final String KEY_ROLLUP_COMPLETED = "completed";
+    /** Number of completed builds per result in a rollup. */
+    public static final String KEY_ROLLUP_RESULTS = "results";
+    /** Share of completed builds that failed in a rollup. */
+    public static final String KEY_ROLLUP_FAILURE_RATE = "failure_rate";
+    /** Duration percentiles of the completed builds in a rollup. */
+    public static final String KEY_ROLLUP_DURATION = "duration";
+    /** Number of queue items that started building in a rollup. */
+    public static final String KEY_ROLLUP_QUEUED = "queued";
+    /** Queue time percentiles of the queue items in a rollup. */
+    public static final String KEY_ROLLUP_QUEUE_TIME = "queue_time";
+    /** Content Type of newline delimited JSON batch envelopes. */
+    public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
 
     /**
      * Utility classes should not have a public or default constructor.
@@ -100,12 +231,7 @@ public final class Util {
      *
      */
     public static String getJobUrl(Queue.Item item) {
-        Jenkins jenkins = Jenkins.get();
-        if (jenkins != null && jenkins.getRootUrl() != null) {
-            return Functions.joinPath(jenkins.getRootUrl(), item.task.getUrl());
-        } else {
-            return item.task.getUrl();
-        }
+        return EventContext.getInstance().getUrl(item.task.getUrl(), "");
     }
 
     /**
@@ -116,12 +242,8 @@ public final class Util {
      *
      */
     public static String getJobUrl(Run r) {
-        Jenkins jenkins = Jenkins.get();
-        if (jenkins != null && jenkins.getRootUrl() != null) {
-            return Functions.joinPath(jenkins.getRootUrl(), r.getUrl());
-        } else {
-            return r.getUrl();
-        }
+        // same as Run.getUrl(), with the job part cached
+        return EventContext.getInstance().getUrl(r.getParent().getUrl(), r.getNumber() + "/");
     }
 
     /**
@@ -130,14 +252,20 @@ public final class Util {
      * @return hostname
      */
     public static String getHostName() {
-        if (hostName == null) {
-            try {
-                hostName = InetAddress.getLocalHost().getHostName();
-            } catch (UnknownHostException e) {
-                return VALUE_UNRESOLVED_HOST;
-            }
+        return EventContext.getInstance().getHostName();
+    }
+
+    /**
+     * Gets the id identifying a build across messages, on the same form as {@link Run#getExternalizableId()}.
+     *
+     * @param json a run message.
+     * @return the build id, or null if the message is not about a run.
+     */
+    public static String getBuildId(JSONObject json) {
+        if (!json.containsKey(KEY_PROJECT_NAME) || !json.containsKey(KEY_BUILD_NR)) {
+            return null;
         }
-        return hostName;
+        return json.getString(KEY_PROJECT_NAME) + "#" + json.get(KEY_BUILD_NR);
     }
 
     /**
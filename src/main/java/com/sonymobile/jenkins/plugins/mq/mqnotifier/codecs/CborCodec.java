@@ -0,0 +1,352 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.Util;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.CauseProvider;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.ParameterProvider;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.PipelineProvider;
+import hudson.Extension;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary codec using CBOR (RFC 7049).
+ * <p>
+ * Well-known keys are sent as small integers from {@link #KEYS}, other keys as text. Integers use the
+ * variable length CBOR encoding, and repeated strings within a message, such as the job name in the url
+ * and in the name field, are sent once and referenced afterwards using the CBOR stringref extension
+ * (tags 256 and 25). The key table is append-only; consumers select it from the {@code keys} parameter
+ * of the content type, and the version in that parameter is raised with every release that appends keys.
+ * <p>
+ * Batch envelopes are joined from events that were encoded one by one, each event with its own string
+ * namespace (tag 256), so strings are only shared within an event.
+ */
+@Extension
+public class CborCodec extends MessageCodec {
+
+    /** Id of the CBOR codec. */
+    public static final String ID = "cbor";
+
+    /** Content type, naming the key table version. */
+    public static final String CONTENT_TYPE = "application/cbor; keys=mq-notifier-1";
+
+    /** The number of keys in the table of the version in {@link #CONTENT_TYPE}. */
+    static final int KEYS_IN_VERSION = 51;
+
+    /**
+     * The dictionary coded keys. The index of a key is its code; only ever append to this table, and raise
+     * the version in {@link #CONTENT_TYPE} and {@link #KEYS_IN_VERSION} with it once a version is released.
+     */
+    public static final String[] KEYS = {
+        Util.KEY_STATE,
+        Util.KEY_URL,
+        Util.KEY_PROJECT_NAME,
+        Util.KEY_BUILD_NR,
+        Util.KEY_BUILD_DURATION,
+        Util.KEY_MASTER_FQDN,
+        Util.KEY_STATUS,
+        Util.KEY_DEQUEUE_REASON,
+        Util.KEY_DEQUEUE_TIME_SPENT,
+        Util.KEY_DEQUEUE_ALLOCATED_LABEL,
+        Util.KEY_LAST_BUILT_NR,
+        Util.KEY_SCHEDULED_TIME,
+        Util.KEY_START_TIME,
+        CauseProvider.KEY_CAUSES,
+        ParameterProvider.KEY_PARAMETERS,
+        PipelineProvider.KEY_PIPELINE,
+        PipelineProvider.KEY_IS_PIPELINE,
+        Util.KEY_PIPELINE_CHUNKS,
+        Util.KEY_CHUNK_SEQUENCE,
+        Util.KEY_CHUNK_TOTAL,
+        Util.KEY_BATCH_EVENTS,
+        Util.KEY_BATCH_COUNT,
+        Util.KEY_BATCH_META,
+        Util.KEY_BATCH_EVENT,
+        Util.KEY_TIMESTAMP,
+        Util.KEY_CORRELATION_ID,
+        Util.KEY_STAGE_ID,
+        Util.KEY_STAGE_NAME,
+        Util.KEY_STAGE_PARALLEL,
+        Util.KEY_STAGE_DURATION,
+        Util.KEY_MISSING_FIELDS,
+        Util.KEY_BACKFILL,
+        Util.KEY_NODE_NAME,
+        Util.KEY_NODE_LABELS,
+        Util.KEY_NODE_EXECUTORS,
+        Util.KEY_NODE_TEMPORARILY_OFFLINE,
+        Util.KEY_NODE_OFFLINE_CAUSE,
+        Util.KEY_NODE_TRANSITIONS,
+        Util.KEY_NODES,
+        Util.KEY_QUEUE_SEQUENCE,
+        Util.KEY_QUEUE_BASE_SEQUENCE,
+        Util.KEY_QUEUE_SIZE,
+        Util.KEY_QUEUE_BLOCKED,
+        Util.KEY_QUEUE_BUILDABLE,
+        Util.KEY_QUEUE_OLDEST_SINCE,
+        Util.KEY_QUEUE_STRINGS,
+        Util.KEY_QUEUE_ITEMS,
+        Util.KEY_QUEUE_UPDATED,
+        Util.KEY_QUEUE_REMOVED,
+        Util.KEY_QUEUED_TIME,
+        Util.KEY_BATCH_HEADERS,
+    };
+
+    /** Shared instance, for use where the extension list is not available. */
+    static final CborCodec INSTANCE = new CborCodec();
+
+    private static final Map<String, Integer> KEY_CODES;
+    static {
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS.length; i++) {
+            codes.put(KEYS[i], i);
+        }
+        KEY_CODES = Collections.unmodifiableMap(codes);
+    }
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SHIFT = 5;
+    private static final int TAG_STRINGREF = 25;
+    private static final int TAG_STRINGREF_NAMESPACE = 256;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT64 = 0xfb;
+    private static final int DIRECT_LIMIT = 24;
+    private static final int ONE_BYTE = 24;
+    private static final int TWO_BYTES = 25;
+    private static final int FOUR_BYTES = 26;
+    private static final int EIGHT_BYTES = 27;
+    private static final long ONE_BYTE_LIMIT = 0x100L;
+    private static final long TWO_BYTES_LIMIT = 0x10000L;
+    private static final long FOUR_BYTES_LIMIT = 0x100000000L;
+    private static final int BYTE_BITS = 8;
+    private static final int BYTE_MASK = 0xff;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "CBOR (compact binary)";
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(JSONObject json) {
+        Encoder encoder = new Encoder();
+        encoder.writeHead(MAJOR_TAG, TAG_STRINGREF_NAMESPACE);
+        encoder.writeValue(json);
+        return encoder.out.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeEnvelope(String countKey, String eventsKey, List<byte[]> events) {
+        Encoder encoder = new Encoder();
+        encoder.writeHead(MAJOR_TAG, TAG_STRINGREF_NAMESPACE);
+        encoder.writeHead(MAJOR_MAP, 2);
+        encoder.writeKey(countKey);
+        encoder.writeHead(MAJOR_UNSIGNED, events.size());
+        encoder.writeKey(eventsKey);
+        encoder.writeHead(MAJOR_ARRAY, events.size());
+        for (byte[] event : events) {
+            // every event starts its own string namespace
+            encoder.out.write(event, 0, event.length);
+        }
+        return encoder.out.toByteArray();
+    }
+
+    /**
+     * Encoding state of one message.
+     */
+    private static final class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        /**
+         * Writes any json-lib value.
+         *
+         * @param value the value.
+         */
+        private void writeValue(Object value) {
+            if (value == null || value instanceof JSONNull) {
+                out.write(NULL);
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject)value;
+                writeHead(MAJOR_MAP, object.size());
+                for (Object key : object.keySet()) {
+                    writeKey(key);
+                    writeValue(object.get(key));
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray)value;
+                writeHead(MAJOR_ARRAY, array.size());
+                for (Object element : array) {
+                    writeValue(element);
+                }
+            } else if (value instanceof Boolean) {
+                out.write((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                long n = ((Number)value).longValue();
+                if (n >= 0) {
+                    writeHead(MAJOR_UNSIGNED, n);
+                } else {
+                    writeHead(MAJOR_NEGATIVE, -1 - n);
+                }
+            } else if (value instanceof Double || value instanceof Float) {
+                writeDouble(((Number)value).doubleValue());
+            } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+                writeText(value.toString());
+            } else {
+                writeText(String.valueOf(value));
+            }
+        }
+
+        /**
+         * Writes a map key, as its code if it is in the key table.
+         *
+         * @param key the key.
+         */
+        private void writeKey(Object key) {
+            Integer code = KEY_CODES.get(key);
+            if (code != null) {
+                writeHead(MAJOR_UNSIGNED, code);
+            } else {
+                writeText(String.valueOf(key));
+            }
+        }
+
+        /**
+         * Writes a text string, or a reference to an identical earlier string.
+         *
+         * @param s the string.
+         */
+        private void writeText(String s) {
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeHead(MAJOR_TAG, TAG_STRINGREF);
+                writeHead(MAJOR_UNSIGNED, index);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            int next = strings.size();
+            if (isReferenceable(bytes.length, next)) {
+                strings.put(s, next);
+            }
+            writeHead(MAJOR_TEXT, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Writes a double precision float.
+         *
+         * @param d the value.
+         */
+        private void writeDouble(double d) {
+            out.write(FLOAT64);
+            writeBigEndian(Double.doubleToLongBits(d), Long.SIZE / BYTE_BITS);
+        }
+
+        /**
+         * Writes the initial bytes of a data item: the major type and the shortest encoding of the argument.
+         *
+         * @param major the major type.
+         * @param value the argument, non-negative.
+         */
+        private void writeHead(int major, long value) {
+            int type = major << MAJOR_SHIFT;
+            if (value < DIRECT_LIMIT) {
+                out.write(type | (int)value);
+            } else if (value < ONE_BYTE_LIMIT) {
+                out.write(type | ONE_BYTE);
+                out.write((int)value);
+            } else if (value < TWO_BYTES_LIMIT) {
+                out.write(type | TWO_BYTES);
+                writeBigEndian(value, Short.SIZE / BYTE_BITS);
+            } else if (value < FOUR_BYTES_LIMIT) {
+                out.write(type | FOUR_BYTES);
+                writeBigEndian(value, Integer.SIZE / BYTE_BITS);
+            } else {
+                out.write(type | EIGHT_BYTES);
+                writeBigEndian(value, Long.SIZE / BYTE_BITS);
+            }
+        }
+
+        /**
+         * Writes the low bytes of a value in network order.
+         *
+         * @param value the value.
+         * @param bytes the number of bytes.
+         */
+        private void writeBigEndian(long value, int bytes) {
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write((int)(value >>> (i * BYTE_BITS)) & BYTE_MASK);
+            }
+        }
+    }
+
+    /**
+     * The stringref rule for which strings get an index: only those long enough that a reference is shorter.
+     *
+     * @param length    the encoded length of the string.
+     * @param nextIndex the index the string would get.
+     * @return true if the string is added to the string table.
+     */
+    //CS IGNORE MagicNumber FOR NEXT 15 LINES. REASON: Thresholds from the stringref specification.
+    static boolean isReferenceable(int length, long nextIndex) {
+        if (nextIndex < 24) {
+            return length >= 3;
+        } else if (nextIndex < 256) {
+            return length >= 4;
+        } else if (nextIndex < 65536) {
+            return length >= 5;
+        } else if (nextIndex < 4294967296L) {
+            return length >= 7;
+        } else {
+            return length >= 11;
+        }
+    }
+}
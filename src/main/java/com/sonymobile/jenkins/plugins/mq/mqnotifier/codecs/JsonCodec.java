@@ -0,0 +1,100 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.Util;
+import hudson.Extension;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The default codec, plain JSON text.
+ */
+@Extension
+public class JsonCodec extends MessageCodec {
+
+    /** Id of the JSON codec. */
+    public static final String ID = "json";
+
+    /** Shared instance, for use where the extension list is not available. */
+    static final JsonCodec INSTANCE = new JsonCodec();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "JSON";
+    }
+
+    @Override
+    public String getContentType() {
+        return Util.CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(JSONObject json) {
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encodeEnvelope(String countKey, String eventsKey, List<byte[]> events) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "{" + JSONUtils.quote(countKey) + ":" + events.size() + "," + JSONUtils.quote(eventsKey) + ":[");
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            write(out, events.get(i));
+        }
+        write(out, "]}");
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes text.
+     *
+     * @param out  the stream.
+     * @param text the text.
+     */
+    private static void write(ByteArrayOutputStream out, String text) {
+        write(out, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes bytes.
+     *
+     * @param out   the stream.
+     * @param bytes the bytes.
+     */
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs;
+
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes message bodies. Each route selects the codec its consumers understand,
+ * and the codec's content type is sent with every message.
+ */
+public abstract class MessageCodec implements ExtensionPoint {
+
+    /**
+     * Gets the id that routes use to select this codec.
+     *
+     * @return the id.
+     */
+    public abstract String getId();
+
+    /**
+     * Gets the name shown on the configuration page.
+     *
+     * @return the display name.
+     */
+    public abstract String getDisplayName();
+
+    /**
+     * Gets the content type of the encoded bodies.
+     *
+     * @return the content type.
+     */
+    public abstract String getContentType();
+
+    /**
+     * Encodes a message.
+     *
+     * @param json the message.
+     * @return the encoded body.
+     */
+    public abstract byte[] encode(JSONObject json);
+
+    /**
+     * Encodes an envelope from events that were already encoded one by one with {@link #encode(JSONObject)},
+     * so that batched events are not encoded twice. The envelope holds the number of events and the array of
+     * events, in that order. Codecs that cannot join encoded events return null, the envelope is then encoded
+     * as a whole.
+     *
+     * @param countKey  the key of the number of events.
+     * @param eventsKey the key of the events.
+     * @param events    the encoded events.
+     * @return the encoded envelope, or null.
+     */
+    public byte[] encodeEnvelope(String countKey, String eventsKey, List<byte[]> events) {
+        return null;
+    }
+
+    /**
+     * Returns all MessageCodecs for this Jenkins instance.
+     * The built-in codecs are returned if Jenkins is not available.
+     *
+     * @return all the MessageCodecs.
+     */
+    public static List<MessageCodec> all() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return Arrays.<MessageCodec>asList(JsonCodec.INSTANCE, CborCodec.INSTANCE);
+        }
+        return jenkins.getExtensionList(MessageCodec.class);
+    }
+
+    /**
+     * Finds the codec with the given id.
+     *
+     * @param id the id, blank for the default JSON codec.
+     * @return the codec, or the JSON codec if there is no codec with that id.
+     */
+    public static MessageCodec forId(String id) {
+        if (StringUtils.isBlank(id) || JsonCodec.ID.equals(id)) {
+            return JsonCodec.INSTANCE;
+        }
+        for (MessageCodec codec : all()) {
+            if (id.equals(codec.getId())) {
+                return codec;
+            }
+        }
+        return JsonCodec.INSTANCE;
+    }
+}
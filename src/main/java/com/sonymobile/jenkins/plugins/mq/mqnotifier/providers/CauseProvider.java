@@ -32,8 +32,10 @@ import hudson.triggers.TimerTrigger;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Provides information about the causes for a build.
@@ -46,6 +48,13 @@ public class CauseProvider extends MQDataProvider {
     /**Causes Key. */
     public static final String KEY_CAUSES = "causes";
 
+    private static final Set<String> PROVIDED_KEYS = Collections.singleton(KEY_CAUSES);
+
+    @Override
+    public Set<String> getProvidedKeys() {
+        return PROVIDED_KEYS;
+    }
+
     @Override
     public void provideCompletedRunData(Run run, JSONObject json) {
 
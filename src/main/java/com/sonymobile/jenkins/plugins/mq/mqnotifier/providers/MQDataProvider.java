@@ -24,12 +24,14 @@
 package com.sonymobile.jenkins.plugins.mq.mqnotifier.providers;
 
 import hudson.ExtensionPoint;
+import hudson.model.Computer;
 import hudson.model.Queue;
 import hudson.model.Run;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * Provides data for the notifier to send.
@@ -74,6 +76,27 @@ public abstract class MQDataProvider implements ExtensionPoint {
     public void provideCompletedRunData(Run run, JSONObject json) {
     }
 
+    /**
+     * Provides data for when a node changes state.
+     *
+     * @param computer the {@link hudson.model.Computer} of the node.
+     * @param json the json object that we should add information to.
+     */
+    public void provideComputerData(Computer computer, JSONObject json) {
+    }
+
+    /**
+     * Returns the top level keys this provider adds to the messages.
+     * <p>
+     * The provider is not invoked at all when none of its keys is delivered by any configured route.
+     * Providers that do not override this are always invoked.
+     *
+     * @return the keys, or null if unknown.
+     */
+    public Set<String> getProvidedKeys() {
+        return null;
+    }
+
     /**
      * Returns all MQDataProvider for this Jenkins instance.
      * @return all the MQDataProviders.
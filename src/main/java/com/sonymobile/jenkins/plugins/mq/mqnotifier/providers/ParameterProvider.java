@@ -30,8 +30,10 @@ import hudson.model.Queue;
 import hudson.model.Run;
 import net.sf.json.JSONObject;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Provides the notifier with build parameters.
@@ -42,6 +44,13 @@ public class ParameterProvider extends MQDataProvider {
     /**Params Key. */
     public static final String KEY_PARAMETERS = "parameters";
 
+    private static final Set<String> PROVIDED_KEYS = Collections.singleton(KEY_PARAMETERS);
+
+    @Override
+    public Set<String> getProvidedKeys() {
+        return PROVIDED_KEYS;
+    }
+
     @Override
     public void provideStartRunData(Run run, JSONObject json) {
         addRunParametersToJSON(run, json);
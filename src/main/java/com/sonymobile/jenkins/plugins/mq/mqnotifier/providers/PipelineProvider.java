@@ -10,8 +10,12 @@ import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  *  Provides information about pipeline when this build is pipeline type
@@ -23,6 +27,14 @@ public class PipelineProvider extends MQDataProvider {
     public static final String KEY_PIPELINE = "pipelines";
     public static final String KEY_IS_PIPELINE = "is_pipeline";
 
+    private static final Set<String> PROVIDED_KEYS =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(KEY_PIPELINE, KEY_IS_PIPELINE)));
+
+    @Override
+    public Set<String> getProvidedKeys() {
+        return PROVIDED_KEYS;
+    }
+
     @Override
     public void provideCompletedRunData(Run run, JSONObject json) {
         List<List<String >> pipelines = new LinkedList<List<String>>();
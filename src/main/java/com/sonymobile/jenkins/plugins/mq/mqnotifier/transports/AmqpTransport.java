@@ -0,0 +1,196 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.transports;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import hudson.Extension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The default transport, publishes to the MQ server of the destination with publisher confirms.
+ * Each partition has its own channel on the connection of the destination.
+ */
+@Extension
+public class AmqpTransport extends MessageTransport {
+
+    /** Id of the AMQP transport. */
+    public static final String ID = "amqp";
+
+    /** Shared instance, for use where the extension list is not available. */
+    static final AmqpTransport INSTANCE = new AmqpTransport();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AmqpTransport.class);
+    private static final int CONNECTION_WAIT = 10000;
+    private static final long CONFIRM_TIMEOUT = 10000;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "AMQP";
+    }
+
+    @Override
+    public Sender createSender(Context context) {
+        return new AmqpSender(context);
+    }
+
+    /**
+     * Publishes the batches of one partition on its own channel.
+     */
+    private static final class AmqpSender extends Sender {
+        private final Context context;
+        private volatile Channel channel;
+
+        /**
+         * Constructor.
+         *
+         * @param context the partition.
+         */
+        private AmqpSender(Context context) {
+            this.context = context;
+        }
+
+        /**
+         * Publishes a batch and waits for the broker to confirm all of it.
+         * Keeps trying to get a connection indefinitely, or until the shutdown deadline.
+         *
+         * @param messages the messages
+         * @return true if the broker confirmed all messages
+         */
+        @Override
+        public boolean send(List<Message> messages) {
+            String exchange = messages.get(0).getExchange();
+            if (exchange == null) {
+                LOGGER.error("Invalid configuration, exchange must not be null.");
+                return false;
+            }
+
+            while (true) {
+                if (System.currentTimeMillis() >= context.getDeadline()) {
+                    return false;
+                }
+                // the channel is reset by other threads when the connection is lost
+                Channel current = channel;
+                try {
+                    if (current == null || !current.isOpen()) {
+                        current = null;
+                        Connection shared = context.getConnection();
+                        if (shared != null) {
+                            current = shared.createChannel();
+                            current.confirmSelect();
+                            if (!shared.getAddress().isLoopbackAddress()) {
+                                current.exchangeDeclarePassive(exchange);
+                            }
+                        }
+                        channel = current;
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Cannot create channel", e);
+                    channel = null; // reset
+                    current = null;
+                } catch (ShutdownSignalException e) {
+                    LOGGER.error("Cannot create channel", e);
+                    channel = null; // reset
+                    return false;
+                }
+                if (current != null) {
+                    try {
+                        for (Message message : messages) {
+                            current.basicPublish(message.getExchange(), message.getRoutingKey(), message.getProps(),
+                                    message.getBody());
+                        }
+                        if (!current.waitForConfirms(confirmTimeout())) {
+                            LOGGER.warn("Messages were not accepted by the broker");
+                            return false;
+                        }
+                    } catch (IOException e) {
+                        LOGGER.error("Cannot publish message", e);
+                        return false;
+                    } catch (AlreadyClosedException e) {
+                        LOGGER.error("Connection is already closed", e);
+                        return false;
+                    } catch (TimeoutException e) {
+                        LOGGER.warn("Messages were not confirmed in time");
+                        return false;
+                    } catch (InterruptedException e) {
+                        LOGGER.warn("Interrupted while waiting for confirmation");
+                        return false;
+                    }
+                    return true;
+                } else {
+                    try {
+                        Thread.sleep(CONNECTION_WAIT);
+                    } catch (InterruptedException ie) {
+                        if (context.getDeadline() != Long.MAX_VALUE) {
+                            return false;
+                        }
+                        LOGGER.error("Thread.sleep() was interrupted", ie);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the time to wait for a publisher confirm, never beyond the shutdown deadline.
+         *
+         * @return the timeout in milliseconds.
+         */
+        private long confirmTimeout() {
+            long left = context.getDeadline() - System.currentTimeMillis();
+            return Math.max(1, Math.min(CONFIRM_TIMEOUT, left));
+        }
+
+        @Override
+        public void reset() {
+            channel = null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (channel != null && channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close the MQ channel", e);
+            } catch (AlreadyClosedException e) {
+                LOGGER.debug("MQ channel already closed", e);
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
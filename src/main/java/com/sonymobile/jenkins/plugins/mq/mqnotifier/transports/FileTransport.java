@@ -0,0 +1,327 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.transports;
+
+import com.rabbitmq.client.AMQP;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.MQNotifierConfig;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.Util;
+import hudson.Extension;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Writes messages as newline delimited JSON to rolling files, for shipping without a connection to an
+ * MQ server. Each partition of a destination writes its own files, through a memory-mapped segment of
+ * the configured size. A batch is accepted when it has been forced to disk.
+ * <p>
+ * The file being written ends with {@code .ndjson.part} and is renamed to {@code .ndjson} when it is full
+ * or the sender is closed, so complete files can be picked up as soon as they appear. Files left
+ * unfinished by a crash are cut after their last line and renamed when the sender starts again.
+ */
+@Extension
+public class FileTransport extends MessageTransport {
+
+    /** Id of the file transport. */
+    public static final String ID = "file";
+
+    /** Shared instance, for use where the extension list is not available. */
+    static final FileTransport INSTANCE = new FileTransport();
+
+    /** Default name of the directory in the Jenkins root. */
+    public static final String DEFAULT_DIRECTORY = "mq-notifier-outbox";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileTransport.class);
+    private static final String SUFFIX = ".ndjson";
+    private static final String PART_SUFFIX = SUFFIX + ".part";
+    private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Local NDJSON files";
+    }
+
+    @Override
+    public Sender createSender(Context context) {
+        File directory;
+        long segmentSize = DEFAULT_SEGMENT_SIZE;
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        if (config != null && StringUtils.isNotBlank(config.getTransportDirectory())) {
+            directory = new File(config.getTransportDirectory());
+        } else {
+            directory = new File(Jenkins.get().getRootDir(), DEFAULT_DIRECTORY);
+        }
+        if (config != null && config.getTransportFileSize() > 0) {
+            segmentSize = config.getTransportFileSize();
+        }
+        String prefix = "default";
+        if (context.getDestinationName() != null) {
+            prefix = context.getDestinationName().replaceAll("[^A-Za-z0-9_.-]", "_");
+        }
+        if (context.getPartition() > 0) {
+            prefix += "." + context.getPartition();
+        }
+        return new FileSender(directory, prefix, segmentSize);
+    }
+
+    /**
+     * Encodes a message as one line of JSON, without the line end.
+     * JSON bodies are embedded as they are, other text bodies as a string and binary bodies in base64.
+     *
+     * @param message the message.
+     * @return the line.
+     */
+    static String toLine(Message message) {
+        AMQP.BasicProperties props = message.getProps();
+        StringBuilder line = new StringBuilder();
+        line.append("{\"exchange\":").append(JSONUtils.quote(message.getExchange()));
+        line.append(",\"routing_key\":").append(JSONUtils.quote(message.getRoutingKey()));
+        String contentType = null;
+        if (props != null) {
+            contentType = props.getContentType();
+            append(line, "content_type", contentType);
+            append(line, "correlation_id", props.getCorrelationId());
+            append(line, "app_id", props.getAppId());
+            if (props.getTimestamp() != null) {
+                line.append(",\"timestamp\":").append(props.getTimestamp().getTime());
+            }
+            if (props.getHeaders() != null && !props.getHeaders().isEmpty()) {
+                line.append(",\"headers\":").append(JSONObject.fromObject(props.getHeaders()).toString());
+            }
+        }
+        byte[] body = message.getBody();
+        if (body.length > 0 && contentType != null && contentType.startsWith(Util.CONTENT_TYPE)) {
+            line.append(",\"body\":").append(new String(body, StandardCharsets.UTF_8));
+        } else if (contentType == null || contentType.startsWith("text/")
+                || contentType.startsWith(Util.CONTENT_TYPE_NDJSON)) {
+            line.append(",\"body\":").append(JSONUtils.quote(new String(body, StandardCharsets.UTF_8)));
+        } else {
+            line.append(",\"body_base64\":\"").append(Base64.getEncoder().encodeToString(body)).append('"');
+        }
+        return line.append('}').toString();
+    }
+
+    /**
+     * Appends a string field unless it is null.
+     *
+     * @param line  the line.
+     * @param key   the field name.
+     * @param value the value, may be null.
+     */
+    private static void append(StringBuilder line, String key, String value) {
+        if (value != null) {
+            line.append(",\"").append(key).append("\":").append(JSONUtils.quote(value));
+        }
+    }
+
+    /**
+     * Writes the batches of one partition to its rolling files.
+     */
+    static final class FileSender extends Sender {
+        private final File directory;
+        private final String prefix;
+        private final long segmentSize;
+        private File part;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private long sequence;
+        private boolean recovered;
+
+        /**
+         * Constructor.
+         *
+         * @param directory   the directory of the files.
+         * @param prefix      the start of the file names.
+         * @param segmentSize the size of a file.
+         */
+        FileSender(File directory, String prefix, long segmentSize) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.segmentSize = segmentSize;
+        }
+
+        @Override
+        public synchronized boolean send(List<Message> messages) {
+            try {
+                if (!recovered) {
+                    recover();
+                    recovered = true;
+                }
+                List<byte[]> lines = new ArrayList<byte[]>(messages.size());
+                for (Message message : messages) {
+                    lines.add((toLine(message) + '\n').getBytes(StandardCharsets.UTF_8));
+                }
+                for (byte[] line : lines) {
+                    if (buffer == null || buffer.remaining() < line.length) {
+                        roll(line.length);
+                    }
+                    buffer.put(line);
+                }
+                buffer.force();
+                return true;
+            } catch (IOException e) {
+                LOGGER.error("Cannot write messages to {}", part, e);
+                // the batch is written again to a new file
+                finish();
+                return false;
+            }
+        }
+
+        /**
+         * Finishes the current file and maps a new one.
+         *
+         * @param minimum the number of bytes that must fit.
+         * @throws IOException if the file cannot be created.
+         */
+        private void roll(int minimum) throws IOException {
+            finish();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            String name = prefix + "-" + System.currentTimeMillis() + "-" + sequence++;
+            part = new File(directory, name + PART_SUFFIX);
+            RandomAccessFile file = new RandomAccessFile(part, "rw");
+            try {
+                channel = file.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minimum));
+            } catch (IOException e) {
+                file.close();
+                channel = null;
+                throw e;
+            }
+        }
+
+        /**
+         * Cuts the current file after its last line and renames it to its final name.
+         */
+        private void finish() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                if (buffer != null) {
+                    buffer.force();
+                    channel.truncate(buffer.position());
+                }
+                channel.close();
+                complete(part);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot finish {}", part, e);
+            }
+            channel = null;
+            buffer = null;
+            part = null;
+        }
+
+        /**
+         * Finishes the files of this sender that were left unfinished by a crash.
+         *
+         * @throws IOException if a file cannot be read.
+         */
+        private void recover() throws IOException {
+            File[] parts = directory.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(prefix + "-") && name.endsWith(PART_SUFFIX);
+                }
+            });
+            if (parts == null) {
+                return;
+            }
+            for (File unfinished : parts) {
+                RandomAccessFile file = new RandomAccessFile(unfinished, "rw");
+                try {
+                    file.getChannel().truncate(endOfLastLine(file.getChannel()));
+                } finally {
+                    file.close();
+                }
+                LOGGER.info("Recovered unfinished file {}", unfinished);
+                complete(unfinished);
+            }
+        }
+
+        /**
+         * Gets the position after the last line end of a file, the rest is unused space or a torn line.
+         *
+         * @param file the file.
+         * @return the position.
+         * @throws IOException if the file cannot be read.
+         */
+        private static long endOfLastLine(FileChannel file) throws IOException {
+            ByteBuffer block = ByteBuffer.allocate(Short.MAX_VALUE);
+            long end = file.size();
+            while (end > 0) {
+                long start = Math.max(0, end - block.capacity());
+                block.clear();
+                block.limit((int)(end - start));
+                file.read(block, start);
+                for (int i = block.position() - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n') {
+                        return start + i + 1;
+                    }
+                }
+                end = start;
+            }
+            return 0;
+        }
+
+        /**
+         * Renames a finished file to its final name.
+         *
+         * @param file the file ending with {@code .ndjson.part}.
+         * @throws IOException if the file cannot be renamed.
+         */
+        private static void complete(File file) throws IOException {
+            File done = new File(file.getParentFile(), StringUtils.removeEnd(file.getName(), PART_SUFFIX) + SUFFIX);
+            if (!file.renameTo(done)) {
+                throw new IOException("Cannot rename " + file + " to " + done);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            finish();
+        }
+    }
+}
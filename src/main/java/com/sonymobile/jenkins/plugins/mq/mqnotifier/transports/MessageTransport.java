@@ -0,0 +1,220 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.transports;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Delivers the messages of the message queue. Each destination selects a transport, and the dispatcher of
+ * every partition sends its batches through a {@link Sender} of it; queueing, batching, rate limits and the
+ * removal of delivered messages from the queue are the same for all transports.
+ */
+public abstract class MessageTransport implements ExtensionPoint {
+
+    /**
+     * Gets the id that destinations use to select this transport.
+     *
+     * @return the id.
+     */
+    public abstract String getId();
+
+    /**
+     * Gets the name shown on the configuration page.
+     *
+     * @return the display name.
+     */
+    public abstract String getDisplayName();
+
+    /**
+     * Creates the sender for one partition of a destination.
+     *
+     * @param context the partition.
+     * @return the sender.
+     */
+    public abstract Sender createSender(Context context);
+
+    /**
+     * Returns all MessageTransports for this Jenkins instance.
+     * The built-in transports are returned if Jenkins is not available.
+     *
+     * @return all the MessageTransports.
+     */
+    public static List<MessageTransport> all() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return Arrays.<MessageTransport>asList(AmqpTransport.INSTANCE, FileTransport.INSTANCE,
+                    NullTransport.INSTANCE);
+        }
+        return jenkins.getExtensionList(MessageTransport.class);
+    }
+
+    /**
+     * Finds the transport with the given id.
+     *
+     * @param id the id, blank for the default AMQP transport.
+     * @return the transport, or the AMQP transport if there is no transport with that id.
+     */
+    public static MessageTransport forId(String id) {
+        if (StringUtils.isBlank(id) || AmqpTransport.ID.equals(id)) {
+            return AmqpTransport.INSTANCE;
+        }
+        for (MessageTransport transport : all()) {
+            if (id.equals(transport.getId())) {
+                return transport;
+            }
+        }
+        return AmqpTransport.INSTANCE;
+    }
+
+    /**
+     * The partition of a destination that a sender delivers for.
+     */
+    public interface Context {
+
+        /**
+         * Gets the name of the destination.
+         *
+         * @return the name, or null for the globally configured destination.
+         */
+        String getDestinationName();
+
+        /**
+         * Gets the partition number.
+         *
+         * @return the partition number, 0 for the first partition.
+         */
+        int getPartition();
+
+        /**
+         * Gets the connection to the MQ server of the destination, for transports that use it.
+         *
+         * @return the connection, or null if the server cannot be reached.
+         */
+        Connection getConnection();
+
+        /**
+         * Gets the time at which sending must end, on shutdown.
+         *
+         * @return the deadline in milliseconds, {@link Long#MAX_VALUE} while not shutting down.
+         */
+        long getDeadline();
+    }
+
+    /**
+     * Sends the batches of one partition. Only called from the dispatcher of that partition, except for
+     * {@link #reset()}.
+     */
+    public abstract static class Sender {
+
+        /**
+         * Sends a batch and waits until the transport has accepted all of its messages. Messages are only
+         * removed from the queue when this returns true, so they may be sent again after a failure.
+         *
+         * @param messages the messages, oldest first.
+         * @return true if all messages were accepted.
+         */
+        public abstract boolean send(List<Message> messages);
+
+        /**
+         * Drops what belongs to a lost or reconfigured connection, it is opened again with the next batch.
+         * May be called from any thread.
+         */
+        public void reset() {
+        }
+
+        /**
+         * Closes the sender, on shutdown or when the transport is changed.
+         */
+        public void close() {
+        }
+    }
+
+    /**
+     * A message as it is sent, with its exchange, routing key and properties resolved.
+     */
+    public static final class Message {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties props;
+        private final byte[] body;
+
+        /**
+         * Constructor.
+         *
+         * @param exchange   the exchange, may be null if none is configured
+         * @param routingKey the routing key
+         * @param props      the message properties
+         * @param body       the message body
+         */
+        public Message(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+
+        /**
+         * Gets the exchange.
+         *
+         * @return the exchange, may be null if none is configured.
+         */
+        public String getExchange() {
+            return exchange;
+        }
+
+        /**
+         * Gets the routing key.
+         *
+         * @return the routing key.
+         */
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        /**
+         * Gets the message properties.
+         *
+         * @return the properties.
+         */
+        public AMQP.BasicProperties getProps() {
+            return props;
+        }
+
+        /**
+         * Gets the message body.
+         *
+         * @return the body.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.transports;
+
+import hudson.Extension;
+
+import java.util.List;
+
+/**
+ * Accepts every message without sending it anywhere, for measuring the overhead of the plugin itself.
+ * Messages are still queued, batched and rate limited like on any other transport.
+ */
+@Extension
+public class NullTransport extends MessageTransport {
+
+    /** Id of the null transport. */
+    public static final String ID = "null";
+
+    /** Shared instance, for use where the extension list is not available. */
+    static final NullTransport INSTANCE = new NullTransport();
+
+    private static final Sender SENDER = new Sender() {
+        @Override
+        public boolean send(List<Message> messages) {
+            return true;
+        }
+    };
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "None, discard all messages";
+    }
+
+    @Override
+    public Sender createSender(Context context) {
+        return SENDER;
+    }
+}
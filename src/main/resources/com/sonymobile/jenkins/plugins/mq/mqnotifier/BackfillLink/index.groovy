@@ -0,0 +1,48 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.BackfillLink;
+
+def l = namespace(lib.LayoutTagLib)
+def f = namespace("/lib/form")
+
+l.layout(title: my.displayName, permission: app.ADMINISTER) {
+    l.main_panel {
+        h1(my.displayName)
+        def backfill = my.backfill
+        p(backfill.state)
+        p("${backfill.published} messages published, ${backfill.completedJobs} jobs completed.")
+        if (backfill.running) {
+            form(method: "post", action: "stop") {
+                f.submit(value: "Stop")
+            }
+        } else {
+            form(method: "post", action: "start") {
+                f.submit(value: "Start or resume")
+            }
+            form(method: "post", action: "restart") {
+                f.submit(value: "Start from the beginning")
+            }
+        }
+    }
+}
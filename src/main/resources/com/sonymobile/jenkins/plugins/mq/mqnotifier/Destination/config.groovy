@@ -0,0 +1,54 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.Destination;
+
+def f = namespace("/lib/form")
+def l = "/plugin/mq-notifier/"
+
+f.entry(title: "Name", field: "name") {
+    f.textbox()
+}
+f.entry(title: "MQ URI", field: "serverUri", help: l+"help-amqp-uri.html") {
+    f.textbox()
+}
+f.entry(title: "User name", field: "userName", help: l+"help-user-name.html") {
+    f.textbox()
+}
+f.entry(title: "Password", field: "userPassword", help: l+"help-user-password.html") {
+    f.password()
+}
+f.entry(title: "Virtual host", field: "virtualHost", help: l+"help-virtual-host.html") {
+    f.textbox()
+}
+f.entry(title: "Exchange Name", field: "exchangeName", help: l+"help-destination-exchange.html") {
+    f.textbox()
+}
+f.entry(title: "Transport", field: "transport", help: l+"help-transport.html") {
+    f.select()
+}
+f.entry {
+    div(align: "right") {
+        f.repeatableDeleteButton()
+    }
+}
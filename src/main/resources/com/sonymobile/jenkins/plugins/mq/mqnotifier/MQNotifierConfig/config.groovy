@@ -53,6 +53,164 @@ f.section(title: "MQ Notifier") {
     f.entry(title: "Routing Key", field: "routingKey", help: l+"help-routing-key.html") {
         f.textbox("value":my.routingKey)
     }
+    f.entry(title: "Transport", field: "transport", help: l+"help-transport.html") {
+        f.select()
+    }
+    f.advanced(title: "File transport") {
+        f.entry(title: "Directory", field: "transportDirectory", help: l+"help-transport.html") {
+            f.textbox("value":my.transportDirectory)
+        }
+        f.entry(title: "File size (bytes)", field: "transportFileSize", help: l+"help-transport.html") {
+            f.number("value":my.transportFileSize, min: 1)
+        }
+    }
+    f.entry(title: "Additional destinations", help: l+"help-destinations.html") {
+        f.repeatableProperty(field: "destinations", add: "Add destination")
+    }
+    f.entry(title: "Include events", field: "eventIncludes", help: l+"help-event-filter.html") {
+        f.textarea("value":my.eventIncludes)
+    }
+    f.entry(title: "Exclude events", field: "eventExcludes", help: l+"help-event-filter.html") {
+        f.textarea("value":my.eventExcludes)
+    }
+    f.entry(title: "Message time-to-live (ms)", field: "messageTtls", help: l+"help-message-ttl.html") {
+        f.textarea("value":my.messageTtls)
+    }
+    f.advanced(title: "Retention and replay") {
+        f.entry(title: "Keep delivered messages for (ms)", field: "retentionWindow", help: l+"help-retention.html") {
+            f.number("value":my.retentionWindow, min: 0)
+        }
+        f.entry(title: "Maximum size of kept messages (bytes)", field: "retentionMaxSize",
+                help: l+"help-retention.html") {
+            f.number("value":my.retentionMaxSize, min: 0)
+        }
+        f.entry(title: "Replay rate (messages/s)", field: "replayRate", help: l+"help-retention.html") {
+            f.number("value":my.replayRate, min: 0)
+        }
+    }
+    f.entry(title: "Routes", help: l+"help-routes.html") {
+        f.repeatableProperty(field: "routes", add: "Add route")
+    }
+    f.entry(title: "Maximum message size", field: "maxMessageSize", help: l+"help-max-message-size.html") {
+        f.number("value":my.maxMessageSize, min: 0)
+    }
+    f.entry(title: "Stream console logs", help: l+"help-log-streaming.html") {
+        f.checkbox(field: "logStreaming", checked: my.logStreaming)
+    }
+    f.advanced(title: "Console log streaming") {
+        f.entry(title: "Log routing key", field: "logRoutingKey", help: l+"help-log-routing-key.html") {
+            f.textbox("value":my.logRoutingKey)
+        }
+        f.entry(title: "Log chunk size", field: "logChunkSize", help: l+"help-log-chunk-size.html") {
+            f.number("value":my.logChunkSize, min: 1)
+        }
+        f.entry(title: "Log flush interval (ms)", field: "logFlushInterval", help: l+"help-log-flush-interval.html") {
+            f.number("value":my.logFlushInterval, min: 0)
+        }
+        f.entry(title: "Log bandwidth (bytes/s)", field: "logBandwidth", help: l+"help-log-bandwidth.html") {
+            f.number("value":my.logBandwidth, min: 0)
+        }
+    }
+    f.entry(title: "Publish stage events", help: l+"help-stage-events.html") {
+        f.checkbox(field: "stageEvents", checked: my.stageEvents)
+    }
+    f.advanced(title: "Stage events") {
+        f.entry(title: "Stage event debounce (ms)", field: "stageEventDebounce", help: l+"help-stage-events.html") {
+            f.number("value":my.stageEventDebounce, min: 0)
+        }
+        f.entry(title: "Stage events per build", field: "stageEventLimit", help: l+"help-stage-events.html") {
+            f.number("value":my.stageEventLimit, min: 0)
+        }
+    }
+    f.entry(title: "Publish node events", help: l+"help-node-events.html") {
+        f.checkbox(field: "nodeEvents", checked: my.nodeEvents)
+    }
+    f.advanced(title: "Node events") {
+        f.entry(title: "Node event debounce (ms)", field: "nodeEventDebounce", help: l+"help-node-events.html") {
+            f.number("value":my.nodeEventDebounce, min: 0)
+        }
+        f.entry(title: "Node events per debounce", field: "nodeEventLimit", help: l+"help-node-events.html") {
+            f.number("value":my.nodeEventLimit, min: 1)
+        }
+    }
+    f.entry(title: "Publish queue snapshots", help: l+"help-queue-snapshots.html") {
+        f.checkbox(field: "queueSnapshots", checked: my.queueSnapshots)
+    }
+    f.advanced(title: "Queue snapshots") {
+        f.entry(title: "Queue snapshot interval (ms)", field: "queueSnapshotInterval",
+                help: l+"help-queue-snapshots.html") {
+            f.number("value":my.queueSnapshotInterval, min: 1000)
+        }
+        f.entry(title: "Complete snapshot every", field: "queueSnapshotFullEvery",
+                help: l+"help-queue-snapshots.html") {
+            f.number("value":my.queueSnapshotFullEvery, min: 1)
+        }
+    }
+    f.entry(title: "Publish queue events", help: l+"help-lifecycle.html") {
+        f.checkbox(field: "queueEvents", checked: my.queueEvents)
+    }
+    f.entry(title: "Join queue data into completed events", help: l+"help-lifecycle.html") {
+        f.checkbox(field: "lifecycleEvents", checked: my.lifecycleEvents)
+    }
+    f.advanced(title: "Lifecycle events") {
+        f.entry(title: "Queue items remembered", field: "lifecycleMaxEntries", help: l+"help-lifecycle.html") {
+            f.number("value":my.lifecycleMaxEntries, min: 0)
+        }
+        f.entry(title: "Queue item expiry (ms)", field: "lifecycleExpiry", help: l+"help-lifecycle.html") {
+            f.number("value":my.lifecycleExpiry, min: 0)
+        }
+    }
+    f.entry(title: "Publish rollups", help: l+"help-rollup.html") {
+        f.checkbox(field: "rollupEvents", checked: my.rollupEvents)
+    }
+    f.advanced(title: "Rollups") {
+        f.entry(title: "Rollup interval (ms)", field: "rollupInterval", help: l+"help-rollup.html") {
+            f.number("value":my.rollupInterval, min: 1000)
+        }
+        f.entry(title: "Rollup routing key", field: "rollupRoutingKey", help: l+"help-rollup.html") {
+            f.textbox("value":my.rollupRoutingKey)
+        }
+        f.entry(title: "Jobs and labels per rollup", field: "rollupMaxKeys", help: l+"help-rollup.html") {
+            f.number("value":my.rollupMaxKeys, min: 0)
+        }
+    }
+    f.entry(title: "Data provider time budget (ms)", field: "providerBudget", help: l+"help-provider-budget.html") {
+        f.number("value":my.providerBudget, min: 0)
+    }
+    f.entry(title: "Data provider p99 limit (ms)", field: "providerP99Limit", help: l+"help-provider-p99-limit.html") {
+        f.number("value":my.providerP99Limit, min: 0)
+    }
+    f.entry(title: "Send latency headers", help: l+"help-latency-headers.html") {
+        f.checkbox(field: "latencyHeaders", checked: my.latencyHeaders)
+    }
+    f.entry(title: "Shutdown timeout (ms)", field: "shutdownTimeout", help: l+"help-shutdown-timeout.html") {
+        f.number("value":my.shutdownTimeout, min: 0)
+    }
+    f.entry(title: "Rate limit (messages/s)", field: "publishRate", help: l+"help-publish-rate.html") {
+        f.number("value":my.publishRate, min: 0)
+    }
+    f.entry(title: "Rate limit (bytes/s)", field: "publishByteRate", help: l+"help-publish-rate.html") {
+        f.number("value":my.publishByteRate, min: 0)
+    }
+    f.entry(title: "Rate limit burst (ms)", field: "publishBurst", help: l+"help-publish-rate.html") {
+        f.number("value":my.publishBurst, min: 0)
+    }
+    f.entry(title: "Publish partitions", field: "publishPartitions", help: l+"help-publish-partitions.html") {
+        f.number("value":my.publishPartitions, min: 1)
+    }
+    f.entry(title: "Maximum publish batch", field: "publishBatchMax", help: l+"help-publish-batching.html") {
+        f.number("value":my.publishBatchMax, min: 1)
+    }
+    f.entry(title: "Publish latency target (ms)", field: "publishLatencyTarget", help: l+"help-publish-batching.html") {
+        f.number("value":my.publishLatencyTarget, min: 0)
+    }
+    f.entry(title: "Publish throughput target (messages/s)", field: "publishThroughputTarget",
+            help: l+"help-publish-batching.html") {
+        f.number("value":my.publishThroughputTarget, min: 0)
+    }
+    f.entry(title: "Backfill rate (builds/s)", field: "backfillRate", help: l+"help-backfill-rate.html") {
+        f.number("value":my.backfillRate, min: 0)
+    }
     f.entry(title: "Application Id", field: "appId", help: l+"help-application-id.html") {
         f.textbox("value":my.appId)
     }
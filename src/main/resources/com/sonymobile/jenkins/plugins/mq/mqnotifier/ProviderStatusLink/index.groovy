@@ -0,0 +1,92 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.ProviderStatusLink;
+
+def l = namespace(lib.LayoutTagLib)
+def f = namespace("/lib/form")
+
+l.layout(title: my.displayName, permission: app.ADMINISTER) {
+    l.main_panel {
+        h1(my.displayName)
+        table(class: "pane sortable bigtable") {
+            tr {
+                th("Provider")
+                th("Hook")
+                th("Invocations")
+                th("Errors")
+                th("Skipped")
+                th("Bytes")
+                th("Mean")
+                th("p50")
+                th("p90")
+                th("p99")
+            }
+            my.stats.each { s ->
+                tr {
+                    td(s.provider)
+                    td(s.hook)
+                    td(s.invocations)
+                    td(s.errors)
+                    td(s.skips)
+                    td(s.bytes)
+                    td(String.format("%.1f ms", s.meanMillis))
+                    td(my.formatPercentile(s.getPercentile(0.5)))
+                    td(my.formatPercentile(s.getPercentile(0.9)))
+                    td(my.formatPercentile(s.getPercentile(0.99)))
+                }
+            }
+        }
+        h2("Delivery latency")
+        table(class: "pane bigtable") {
+            tr {
+                th("Stage")
+                th("Messages")
+                th("Mean")
+                th("p50")
+                th("p90")
+                th("p99")
+            }
+            my.stages.each { s ->
+                tr {
+                    td(s.name)
+                    td(s.count)
+                    td(String.format("%.1f ms", s.meanMillis))
+                    td(my.formatLatency(s.getPercentile(0.5)))
+                    td(my.formatLatency(s.getPercentile(0.9)))
+                    td(my.formatLatency(s.getPercentile(0.99)))
+                }
+            }
+        }
+        if (!my.disabled.isEmpty()) {
+            h2("Disabled providers")
+            my.disabled.each { provider ->
+                form(method: "post", action: "enable") {
+                    input(type: "hidden", name: "provider", value: provider)
+                    text(provider + " ")
+                    f.submit(value: "Enable")
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.Route;
+
+def f = namespace("/lib/form")
+def l = "/plugin/mq-notifier/"
+
+f.entry(title: "Name", field: "name") {
+    f.textbox()
+}
+f.entry(title: "Routing Key", field: "routingKey", help: l+"help-route-routing-key.html") {
+    f.textbox()
+}
+f.entry(title: "Fields", field: "fields", help: l+"help-route-fields.html") {
+    f.textbox()
+}
+f.entry(title: "Encoding", field: "codec", help: l+"help-route-codec.html") {
+    f.select()
+}
+f.advanced {
+    f.entry(title: "Batch size", field: "batchSize", help: l+"help-route-batching.html") {
+        f.number(min: 0)
+    }
+    f.entry(title: "Batch linger (ms)", field: "batchLinger") {
+        f.number(min: 0, default: 1000)
+    }
+    f.entry(title: "Batch format", field: "batchFormat") {
+        f.select()
+    }
+    f.entry(title: "Rate limit (messages/s)", field: "rateLimit", help: l+"help-publish-rate.html") {
+        f.number(min: 0)
+    }
+    f.entry(title: "Rate limit (bytes/s)", field: "byteRateLimit") {
+        f.number(min: 0)
+    }
+}
+f.entry {
+    div(align: "right") {
+        f.repeatableDeleteButton()
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 80 LINES. REASON: TestData
+
+/**
+ * Tests for the progress and the pacing of the backfill.
+ */
+public class BackfillTest {
+
+    /**
+     * Jobs are compared in the order they are visited, folder by folder.
+     */
+    @Test
+    public void testCompareFullNames() {
+        assertTrue(Backfill.compareFullNames("a", "b") < 0);
+        assertTrue(Backfill.compareFullNames("a", "a/z") < 0);
+        assertTrue(Backfill.compareFullNames("a/z", "a-b") < 0);
+        assertTrue(Backfill.compareFullNames("b", "a/z") > 0);
+        assertEquals(0, Backfill.compareFullNames("a/b", "a/b"));
+    }
+
+    /**
+     * A resumed backfill skips the jobs before the job in progress and continues after its last build.
+     */
+    @Test
+    public void testResume() {
+        Backfill.Checkpoint checkpoint = new Backfill.Checkpoint("team/build", 41);
+        assertTrue(checkpoint.isPassed("team/archive"));
+        assertTrue(checkpoint.isPassed("team"));
+        assertFalse(checkpoint.isPassed("team/build"));
+        assertFalse(checkpoint.isPassed("team/deploy"));
+        // a job that was deleted while the backfill was stopped still has its place
+        assertFalse(new Backfill.Checkpoint("team/gone", 3).isPassed("team/test"));
+        assertEquals(41, checkpoint.lastBuildOf("team/build"));
+        assertEquals(0, checkpoint.lastBuildOf("team/deploy"));
+
+        Backfill.Checkpoint fresh = new Backfill.Checkpoint();
+        assertFalse(fresh.isPassed("a"));
+        assertEquals(0, fresh.lastBuildOf("a"));
+    }
+
+    /**
+     * Builds are spaced by the rate, and at most one second of unused time is made up after a pause.
+     */
+    @Test
+    public void testThrottle() {
+        long second = TimeUnit.SECONDS.toNanos(1);
+        assertEquals(second + second / 10, Backfill.nextSlot(second, second, 10));
+        assertEquals(5 * second + second / 10, Backfill.nextSlot(second, 6 * second, 10));
+        assertEquals(second + 1, Backfill.nextSlot(second, second, 2000000000L));
+        assertEquals(7 * second, Backfill.nextSlot(second, 7 * second, 0));
+    }
+
+    /**
+     * The backfill pauses when the load per processor is high, and ignores an unknown load.
+     */
+    @Test
+    public void testLoad() {
+        assertFalse(Backfill.isLoaded(3.5, 2));
+        assertTrue(Backfill.isLoaded(4.5, 2));
+        assertTrue(Backfill.isLoaded(2.5, 0));
+        assertFalse(Backfill.isLoaded(-1, 4));
+    }
+}
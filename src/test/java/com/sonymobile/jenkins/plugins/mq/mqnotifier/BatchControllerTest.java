@@ -0,0 +1,82 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 60 LINES. REASON: TestData
+
+/**
+ * Tests for the adaptive sizing of publish batches.
+ */
+public class BatchControllerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Batches grow under backlog up to the maximum, and shrink back when the queue drains.
+     */
+    @Test
+    public void testGrowAndShrink() {
+        BatchController controller = new BatchController();
+        controller.configure(16, 100, 0);
+        assertEquals(1, controller.getBatchSize());
+        assertEquals(0, controller.getLinger(1));
+        for (int i = 0; i < 10; i++) {
+            controller.confirmed(controller.getBatchSize(), FAST, 1000);
+        }
+        assertEquals(16, controller.getBatchSize());
+        assertTrue(controller.getLinger(3) > 0);
+        assertEquals(0, controller.getLinger(1000));
+        controller.confirmed(3, FAST, 3);
+        assertEquals(8, controller.getBatchSize());
+    }
+
+    /**
+     * Slow confirms and the throughput target stop the growth.
+     */
+    @Test
+    public void testTargets() {
+        BatchController controller = new BatchController();
+        controller.configure(64, 100, 0);
+        controller.confirmed(1, FAST, 1000);
+        controller.confirmed(2, FAST, 1000);
+        assertEquals(4, controller.getBatchSize());
+        controller.confirmed(4, SLOW, 1000);
+        assertEquals(2, controller.getBatchSize());
+
+        controller = new BatchController();
+        controller.configure(64, 100, 300);
+        controller.confirmed(1, FAST, 1000);
+        assertEquals(2, controller.getBatchSize());
+        controller.confirmed(2, FAST, 1000);
+        assertEquals(2, controller.getBatchSize());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import net.sf.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 120 LINES. REASON: TestData
+
+/**
+ * Tests for the debouncing and summaries of node events.
+ */
+public class ComputerListenerImplTest {
+
+    /**
+     * Starts without pending changes.
+     */
+    @Before
+    public void setUp() {
+        ComputerListenerImpl.drain();
+    }
+
+    /**
+     * Notifications within the debounce time are collected per node, with one flush for all of them.
+     */
+    @Test
+    public void testDebounce() {
+        assertTrue(ComputerListenerImpl.mark("debounce-1", false));
+        assertFalse(ComputerListenerImpl.mark("debounce-1", false));
+        assertFalse(ComputerListenerImpl.mark("debounce-2", true));
+
+        Map<String, ComputerListenerImpl.Change> changes = ComputerListenerImpl.drain();
+        assertEquals(Arrays.asList("debounce-1", "debounce-2"), Arrays.asList(changes.keySet().toArray()));
+        assertEquals(2, changes.get("debounce-1").getTransitions());
+        assertEquals(0, changes.get("debounce-2").getTransitions());
+
+        assertTrue(ComputerListenerImpl.mark("debounce-1", false));
+        assertEquals(1, ComputerListenerImpl.drain().get("debounce-1").getTransitions());
+    }
+
+    /**
+     * A state is published once, an idle node every time its builds are done.
+     */
+    @Test
+    public void testCoalescing() {
+        assertTrue(ComputerListenerImpl.record("coalesce", Util.VALUE_NODE_ONLINE, false));
+        assertFalse(ComputerListenerImpl.record("coalesce", Util.VALUE_NODE_ONLINE, false));
+        assertFalse(ComputerListenerImpl.record("coalesce", null, false));
+        assertTrue(ComputerListenerImpl.record("coalesce", Util.VALUE_NODE_IDLE, false));
+        assertTrue(ComputerListenerImpl.record("coalesce", Util.VALUE_NODE_IDLE, false));
+        assertTrue(ComputerListenerImpl.record("coalesce", Util.VALUE_NODE_OFFLINE, false));
+        assertFalse(ComputerListenerImpl.record("coalesce", Util.VALUE_NODE_OFFLINE, false));
+    }
+
+    /**
+     * Deleted nodes are forgotten, unless a flush still has to publish that they are offline.
+     */
+    @Test
+    public void testDeleted() {
+        assertTrue(ComputerListenerImpl.record("deleted", Util.VALUE_NODE_OFFLINE, false));
+        ComputerListenerImpl.deleted("deleted");
+        assertTrue(ComputerListenerImpl.record("deleted", Util.VALUE_NODE_OFFLINE, false));
+
+        ComputerListenerImpl.mark("deleted", false);
+        ComputerListenerImpl.deleted("deleted");
+        ComputerListenerImpl.drain();
+        assertFalse(ComputerListenerImpl.record("deleted", Util.VALUE_NODE_OFFLINE, true));
+        assertTrue(ComputerListenerImpl.record("deleted", Util.VALUE_NODE_OFFLINE, true));
+    }
+
+    /**
+     * The summary lists the node names by state.
+     */
+    @Test
+    public void testSummary() {
+        JSONObject json = ComputerListenerImpl.summarize(Arrays.asList(event("a", Util.VALUE_NODE_ONLINE),
+                event("b", Util.VALUE_NODE_OFFLINE), event("c", Util.VALUE_NODE_ONLINE)));
+        assertEquals(Util.VALUE_NODES_CHANGED, json.getString(Util.KEY_STATE));
+        JSONObject nodes = json.getJSONObject(Util.KEY_NODES);
+        assertEquals("[\"a\",\"c\"]", nodes.getJSONArray(Util.VALUE_NODE_ONLINE).toString());
+        assertEquals("[\"b\"]", nodes.getJSONArray(Util.VALUE_NODE_OFFLINE).toString());
+    }
+
+    /**
+     * Creates a node event.
+     *
+     * @param name  the node name.
+     * @param state the state.
+     * @return the event.
+     */
+    private static JSONObject event(String name, String state) {
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, state);
+        json.put(Util.KEY_NODE_NAME, name);
+        return json;
+    }
+}
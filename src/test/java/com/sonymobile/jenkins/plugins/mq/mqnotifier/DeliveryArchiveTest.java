@@ -0,0 +1,162 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 150 LINES. REASON: TestData
+
+/**
+ * Tests for keeping delivered messages and reading them back.
+ */
+public class DeliveryArchiveTest {
+
+    private static final long HOUR = 3600000;
+
+    /**
+     * Temporary folder for the segment files.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Messages are found by sequence number, delivery time and job, also after the index is rebuilt.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRead() throws Exception {
+        File dir = folder.newFolder();
+        DeliveryArchive archive = new DeliveryArchive(dir, 20000);
+        for (int i = 1; i <= 300; i++) {
+            archive.append(Arrays.asList(body(i)), Arrays.asList(i % 3 == 0 ? "a" : "b"), i * 1000L, HOUR, 0);
+        }
+        assertArrayEquals(new long[] {1, 300}, archive.getSequenceRange());
+        assertEquals(Arrays.asList(100L, 101L, 102L),
+                read(archive, new DeliveryArchive.Query().sequences(100, 102)));
+        assertEquals(Arrays.asList(250L, 251L),
+                read(archive, new DeliveryArchive.Query().times(250000, 251000)));
+        assertEquals(Arrays.asList(201L, 204L, 207L),
+                read(archive, new DeliveryArchive.Query().sequences(200, 208).job("a")));
+        archive.close();
+        assertTrue(dir.listFiles().length > 1);
+
+        DeliveryArchive reopened = new DeliveryArchive(dir, 20000);
+        assertEquals(Arrays.asList(299L, 300L), read(reopened, new DeliveryArchive.Query().sequences(299, 400)));
+        reopened.append(Arrays.asList(body(301)), Arrays.asList((String)null), 301000, HOUR, 0);
+        assertEquals(Arrays.asList(301L), read(reopened, new DeliveryArchive.Query().sequences(301, 301)));
+    }
+
+    /**
+     * Segments out of the retention window are deleted, and an entry cut short by a crash is dropped.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRetentionAndRecovery() throws Exception {
+        File dir = folder.newFolder();
+        DeliveryArchive archive = new DeliveryArchive(dir, 500);
+        for (int i = 1; i <= 100; i++) {
+            archive.append(Arrays.asList(body(i)), Arrays.asList("job"), i * 1000L, 10000, 0);
+        }
+        long[] range = archive.getSequenceRange();
+        assertEquals(100, range[1]);
+        assertTrue(range[0] > 80 && range[0] <= 90);
+        archive.close();
+
+        File[] segments = dir.listFiles();
+        Arrays.sort(segments);
+        File last = segments[segments.length - 1];
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        DeliveryArchive reopened = new DeliveryArchive(dir, 500);
+        assertEquals(99, reopened.getSequenceRange()[1]);
+        reopened.append(Arrays.asList(body(100)), Arrays.asList("job"), 100000, 10000, 0);
+        assertEquals(Arrays.asList(99L, 100L), read(reopened, new DeliveryArchive.Query().sequences(99, 100)));
+    }
+
+    /**
+     * An empty archive has no range.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testEmpty() throws Exception {
+        assertNull(new DeliveryArchive(folder.newFolder(), 500).getSequenceRange());
+    }
+
+    /**
+     * Reads the sequence numbers of the messages of a query, checking their bodies.
+     *
+     * @param archive the archive.
+     * @param query   the query.
+     * @return the sequence numbers.
+     * @throws Exception if so.
+     */
+    private static List<Long> read(DeliveryArchive archive, DeliveryArchive.Query query) throws Exception {
+        final List<Long> sequences = new ArrayList<Long>();
+        archive.read(query, new DeliveryArchive.Visitor() {
+            @Override
+            public boolean visit(long sequence, long time, byte[] data) {
+                assertEquals(sequence * 1000, time);
+                try {
+                    assertEquals("message " + sequence,
+                            new String(JournalRecord.decode(data).getBody(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                sequences.add(sequence);
+                return true;
+            }
+        });
+        return sequences;
+    }
+
+    /**
+     * Creates a stored record.
+     *
+     * @param i the number of the message.
+     * @return the record.
+     */
+    private static byte[] body(int i) {
+        return new JournalRecord("exchange", "key", null, null, i, null,
+                ("message " + i).getBytes(StandardCharsets.UTF_8)).encode();
+    }
+}
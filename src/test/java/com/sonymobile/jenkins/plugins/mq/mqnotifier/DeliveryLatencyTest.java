@@ -0,0 +1,92 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+//CS IGNORE MagicNumber FOR NEXT 70 LINES. REASON: TestData
+
+/**
+ * Tests for the latency statistics of the delivery stages.
+ */
+public class DeliveryLatencyTest {
+
+    /**
+     * Every stage is measured from the times of the message, the capture time only with latency headers.
+     */
+    @Test
+    public void testStages() {
+        DeliveryLatency latency = new DeliveryLatency();
+        JournalRecord traced = new JournalRecord("exchange", "key", null, null, 1000,
+                Collections.<String, Object>singletonMap(Util.HEADER_CAPTURED_AT, 990L), new byte[0]);
+        JournalRecord untraced = new JournalRecord("exchange", "key", null, null, 1100, null, new byte[0]);
+        latency.confirmed(Arrays.asList(traced, untraced), 1500, 1520);
+
+        List<DeliveryLatency.StageStats> stages = latency.getStages();
+        assertEquals(1, stages.get(0).getCount());
+        assertEquals(10, stages.get(0).getPercentile(0.5));
+        assertEquals(2, stages.get(1).getCount());
+        assertEquals(450, stages.get(1).getMeanMillis(), 0.01);
+        assertEquals(500, stages.get(1).getPercentile(0.99));
+        assertEquals(20, stages.get(2).getPercentile(0.5));
+        assertEquals(1, stages.get(3).getCount());
+        assertEquals(530, stages.get(3).getMeanMillis(), 0.01);
+        assertEquals(1000, stages.get(3).getPercentile(0.5));
+    }
+
+    /**
+     * Replayed messages are not counted, and clock steps do not make latencies negative.
+     */
+    @Test
+    public void testSkipped() {
+        DeliveryLatency latency = new DeliveryLatency();
+        JournalRecord replayed = new JournalRecord("exchange", "key", null, null, 1000,
+                Collections.<String, Object>singletonMap(Util.HEADER_REPLAY_SEQUENCE, 7L), new byte[0]);
+        JournalRecord future = new JournalRecord("exchange", "key", null, null, 2000, null, new byte[0]);
+        latency.confirmed(Arrays.asList(replayed, future), 1500, 1500);
+
+        DeliveryLatency.StageStats queued = latency.getStages().get(1);
+        assertEquals(1, queued.getCount());
+        assertEquals(0, queued.getMeanMillis(), 0.01);
+        assertEquals(1, queued.getPercentile(1));
+        assertEquals(-1, latency.getStages().get(0).getPercentile(0.5));
+    }
+
+    /**
+     * Latencies above the largest bound land in the unbounded bucket.
+     */
+    @Test
+    public void testBucket() {
+        assertEquals(0, DeliveryLatency.bucket(0));
+        assertEquals(1, DeliveryLatency.bucket(2));
+        assertEquals(2, DeliveryLatency.bucket(3));
+        assertEquals(DeliveryLatency.BUCKETS.length, DeliveryLatency.bucket(Long.MAX_VALUE));
+    }
+}
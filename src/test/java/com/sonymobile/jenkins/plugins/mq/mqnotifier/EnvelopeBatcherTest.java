@@ -0,0 +1,188 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.CborCodec;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.JsonCodec;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 140 LINES. REASON: TestData
+
+/**
+ * Tests for the batch envelopes.
+ */
+public class EnvelopeBatcherTest {
+
+    /**
+     * Events keep their own metadata and headers, and the envelope gets the oldest capture time.
+     */
+    @Test
+    public void testEnvelope() {
+        RouteTable.CompiledRoute route = new RouteTable.CompiledRoute("batched", "key", PayloadProjection.ALL,
+                new JsonCodec());
+        AMQP.BasicProperties first = props(2000, "job#1", 1500L);
+        AMQP.BasicProperties second = props(3000, null, 1200L);
+        EnvelopeBatcher.Batch batch = new EnvelopeBatcher.Batch("exchange", route, first);
+        add(batch, route, first, event("job"));
+        add(batch, route, second, event("other"));
+
+        AMQP.BasicProperties props = batch.toProperties();
+        assertEquals(2, props.getHeaders().get(Util.HEADER_BATCH_COUNT));
+        assertEquals(1200L, props.getHeaders().get(Util.HEADER_CAPTURED_AT));
+        assertNull(props.getCorrelationId());
+
+        JSONObject envelope = JSONObject.fromObject(new String(batch.encode(), StandardCharsets.UTF_8));
+        JSONObject meta = envelope.getJSONArray(Util.KEY_BATCH_EVENTS).getJSONObject(0)
+                .getJSONObject(Util.KEY_BATCH_META);
+        assertEquals(2000, meta.getLong(Util.KEY_TIMESTAMP));
+        assertEquals("job#1", meta.getString(Util.KEY_CORRELATION_ID));
+        assertEquals(1500, meta.getJSONObject(Util.KEY_BATCH_HEADERS).getLong(Util.HEADER_CAPTURED_AT));
+    }
+
+    /**
+     * Events without headers have no headers in their metadata, and no capture time is made up.
+     */
+    @Test
+    public void testWithoutHeaders() {
+        RouteTable.CompiledRoute route = new RouteTable.CompiledRoute("batched", "key", PayloadProjection.ALL,
+                new JsonCodec());
+        AMQP.BasicProperties plain = new AMQP.BasicProperties.Builder().timestamp(new Date(1000)).build();
+        JSONObject entry = EnvelopeBatcher.entry(plain, event("job"));
+        assertFalse(entry.getJSONObject(Util.KEY_BATCH_META).containsKey(Util.KEY_BATCH_HEADERS));
+        EnvelopeBatcher.Batch batch = new EnvelopeBatcher.Batch("exchange", route, plain);
+        batch.add(entry, EnvelopeBatcher.encodeEntry(route, entry), plain);
+        assertFalse(batch.toProperties().getHeaders().containsKey(Util.HEADER_CAPTURED_AT));
+    }
+
+    /**
+     * The size of an entry is its size in the encoding of the route.
+     */
+    @Test
+    public void testSize() {
+        CborCodec cbor = new CborCodec();
+        RouteTable.CompiledRoute route = new RouteTable.CompiledRoute("batched", "key", PayloadProjection.ALL, cbor);
+        JSONObject entry = EnvelopeBatcher.entry(props(1000, "job#1", 900L), event("job"));
+        byte[] encoded = EnvelopeBatcher.encodeEntry(route, entry);
+        assertArrayEquals(cbor.encode(entry), encoded);
+        assertTrue(encoded.length < entry.toString().length());
+    }
+
+    /**
+     * The envelope joined from the encoded entries is the envelope encoded as a whole.
+     */
+    @Test
+    public void testJoinedEnvelope() {
+        RouteTable.CompiledRoute route = new RouteTable.CompiledRoute("batched", "key", PayloadProjection.ALL,
+                new JsonCodec());
+        AMQP.BasicProperties first = props(2000, "job#1", 1500L);
+        AMQP.BasicProperties second = props(3000, null, 1200L);
+        EnvelopeBatcher.Batch batch = new EnvelopeBatcher.Batch("exchange", route, first);
+        JSONObject envelope = new JSONObject();
+        envelope.put(Util.KEY_BATCH_COUNT, 2);
+        envelope.put(Util.KEY_BATCH_EVENTS, JSONArray.fromObject(Arrays.asList(
+                add(batch, route, first, event("job")), add(batch, route, second, event("other")))));
+        assertArrayEquals(new JsonCodec().encode(envelope), batch.encode());
+    }
+
+    /**
+     * The envelope expires when its last event would have, the time the events waited is not granted again.
+     */
+    @Test
+    public void testTtl() {
+        RouteTable.CompiledRoute route = new RouteTable.CompiledRoute("batched", "key", PayloadProjection.ALL,
+                new JsonCodec());
+        AMQP.BasicProperties first = props(1000, null, null).builder().expiration("5000").build();
+        AMQP.BasicProperties second = props(2000, null, null).builder().expiration("2000").build();
+        EnvelopeBatcher.Batch batch = new EnvelopeBatcher.Batch("exchange", route, first);
+        JSONObject entry = EnvelopeBatcher.entry(first, event("job"));
+        batch.add(entry, EnvelopeBatcher.encodeEntry(route, entry), first, 10000);
+        entry = EnvelopeBatcher.entry(second, event("other"));
+        batch.add(entry, EnvelopeBatcher.encodeEntry(route, entry), second, 12000);
+        assertEquals("1000", batch.toProperties(14000).getExpiration());
+        assertEquals("1", batch.toProperties(16000).getExpiration());
+
+        AMQP.BasicProperties forever = props(3000, null, null);
+        entry = EnvelopeBatcher.entry(forever, event("job"));
+        batch.add(entry, EnvelopeBatcher.encodeEntry(route, entry), forever, 13000);
+        assertNull(batch.toProperties(14000).getExpiration());
+    }
+
+    /**
+     * Adds an event to a batch.
+     *
+     * @param batch the batch.
+     * @param route the route of the batch.
+     * @param props the properties of the event.
+     * @param event the event.
+     * @return the entry of the event.
+     */
+    private static JSONObject add(EnvelopeBatcher.Batch batch, RouteTable.CompiledRoute route,
+                                  AMQP.BasicProperties props, JSONObject event) {
+        JSONObject entry = EnvelopeBatcher.entry(props, event);
+        batch.add(entry, EnvelopeBatcher.encodeEntry(route, entry), props);
+        return entry;
+    }
+
+    /**
+     * Creates event properties.
+     *
+     * @param timestamp     the timestamp.
+     * @param correlationId the correlation id.
+     * @param captured      the capture time.
+     * @return the properties.
+     */
+    private static AMQP.BasicProperties props(long timestamp, String correlationId, Long captured) {
+        return new AMQP.BasicProperties.Builder().timestamp(new Date(timestamp)).correlationId(correlationId)
+                .headers(Collections.<String, Object>singletonMap(Util.HEADER_CAPTURED_AT, captured)).build();
+    }
+
+    /**
+     * Creates an event.
+     *
+     * @param job the job name.
+     * @return the event.
+     */
+    private static JSONObject event(String job) {
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, Util.VALUE_COMPLETED);
+        json.put(Util.KEY_PROJECT_NAME, job);
+        json.put(Util.KEY_BUILD_NR, 1);
+        json.put(Util.KEY_STATUS, "SUCCESS");
+        return json;
+    }
+}
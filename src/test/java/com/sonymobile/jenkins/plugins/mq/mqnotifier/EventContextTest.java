@@ -0,0 +1,133 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+//CS IGNORE MagicNumber FOR NEXT 110 LINES. REASON: TestData
+
+/**
+ * Tests for the cached event context.
+ */
+public class EventContextTest {
+
+    /**
+     * The providers are looked up once, and again after the extension list changed.
+     */
+    @Test
+    public void testProviders() {
+        TestContext context = new TestContext();
+        MQDataProvider first = new MQDataProvider() { };
+        context.providers.add(first);
+        List<MQDataProvider> list = context.getProviders();
+        assertSame(list, context.getProviders());
+        assertEquals(1, context.providerLookups);
+
+        MQDataProvider second = new MQDataProvider() { };
+        context.providers.add(second);
+        assertEquals(1, context.getProviders().size());
+        context.invalidateProviders();
+        assertEquals(2, context.getProviders().size());
+        assertSame(second, context.getProviders().get(1));
+        assertEquals(2, context.providerLookups);
+    }
+
+    /**
+     * The urls follow the root url once the location is reconfigured.
+     */
+    @Test
+    public void testRootUrl() {
+        TestContext context = new TestContext();
+        context.rootUrl = "http://old/";
+        assertEquals("http://old/job/a/", context.getUrl("job/a/", ""));
+        assertEquals("http://old/job/a/7/", context.getUrl("job/a/", "7/"));
+
+        context.rootUrl = "http://new/";
+        assertEquals("http://old/job/a/", context.getUrl("job/a/", ""));
+        context.invalidateUrls();
+        assertEquals(0, context.getJobUrlCount());
+        assertEquals("http://new/job/a/", context.getUrl("job/a/", ""));
+        assertEquals(2, context.rootLookups);
+    }
+
+    /**
+     * Without a root url the urls stay relative.
+     */
+    @Test
+    public void testNoRootUrl() {
+        TestContext context = new TestContext();
+        context.rootUrl = "";
+        assertEquals("job/a/7/", context.getUrl("job/a/", "7/"));
+        assertEquals(1, context.rootLookups);
+    }
+
+    /**
+     * The job url cache is cleared rather than grown beyond its limit.
+     */
+    @Test
+    public void testJobUrlLimit() {
+        TestContext context = new TestContext();
+        context.rootUrl = "http://root/";
+        for (int i = 0; i < EventContext.MAX_JOB_URLS; i++) {
+            context.getUrl("job/" + i + "/", "");
+        }
+        assertEquals(EventContext.MAX_JOB_URLS, context.getJobUrlCount());
+        context.getUrl("job/0/", "");
+        assertEquals(EventContext.MAX_JOB_URLS, context.getJobUrlCount());
+
+        assertEquals("http://root/job/new/", context.getUrl("job/new/", ""));
+        assertEquals(1, context.getJobUrlCount());
+        assertEquals("http://root/job/0/", context.getUrl("job/0/", ""));
+        assertEquals(2, context.getJobUrlCount());
+    }
+
+    /**
+     * A context with providers and root url set by the test.
+     */
+    static class TestContext extends EventContext {
+        private final List<MQDataProvider> providers = new ArrayList<MQDataProvider>();
+        private String rootUrl;
+        private int providerLookups;
+        private int rootLookups;
+
+        @Override
+        List<MQDataProvider> lookupProviders() {
+            providerLookups++;
+            return providers;
+        }
+
+        @Override
+        String lookupRootUrl() {
+            rootLookups++;
+            return rootUrl;
+        }
+    }
+}
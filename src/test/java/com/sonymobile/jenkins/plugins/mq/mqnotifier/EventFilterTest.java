@@ -0,0 +1,70 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for parsing the event filter rules.
+ */
+public class EventFilterTest {
+
+    /**
+     * Without rules every event passes, without compiling anything.
+     */
+    @Test
+    public void testNoRules() {
+        assertSame(EventFilter.ALL, EventFilter.compile(null, " \n "));
+        assertSame(EventFilter.ALL, EventFilter.compile("bogus", null));
+    }
+
+    /**
+     * Rules need known fields with globs.
+     */
+    @Test
+    public void testValidate() {
+        assertNull(EventFilter.validate("job:housekeeping-*\nfolder:infra/* cause:TimerTriggerCause\n\n"));
+        assertNotNull(EventFilter.validate("housekeeping"));
+        assertNotNull(EventFilter.validate("node:linux"));
+    }
+
+    /**
+     * Globs match whole values, with wildcards for any text and any character.
+     */
+    @Test
+    public void testGlob() {
+        assertTrue(EventFilter.toPattern("infra/*").matcher("infra/tools/cleanup").matches());
+        assertFalse(EventFilter.toPattern("infra/*").matcher("team/infra/x").matches());
+        assertTrue(EventFilter.toPattern("job-?").matcher("job-1").matches());
+        assertFalse(EventFilter.toPattern("job-?").matcher("job-12").matches());
+        assertTrue(EventFilter.toPattern("a.b(c)").matcher("a.b(c)").matches());
+        assertFalse(EventFilter.toPattern("a.b").matcher("axb").matches());
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import com.squareup.tape.QueueFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+//CS IGNORE MagicNumber FOR NEXT 230 LINES. REASON: TestData
+
+/**
+ * Tests for journal record checksums and expiry, and the recovery of damaged queue files.
+ */
+public class JournalRecoveryTest {
+
+    /**
+     * Temporary folder for the queue files.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Damaged records are detected by their checksum.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testChecksum() throws Exception {
+        byte[] data = record("first", 1).encode();
+        assertTrue(JournalRecord.hasValidChecksum(data));
+        data[data.length - 6] ^= 1;
+        assertFalse(JournalRecord.hasValidChecksum(data));
+        try {
+            JournalRecord.decode(data);
+            fail("Damaged record decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The expiry time follows from the expiration property and is readable from the start of the stored record.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+                .timestamp(new Date(1000)).expiration("5000").build();
+        byte[] data = JournalRecord.of("exchange", "key", props, new byte[] {1, 2, 3}).encode();
+        assertEquals(6000, JournalRecord.expiresAt(Arrays.copyOf(data, JournalRecord.EXPIRES_END)));
+        assertEquals(6000, JournalRecord.decode(data).getExpires());
+        // expired messages that are sent anyway still get an expiration
+        assertEquals("1", JournalRecord.decode(data).toProperties("app", 1).getExpiration());
+
+        data = record("forever", 1).encode();
+        assertEquals(0, JournalRecord.expiresAt(data));
+        assertEquals(null, JournalRecord.decode(data).toProperties("app", 1).getExpiration());
+    }
+
+    /**
+     * With an intact header every readable record is kept and damaged ones are counted.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRecoverWithIntactHeader() throws Exception {
+        File file = createQueue("first", "second", "third");
+        damage(file, "second");
+
+        QueueFile queue = JournalRecovery.recover(file);
+        assertEquals("[first, third]", readBodies(queue).toString());
+        queue.close();
+        assertEquals(2, folder.getRoot().listFiles().length);
+    }
+
+    /**
+     * With a damaged header the records are found by their checksum.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRecoverWithDamagedHeader() throws Exception {
+        File file = createQueue("first", "second", "third");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.close();
+
+        QueueFile queue = JournalRecovery.open(file);
+        assertEquals("[first, second, third]", readBodies(queue).toString());
+        queue.close();
+    }
+
+    /**
+     * A record with a damaged preamble is not mistaken for a bare body written by an older version.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRecoverWithDamagedPreamble() throws Exception {
+        File file = createQueue("first", "second", "third");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16);
+        int first = raf.readInt();
+        raf.seek(16 + 4 + first + 4);
+        raf.write('X');
+        raf.close();
+
+        QueueFile queue = JournalRecovery.recover(file);
+        assertEquals("[first, third]", readBodies(queue).toString());
+        queue.close();
+    }
+
+    /**
+     * Bare bodies are kept when the whole file predates the record format.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRecoverLegacy() throws Exception {
+        File file = new File(folder.getRoot(), "build.db");
+        QueueFile queue = new QueueFile(file);
+        for (String body : Arrays.asList("first", "second", "third")) {
+            queue.add(body.getBytes(StandardCharsets.UTF_8));
+        }
+        queue.close();
+
+        queue = JournalRecovery.recover(file);
+        assertEquals("[first, second, third]", readBodies(queue).toString());
+        queue.close();
+    }
+
+    /**
+     * A damaged element length behind an intact header is found when the queue is opened, and the records
+     * after it are searched for.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testOpenWithDamagedLength() throws Exception {
+        File file = createQueue("first", "second", "third");
+        assertTrue(JournalRecovery.hasValidElements(file));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16);
+        int first = raf.readInt();
+        raf.seek(16 + 4 + first);
+        raf.writeInt(Integer.MAX_VALUE / 2);
+        raf.close();
+        assertFalse(JournalRecovery.hasValidElements(file));
+
+        QueueFile queue = JournalRecovery.open(file);
+        assertEquals("[first, third]", readBodies(queue).toString());
+        queue.close();
+        assertTrue(JournalRecovery.hasValidElements(file));
+        assertEquals(2, folder.getRoot().listFiles().length);
+    }
+
+    /**
+     * Creates a queue file with one record per body.
+     *
+     * @param bodies the message bodies.
+     * @return the file.
+     * @throws IOException if so.
+     */
+    private File createQueue(String... bodies) throws IOException {
+        File file = new File(folder.getRoot(), "build.db");
+        QueueFile queue = new QueueFile(file);
+        for (int i = 0; i < bodies.length; i++) {
+            queue.add(record(bodies[i], i).encode());
+        }
+        queue.close();
+        return file;
+    }
+
+    /**
+     * Flips a bit in a message body in the file.
+     *
+     * @param file the queue file.
+     * @param body the body to damage.
+     * @throws IOException if so.
+     */
+    private void damage(File file, String body) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        byte[] content = new byte[(int)raf.length()];
+        raf.readFully(content);
+        int position = new String(content, StandardCharsets.ISO_8859_1).indexOf(body);
+        raf.seek(position);
+        raf.write(content[position] ^ 1);
+        raf.close();
+    }
+
+    /**
+     * Reads the bodies of all records in a queue.
+     *
+     * @param queue the queue.
+     * @return the bodies.
+     * @throws IOException if so.
+     */
+    private List<String> readBodies(QueueFile queue) throws IOException {
+        List<String> bodies = new ArrayList<String>();
+        while (!queue.isEmpty()) {
+            bodies.add(new String(JournalRecord.decode(queue.peek()).getBody(), StandardCharsets.UTF_8));
+            queue.remove();
+        }
+        return bodies;
+    }
+
+    /**
+     * Creates a record.
+     *
+     * @param body      the body.
+     * @param timestamp the creation time.
+     * @return the record.
+     */
+    private static JournalRecord record(String body, long timestamp) {
+        return new JournalRecord("exchange", "key", null, null, timestamp, null,
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+}
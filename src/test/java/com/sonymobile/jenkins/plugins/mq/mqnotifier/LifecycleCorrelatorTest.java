@@ -0,0 +1,95 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.CauseProvider;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+//CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData
+
+/**
+ * Tests for joining the queue data into the completed events.
+ */
+public class LifecycleCorrelatorTest {
+
+    private static final String[] CAUSES = {"Started by user admin"};
+
+    /**
+     * The queue data of an item is merged into the completed event of its build, once.
+     */
+    @Test
+    public void testMerge() {
+        LifecycleCorrelator correlator = new LifecycleCorrelator();
+        correlator.entered(7, 1000, CAUSES, 1000, 10, 0);
+        correlator.left(7, 1000, 2500, "linux", CAUSES, 3500, 10, 0);
+
+        JSONObject json = new JSONObject();
+        correlator.take(7).merge(json);
+        assertEquals(1000, json.getLong(Util.KEY_QUEUED_TIME));
+        assertEquals(2500, json.getLong(Util.KEY_DEQUEUE_TIME_SPENT));
+        assertEquals("linux", json.getString(Util.KEY_DEQUEUE_ALLOCATED_LABEL));
+        assertEquals(CAUSES[0], json.getJSONArray(CauseProvider.KEY_CAUSES).getString(0));
+        assertNull(correlator.take(7));
+    }
+
+    /**
+     * Causes from a data provider are not replaced.
+     */
+    @Test
+    public void testProviderCausesKept() {
+        LifecycleCorrelator correlator = new LifecycleCorrelator();
+        correlator.left(7, 1000, 2500, "linux", CAUSES, 3500, 10, 0);
+
+        JSONObject json = new JSONObject();
+        json.put(CauseProvider.KEY_CAUSES, new String[] {"Started by timer"});
+        correlator.take(7).merge(json);
+        assertEquals("Started by timer", json.getJSONArray(CauseProvider.KEY_CAUSES).getString(0));
+    }
+
+    /**
+     * The oldest records are dropped beyond the maximum and after the expiry, and cancelled items are forgotten.
+     */
+    @Test
+    public void testBounded() {
+        LifecycleCorrelator correlator = new LifecycleCorrelator();
+        for (long id = 1; id <= 5; id++) {
+            correlator.entered(id, id * 1000, CAUSES, id * 1000, 3, 10000);
+        }
+        assertEquals(3, correlator.size());
+        assertNull(correlator.take(2));
+
+        correlator.forget(4);
+        correlator.entered(6, 13500, CAUSES, 13500, 3, 10000);
+        assertEquals(2, correlator.size());
+        assertNull(correlator.take(3));
+        JSONObject json = new JSONObject();
+        correlator.take(5).merge(json);
+        assertFalse(json.containsKey(Util.KEY_DEQUEUE_TIME_SPENT));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 200 LINES. REASON: TestData
+
+/**
+ * Tests for the chunking and the bandwidth cap of the log streaming.
+ */
+public class LogStreamerTest {
+
+    /**
+     * Temporary folder for the log files.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Full chunks are published at once with their offset and sequence number, the rest when the build has
+     * finished, followed by an empty final message.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testChunks() throws Exception {
+        File log = folder.newFile("log");
+        write(log, "0123456789");
+        TestTail tail = new TestTail(log, 4);
+        MQNotifierConfig config = config(60000);
+
+        assertEquals(4, tail.poll(config, 1000, Long.MAX_VALUE));
+        assertEquals(4, tail.poll(config, 1000, Long.MAX_VALUE));
+        assertEquals(2, tail.poll(config, 1000, Long.MAX_VALUE));
+        assertEquals("[0:0 0123, 1:4 4567]", tail.chunks.toString());
+
+        write(log, "ab");
+        tail.finish();
+        tail.poll(config, 1000, Long.MAX_VALUE);
+        assertEquals("[0:0 0123, 1:4 4567, 2:8 89ab]", tail.chunks.toString());
+        assertFalse(tail.isDone());
+        tail.poll(config, 1000, Long.MAX_VALUE);
+        assertEquals("[0:0 0123, 1:4 4567, 2:8 89ab, 3:12 final]", tail.chunks.toString());
+        assertTrue(tail.isDone());
+    }
+
+    /**
+     * A chunk that is not full is published once the flush interval has passed since its first byte was read.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testFlushInterval() throws Exception {
+        File log = folder.newFile("log");
+        write(log, "abc");
+        TestTail tail = new TestTail(log, 100);
+        MQNotifierConfig config = config(1000);
+
+        tail.poll(config, 1000, Long.MAX_VALUE);
+        write(log, "de");
+        tail.poll(config, 1500, Long.MAX_VALUE);
+        assertTrue(tail.chunks.isEmpty());
+        tail.poll(config, 2000, Long.MAX_VALUE);
+        assertEquals("[0:0 abcde]", tail.chunks.toString());
+        tail.close();
+    }
+
+    /**
+     * No more bytes are read than the bandwidth allows.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testTokens() throws Exception {
+        File log = folder.newFile("log");
+        write(log, "0123456789");
+        TestTail tail = new TestTail(log, 100);
+        MQNotifierConfig config = config(0);
+
+        assertEquals(3, tail.poll(config, 1000, 3));
+        assertEquals("[0:0 012]", tail.chunks.toString());
+        assertEquals(0, tail.poll(config, 1000, 0));
+        tail.close();
+    }
+
+    /**
+     * A log that does not exist when the build has finished only gets the final message.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testMissingLog() throws Exception {
+        TestTail tail = new TestTail(new File(folder.getRoot(), "missing"), 100);
+        MQNotifierConfig config = config(0);
+        tail.poll(config, 1000, Long.MAX_VALUE);
+        assertFalse(tail.isDone());
+
+        tail.finish();
+        tail.poll(config, 1000, Long.MAX_VALUE);
+        assertEquals("[0:0 final]", tail.chunks.toString());
+        assertTrue(tail.isDone());
+    }
+
+    /**
+     * Appends text to a file.
+     *
+     * @param file the file.
+     * @param text the text.
+     * @throws Exception if so.
+     */
+    private static void write(File file, String text) throws Exception {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Creates a configuration.
+     *
+     * @param flushInterval the flush interval in milliseconds.
+     * @return the configuration.
+     */
+    private static MQNotifierConfig config(long flushInterval) {
+        MQNotifierConfig config = new MQNotifierConfig();
+        config.setLogFlushInterval(flushInterval);
+        return config;
+    }
+
+    /**
+     * Keeps the published chunks as "sequence:offset body" strings.
+     */
+    private static final class TestTail extends LogStreamer.Tail {
+        private final List<String> chunks = new ArrayList<String>();
+
+        /**
+         * Constructor.
+         *
+         * @param file      the log file.
+         * @param chunkSize the maximum chunk size.
+         */
+        private TestTail(File file, int chunkSize) {
+            super("job#1", "job", file, chunkSize);
+        }
+
+        @Override
+        void publish(MQNotifierConfig config, byte[] body, long position, long number, boolean last) {
+            chunks.add(number + ":" + position + " " + (last ? "final" : new String(body, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Tokens are refilled in proportion to the time passed, up to one second of bandwidth.
+     */
+    @Test
+    public void testRefill() {
+        assertEquals(600, LogStreamer.refill(100, 1000, 500));
+        assertEquals(1000, LogStreamer.refill(900, 1000, 500));
+        assertEquals(1000, LogStreamer.refill(0, 1000, Long.MAX_VALUE));
+        assertEquals(0, LogStreamer.refill(0, 1000, -5));
+    }
+
+    /**
+     * Turning the limit on after it was off, or lowering it, starts from the new bandwidth.
+     */
+    @Test
+    public void testLimitChanged() {
+        long tokens = LogStreamer.refill(0, 0, 500);
+        assertEquals(Long.MAX_VALUE, tokens);
+        assertEquals(1000, LogStreamer.refill(tokens, 1000, 500));
+        assertEquals(1000, LogStreamer.refill(tokens, 1000, 2));
+        assertEquals(100, LogStreamer.refill(5000, 100, 10));
+    }
+}
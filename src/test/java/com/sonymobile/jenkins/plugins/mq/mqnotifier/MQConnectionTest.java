@@ -0,0 +1,424 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.rabbitmq.client.AMQP;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.transports.MessageTransport;
+import com.squareup.tape.QueueFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 420 LINES. REASON: TestData
+
+/**
+ * Tests for the message queues and dispatchers of a destination.
+ */
+public class MQConnectionTest {
+
+    /**
+     * Temporary folder for the queue files.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Shutdown sends what is queued, and later messages are dropped without opening the queue file again.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        File root = folder.newFolder();
+        TestTransport transport = new TestTransport(null);
+        MQConnection connection = new MQConnection("test", "test.db", root, new MQNotifierConfig(), transport);
+        for (int i = 0; i < 5; i++) {
+            add(connection, "message " + i, "job");
+        }
+        connection.shutdown(5000);
+        assertEquals(Arrays.asList("message 0", "message 1", "message 2", "message 3", "message 4"),
+                transport.sent);
+
+        add(connection, "late", "job");
+        assertEquals(5, transport.sent.size());
+        assertEquals(0, sizeOf(new File(root, "test.db")));
+    }
+
+    /**
+     * A dispatcher that does not stop keeps its queue file, the message it is sending is removed when it is done.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testShutdownStuckDispatcher() throws Exception {
+        File root = folder.newFolder();
+        CountDownLatch release = new CountDownLatch(1);
+        TestTransport transport = new TestTransport(release);
+        MQConnection connection = new MQConnection("test", "test.db", root, new MQNotifierConfig(), transport);
+        add(connection, "stuck", "job");
+        assertTrue(transport.entered.await(10, TimeUnit.SECONDS));
+
+        connection.shutdown(0);
+        add(connection, "late", "job");
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (isDispatching("MQ Notifier dispatcher for test") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList("stuck"), transport.sent);
+        assertEquals(0, sizeOf(new File(root, "test.db")));
+    }
+
+    /**
+     * A destination that is down or slow keeps its messages queued while the other destinations keep sending.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testFanOut() throws Exception {
+        File root = folder.newFolder();
+        MQNotifierConfig config = new MQNotifierConfig();
+        TestTransport main = new TestTransport(null);
+        TestTransport down = new TestTransport(null);
+        down.down = true;
+        CountDownLatch release = new CountDownLatch(1);
+        TestTransport slow = new TestTransport(release);
+        TestTransport up = new TestTransport(null);
+        MQConnection connection = new MQConnection(null, "build.db", root, config, main);
+        MQConnection downDestination = new MQConnection("down", "down.db", root, config, down);
+        MQConnection slowDestination = new MQConnection("slow", "slow.db", root, config, slow);
+        MQConnection.setDestinations(Arrays.asList(downDestination, slowDestination,
+                new MQConnection("up", "up.db", root, config, up)));
+        try {
+            for (int i = 0; i < 20; i++) {
+                add(connection, "message " + i, "job");
+            }
+            waitForSent(main, 20);
+            waitForSent(up, 20);
+            assertEquals(20, main.sent.size());
+            assertEquals(20, up.sent.size());
+            assertEquals(0, down.sent.size());
+            assertEquals(0, slow.sent.size());
+            assertEquals(20, downDestination.getQueueSize());
+            assertEquals(20, slowDestination.getQueueSize());
+
+            release.countDown();
+            waitForSent(slow, 20);
+            assertEquals(20, slow.sent.size());
+            assertEquals(20, downDestination.getQueueSize());
+        } finally {
+            release.countDown();
+            connection.shutdown(0);
+            MQConnection.setDestinations(Collections.<MQConnection>emptyList());
+        }
+    }
+
+    /**
+     * A new number of partitions is only used once the queues are empty, so the messages of a job stay in order.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testPartitionCount() throws Exception {
+        File root = folder.newFolder();
+        MQNotifierConfig config = new MQNotifierConfig();
+        config.setPublishPartitions(2);
+        CountDownLatch release = new CountDownLatch(1);
+        TestTransport transport = new TestTransport(release);
+        MQConnection connection = new MQConnection("test", "test.db", root, config, transport);
+        try {
+            addAll(connection, 0);
+            config.setPublishPartitions(3);
+            addAll(connection, 1);
+            release.countDown();
+            waitForSent(transport, 20);
+            assertPartitions(transport, 2, 0, 1);
+            assertInOrder(transport);
+
+            // the dispatchers apply the new number once they have emptied their queues
+            File count = new File(root, "test.partitions");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!"3".equals(read(count)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("3", read(count));
+            addAll(connection, 2);
+            waitForSent(transport, 30);
+            assertPartitions(transport, 3, 2);
+            assertInOrder(transport);
+        } finally {
+            connection.shutdown(0);
+        }
+    }
+
+    /**
+     * Messages left in the queues at a restart keep the number of partitions until they are sent.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testPartitionCountAfterRestart() throws Exception {
+        File root = folder.newFolder();
+        MQNotifierConfig config = new MQNotifierConfig();
+        config.setPublishPartitions(2);
+        TestTransport transport = new TestTransport(null);
+        transport.down = true;
+        MQConnection connection = new MQConnection("test", "test.db", root, config, transport);
+        addAll(connection, 0);
+        connection.shutdown(0);
+
+        config.setPublishPartitions(3);
+        connection = new MQConnection("test", "test.db", root, config, transport);
+        try {
+            addAll(connection, 1);
+            transport.down = false;
+            waitForSent(transport, 20);
+            assertPartitions(transport, 2, 0, 1);
+            assertInOrder(transport);
+        } finally {
+            connection.shutdown(0);
+        }
+    }
+
+    /**
+     * A failed batch is retried after a pause that new messages do not cut short, a transport change does.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRetryAfterFailure() throws Exception {
+        File root = folder.newFolder();
+        TestTransport transport = new TestTransport(null);
+        transport.down = true;
+        MQConnection connection = new MQConnection("test", "test.db", root, new MQNotifierConfig(), transport);
+        try {
+            add(connection, "first", "job");
+            assertTrue(transport.entered.await(10, TimeUnit.SECONDS));
+            int attempts = transport.attempts.get();
+            for (int i = 0; i < 10; i++) {
+                add(connection, "message " + i, "job");
+                Thread.sleep(20);
+            }
+            assertTrue(transport.attempts.get() <= attempts + 1);
+
+            transport.down = false;
+            connection.setTransport(null);
+            waitForSent(transport, 11);
+            assertEquals("first", transport.sent.get(0));
+            assertEquals(11, transport.sent.size());
+        } finally {
+            connection.shutdown(0);
+        }
+    }
+
+    /**
+     * Puts one message for each of ten jobs in the queue.
+     *
+     * @param connection the destination.
+     * @param round      the number of the message of each job.
+     */
+    private static void addAll(MQConnection connection, int round) {
+        for (int job = 0; job < 10; job++) {
+            add(connection, "job" + job + " " + round, "job" + job);
+        }
+    }
+
+    /**
+     * Checks that the messages of some rounds were sent from the partition of their job.
+     *
+     * @param transport the transport.
+     * @param count     the number of partitions the messages were spread over.
+     * @param rounds    the rounds.
+     */
+    private static void assertPartitions(TestTransport transport, int count, int... rounds) {
+        for (int round : rounds) {
+            for (int job = 0; job < 10; job++) {
+                int partition = ("job" + job).hashCode() % count;
+                assertEquals("job" + job + " " + round, Integer.valueOf(partition),
+                        transport.partitions.get("job" + job + " " + round));
+            }
+        }
+    }
+
+    /**
+     * Checks that the messages of each job were sent in order.
+     *
+     * @param transport the transport.
+     */
+    private static void assertInOrder(TestTransport transport) {
+        int[] last = new int[10];
+        Arrays.fill(last, -1);
+        for (String body : transport.sent) {
+            int job = Integer.parseInt(body.substring(3, body.indexOf(' ')));
+            int round = Integer.parseInt(body.substring(body.indexOf(' ') + 1));
+            assertEquals(body, last[job] + 1, round);
+            last[job] = round;
+        }
+    }
+
+    /**
+     * Reads a text file.
+     *
+     * @param file the file.
+     * @return the content.
+     * @throws Exception if so.
+     */
+    private static String read(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Waits until a transport has sent a number of messages, or gives up after a while.
+     *
+     * @param transport the transport.
+     * @param count     the number of messages.
+     * @throws InterruptedException if so.
+     */
+    private static void waitForSent(TestTransport transport, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (transport.sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Checks whether a dispatcher thread is still running.
+     *
+     * @param threadName the name of the thread.
+     * @return true if it is running.
+     */
+    private static boolean isDispatching(String threadName) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(threadName) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts a text message in the queue.
+     *
+     * @param connection   the destination.
+     * @param body         the message.
+     * @param partitionKey the partition key.
+     */
+    private static void add(MQConnection connection, String body, String partitionKey) {
+        connection.addMessageToQueue("exchange", "key", new AMQP.BasicProperties.Builder().build(),
+                body.getBytes(StandardCharsets.UTF_8), partitionKey);
+    }
+
+    /**
+     * Counts the messages in a queue file.
+     *
+     * @param file the queue file.
+     * @return the number of messages.
+     * @throws Exception if so.
+     */
+    private static int sizeOf(File file) throws Exception {
+        QueueFile queue = new QueueFile(file);
+        try {
+            return queue.size();
+        } finally {
+            queue.close();
+        }
+    }
+
+    /**
+     * Records the bodies of the sent messages, optionally holding the first batch until released.
+     * While it is down every batch fails.
+     */
+    private static final class TestTransport extends MessageTransport {
+        private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        private final Map<String, Integer> partitions = new ConcurrentHashMap<String, Integer>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final CountDownLatch release;
+        private volatile boolean down;
+
+        /**
+         * Constructor.
+         *
+         * @param release released to let batches through, or null to send at once.
+         */
+        private TestTransport(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public String getId() {
+            return "test";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Test";
+        }
+
+        @Override
+        public Sender createSender(final Context context) {
+            return new Sender() {
+                @Override
+                public boolean send(List<Message> messages) {
+                    attempts.incrementAndGet();
+                    entered.countDown();
+                    while (release != null && release.getCount() > 0) {
+                        try {
+                            // like a sender that does not react to interrupts
+                            release.await();
+                        } catch (InterruptedException e) {
+                            continue;
+                        }
+                    }
+                    if (down) {
+                        return false;
+                    }
+                    for (Message message : messages) {
+                        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+                        partitions.put(body, context.getPartition());
+                        sent.add(body);
+                    }
+                    return true;
+                }
+            };
+        }
+    }
+}
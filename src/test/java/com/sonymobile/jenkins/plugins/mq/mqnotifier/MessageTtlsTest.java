@@ -0,0 +1,66 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+//CS IGNORE MagicNumber FOR NEXT 50 LINES. REASON: TestData
+
+/**
+ * Tests for the time-to-live settings per event type.
+ */
+public class MessageTtlsTest {
+
+    /**
+     * Events use their own setting, or the setting of all other events.
+     */
+    @Test
+    public void testTtl() {
+        MessageTtls ttls = MessageTtls.compile("QUEUED=600000\n\n  DEQUEUED = 300000 \nbad line\n*=86400000");
+        assertEquals(600000, ttls.getTtl(Util.VALUE_ADDED_TO_QUEUE));
+        assertEquals(300000, ttls.getTtl(Util.VALUE_REMOVED_FROM_QUEUE));
+        assertEquals("86400000", ttls.getExpiration(Util.VALUE_COMPLETED));
+        assertEquals(86400000, ttls.getTtl(null));
+
+        assertEquals(0, MessageTtls.compile("QUEUED=1000").getTtl(Util.VALUE_COMPLETED));
+        assertNull(MessageTtls.compile("QUEUED=1000").getExpiration(Util.VALUE_COMPLETED));
+        assertSame(MessageTtls.NONE, MessageTtls.compile(" \n"));
+    }
+
+    /**
+     * Invalid lines are reported.
+     */
+    @Test
+    public void testValidate() {
+        assertNull(MessageTtls.validate("QUEUED=1000\nLOG=60000"));
+        assertNotNull(MessageTtls.validate("QUEUED"));
+        assertNotNull(MessageTtls.validate("QUEUED=soon"));
+        assertNotNull(MessageTtls.validate("QUEUED=0"));
+    }
+}
@@ -28,11 +28,12 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import mockit.Mock;
 import mockit.MockUp;
+import net.sf.json.JSONObject;
 
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-//CS IGNORE Javadoc FOR NEXT 50 LINES. REASON: TestData
+//CS IGNORE Javadoc FOR NEXT 60 LINES. REASON: TestData
 
 /**
  * Test mocks.
@@ -47,6 +48,7 @@ public final class Mocks {
     public static final List<String> MESSAGES = new CopyOnWriteArrayList<String>();
     public static final List<String> STARTED = new CopyOnWriteArrayList<String>();
     public static final List<String> COMPLETED = new CopyOnWriteArrayList<String>();
+    public static final List<JSONObject> PUBLISHED = new CopyOnWriteArrayList<JSONObject>();
 
     // private constructor to avoid unnecessary instantiation of the class
     private Mocks() { }
@@ -63,6 +65,16 @@ public final class Mocks {
         }
     }
 
+    /**
+     * Mock the publisher, to see the events before they are encoded.
+     */
+    public static final class MessagePublisherMock extends MockUp<MessagePublisher> {
+        @Mock
+        public void publish(MQNotifierConfig config, JSONObject json) {
+            PUBLISHED.add(json);
+        }
+    }
+
     /**
      * Mock the RunListenerImpl.
      */
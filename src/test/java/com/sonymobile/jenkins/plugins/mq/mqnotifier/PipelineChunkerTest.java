@@ -0,0 +1,128 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.CborCodec;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.JsonCodec;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs.MessageCodec;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.PipelineProvider;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 120 LINES. REASON: TestData
+
+/**
+ * Tests for splitting oversized pipeline messages.
+ */
+public class PipelineChunkerTest {
+
+    /**
+     * Creates a completed message with the given number of stages.
+     *
+     * @param stages number of stages
+     * @return the message
+     */
+    private static JSONObject message(int stages) {
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, Util.VALUE_COMPLETED);
+        json.put(Util.KEY_PROJECT_NAME, "folder/pipeline");
+        json.put(Util.KEY_BUILD_NR, 42);
+        json.put(PipelineProvider.KEY_IS_PIPELINE, true);
+        List<List<String>> pipelines = new ArrayList<List<String>>();
+        for (int i = 0; i < stages; i++) {
+            pipelines.add(Arrays.asList("node=" + i, "name=stage " + i, "status=SUCCESS"));
+        }
+        json.put(PipelineProvider.KEY_PIPELINE, pipelines);
+        return json;
+    }
+
+    /**
+     * Every stage ends up in exactly one chunk, in order, and every chunk fits.
+     */
+    @Test
+    public void testSplit() {
+        int maxSize = 1024;
+        JSONObject json = message(500);
+        List<JSONObject> parts = PipelineChunker.split(json, maxSize, MessageCodec.forId(JsonCodec.ID));
+        assertTrue(parts.size() > 2);
+
+        JSONObject core = parts.get(0);
+        assertFalse(core.containsKey(PipelineProvider.KEY_PIPELINE));
+        assertEquals(parts.size() - 1, core.getInt(Util.KEY_PIPELINE_CHUNKS));
+        assertEquals("folder/pipeline#42", Util.getBuildId(core));
+
+        int stage = 0;
+        for (int i = 1; i < parts.size(); i++) {
+            JSONObject chunk = parts.get(i);
+            assertTrue(chunk.toString().getBytes(StandardCharsets.UTF_8).length <= maxSize);
+            assertEquals(Util.VALUE_PIPELINE_CHUNK, chunk.getString(Util.KEY_STATE));
+            assertEquals(i, chunk.getInt(Util.KEY_CHUNK_SEQUENCE));
+            assertEquals(parts.size() - 1, chunk.getInt(Util.KEY_CHUNK_TOTAL));
+            assertEquals(42, chunk.getInt(Util.KEY_BUILD_NR));
+            JSONArray stages = chunk.getJSONArray(PipelineProvider.KEY_PIPELINE);
+            for (int j = 0; j < stages.size(); j++) {
+                assertEquals("name=stage " + stage++, stages.getJSONArray(j).getString(1));
+            }
+        }
+        assertEquals(500, stage);
+    }
+
+    /**
+     * With CBOR the chunks are measured in CBOR, so they fit and are fuller than when measured in JSON.
+     */
+    @Test
+    public void testSplitCbor() {
+        int maxSize = 1024;
+        MessageCodec cbor = MessageCodec.forId(CborCodec.ID);
+        List<JSONObject> parts = PipelineChunker.split(message(500), maxSize, cbor);
+        for (int i = 1; i < parts.size(); i++) {
+            assertTrue(cbor.encode(parts.get(i)).length <= maxSize);
+        }
+        int chunks = PipelineChunker.split(message(500), maxSize, MessageCodec.forId(JsonCodec.ID)).size();
+        assertTrue(parts.size() < chunks);
+        assertTrue(cbor.encode(parts.get(1)).length > maxSize / 2);
+    }
+
+    /**
+     * Messages without stages are not split.
+     */
+    @Test
+    public void testNoStages() {
+        JSONObject json = message(0);
+        List<JSONObject> parts = PipelineChunker.split(json, 10, MessageCodec.forId(JsonCodec.ID));
+        assertEquals(1, parts.size());
+        assertSame(json, parts.get(0));
+    }
+}
@@ -23,24 +23,35 @@
  */
 package com.sonymobile.jenkins.plugins.mq.mqnotifier;
 
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import hudson.ExtensionList;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
 import hudson.matrix.MatrixProject;
 import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueListener;
 import hudson.slaves.DumbSlave;
+import jenkins.model.JenkinsLocationConfiguration;
+import net.sf.json.JSONObject;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
-//CS IGNORE Check FOR NEXT 100 LINES. REASON: TestData
+//CS IGNORE Check FOR NEXT 200 LINES. REASON: TestData
 
 /**
  * Tests for MQ notifier plugin.
@@ -143,6 +154,18 @@ public class PluginTest {
         assertThat(Mocks.COMPLETED.get(0), containsString(name));
     }
 
+    /**
+     * Test that the queue listener is registered, for the queue times of rollups and lifecycle events, while its
+     * own queue messages are off by default.
+     */
+    @Test
+    public void testQueueListener() {
+        assertNotNull("Queue listener not registered", QueueListener.all().get(QueueListenerImpl.class));
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        assertNotNull("No config available: MQNotifierConfig", config);
+        assertFalse("Queue messages on by default", config.isQueueEvents());
+    }
+
     /**
      * Test that building two projects generates the intended build messages.
      * @throws Exception thrown
@@ -166,6 +189,61 @@ public class PluginTest {
         assertThat(Mocks.COMPLETED.get(1), containsString(name2));
     }
 
+    /**
+     * Test that the backfill publishes the completed builds of the jobs that the event filter accepts.
+     * @throws Exception thrown
+     */
+    @Test
+    public void testBackfill() throws Exception {
+        FreeStyleProject included = j.createFreeStyleProject("backfill-included");
+        FreeStyleProject excluded = j.createFreeStyleProject("backfill-excluded");
+        j.buildAndAssertSuccess(included);
+        j.buildAndAssertSuccess(included);
+        j.buildAndAssertSuccess(excluded);
+        MQNotifierConfig config = MQNotifierConfig.getInstance();
+        assertNotNull("No config available: MQNotifierConfig", config);
+        config.setEnableNotifier(true);
+        config.setEventExcludes("job:backfill-excluded");
+
+        new Mocks.MessagePublisherMock();
+        Mocks.PUBLISHED.clear();
+        Backfill backfill = Backfill.getInstance();
+        assertTrue("Backfill already running", backfill.start(true));
+        long deadline = System.currentTimeMillis() + 60000;
+        while (backfill.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        List<String> builds = new ArrayList<String>();
+        for (JSONObject json : Mocks.PUBLISHED) {
+            if (json.optBoolean(Util.KEY_BACKFILL)) {
+                builds.add(Util.getBuildId(json));
+            }
+        }
+        assertEquals(Arrays.asList("backfill-included#1", "backfill-included#2"), builds);
+        assertEquals(2, backfill.getPublished());
+        assertEquals(2, backfill.getCompletedJobs());
+        config.setEventExcludes(null);
+    }
+
+    /**
+     * Test that the event context follows the data providers and the root url.
+     */
+    @Test
+    public void testEventContext() {
+        EventContext context = EventContext.getInstance();
+        context.invalidateProviders();
+        int providers = context.getProviders().size();
+        MQDataProvider provider = new MQDataProvider() { };
+        ExtensionList.lookup(MQDataProvider.class).add(provider);
+        assertEquals(providers + 1, context.getProviders().size());
+        assertTrue(context.getProviders().contains(provider));
+
+        JenkinsLocationConfiguration.get().setUrl("http://example.com/jenkins/");
+        assertEquals("http://example.com/jenkins/job/a/", context.getUrl("job/a/", ""));
+        JenkinsLocationConfiguration.get().setUrl("http://example.org/");
+        assertEquals("http://example.org/job/a/1/", context.getUrl("job/a/", "1/"));
+    }
+
     /**
      * Test that building a matrix project generates the intended build messages.
      * @throws Exception thrown
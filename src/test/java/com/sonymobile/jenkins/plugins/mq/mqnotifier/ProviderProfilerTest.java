@@ -0,0 +1,119 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import hudson.model.Run;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+//CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData
+
+/**
+ * Tests for the latency histogram and the byte accounting of the provider profiler.
+ */
+public class ProviderProfilerTest {
+
+    /**
+     * The contributed bytes are measured on a sample of the invocations and scaled to all of them.
+     */
+    @Test
+    public void testBytes() {
+        ProviderProfiler profiler = ProviderProfiler.getInstance();
+        MQDataProvider provider = new MQDataProvider() {
+            @Override
+            public void provideCompletedRunData(Run run, JSONObject json) {
+                json.put("k", "v");
+            }
+        };
+        ProviderRunner.Hook hook = new ProviderRunner.Hook() {
+            @Override
+            public void provide(MQDataProvider p, JSONObject json) {
+                p.provideCompletedRunData(null, json);
+            }
+        };
+        for (int i = 0; i < ProviderProfiler.BYTES_SAMPLE * 2; i++) {
+            JSONObject json = new JSONObject();
+            json.put("base", 1);
+            profiler.invoke(provider, "testBytes", hook, json, 0);
+        }
+        ProviderProfiler.HookStats stats = null;
+        for (ProviderProfiler.HookStats s : profiler.getStats()) {
+            if (s.getHook().equals("testBytes")) {
+                stats = s;
+            }
+        }
+        // "k" and "\"v\"" for every invocation
+        assertEquals(4 * ProviderProfiler.BYTES_SAMPLE * 2, stats.getBytes());
+
+        assertEquals(0, ProviderProfiler.estimate(0, 0, 5));
+        assertEquals(160, ProviderProfiler.estimate(10, 1, 16));
+        assertEquals(45, ProviderProfiler.estimate(30, 2, 3));
+    }
+
+    /**
+     * Latencies fall into the first bucket whose bound is not below them.
+     */
+    @Test
+    public void testBucket() {
+        assertEquals(0, ProviderProfiler.bucket(0));
+        assertEquals(0, ProviderProfiler.bucket(1));
+        assertEquals(2, ProviderProfiler.bucket(3));
+        assertEquals(ProviderProfiler.BUCKETS.length - 1, ProviderProfiler.bucket(10000));
+        assertEquals(ProviderProfiler.BUCKETS.length, ProviderProfiler.bucket(10001));
+    }
+
+    /**
+     * Percentiles are reported as the bound of the bucket that holds them.
+     */
+    @Test
+    public void testPercentile() {
+        long[] counts = new long[ProviderProfiler.BUCKETS.length + 1];
+        assertEquals(-1, ProviderProfiler.percentile(counts, 0, 0.99));
+        counts[0] = 98;
+        counts[6] = 1;
+        counts[ProviderProfiler.BUCKETS.length] = 1;
+        assertEquals(1, ProviderProfiler.percentile(counts, 100, 0.5));
+        assertEquals(1, ProviderProfiler.percentile(counts, 100, 0.98));
+        assertEquals(100, ProviderProfiler.percentile(counts, 100, 0.99));
+        assertEquals(Long.MAX_VALUE, ProviderProfiler.percentile(counts, 100, 1.0));
+    }
+
+    /**
+     * The guard uses the exact p99 of its window, not the bound of the bucket that holds it.
+     */
+    @Test
+    public void testExactPercentile() {
+        long[] samples = new long[ProviderProfiler.WINDOW];
+        assertEquals(-1, ProviderProfiler.exactPercentile(samples, 0, 0.99));
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i % 50 == 0 ? 201 : 10;
+        }
+        assertEquals(201, ProviderProfiler.exactPercentile(samples, samples.length, 0.99));
+        assertEquals(500, ProviderProfiler.BUCKETS[ProviderProfiler.bucket(201)]);
+        assertEquals(10, ProviderProfiler.exactPercentile(samples, samples.length, 0.98));
+    }
+}
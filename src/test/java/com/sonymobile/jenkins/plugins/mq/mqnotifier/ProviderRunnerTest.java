@@ -0,0 +1,239 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import hudson.model.Run;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 240 LINES. REASON: TestData
+
+/**
+ * Tests for running the data providers of an event.
+ */
+public class ProviderRunnerTest {
+
+    private static final ProviderRunner.Hook COMPLETED = new ProviderRunner.Hook() {
+        @Override
+        public void provide(MQDataProvider provider, JSONObject json) {
+            provider.provideCompletedRunData(null, json);
+        }
+    };
+
+    /**
+     * Without a budget providers run in order on the event, and see the fields set before them.
+     */
+    @Test
+    public void testSerial() {
+        JSONObject json = new JSONObject();
+        json.put("base", 1);
+        ProviderRunner.run(Arrays.<MQDataProvider>asList(new Setter("a", 0), new Reader("a", "b")), 0, 0, json,
+                "testSerial", COMPLETED);
+        assertEquals(1, json.getInt("a"));
+        assertEquals(1, json.getInt("b"));
+        assertFalse(json.containsKey(Util.KEY_MISSING_FIELDS));
+    }
+
+    /**
+     * With a budget the fragments of the providers are merged in provider order, and each provider only sees
+     * its own fragment.
+     */
+    @Test
+    public void testParallel() {
+        JSONObject json = new JSONObject();
+        json.put("base", 1);
+        ProviderRunner.run(Arrays.<MQDataProvider>asList(new Setter("a", 50), new Reader("base", "b"),
+                new Setter("c", 0)), 5000, 0, json, "testParallel", COMPLETED);
+        assertEquals(Arrays.asList("base", "a", "b", "c"), Arrays.asList(json.keySet().toArray()));
+        assertEquals(0, json.getInt("b"));
+        assertFalse(json.containsKey(Util.KEY_MISSING_FIELDS));
+    }
+
+    /**
+     * Providers that exceed the budget or fail are skipped and their fields listed as missing.
+     */
+    @Test
+    public void testSkipped() {
+        JSONObject json = new JSONObject();
+        ProviderRunner.run(Arrays.<MQDataProvider>asList(new Setter("slow", 2000), new Failing(),
+                new Setter("fast", 0)), 200, 0, json, "testSkipped", COMPLETED);
+        assertEquals(1, json.getInt("fast"));
+        assertFalse(json.containsKey("slow"));
+        assertEquals(Arrays.asList("slow", "failing"), json.getJSONArray(Util.KEY_MISSING_FIELDS));
+    }
+
+    /**
+     * The budget of a provider starts when it gets a pool thread, not when the event is submitted.
+     */
+    @Test
+    public void testBudgetStartsWhenRunning() {
+        JSONObject json = new JSONObject();
+        ProviderRunner.run(Arrays.<MQDataProvider>asList(new Setter("a", 300), new Setter("b", 300),
+                new Setter("c", 300), new Setter("d", 300), new Setter("e", 300), new Setter("f", 300)), 500, 0,
+                json, "testBudgetStartsWhenRunning", COMPLETED);
+        assertFalse(json.containsKey(Util.KEY_MISSING_FIELDS));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), Arrays.asList(json.keySet().toArray()));
+    }
+
+    /**
+     * A provider that keeps running after it was cancelled is bypassed until it returns.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testStuck() throws Exception {
+        Stuck stuck = new Stuck();
+        JSONObject json = new JSONObject();
+        ProviderRunner.run(Collections.<MQDataProvider>singletonList(stuck), 100, 0, json, "testStuck", COMPLETED);
+        assertEquals(Collections.singletonList("stuck"), json.getJSONArray(Util.KEY_MISSING_FIELDS));
+
+        json = new JSONObject();
+        ProviderRunner.run(Collections.<MQDataProvider>singletonList(stuck), 100, 0, json, "testStuck", COMPLETED);
+        assertEquals(Collections.singletonList("stuck"), json.getJSONArray(Util.KEY_MISSING_FIELDS));
+        assertEquals(1, stuck.calls.get());
+
+        stuck.release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!json.containsKey("stuck") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            json = new JSONObject();
+            ProviderRunner.run(Collections.<MQDataProvider>singletonList(stuck), 1000, 0, json, "testStuck",
+                    COMPLETED);
+        }
+        assertEquals(1, json.getInt("stuck"));
+    }
+
+    /**
+     * Ignores interruption until it is released.
+     */
+    private static final class Stuck extends MQDataProvider {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void provideCompletedRunData(Run run, JSONObject json) {
+            if (calls.incrementAndGet() == 1) {
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+            }
+            json.put("stuck", 1);
+        }
+
+        @Override
+        public Set<String> getProvidedKeys() {
+            return Collections.singleton("stuck");
+        }
+    }
+
+    /**
+     * Sets a field after a delay.
+     */
+    private static final class Setter extends MQDataProvider {
+        private final String key;
+        private final long delay;
+
+        /**
+         * Constructor.
+         *
+         * @param key   the field.
+         * @param delay the delay in milliseconds.
+         */
+        private Setter(String key, long delay) {
+            this.key = key;
+            this.delay = delay;
+        }
+
+        @Override
+        public void provideCompletedRunData(Run run, JSONObject json) {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            json.put(key, 1);
+        }
+
+        @Override
+        public Set<String> getProvidedKeys() {
+            return Collections.singleton(key);
+        }
+    }
+
+    /**
+     * Copies a field, 0 if it is not set.
+     */
+    private static final class Reader extends MQDataProvider {
+        private final String from;
+        private final String to;
+
+        /**
+         * Constructor.
+         *
+         * @param from the field to read.
+         * @param to   the field to set.
+         */
+        private Reader(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void provideCompletedRunData(Run run, JSONObject json) {
+            json.put(to, json.optInt(from, 0));
+        }
+    }
+
+    /**
+     * Always fails.
+     */
+    private static final class Failing extends MQDataProvider {
+        @Override
+        public void provideCompletedRunData(Run run, JSONObject json) {
+            throw new IllegalStateException("failing");
+        }
+
+        @Override
+        public Set<String> getProvidedKeys() {
+            return Collections.singleton("failing");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 60 LINES. REASON: TestData
+
+/**
+ * Tests for the token buckets of the publish rate limits.
+ */
+public class PublishLimiterTest {
+
+    /**
+     * The global message limit lets a burst through and then asks the dispatcher to wait.
+     */
+    @Test
+    public void testGlobalBurst() {
+        MQNotifierConfig config = new MQNotifierConfig();
+        config.setPublishRate(10);
+        config.setPublishBurst(500);
+        PublishLimiter limiter = new PublishLimiter(config, RouteTable.compile(null, "key"));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire("key", 100));
+        }
+        long wait = limiter.acquire("key", 100);
+        assertTrue(wait > 0 && wait <= 100);
+    }
+
+    /**
+     * A route limit only holds back messages with its routing key, a large message only needs a full bucket.
+     */
+    @Test
+    public void testRouteByteLimit() {
+        MQNotifierConfig config = new MQNotifierConfig();
+        Route route = new Route("slow", "slow.key", "");
+        route.setByteRateLimit(1000);
+        PublishLimiter limiter = new PublishLimiter(config, RouteTable.compile(Arrays.asList(route), "key"));
+        assertEquals(0, limiter.acquire("slow.key", 5000));
+        assertTrue(limiter.acquire("slow.key", 1) > 0);
+        assertEquals(0, limiter.acquire("key", 5000));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+//CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData
+
+/**
+ * Tests for the queue snapshots and deltas.
+ */
+public class QueueSnapshotterTest {
+
+    /**
+     * Deltas applied to the last snapshot give the current queue, and snapshots come every n-th message.
+     */
+    @Test
+    public void testDeltas() {
+        QueueSnapshotter snapshotter = new QueueSnapshotter();
+        Map<Long, QueueSnapshotter.Row> queue = new LinkedHashMap<Long, QueueSnapshotter.Row>();
+        queue.put(1L, row(1, "blocked", "Build #2 is already in progress"));
+        queue.put(2L, row(2, "waiting", "In the quiet period"));
+
+        JSONObject json = snapshotter.next(new LinkedHashMap<Long, QueueSnapshotter.Row>(queue), 1000, 3);
+        assertEquals(Util.VALUE_QUEUE_SNAPSHOT, json.getString(Util.KEY_STATE));
+        assertEquals(2, json.getInt(Util.KEY_QUEUE_SIZE));
+        assertEquals(1, json.getInt(Util.KEY_QUEUE_BLOCKED));
+        Map<Long, String> state = decode(json.getJSONObject(Util.KEY_QUEUE_ITEMS), json, new HashMap<Long, String>());
+        long sequence = json.getLong(Util.KEY_QUEUE_SEQUENCE);
+
+        queue.remove(1L);
+        queue.put(2L, row(2, "buildable", "Waiting for next available executor"));
+        queue.put(3L, row(3, "waiting", "In the quiet period"));
+        json = snapshotter.next(new LinkedHashMap<Long, QueueSnapshotter.Row>(queue), 2000, 3);
+        assertEquals(Util.VALUE_QUEUE_DELTA, json.getString(Util.KEY_STATE));
+        assertEquals(sequence, json.getLong(Util.KEY_QUEUE_BASE_SEQUENCE));
+        assertEquals(2, json.getJSONObject(Util.KEY_QUEUE_UPDATED).getJSONArray(QueueSnapshotter.COLUMN_ID).size());
+        for (Object id : json.getJSONArray(Util.KEY_QUEUE_REMOVED)) {
+            state.remove(((Number)id).longValue());
+        }
+        decode(json.getJSONObject(Util.KEY_QUEUE_UPDATED), json, state);
+        assertEquals(expected(queue), state);
+
+        json = snapshotter.next(new LinkedHashMap<Long, QueueSnapshotter.Row>(queue), 3000, 3);
+        assertEquals(Util.VALUE_QUEUE_DELTA, json.getString(Util.KEY_STATE));
+        assertEquals(0, json.getJSONObject(Util.KEY_QUEUE_UPDATED).getJSONArray(QueueSnapshotter.COLUMN_ID).size());
+        assertEquals(0, json.getJSONArray(Util.KEY_QUEUE_REMOVED).size());
+
+        json = snapshotter.next(new LinkedHashMap<Long, QueueSnapshotter.Row>(queue), 4000, 3);
+        assertEquals(Util.VALUE_QUEUE_SNAPSHOT, json.getString(Util.KEY_STATE));
+        assertFalse(json.containsKey(Util.KEY_QUEUE_BASE_SEQUENCE));
+        assertEquals(expected(queue), decode(json.getJSONObject(Util.KEY_QUEUE_ITEMS), json,
+                new HashMap<Long, String>()));
+    }
+
+    /**
+     * Creates a queue item.
+     *
+     * @param id     the id.
+     * @param status the status.
+     * @param reason the reason.
+     * @return the item.
+     */
+    private static QueueSnapshotter.Row row(long id, String status, String reason) {
+        return new QueueSnapshotter.Row(id, "job" + id, 100 * id, "linux", reason, status);
+    }
+
+    /**
+     * Describes the items of a queue as the decoded messages do.
+     *
+     * @param queue the queue.
+     * @return status and reason by id.
+     */
+    private static Map<Long, String> expected(Map<Long, QueueSnapshotter.Row> queue) {
+        QueueSnapshotter snapshotter = new QueueSnapshotter();
+        JSONObject json = snapshotter.next(queue, 0, 1);
+        return decode(json.getJSONObject(Util.KEY_QUEUE_ITEMS), json, new HashMap<Long, String>());
+    }
+
+    /**
+     * Decodes the columns of a message into a map.
+     *
+     * @param columns the columns.
+     * @param json    the message, with the string table.
+     * @param into    the map to put the items in.
+     * @return the map.
+     */
+    private static Map<Long, String> decode(JSONObject columns, JSONObject json, Map<Long, String> into) {
+        JSONArray strings = json.getJSONArray(Util.KEY_QUEUE_STRINGS);
+        JSONArray ids = columns.getJSONArray(QueueSnapshotter.COLUMN_ID);
+        for (int i = 0; i < ids.size(); i++) {
+            into.put(ids.getLong(i), columns.getJSONArray(QueueSnapshotter.COLUMN_JOB).getString(i) + " "
+                    + columns.getJSONArray(QueueSnapshotter.COLUMN_SINCE).getLong(i) + " "
+                    + strings.getString(columns.getJSONArray(QueueSnapshotter.COLUMN_LABEL).getInt(i)) + " "
+                    + strings.getString(columns.getJSONArray(QueueSnapshotter.COLUMN_STATUS).getInt(i)) + " "
+                    + strings.getString(columns.getJSONArray(QueueSnapshotter.COLUMN_REASON).getInt(i)));
+        }
+        return into;
+    }
+}
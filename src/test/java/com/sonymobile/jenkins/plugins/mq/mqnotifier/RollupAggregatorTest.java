@@ -0,0 +1,73 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 50 LINES. REASON: TestData
+
+/**
+ * Tests for the duration histograms of rollups.
+ */
+public class RollupAggregatorTest {
+
+    /**
+     * Buckets are monotonic, bounded and hold their value within the bucket width.
+     */
+    @Test
+    public void testBuckets() {
+        assertEquals(0, RollupAggregator.bucket(0));
+        assertEquals(0, RollupAggregator.bucket(1));
+        assertEquals(RollupAggregator.BUCKETS - 1, RollupAggregator.bucket(Long.MAX_VALUE));
+        int previous = 0;
+        for (long millis = 1; millis < 100000000L; millis = millis * 3 / 2 + 1) {
+            int bucket = RollupAggregator.bucket(millis);
+            assertTrue(bucket >= previous);
+            int[] counts = new int[RollupAggregator.BUCKETS];
+            counts[bucket]++;
+            long upper = RollupAggregator.percentile(counts, 1, 0.5);
+            assertTrue(millis + " in " + upper, upper >= millis && upper <= millis * 1.2 + 1);
+            previous = bucket;
+        }
+    }
+
+    /**
+     * Percentiles pick the bucket holding the rank.
+     */
+    @Test
+    public void testPercentiles() {
+        int[] counts = new int[RollupAggregator.BUCKETS];
+        for (int i = 1; i <= 100; i++) {
+            counts[RollupAggregator.bucket(i * 1000L)]++;
+        }
+        long p50 = RollupAggregator.percentile(counts, 100, 0.5);
+        long p99 = RollupAggregator.percentile(counts, 100, 0.99);
+        assertTrue(String.valueOf(p50), p50 >= 50000 && p50 <= 60000);
+        assertTrue(String.valueOf(p99), p99 >= 99000 && p99 <= 120000);
+        assertEquals(-1, RollupAggregator.percentile(new int[RollupAggregator.BUCKETS], 0, 0.5));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.CauseProvider;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.MQDataProvider;
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.providers.ParameterProvider;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 100 LINES. REASON: TestData
+
+/**
+ * Tests for route compilation and payload projection.
+ */
+public class RouteTableTest {
+
+    private static final String DEFAULT_KEY = "default.key";
+
+    /**
+     * Without configured routes everything is delivered on the global routing key.
+     */
+    @Test
+    public void testDefaultRoute() {
+        RouteTable table = RouteTable.compile(null, DEFAULT_KEY);
+        assertEquals(1, table.getRoutes().size());
+        assertEquals(DEFAULT_KEY, table.getRoutes().get(0).getRoutingKey());
+        assertTrue(table.wants(Util.KEY_LAST_BUILT_NR));
+        assertTrue(table.wants(new CauseProvider()));
+        assertTrue(table.wants(new MQDataProvider() { }));
+    }
+
+    /**
+     * Projected routes only deliver their fields and the state.
+     */
+    @Test
+    public void testProjection() {
+        RouteTable table = RouteTable.compile(Arrays.asList(
+                new Route("dashboard", "", "build_job_name, build_number status\nbuild_duration")), DEFAULT_KEY);
+        RouteTable.CompiledRoute route = table.getRoutes().get(0);
+        assertEquals(DEFAULT_KEY, route.getRoutingKey());
+
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, Util.VALUE_COMPLETED);
+        json.put(Util.KEY_PROJECT_NAME, "job");
+        json.put(Util.KEY_BUILD_NR, 7);
+        json.put(Util.KEY_URL, "http://jenkins/job/job/7/");
+        JSONObject projected = route.getProjection().apply(json);
+
+        assertEquals(3, projected.size());
+        assertEquals(Util.VALUE_COMPLETED, projected.getString(Util.KEY_STATE));
+        assertEquals(7, projected.getInt(Util.KEY_BUILD_NR));
+        assertFalse(projected.containsKey(Util.KEY_URL));
+        assertFalse(table.wants(Util.KEY_LAST_BUILT_NR));
+    }
+
+    /**
+     * Providers are only wanted when some route delivers one of their keys.
+     */
+    @Test
+    public void testProviderSkipping() {
+        RouteTable table = RouteTable.compile(Arrays.asList(
+                new Route("a", "a.key", "build_job_name"),
+                new Route("b", "b.key", "parameters")), DEFAULT_KEY);
+        assertFalse(table.wants(new CauseProvider()));
+        assertTrue(table.wants(new ParameterProvider()));
+        assertTrue("Undeclared providers are always wanted", table.wants(new MQDataProvider() { }));
+    }
+
+    /**
+     * A route without fields makes every field wanted.
+     */
+    @Test
+    public void testUnprojectedRouteWantsAll() {
+        RouteTable table = RouteTable.compile(Arrays.asList(
+                new Route("a", "a.key", "build_job_name"),
+                new Route("b", "b.key", " ")), DEFAULT_KEY);
+        assertTrue(table.wants(new CauseProvider()));
+        assertSame(PayloadProjection.ALL, table.getRoutes().get(1).getProjection());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 150 LINES. REASON: TestData
+
+/**
+ * Tests for the debouncing of stage events.
+ */
+public class StageListenerImplTest {
+
+    /**
+     * Events are held for the debounce time and published together.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testDebounce() throws Exception {
+        TestPublisher publisher = new TestPublisher();
+        MQNotifierConfig config = config(200, 100);
+        StageListenerImpl.add("job#1", "3", event("3", true), true, config, publisher);
+        StageListenerImpl.add("job#1", "5", event("5", true), true, config, publisher);
+        assertTrue(publisher.batches.isEmpty());
+
+        publisher.await(1);
+        assertEquals("[[3 started, 5 started]]", publisher.batches.toString());
+        StageListenerImpl.finish("job#1");
+        assertEquals(1, publisher.batches.size());
+    }
+
+    /**
+     * A stage that ends before its start is published only has its completed event, a stage that ends after
+     * its start is published has both.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        TestPublisher publisher = new TestPublisher();
+        MQNotifierConfig config = config(200, 100);
+        StageListenerImpl.add("job#2", "3", event("3", true), true, config, publisher);
+        StageListenerImpl.add("job#2", "5", event("5", true), true, config, publisher);
+        StageListenerImpl.add("job#2", "3", event("3", false), false, config, publisher);
+        publisher.await(1);
+        StageListenerImpl.add("job#2", "5", event("5", false), false, config, publisher);
+        StageListenerImpl.finish("job#2");
+        assertEquals("[[3 completed, 5 started], [5 completed]]", publisher.batches.toString());
+    }
+
+    /**
+     * After the per-build limit further events are dropped, the completed event of a pending stage is kept.
+     */
+    @Test
+    public void testLimit() {
+        TestPublisher publisher = new TestPublisher();
+        MQNotifierConfig config = config(60000, 2);
+        StageListenerImpl.add("job#3", "3", event("3", true), true, config, publisher);
+        StageListenerImpl.add("job#3", "5", event("5", true), true, config, publisher);
+        StageListenerImpl.add("job#3", "7", event("7", true), true, config, publisher);
+        StageListenerImpl.add("job#3", "3", event("3", false), false, config, publisher);
+        StageListenerImpl.finish("job#3");
+        assertEquals("[[3 completed, 5 started]]", publisher.batches.toString());
+    }
+
+    /**
+     * Pending events are published when the build completes, later nodes of the build are dropped.
+     */
+    @Test
+    public void testLateNodes() {
+        TestPublisher publisher = new TestPublisher();
+        MQNotifierConfig config = config(60000, 100);
+        assertTrue(StageListenerImpl.add("job#4", "3", event("3", true), true, config, publisher));
+        StageListenerImpl.finish("job#4");
+        assertEquals("[[3 started]]", publisher.batches.toString());
+
+        assertFalse(StageListenerImpl.add("job#4", "3", event("3", false), false, config, publisher));
+        StageListenerImpl.finish("job#4");
+        assertEquals(1, publisher.batches.size());
+    }
+
+    /**
+     * Completing a build waits for a debounced publication in progress, so its events go out first.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testFinishWaitsForPublication() throws Exception {
+        final TestPublisher publisher = new TestPublisher();
+        publisher.delay = 300;
+        MQNotifierConfig config = config(10, 100);
+        StageListenerImpl.add("job#5", "3", event("3", true), true, config, publisher);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!publisher.publishing && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(publisher.publishing);
+        StageListenerImpl.finish("job#5");
+        assertEquals("[[3 started]]", publisher.batches.toString());
+    }
+
+    /**
+     * Creates a configuration.
+     *
+     * @param debounce the debounce time.
+     * @param limit    the number of stage events per build.
+     * @return the configuration.
+     */
+    private static MQNotifierConfig config(long debounce, int limit) {
+        MQNotifierConfig config = new MQNotifierConfig();
+        config.setStageEventDebounce(debounce);
+        config.setStageEventLimit(limit);
+        return config;
+    }
+
+    /**
+     * Creates a stage event.
+     *
+     * @param stageId the id of the stage.
+     * @param started true for a started event.
+     * @return the event.
+     */
+    private static JSONObject event(String stageId, boolean started) {
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STAGE_ID, stageId);
+        json.put(Util.KEY_STATE, started ? Util.VALUE_STAGE_STARTED : Util.VALUE_STAGE_COMPLETED);
+        return json;
+    }
+
+    /**
+     * Keeps the published events as "id state" strings, one list per publication.
+     */
+    private static final class TestPublisher implements StageListenerImpl.Publisher {
+        private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        private volatile long delay;
+        private volatile boolean publishing;
+
+        @Override
+        public void publish(List<JSONObject> events) {
+            publishing = true;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<String> batch = new ArrayList<String>();
+            for (JSONObject json : events) {
+                String state = json.getString(Util.KEY_STATE);
+                batch.add(json.getString(Util.KEY_STAGE_ID) + " "
+                        + (Util.VALUE_STAGE_STARTED.equals(state) ? "started" : "completed"));
+            }
+            batches.add(batch);
+        }
+
+        /**
+         * Waits for a number of publications.
+         *
+         * @param count the number of publications.
+         * @throws InterruptedException if so.
+         */
+        private void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (batches.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, batches.size());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.codecs;
+
+import com.sonymobile.jenkins.plugins.mq.mqnotifier.Util;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 115 LINES. REASON: TestData
+
+/**
+ * Tests for the CBOR codec.
+ */
+public class CborCodecTest {
+
+    /**
+     * Formats bytes as hex.
+     *
+     * @param bytes the bytes
+     * @return lower case hex
+     */
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Known keys are integers and repeated strings are references.
+     */
+    @Test
+    public void testEncoding() {
+        JSONObject json = new JSONObject();
+        json.put(Util.KEY_STATE, "COMPLETED");
+        json.put(Util.KEY_BUILD_NR, 7);
+        json.put(Util.KEY_URL, "abc");
+        json.put(Util.KEY_PROJECT_NAME, "abc");
+        json.put("custom", -500);
+        assertEquals("d90100" + "a5"
+                + "00" + "69" + hex("COMPLETED".getBytes())
+                + "03" + "07"
+                + "01" + "63616263"
+                + "02" + "d81901"
+                + "66" + hex("custom".getBytes()) + "3901f3",
+                hex(CborCodec.INSTANCE.encode(json)));
+    }
+
+    /**
+     * Nested values, booleans and floats.
+     */
+    @Test
+    public void testValues() {
+        JSONObject json = new JSONObject();
+        json.put("a", new int[] {1, 1000});
+        json.put("b", true);
+        json.put("c", 1.5d);
+        assertEquals("d90100" + "a3"
+                + "6161" + "82" + "01" + "1903e8"
+                + "6162" + "f5"
+                + "6163" + "fb3ff8000000000000",
+                hex(CborCodec.INSTANCE.encode(json)));
+    }
+
+    /**
+     * Envelopes are joined from the encoded events, each in its own string namespace.
+     */
+    @Test
+    public void testEnvelope() {
+        JSONObject json = new JSONObject();
+        json.put("a", 1);
+        byte[] event = CborCodec.INSTANCE.encode(json);
+        assertEquals("d90100" + "a2"
+                + "15" + "02"
+                + "14" + "82" + "d90100a1616101" + "d90100a1616101",
+                hex(CborCodec.INSTANCE.encodeEnvelope(Util.KEY_BATCH_COUNT, Util.KEY_BATCH_EVENTS,
+                        Arrays.asList(event, event))));
+    }
+
+    /**
+     * The key table has the size of its version.
+     */
+    @Test
+    public void testKeyTableVersion() {
+        assertEquals("keys were appended without raising the table version",
+                CborCodec.KEYS_IN_VERSION, CborCodec.KEYS.length);
+    }
+
+    /**
+     * The stringref thresholds.
+     */
+    @Test
+    public void testReferenceable() {
+        assertFalse(CborCodec.isReferenceable(2, 0));
+        assertTrue(CborCodec.isReferenceable(3, 23));
+        assertFalse(CborCodec.isReferenceable(3, 24));
+        assertTrue(CborCodec.isReferenceable(5, 256));
+        assertFalse(CborCodec.isReferenceable(6, 65536));
+    }
+
+    /**
+     * Unknown and blank ids fall back to JSON.
+     */
+    @Test
+    public void testForId() {
+        assertSame(JsonCodec.INSTANCE, MessageCodec.forId(null));
+        assertSame(JsonCodec.INSTANCE, MessageCodec.forId("nope"));
+        assertSame(CborCodec.INSTANCE, MessageCodec.forId(CborCodec.ID));
+    }
+}
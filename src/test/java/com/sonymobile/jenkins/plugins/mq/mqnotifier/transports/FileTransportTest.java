@@ -0,0 +1,159 @@
+/*
+ *  The MIT License
+ *
+ *  Copyright 2018 Axis Communications AB. All rights reserved.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package com.sonymobile.jenkins.plugins.mq.mqnotifier.transports;
+
+import com.rabbitmq.client.AMQP;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//CS IGNORE MagicNumber FOR NEXT 120 LINES. REASON: TestData
+
+/**
+ * Tests for the rolling NDJSON files of the file transport.
+ */
+public class FileTransportTest {
+
+    /**
+     * Temporary folder for the files.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * JSON bodies are embedded, text bodies quoted and binary bodies base64 encoded.
+     */
+    @Test
+    public void testLines() {
+        JSONObject line = JSONObject.fromObject(FileTransport.toLine(message("{\"state\":\"COMPLETED\"}")));
+        assertEquals("exchange", line.getString("exchange"));
+        assertEquals("key", line.getString("routing_key"));
+        assertEquals(1000L, line.getLong("timestamp"));
+        assertEquals("COMPLETED", line.getJSONObject("body").getString("state"));
+
+        AMQP.BasicProperties text = new AMQP.BasicProperties.Builder().contentType("text/plain").build();
+        line = JSONObject.fromObject(FileTransport.toLine(new MessageTransport.Message("exchange", "key", text,
+                "{not json\n".getBytes(StandardCharsets.UTF_8))));
+        assertEquals("{not json\n", line.getString("body"));
+
+        AMQP.BasicProperties binary = new AMQP.BasicProperties.Builder().contentType("application/cbor").build();
+        line = JSONObject.fromObject(FileTransport.toLine(new MessageTransport.Message("exchange", "key", binary,
+                new byte[] {1, 2, 3})));
+        assertEquals("AQID", line.getString("body_base64"));
+    }
+
+    /**
+     * Full files are cut after their last line and renamed, the file being written keeps its part suffix.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRolling() throws Exception {
+        File dir = folder.newFolder();
+        FileTransport.FileSender sender = new FileTransport.FileSender(dir, "default", 200);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sender.send(Arrays.asList(message("{\"n\":" + i + "}"), message("{\"n\":" + i + "}"))));
+        }
+        List<String> lines = new ArrayList<String>();
+        int parts = 0;
+        for (File file : files(dir)) {
+            if (file.getName().endsWith(".part")) {
+                parts++;
+                continue;
+            }
+            assertTrue(file.length() <= 200);
+            lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        }
+        assertEquals(1, parts);
+        assertTrue(lines.size() > 0 && lines.size() < 10);
+        sender.close();
+        lines.clear();
+        for (File file : files(dir)) {
+            assertTrue(file.getName().endsWith(".ndjson"));
+            lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        }
+        assertEquals(10, lines.size());
+        assertEquals(4, JSONObject.fromObject(lines.get(9)).getJSONObject("body").getInt("n"));
+    }
+
+    /**
+     * A file left unfinished is cut after its last complete line when the sender starts.
+     *
+     * @throws Exception if so.
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        File dir = folder.newFolder();
+        File part = new File(dir, "default-1-0.ndjson.part");
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        file.write("{\"a\":1}\n{\"a\":".getBytes(StandardCharsets.UTF_8));
+        file.setLength(4096);
+        file.close();
+        FileTransport.FileSender sender = new FileTransport.FileSender(dir, "default", 4096);
+        assertTrue(sender.send(Collections.singletonList(message("{}"))));
+        sender.close();
+        File recovered = new File(dir, "default-1-0.ndjson");
+        assertEquals(Collections.singletonList("{\"a\":1}"),
+                Files.readAllLines(recovered.toPath(), StandardCharsets.UTF_8));
+        assertEquals(2, files(dir).size());
+    }
+
+    /**
+     * Creates a JSON message.
+     *
+     * @param body the body.
+     * @return the message.
+     */
+    private static MessageTransport.Message message(String body) {
+        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+                .contentType("application/json").timestamp(new Date(1000)).build();
+        return new MessageTransport.Message("exchange", "key", props, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lists the files of a directory in name order.
+     *
+     * @param dir the directory.
+     * @return the files.
+     */
+    private static List<File> files(File dir) {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+}